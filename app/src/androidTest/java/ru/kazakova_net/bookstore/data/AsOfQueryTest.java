@@ -0,0 +1,228 @@
+package ru.kazakova_net.bookstore.data;
+
+import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.net.Uri;
+import android.os.Bundle;
+import android.os.SystemClock;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.Calendar;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static ru.kazakova_net.bookstore.data.BookContract.BookEntry;
+import static ru.kazakova_net.bookstore.data.BookContract.EXTRA_COMPACTED_PERIODS;
+import static ru.kazakova_net.bookstore.data.BookContract.EXTRA_SNAPSHOT_MONTHS;
+import static ru.kazakova_net.bookstore.data.BookContract.METHOD_COMPACT_PERIODS;
+
+/**
+ * Reads the books as of earlier times, from the periods and from the monthly snapshots.
+ */
+@RunWith(AndroidJUnit4.class)
+public class AsOfQueryTest {
+    
+    /**
+     * Id of the book whose old periods the compaction test makes up
+     */
+    private static final long OLD_BOOK_ID = 1000000;
+    
+    private Context mContext;
+    private ContentResolver mContentResolver;
+    
+    @Before
+    public void setUp() {
+        mContext = InstrumentationRegistry.getInstrumentation().getTargetContext();
+        mContentResolver = mContext.getContentResolver();
+        mContentResolver.delete(BookEntry.CONTENT_URI, null, null);
+        
+        BookStoreDbHelper dbHelper = new BookStoreDbHelper(mContext);
+        try {
+            SQLiteDatabase database = dbHelper.getWritableDatabase();
+            database.delete(BookStoreDbHelper.PERIOD_TABLE_NAME, null, null);
+            database.delete(BookStoreDbHelper.SNAPSHOT_TABLE_NAME, null, null);
+            database.delete(BookStoreDbHelper.SNAPSHOT_MONTH_TABLE_NAME, null, null);
+        } finally {
+            dbHelper.close();
+        }
+    }
+    
+    @After
+    public void tearDown() {
+        mContentResolver.delete(BookEntry.CONTENT_URI, null, null);
+    }
+    
+    @Test
+    public void asOf_readsTheBookAsItWas() {
+        long beforeInsert = tick();
+        
+        ContentValues values = new ContentValues();
+        values.put(BookEntry.COLUMN_BOOK_TITLE, "As Of");
+        values.put(BookEntry.COLUMN_BOOK_PRICE, 100);
+        values.put(BookEntry.COLUMN_BOOK_QUANTITY, 5);
+        values.put(BookEntry.COLUMN_BOOK_SUPPLIER_NAME, "Supplier");
+        values.put(BookEntry.COLUMN_BOOK_SUPPLIER_PHONE, "123");
+        Uri uri = mContentResolver.insert(BookEntry.CONTENT_URI, values);
+        assertNotNull(uri);
+        long id = ContentUris.parseId(uri);
+        long inserted = tick();
+        
+        ContentValues price = new ContentValues();
+        price.put(BookEntry.COLUMN_BOOK_PRICE, 200);
+        assertEquals(1, mContentResolver.update(uri, price, null, null));
+        long repriced = tick();
+        
+        // The sale may still wait in the ledger when the books are read as of now
+        ContentValues sale = new ContentValues();
+        sale.put(BookEntry.QUANTITY_DELTA, -2);
+        mContentResolver.update(BookEntry.buildQuantityUri(id), sale, null, null);
+        long sold = tick();
+        
+        assertFalse(exists(BookEntry.buildAsOfUri(uri, beforeInsert)));
+        assertBook(BookEntry.buildAsOfUri(uri, inserted), 100, 5);
+        assertBook(BookEntry.buildAsOfUri(uri, repriced), 200, 5);
+        assertBook(BookEntry.buildAsOfUri(uri, sold), 200, 3);
+        
+        assertEquals(1, mContentResolver.delete(uri, null, null));
+        long deleted = tick();
+        assertFalse(exists(BookEntry.buildAsOfUri(uri, deleted)));
+        assertBook(BookEntry.buildAsOfUri(uri, sold), 200, 3);
+    }
+    
+    @Test(expected = IllegalArgumentException.class)
+    public void asOf_withVersion_isRejected() {
+        Uri uri = BookEntry.buildAsOfUri(BookEntry.CONTENT_URI, System.currentTimeMillis());
+        Cursor cursor = mContentResolver.query(uri, new String[]{BookEntry._ID,
+                BookEntry.COLUMN_BOOK_VERSION}, null, null, null);
+        if (cursor != null) {
+            cursor.close();
+        }
+    }
+    
+    @Test
+    public void compaction_keepsTheStartOfEveryMonth() {
+        // Three months ago, two months ago and the previous month, the last one compacted
+        Calendar calendar = Calendar.getInstance();
+        calendar.set(Calendar.DAY_OF_MONTH, 1);
+        calendar.set(Calendar.HOUR_OF_DAY, 0);
+        calendar.set(Calendar.MINUTE, 0);
+        calendar.set(Calendar.SECOND, 0);
+        calendar.set(Calendar.MILLISECOND, 0);
+        calendar.add(Calendar.MONTH, -1);
+        long previousMonth = calendar.getTimeInMillis();
+        calendar.add(Calendar.MONTH, -1);
+        long twoMonthsAgo = calendar.getTimeInMillis();
+        calendar.add(Calendar.MONTH, -1);
+        long threeMonthsAgo = calendar.getTimeInMillis();
+        long day = 24 * 60 * 60 * 1000;
+        
+        // The book cost 100 until a day into two months ago, and 200 since
+        BookStoreDbHelper dbHelper = new BookStoreDbHelper(mContext);
+        try {
+            SQLiteDatabase database = dbHelper.getWritableDatabase();
+            database.insert(BookStoreDbHelper.PERIOD_TABLE_NAME, null,
+                    period(threeMonthsAgo + day, twoMonthsAgo + day, 100));
+            database.insert(BookStoreDbHelper.PERIOD_TABLE_NAME, null,
+                    period(twoMonthsAgo + day, BookStoreDbHelper.PERIOD_OPEN, 200));
+        } finally {
+            dbHelper.close();
+        }
+        
+        Uri uri = ContentUris.withAppendedId(BookEntry.CONTENT_URI, OLD_BOOK_ID);
+        assertBook(BookEntry.buildAsOfUri(uri, twoMonthsAgo + 2 * day), 200, 5);
+        
+        Bundle result = mContentResolver.call(BookEntry.CONTENT_URI, METHOD_COMPACT_PERIODS, null,
+                null);
+        assertNotNull(result);
+        assertEquals(2, result.getInt(EXTRA_SNAPSHOT_MONTHS));
+        assertEquals(1, result.getInt(EXTRA_COMPACTED_PERIODS));
+        
+        assertBook(BookEntry.buildAsOfUri(uri, twoMonthsAgo), 100, 5);
+        assertBook(BookEntry.buildAsOfUri(uri, previousMonth + day), 200, 5);
+        
+        // The end of a compacted month is read at the start of the next one
+        assertBook(BookEntry.buildAsOfUri(uri, previousMonth), 200, 5);
+        
+        // Other times of the compacted months are gone
+        assertRejected(BookEntry.buildAsOfUri(uri, twoMonthsAgo - 1));
+        assertRejected(BookEntry.buildAsOfUri(uri, twoMonthsAgo + 2 * day));
+        assertRejected(BookEntry.buildAsOfUri(uri, previousMonth - 1));
+        
+        // Nothing is left to compact
+        result = mContentResolver.call(BookEntry.CONTENT_URI, METHOD_COMPACT_PERIODS, null, null);
+        assertNotNull(result);
+        assertEquals(0, result.getInt(EXTRA_SNAPSHOT_MONTHS));
+        assertEquals(0, result.getInt(EXTRA_COMPACTED_PERIODS));
+    }
+    
+    /**
+     * Let a few milliseconds pass on both sides of the returned time, so that the changes
+     * before and after it fall into other periods.
+     */
+    private static long tick() {
+        SystemClock.sleep(5);
+        long time = System.currentTimeMillis();
+        SystemClock.sleep(5);
+        return time;
+    }
+    
+    private static ContentValues period(long validFrom, long validTo, int price) {
+        ContentValues values = new ContentValues();
+        values.put(BookStoreDbHelper.COLUMN_VALID_TO, validTo);
+        values.put(BookStoreDbHelper.COLUMN_PERIOD_BOOK_ID, OLD_BOOK_ID);
+        values.put(BookStoreDbHelper.COLUMN_VALID_FROM, validFrom);
+        values.put(BookEntry.COLUMN_BOOK_TITLE, "Old Book");
+        values.put(BookEntry.COLUMN_BOOK_PRICE, price);
+        values.put(BookEntry.COLUMN_BOOK_QUANTITY, 5);
+        return values;
+    }
+    
+    private boolean exists(Uri uri) {
+        Cursor cursor = mContentResolver.query(uri, null, null, null, null);
+        assertNotNull(cursor);
+        try {
+            return cursor.getCount() > 0;
+        } finally {
+            cursor.close();
+        }
+    }
+    
+    private void assertRejected(Uri uri) {
+        try {
+            Cursor cursor = mContentResolver.query(uri, null, null, null, null);
+            if (cursor != null) {
+                cursor.close();
+            }
+            fail("Read " + uri);
+        } catch (IllegalArgumentException expected) {
+            // Only the snapshots are kept
+        }
+    }
+    
+    private void assertBook(Uri uri, int price, int quantity) {
+        Cursor cursor = mContentResolver.query(uri, new String[]{BookEntry.COLUMN_BOOK_PRICE,
+                BookEntry.COLUMN_BOOK_QUANTITY}, null, null, null);
+        assertNotNull(cursor);
+        try {
+            assertTrue(cursor.moveToFirst());
+            assertEquals(price, cursor.getInt(0));
+            assertEquals(quantity, cursor.getInt(1));
+        } finally {
+            cursor.close();
+        }
+    }
+}
@@ -0,0 +1,72 @@
+package ru.kazakova_net.bookstore.data;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import static org.junit.Assert.assertTrue;
+import static ru.kazakova_net.bookstore.data.BookContract.BookEntry;
+import static ru.kazakova_net.bookstore.data.BookContract.BookFilter;
+
+/**
+ * Checks that every combination of filter conditions is answered through an index.
+ */
+@RunWith(AndroidJUnit4.class)
+public class BookFilterQueryPlanTest {
+    
+    /**
+     * Number of independent conditions: supplier, minimum price, maximum price,
+     * in stock, quantity below
+     */
+    private static final int CONDITIONS = 5;
+    
+    private BookStoreDbHelper mDbHelper;
+    
+    @Before
+    public void setUp() {
+        Context context = InstrumentationRegistry.getInstrumentation().getTargetContext();
+        mDbHelper = new BookStoreDbHelper(context);
+    }
+    
+    @After
+    public void tearDown() {
+        mDbHelper.close();
+    }
+    
+    @Test
+    public void everyCombination_searchesAnIndex() {
+        SQLiteDatabase database = mDbHelper.getReadableDatabase();
+        
+        for (int mask = 1; mask < 1 << CONDITIONS; mask++) {
+            BookFilter filter = new BookFilter()
+                    .supplier((mask & 1) != 0 ? "Supplier" : null)
+                    .priceRange((mask & 2) != 0 ? 10 : null, (mask & 4) != 0 ? 100 : null)
+                    .inStock((mask & 8) != 0)
+                    .quantityBelow((mask & 16) != 0 ? 5 : null);
+            
+            String sql = "EXPLAIN QUERY PLAN SELECT " + BookEntry._ID + ", "
+                    + BookEntry.COLUMN_BOOK_TITLE + " FROM " + BookEntry.TABLE_NAME
+                    + " WHERE " + filter.getSelection();
+            
+            Cursor cursor = database.rawQuery(sql, filter.getSelectionArgs());
+            try {
+                assertTrue(filter.getSelection(), cursor.moveToFirst());
+                do {
+                    String detail = cursor.getString(cursor.getColumnIndexOrThrow("detail"));
+                    assertTrue(filter.getSelection() + ": " + detail,
+                            detail.startsWith("SEARCH") && detail.contains("INDEX"));
+                } while (cursor.moveToNext());
+            } finally {
+                cursor.close();
+            }
+        }
+    }
+}
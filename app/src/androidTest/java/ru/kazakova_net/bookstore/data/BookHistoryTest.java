@@ -0,0 +1,138 @@
+package ru.kazakova_net.bookstore.data;
+
+import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.Bundle;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.concurrent.TimeUnit;
+
+import ru.kazakova_net.bookstore.utils.DeviceUtils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static ru.kazakova_net.bookstore.data.BookContract.BookEntry;
+import static ru.kazakova_net.bookstore.data.BookContract.EXTRA_MAX_HISTORY_ROWS;
+import static ru.kazakova_net.bookstore.data.BookContract.EXTRA_PRUNED_ROWS;
+import static ru.kazakova_net.bookstore.data.BookContract.EXTRA_RETENTION_MILLIS;
+import static ru.kazakova_net.bookstore.data.BookContract.HistoryEntry;
+import static ru.kazakova_net.bookstore.data.BookContract.METHOD_PRUNE_HISTORY;
+
+/**
+ * Records the changes of a book and prunes the oldest of them.
+ */
+@RunWith(AndroidJUnit4.class)
+public class BookHistoryTest {
+    
+    private Context mContext;
+    private ContentResolver mContentResolver;
+    
+    @Before
+    public void setUp() {
+        mContext = InstrumentationRegistry.getInstrumentation().getTargetContext();
+        mContentResolver = mContext.getContentResolver();
+        mContentResolver.delete(BookEntry.CONTENT_URI, null, null);
+    }
+    
+    @Test
+    public void changes_areRecordedAsDiffs() {
+        long id = insertBook();
+        Uri uri = ContentUris.withAppendedId(BookEntry.CONTENT_URI, id);
+        
+        ContentValues values = new ContentValues();
+        values.put(BookEntry.COLUMN_BOOK_PRICE, 120);
+        assertEquals(1, mContentResolver.update(uri, values, null, null));
+        assertEquals(1, mContentResolver.delete(uri, null, null));
+        
+        Cursor cursor = mContentResolver.query(BookEntry.buildHistoryUri(id), null, null, null, null);
+        assertNotNull(cursor);
+        try {
+            assertEquals(3, cursor.getCount());
+            int operationIndex = cursor.getColumnIndexOrThrow(HistoryEntry.COLUMN_OPERATION);
+            int changesIndex = cursor.getColumnIndexOrThrow(HistoryEntry.COLUMN_CHANGES);
+            
+            // Newest first, and the history outlives the book
+            cursor.moveToNext();
+            assertEquals(HistoryEntry.OPERATION_DELETE, cursor.getString(operationIndex));
+            assertTrue(cursor.getString(changesIndex).contains("price=120>"));
+            
+            // Only the changed column, even though the version changed too
+            cursor.moveToNext();
+            assertEquals(HistoryEntry.OPERATION_UPDATE, cursor.getString(operationIndex));
+            assertEquals("price=100>120", cursor.getString(changesIndex));
+            
+            cursor.moveToNext();
+            assertEquals(HistoryEntry.OPERATION_INSERT, cursor.getString(operationIndex));
+            assertTrue(cursor.getString(changesIndex).contains("title=>'Book'"));
+        } finally {
+            cursor.close();
+        }
+    }
+    
+    @Test
+    public void changes_recordTheDevice() {
+        long id = insertBook();
+        
+        Cursor cursor = mContentResolver.query(BookEntry.buildHistoryUri(id),
+                new String[]{HistoryEntry.COLUMN_DEVICE_ID}, null, null, null);
+        assertNotNull(cursor);
+        try {
+            assertTrue(cursor.moveToFirst());
+            assertEquals(DeviceUtils.getDeviceId(mContext), cursor.getString(0));
+        } finally {
+            cursor.close();
+        }
+    }
+    
+    @Test
+    public void prune_keepsTheNewestRows() {
+        long id = insertBook();
+        Uri uri = ContentUris.withAppendedId(BookEntry.CONTENT_URI, id);
+        for (int price = 1; price <= 1200; price++) {
+            ContentValues values = new ContentValues();
+            values.put(BookEntry.COLUMN_BOOK_PRICE, price);
+            mContentResolver.update(uri, values, null, null);
+        }
+        
+        Bundle extras = new Bundle();
+        extras.putLong(EXTRA_RETENTION_MILLIS, TimeUnit.DAYS.toMillis(1));
+        extras.putLong(EXTRA_MAX_HISTORY_ROWS, 10);
+        Bundle result = mContentResolver.call(BookEntry.CONTENT_URI, METHOD_PRUNE_HISTORY, null, extras);
+        assertNotNull(result);
+        assertTrue(result.getInt(EXTRA_PRUNED_ROWS) >= 1191);
+        
+        Cursor cursor = mContentResolver.query(BookEntry.buildHistoryUri(id),
+                new String[]{HistoryEntry.COLUMN_CHANGES}, null, null, null);
+        assertNotNull(cursor);
+        try {
+            assertEquals(10, cursor.getCount());
+            cursor.moveToFirst();
+            assertEquals("price=1199>1200", cursor.getString(0));
+        } finally {
+            cursor.close();
+        }
+    }
+    
+    private long insertBook() {
+        ContentValues values = new ContentValues();
+        values.put(BookEntry.COLUMN_BOOK_TITLE, "Book");
+        values.put(BookEntry.COLUMN_BOOK_PRICE, 100);
+        values.put(BookEntry.COLUMN_BOOK_QUANTITY, 1);
+        values.put(BookEntry.COLUMN_BOOK_SUPPLIER_NAME, "Supplier");
+        values.put(BookEntry.COLUMN_BOOK_SUPPLIER_PHONE, "123");
+        Uri uri = mContentResolver.insert(BookEntry.CONTENT_URI, values);
+        assertNotNull(uri);
+        return ContentUris.parseId(uri);
+    }
+}
@@ -0,0 +1,211 @@
+package ru.kazakova_net.bookstore.data;
+
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.Bundle;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static ru.kazakova_net.bookstore.data.BookContract.BookEntry;
+import static ru.kazakova_net.bookstore.data.BookContract.EXTRA_BACKUP_PATH;
+import static ru.kazakova_net.bookstore.data.BookContract.METHOD_BACKUP;
+import static ru.kazakova_net.bookstore.data.BookContract.METHOD_RESTORE;
+
+/**
+ * Backs the database up while other threads keep selling books.
+ */
+@RunWith(AndroidJUnit4.class)
+public class BookStoreBackupTest {
+    
+    private static final int BOOKS = 500;
+    private static final int WRITERS = 4;
+    
+    private ContentResolver mContentResolver;
+    
+    @Before
+    public void setUp() {
+        Context context = InstrumentationRegistry.getInstrumentation().getTargetContext();
+        mContentResolver = context.getContentResolver();
+        mContentResolver.delete(BookEntry.CONTENT_URI, null, null);
+        
+        for (int i = 0; i < BOOKS; i++) {
+            ContentValues values = new ContentValues();
+            values.put(BookEntry.COLUMN_BOOK_TITLE, "Book " + i);
+            values.put(BookEntry.COLUMN_BOOK_PRICE, 100);
+            values.put(BookEntry.COLUMN_BOOK_QUANTITY, 1000);
+            values.put(BookEntry.COLUMN_BOOK_SUPPLIER_NAME, "Supplier");
+            values.put(BookEntry.COLUMN_BOOK_SUPPLIER_PHONE, "123");
+            mContentResolver.insert(BookEntry.CONTENT_URI, values);
+        }
+    }
+    
+    @After
+    public void tearDown() {
+        mContentResolver.delete(BookEntry.CONTENT_URI, null, null);
+    }
+    
+    @Test
+    public void backupUnderWriteLoad_canBeRestored() throws Exception {
+        final long[] ids = queryIds();
+        final AtomicBoolean running = new AtomicBoolean(true);
+        final AtomicInteger sales = new AtomicInteger();
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+        
+        Thread[] writers = new Thread[WRITERS];
+        for (int w = 0; w < WRITERS; w++) {
+            final int offset = w;
+            writers[w] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        ContentValues values = new ContentValues();
+                        values.put(BookEntry.QUANTITY_DELTA, -1);
+                        for (int i = offset; running.get(); i += WRITERS) {
+                            Uri uri = BookEntry.buildQuantityUri(ids[i % ids.length]);
+                            mContentResolver.update(uri, values, null, null);
+                            sales.incrementAndGet();
+                        }
+                    } catch (Throwable t) {
+                        failure.set(t);
+                    }
+                }
+            });
+            writers[w].start();
+        }
+        
+        // Let the writers get going, then take the backup while they run
+        Thread.sleep(200);
+        int salesBeforeBackup = sales.get();
+        Bundle result = mContentResolver.call(BookEntry.CONTENT_URI, METHOD_BACKUP, null, null);
+        int salesDuringBackup = sales.get() - salesBeforeBackup;
+        
+        running.set(false);
+        for (Thread writer : writers) {
+            writer.join();
+        }
+        
+        assertNull(failure.get());
+        assertNotNull(result);
+        File backup = new File(result.getString(EXTRA_BACKUP_PATH));
+        assertTrue(backup.exists());
+        
+        // Writers were not blocked while the snapshot was taken
+        assertTrue("No sale committed during the backup", salesDuringBackup > 0);
+        
+        // The restored database is a consistent snapshot: every book is present and
+        // the cached quantities match the counters
+        assertNotNull(mContentResolver.call(BookEntry.CONTENT_URI, METHOD_RESTORE,
+                backup.getPath(), null));
+        assertEquals(BOOKS, queryIds().length);
+        
+        long sold = 0;
+        Cursor cursor = mContentResolver.query(BookEntry.CONTENT_URI,
+                new String[]{BookEntry.COLUMN_BOOK_QUANTITY}, null, null, null);
+        try {
+            while (cursor.moveToNext()) {
+                sold += 1000 - cursor.getLong(0);
+            }
+        } finally {
+            cursor.close();
+        }
+        assertTrue(sold >= salesBeforeBackup && sold <= sales.get());
+    }
+    
+    @Test
+    public void restoreUnderSales_keepsEverySaleMadeAfterIt() throws Exception {
+        final long id = queryIds()[0];
+        Bundle backup = mContentResolver.call(BookEntry.CONTENT_URI, METHOD_BACKUP, null, null);
+        assertNotNull(backup);
+        
+        final AtomicBoolean running = new AtomicBoolean(true);
+        final AtomicBoolean restored = new AtomicBoolean();
+        final AtomicInteger salesAfterRestore = new AtomicInteger();
+        final AtomicInteger salesAcrossRestore = new AtomicInteger();
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+        
+        Thread[] writers = new Thread[WRITERS];
+        for (int w = 0; w < WRITERS; w++) {
+            writers[w] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        ContentValues values = new ContentValues();
+                        values.put(BookEntry.QUANTITY_DELTA, -1);
+                        while (running.get()) {
+                            // A sale that started before the restore returned may have gone
+                            // into the replaced database
+                            boolean after = restored.get();
+                            if (mContentResolver.update(BookEntry.buildQuantityUri(id), values,
+                                    null, null) == 1) {
+                                (after ? salesAfterRestore : salesAcrossRestore).incrementAndGet();
+                            }
+                        }
+                    } catch (Throwable t) {
+                        failure.set(t);
+                    }
+                }
+            });
+            writers[w].start();
+        }
+        
+        Thread.sleep(100);
+        assertNotNull(mContentResolver.call(BookEntry.CONTENT_URI, METHOD_RESTORE,
+                backup.getString(EXTRA_BACKUP_PATH), null));
+        restored.set(true);
+        Thread.sleep(100);
+        
+        running.set(false);
+        for (Thread writer : writers) {
+            writer.join();
+        }
+        assertNull(failure.get());
+        
+        // Backing up commits the sales still in the ledger
+        assertNotNull(mContentResolver.call(BookEntry.CONTENT_URI, METHOD_BACKUP, null, null));
+        Cursor cursor = mContentResolver.query(BookEntry.CONTENT_URI,
+                new String[]{BookEntry.COLUMN_BOOK_QUANTITY}, BookEntry._ID + "=?",
+                new String[]{String.valueOf(id)}, null);
+        assertNotNull(cursor);
+        try {
+            assertTrue(cursor.moveToFirst());
+            long sold = 1000 - cursor.getLong(0);
+            assertTrue(salesAfterRestore.get() > 0);
+            assertTrue(sold >= salesAfterRestore.get());
+            assertTrue(sold <= salesAfterRestore.get() + WRITERS);
+        } finally {
+            cursor.close();
+        }
+    }
+    
+    private long[] queryIds() {
+        Cursor cursor = mContentResolver.query(BookEntry.CONTENT_URI,
+                new String[]{BookEntry._ID}, null, null, null);
+        try {
+            long[] ids = new long[cursor.getCount()];
+            for (int i = 0; cursor.moveToNext(); i++) {
+                ids[i] = cursor.getLong(0);
+            }
+            return ids;
+        } finally {
+            cursor.close();
+        }
+    }
+}
@@ -0,0 +1,71 @@
+package ru.kazakova_net.bookstore.data;
+
+import android.content.ContentResolver;
+import android.content.Context;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+
+import ru.kazakova_net.bookstore.inventory.CatalogSnapshot;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static ru.kazakova_net.bookstore.data.BookContract.BookEntry;
+
+/**
+ * Exports a seeded catalog as a snapshot and looks its books up in the mapped file.
+ */
+@RunWith(AndroidJUnit4.class)
+public class CatalogSnapshotExportTest {
+    
+    private static final int BOOKS = 3000;
+    
+    private Context mContext;
+    private ContentResolver mContentResolver;
+    
+    @Before
+    public void setUp() throws Exception {
+        mContext = InstrumentationRegistry.getInstrumentation().getTargetContext();
+        mContentResolver = mContext.getContentResolver();
+        mContentResolver.delete(BookEntry.CONTENT_URI, null, null);
+        new CatalogSeeder(mContentResolver, 42).insert(0, BOOKS);
+    }
+    
+    @After
+    public void tearDown() {
+        mContentResolver.delete(BookEntry.CONTENT_URI, null, null);
+        new File(mContext.getFilesDir(), CatalogSnapshotExporter.SNAPSHOT_FILE).delete();
+    }
+    
+    @Test
+    public void export_servesEveryBook() throws Exception {
+        File file = new File(mContext.getFilesDir(), CatalogSnapshotExporter.SNAPSHOT_FILE);
+        assertEquals(BOOKS, CatalogSnapshotExporter.export(mContentResolver, file));
+        
+        CatalogSnapshot snapshot = CatalogSnapshot.open(file);
+        assertEquals(BOOKS, snapshot.size());
+        
+        BookColumns chunk = BookColumns.read(mContentResolver,
+                new String[]{BookEntry.COLUMN_BOOK_PRICE}, 0);
+        long[] ids = chunk.getIds();
+        int[] prices = chunk.getInts(BookEntry.COLUMN_BOOK_PRICE);
+        int[] records = new int[10];
+        for (int i = 0; i < chunk.size(); i += 97) {
+            int record = snapshot.findById(ids[i]);
+            assertEquals(prices[i], snapshot.getPrice(record));
+            assertEquals(record, snapshot.findByIsbn(snapshot.getIsbn(record)));
+            
+            String title = snapshot.getTitle(record);
+            int found = snapshot.searchTitles(title, 0, records);
+            assertTrue(found > 0);
+            assertTrue(snapshot.getTitle(records[0]).equalsIgnoreCase(title));
+        }
+    }
+}
@@ -0,0 +1,138 @@
+package ru.kazakova_net.bookstore.data;
+
+import android.content.ContentProviderOperation;
+import android.content.ContentResolver;
+import android.content.Context;
+import android.database.Cursor;
+import android.os.SystemClock;
+import android.util.Log;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static ru.kazakova_net.bookstore.data.BookContract.BookEntry;
+import static ru.kazakova_net.bookstore.data.BookContract.CONTENT_AUTHORITY;
+
+/**
+ * Reads a large catalog through {@link BookColumns} and through a cursor, checks that both
+ * see the same books and logs how long each takes.
+ */
+@RunWith(AndroidJUnit4.class)
+public class ColumnarReadTest {
+    
+    private static final String LOG_TAG = ColumnarReadTest.class.getSimpleName();
+    
+    private static final int BOOKS = 100000;
+    private static final int BATCH_SIZE = 5000;
+    private static final int SUPPLIERS = 20;
+    
+    private static final String[] COLUMNS = {
+            BookEntry.COLUMN_BOOK_PRICE,
+            BookEntry.COLUMN_BOOK_QUANTITY,
+            BookEntry.COLUMN_BOOK_SUPPLIER_NAME};
+    
+    private ContentResolver mContentResolver;
+    
+    @Before
+    public void setUp() {
+        Context context = InstrumentationRegistry.getInstrumentation().getTargetContext();
+        mContentResolver = context.getContentResolver();
+        mContentResolver.delete(BookEntry.CONTENT_URI, null, null);
+    }
+    
+    @After
+    public void tearDown() {
+        mContentResolver.delete(BookEntry.CONTENT_URI, null, null);
+    }
+    
+    @Test
+    public void columns_matchCursor() throws Exception {
+        insertBooks();
+        
+        long started = SystemClock.elapsedRealtime();
+        long columnarSum = 0;
+        int columnarRows = 0;
+        int chunks = 0;
+        long afterId = 0;
+        BookColumns chunk;
+        do {
+            chunk = BookColumns.read(mContentResolver, COLUMNS, afterId);
+            long[] ids = chunk.getIds();
+            int[] prices = chunk.getInts(BookEntry.COLUMN_BOOK_PRICE);
+            int[] quantities = chunk.getInts(BookEntry.COLUMN_BOOK_QUANTITY);
+            int[] suppliers = chunk.getCodes(BookEntry.COLUMN_BOOK_SUPPLIER_NAME);
+            String[] supplierNames = chunk.getDictionary(BookEntry.COLUMN_BOOK_SUPPLIER_NAME);
+            assertEquals(SUPPLIERS, supplierNames.length);
+            for (int i = 0; i < chunk.size(); i++) {
+                columnarSum += checksum(ids[i], prices[i], quantities[i], supplierNames[suppliers[i]]);
+            }
+            columnarRows += chunk.size();
+            chunks++;
+            afterId = chunk.getLastId();
+        } while (!chunk.isLast());
+        long columnarMillis = SystemClock.elapsedRealtime() - started;
+        
+        started = SystemClock.elapsedRealtime();
+        long cursorSum = 0;
+        int cursorRows = 0;
+        Cursor cursor = mContentResolver.query(BookEntry.CONTENT_URI, new String[]{
+                BookEntry._ID,
+                BookEntry.COLUMN_BOOK_PRICE,
+                BookEntry.COLUMN_BOOK_QUANTITY,
+                BookEntry.COLUMN_BOOK_SUPPLIER_NAME}, null, null, null);
+        assertNotNull(cursor);
+        try {
+            while (cursor.moveToNext()) {
+                cursorSum += checksum(cursor.getLong(0), cursor.getInt(1), cursor.getInt(2),
+                        cursor.getString(3));
+                cursorRows++;
+            }
+        } finally {
+            cursor.close();
+        }
+        long cursorMillis = SystemClock.elapsedRealtime() - started;
+        
+        Log.i(LOG_TAG, "Read " + BOOKS + " books as columns in " + chunks + " chunks in "
+                + columnarMillis + " ms, through a cursor in " + cursorMillis + " ms");
+        assertEquals(BOOKS, columnarRows);
+        assertEquals(BOOKS, cursorRows);
+        assertEquals(cursorSum, columnarSum);
+        assertTrue(chunks > 1);
+    }
+    
+    @Test(expected = IllegalArgumentException.class)
+    public void unknownColumn_isRejected() {
+        BookColumns.read(mContentResolver, new String[]{"rowid"}, 0);
+    }
+    
+    private void insertBooks() throws Exception {
+        ArrayList<ContentProviderOperation> operations = new ArrayList<>(BATCH_SIZE);
+        for (int i = 0; i < BOOKS; i++) {
+            operations.add(ContentProviderOperation.newInsert(BookEntry.CONTENT_URI)
+                    .withValue(BookEntry.COLUMN_BOOK_TITLE, "Book " + i)
+                    .withValue(BookEntry.COLUMN_BOOK_PRICE, i % 1000)
+                    .withValue(BookEntry.COLUMN_BOOK_QUANTITY, i % 7)
+                    .withValue(BookEntry.COLUMN_BOOK_SUPPLIER_NAME, "Supplier " + i % SUPPLIERS)
+                    .withValue(BookEntry.COLUMN_BOOK_SUPPLIER_PHONE, "123")
+                    .build());
+            if (operations.size() == BATCH_SIZE) {
+                mContentResolver.applyBatch(CONTENT_AUTHORITY, operations);
+                operations.clear();
+            }
+        }
+    }
+    
+    private static long checksum(long id, int price, int quantity, String supplier) {
+        return id * 31 + price * 7 + quantity + supplier.hashCode();
+    }
+}
@@ -0,0 +1,120 @@
+package ru.kazakova_net.bookstore.data;
+
+import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.net.Uri;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static ru.kazakova_net.bookstore.data.BookContract.BookEntry;
+
+/**
+ * Finds books with similar titles through the trigram index, and keeps it up to date.
+ */
+@RunWith(AndroidJUnit4.class)
+public class DuplicateTitleTest {
+    
+    private ContentResolver mContentResolver;
+    
+    @Before
+    public void setUp() {
+        Context context = InstrumentationRegistry.getInstrumentation().getTargetContext();
+        mContentResolver = context.getContentResolver();
+        mContentResolver.delete(BookEntry.CONTENT_URI, null, null);
+    }
+    
+    @After
+    public void tearDown() {
+        mContentResolver.delete(BookEntry.CONTENT_URI, null, null);
+    }
+    
+    @Test
+    public void similarTitle_isFound() {
+        long war = insertBook("Война и мир.");
+        insertBook("Анна Каренина");
+        
+        Cursor cursor = mContentResolver.query(BookEntry.buildSimilarUri("война и мир", -1),
+                null, null, null, null);
+        assertNotNull(cursor);
+        try {
+            assertEquals(1, cursor.getCount());
+            cursor.moveToFirst();
+            assertEquals(war, cursor.getLong(cursor.getColumnIndexOrThrow(BookEntry._ID)));
+            assertEquals(1.0, cursor.getDouble(cursor.getColumnIndexOrThrow(BookEntry.COLUMN_SIMILARITY)), 0);
+        } finally {
+            cursor.close();
+        }
+        
+        // The book being edited is not a duplicate of itself
+        assertEquals(0, countSimilar(BookEntry.buildSimilarUri("Война и мир", war)));
+    }
+    
+    @Test
+    public void retitledAndDeletedBooks_areReindexed() {
+        long id = insertBook("Идиот");
+        Uri uri = ContentUris.withAppendedId(BookEntry.CONTENT_URI, id);
+        
+        ContentValues values = new ContentValues();
+        values.put(BookEntry.COLUMN_BOOK_TITLE, "Бесы");
+        assertEquals(1, mContentResolver.update(uri, values, null, null));
+        assertEquals(0, countSimilar(BookEntry.buildSimilarUri("Идиот", -1)));
+        assertEquals(1, countSimilar(BookEntry.buildSimilarUri("Бесы", -1)));
+        
+        assertEquals(1, mContentResolver.delete(uri, null, null));
+        assertEquals(0, countSimilar(BookEntry.buildSimilarUri("Бесы", -1)));
+    }
+    
+    @Test
+    public void duplicates_listEveryPair() {
+        long first = insertBook("Преступление и наказание");
+        long second = insertBook("Преступленье и наказание");
+        insertBook("Братья Карамазовы");
+        
+        Cursor cursor = mContentResolver.query(BookEntry.CONTENT_DUPLICATES_URI,
+                null, null, null, null);
+        assertNotNull(cursor);
+        try {
+            assertEquals(1, cursor.getCount());
+            cursor.moveToFirst();
+            assertEquals(first, cursor.getLong(cursor.getColumnIndexOrThrow(BookEntry._ID)));
+            assertEquals(second, cursor.getLong(cursor.getColumnIndexOrThrow(BookEntry.COLUMN_DUPLICATE_ID)));
+            assertTrue(cursor.getDouble(cursor.getColumnIndexOrThrow(BookEntry.COLUMN_SIMILARITY)) < 1);
+        } finally {
+            cursor.close();
+        }
+    }
+    
+    private long insertBook(String title) {
+        ContentValues values = new ContentValues();
+        values.put(BookEntry.COLUMN_BOOK_TITLE, title);
+        values.put(BookEntry.COLUMN_BOOK_PRICE, 100);
+        values.put(BookEntry.COLUMN_BOOK_QUANTITY, 1);
+        values.put(BookEntry.COLUMN_BOOK_SUPPLIER_NAME, "Supplier");
+        values.put(BookEntry.COLUMN_BOOK_SUPPLIER_PHONE, "123");
+        Uri uri = mContentResolver.insert(BookEntry.CONTENT_URI, values);
+        assertNotNull(uri);
+        return ContentUris.parseId(uri);
+    }
+    
+    private int countSimilar(Uri uri) {
+        Cursor cursor = mContentResolver.query(uri, null, null, null, null);
+        assertNotNull(cursor);
+        try {
+            return cursor.getCount();
+        } finally {
+            cursor.close();
+        }
+    }
+}
@@ -0,0 +1,176 @@
+package ru.kazakova_net.bookstore.data;
+
+import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.net.Uri;
+import android.os.Bundle;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static ru.kazakova_net.bookstore.data.BookContract.BookEntry;
+import static ru.kazakova_net.bookstore.data.BookContract.CounterEntry;
+import static ru.kazakova_net.bookstore.data.BookContract.EXTRA_BACKUP_PATH;
+import static ru.kazakova_net.bookstore.data.BookContract.EXTRA_CHECK_COMPLETE;
+import static ru.kazakova_net.bookstore.data.BookContract.EXTRA_MAX_MILLIS;
+import static ru.kazakova_net.bookstore.data.BookContract.EXTRA_NEGATIVE_BOOK_IDS;
+import static ru.kazakova_net.bookstore.data.BookContract.EXTRA_REINDEXED;
+import static ru.kazakova_net.bookstore.data.BookContract.EXTRA_REPAIRED_BOOKS;
+import static ru.kazakova_net.bookstore.data.BookContract.METHOD_CHECK_INTEGRITY;
+
+/**
+ * Damages the books behind the back of the provider and lets the integrity check repair them.
+ */
+@RunWith(AndroidJUnit4.class)
+public class IntegrityCheckTest {
+    
+    /**
+     * More books than one slice of the check reads
+     */
+    private static final int BOOKS = 450;
+    
+    private Context mContext;
+    private ContentResolver mContentResolver;
+    private final long[] mIds = new long[BOOKS];
+    
+    @Before
+    public void setUp() {
+        mContext = InstrumentationRegistry.getInstrumentation().getTargetContext();
+        mContentResolver = mContext.getContentResolver();
+        mContentResolver.delete(BookEntry.CONTENT_URI, null, null);
+        
+        for (int i = 0; i < BOOKS; i++) {
+            ContentValues values = new ContentValues();
+            values.put(BookEntry.COLUMN_BOOK_TITLE, "Integrity " + i);
+            values.put(BookEntry.COLUMN_BOOK_PRICE, 100);
+            values.put(BookEntry.COLUMN_BOOK_QUANTITY, 5);
+            values.put(BookEntry.COLUMN_BOOK_SUPPLIER_NAME, "Supplier");
+            values.put(BookEntry.COLUMN_BOOK_SUPPLIER_PHONE, "123");
+            Uri uri = mContentResolver.insert(BookEntry.CONTENT_URI, values);
+            assertNotNull(uri);
+            mIds[i] = ContentUris.parseId(uri);
+        }
+        
+        // Start from a finished check, whatever an earlier test left behind
+        runCheck();
+    }
+    
+    @After
+    public void tearDown() {
+        mContentResolver.delete(BookEntry.CONTENT_URI, null, null);
+    }
+    
+    @Test
+    public void healthyDatabase_needsNoRepair() {
+        Bundle result = runCheck();
+        assertEquals(0, result.getInt(EXTRA_REPAIRED_BOOKS));
+        assertEquals(0, result.getStringArray(EXTRA_REINDEXED).length);
+        assertEquals(0, result.getLongArray(EXTRA_NEGATIVE_BOOK_IDS).length);
+        assertFalse(result.containsKey(EXTRA_BACKUP_PATH));
+    }
+    
+    @Test
+    public void damagedBooks_areRepairedInPlace() {
+        long stale = mIds[3];
+        long unindexed = mIds[BOOKS - 10];
+        long deleted = mIds[BOOKS - 1] + 1000;
+        
+        BookStoreDbHelper dbHelper = new BookStoreDbHelper(mContext);
+        try {
+            SQLiteDatabase database = dbHelper.getWritableDatabase();
+            database.execSQL("UPDATE " + BookEntry.TABLE_NAME + " SET "
+                    + BookEntry.COLUMN_BOOK_QUANTITY + " = 99 WHERE " + BookEntry._ID + " = " + stale);
+            database.delete(BookStoreDbHelper.TRIGRAM_TABLE_NAME,
+                    BookStoreDbHelper.COLUMN_TRIGRAM_BOOK_ID + " = " + unindexed, null);
+            database.execSQL("INSERT INTO " + BookStoreDbHelper.TRIGRAM_TABLE_NAME + " ("
+                    + BookStoreDbHelper.COLUMN_TRIGRAM + ", " + BookStoreDbHelper.COLUMN_TRIGRAM_BOOK_ID
+                    + ") VALUES ('abc', " + deleted + ")");
+        } finally {
+            dbHelper.close();
+        }
+        
+        Bundle result = runCheck();
+        assertEquals(3, result.getInt(EXTRA_REPAIRED_BOOKS));
+        assertEquals(0, result.getStringArray(EXTRA_REINDEXED).length);
+        assertFalse(result.containsKey(EXTRA_BACKUP_PATH));
+        
+        assertEquals(5, readQuantity(stale));
+        assertTrue(countTrigrams(unindexed) > 0);
+        assertEquals(0, countTrigrams(deleted));
+        
+        // Repaired books stay repaired
+        assertEquals(0, runCheck().getInt(EXTRA_REPAIRED_BOOKS));
+    }
+    
+    @Test
+    public void oversoldBook_isReportedNotRepaired() {
+        long oversold = mIds[BOOKS / 2];
+        
+        // Another device sold more copies than there were, which the counters keep
+        ContentValues counter = new ContentValues();
+        counter.put(CounterEntry.COLUMN_DEVICE_ID, "other-device");
+        counter.put(CounterEntry.COLUMN_INCREMENTS, 0);
+        counter.put(CounterEntry.COLUMN_DECREMENTS, 8);
+        assertEquals(1, mContentResolver.update(BookEntry.buildCountersUri(oversold), counter,
+                null, null));
+        assertEquals(-3, readQuantity(oversold));
+        
+        Bundle result = runCheck();
+        assertEquals(0, result.getInt(EXTRA_REPAIRED_BOOKS));
+        assertArrayEquals(new long[]{oversold}, result.getLongArray(EXTRA_NEGATIVE_BOOK_IDS));
+        assertEquals(-3, readQuantity(oversold));
+    }
+    
+    /**
+     * Run a whole check in calls of a millisecond, so that it takes several slices.
+     */
+    private Bundle runCheck() {
+        Bundle extras = new Bundle();
+        extras.putLong(EXTRA_MAX_MILLIS, 1);
+        Bundle result;
+        do {
+            result = mContentResolver.call(BookEntry.CONTENT_URI, METHOD_CHECK_INTEGRITY, null,
+                    extras);
+            assertNotNull(result);
+        } while (!result.getBoolean(EXTRA_CHECK_COMPLETE));
+        return result;
+    }
+    
+    private int readQuantity(long id) {
+        Cursor cursor = mContentResolver.query(ContentUris.withAppendedId(BookEntry.CONTENT_URI, id),
+                new String[]{BookEntry.COLUMN_BOOK_QUANTITY}, null, null, null);
+        assertNotNull(cursor);
+        try {
+            assertTrue(cursor.moveToFirst());
+            return cursor.getInt(0);
+        } finally {
+            cursor.close();
+        }
+    }
+    
+    private long countTrigrams(long id) {
+        BookStoreDbHelper dbHelper = new BookStoreDbHelper(mContext);
+        try {
+            return DatabaseUtils.queryNumEntries(dbHelper.getReadableDatabase(),
+                    BookStoreDbHelper.TRIGRAM_TABLE_NAME,
+                    BookStoreDbHelper.COLUMN_TRIGRAM_BOOK_ID + " = " + id);
+        } finally {
+            dbHelper.close();
+        }
+    }
+}
@@ -0,0 +1,150 @@
+package ru.kazakova_net.bookstore.data;
+
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.net.Uri;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static ru.kazakova_net.bookstore.data.BookContract.BookEntry;
+import static ru.kazakova_net.bookstore.data.BookContract.CONTENT_AUTHORITY;
+import static ru.kazakova_net.bookstore.data.BookContract.PATH_ISBN;
+
+/**
+ * Sells books by their ISBN, the way {@link ScanBuffer} does.
+ */
+@RunWith(AndroidJUnit4.class)
+public class IsbnSaleTest {
+    
+    private static final String ISBN = "9780000000017";
+    private static final String OTHER_ISBN = "9780000000024";
+    
+    private ContentResolver mContentResolver;
+    
+    @Before
+    public void setUp() {
+        mContentResolver = InstrumentationRegistry.getInstrumentation().getTargetContext()
+                .getContentResolver();
+        mContentResolver.delete(BookEntry.CONTENT_URI, null, null);
+        insertBook(ISBN, 3);
+        insertBook(OTHER_ISBN, 3);
+    }
+    
+    @After
+    public void tearDown() {
+        mContentResolver.delete(BookEntry.CONTENT_URI, null, null);
+    }
+    
+    @Test
+    public void shortStock_rejectsOnlyThatSale() throws Exception {
+        ArrayList<ContentProviderOperation> operations = new ArrayList<>();
+        operations.add(sale(BookEntry.buildIsbnUri(ISBN), 5));
+        operations.add(sale(BookEntry.buildIsbnUri(OTHER_ISBN), 2));
+        ContentProviderResult[] results = mContentResolver.applyBatch(CONTENT_AUTHORITY, operations);
+        
+        assertEquals(0, results[0].count.intValue());
+        assertEquals(1, results[1].count.intValue());
+        assertEquals(3, readQuantity(ISBN));
+        assertEquals(1, readQuantity(OTHER_ISBN));
+        
+        // The last copies can still be sold, but not one more
+        operations.clear();
+        operations.add(sale(BookEntry.buildIsbnUri(OTHER_ISBN), 1));
+        operations.add(sale(BookEntry.buildIsbnUri(OTHER_ISBN), 1));
+        results = mContentResolver.applyBatch(CONTENT_AUTHORITY, operations);
+        assertEquals(1, results[0].count.intValue());
+        assertEquals(0, results[1].count.intValue());
+        assertEquals(0, readQuantity(OTHER_ISBN));
+    }
+    
+    @Test
+    public void isbnWithSeparators_matchesTheBook() throws Exception {
+        Uri uri = BookEntry.CONTENT_URI.buildUpon()
+                .appendPath(PATH_ISBN)
+                .appendPath("978-0-00-000001-7")
+                .build();
+        
+        ArrayList<ContentProviderOperation> operations = new ArrayList<>();
+        operations.add(sale(uri, 1));
+        ContentProviderResult[] results = mContentResolver.applyBatch(CONTENT_AUTHORITY, operations);
+        assertEquals(1, results[0].count.intValue());
+        assertEquals(2, readQuantity(ISBN));
+    }
+    
+    @Test
+    public void batchSale_isSeenBySalesOutsideIt() throws Exception {
+        long id = readId(ISBN);
+        
+        // The ledger holds the stock of the book from here on
+        assertEquals(1, sell(BookEntry.buildQuantityUri(id), 1));
+        
+        ArrayList<ContentProviderOperation> operations = new ArrayList<>();
+        operations.add(sale(BookEntry.buildIsbnUri(ISBN), 2));
+        ContentProviderResult[] results = mContentResolver.applyBatch(CONTENT_AUTHORITY, operations);
+        assertEquals(1, results[0].count.intValue());
+        
+        // No copy is left for a sale through the ledger
+        assertEquals(0, sell(BookEntry.buildQuantityUri(id), 1));
+    }
+    
+    private void insertBook(String isbn, int quantity) {
+        ContentValues values = new ContentValues();
+        values.put(BookEntry.COLUMN_BOOK_TITLE, "Book " + isbn);
+        values.put(BookEntry.COLUMN_BOOK_ISBN, isbn);
+        values.put(BookEntry.COLUMN_BOOK_PRICE, 100);
+        values.put(BookEntry.COLUMN_BOOK_QUANTITY, quantity);
+        values.put(BookEntry.COLUMN_BOOK_SUPPLIER_NAME, "Supplier");
+        values.put(BookEntry.COLUMN_BOOK_SUPPLIER_PHONE, "123");
+        assertNotNull(mContentResolver.insert(BookEntry.CONTENT_URI, values));
+    }
+    
+    private static ContentProviderOperation sale(Uri uri, int copies) {
+        return ContentProviderOperation.newUpdate(uri)
+                .withValue(BookEntry.QUANTITY_DELTA, -copies)
+                .build();
+    }
+    
+    private int sell(Uri uri, int copies) {
+        ContentValues values = new ContentValues();
+        values.put(BookEntry.QUANTITY_DELTA, -copies);
+        return mContentResolver.update(uri, values, null, null);
+    }
+    
+    private long readId(String isbn) {
+        Cursor cursor = mContentResolver.query(BookEntry.buildIsbnUri(isbn),
+                new String[]{BookEntry._ID}, null, null, null);
+        assertNotNull(cursor);
+        try {
+            assertTrue(cursor.moveToFirst());
+            return cursor.getLong(0);
+        } finally {
+            cursor.close();
+        }
+    }
+    
+    private int readQuantity(String isbn) {
+        Cursor cursor = mContentResolver.query(BookEntry.buildIsbnUri(isbn),
+                new String[]{BookEntry.COLUMN_BOOK_QUANTITY}, null, null, null);
+        assertNotNull(cursor);
+        try {
+            assertTrue(cursor.moveToFirst());
+            return cursor.getInt(0);
+        } finally {
+            cursor.close();
+        }
+    }
+}
@@ -0,0 +1,226 @@
+package ru.kazakova_net.bookstore.data;
+
+import android.content.ContentProviderOperation;
+import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.Bundle;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static ru.kazakova_net.bookstore.data.BookContract.BookEntry;
+import static ru.kazakova_net.bookstore.data.BookContract.CONTENT_AUTHORITY;
+import static ru.kazakova_net.bookstore.data.BookContract.EXTRA_BOOK_IDS;
+import static ru.kazakova_net.bookstore.data.BookContract.EXTRA_FROM_LOCATION;
+import static ru.kazakova_net.bookstore.data.BookContract.EXTRA_QUANTITIES;
+import static ru.kazakova_net.bookstore.data.BookContract.EXTRA_SHORT_BOOK_IDS;
+import static ru.kazakova_net.bookstore.data.BookContract.EXTRA_TO_LOCATION;
+import static ru.kazakova_net.bookstore.data.BookContract.EXTRA_TRANSFERRED_COPIES;
+import static ru.kazakova_net.bookstore.data.BookContract.LocationEntry;
+import static ru.kazakova_net.bookstore.data.BookContract.METHOD_TRANSFER_STOCK;
+import static ru.kazakova_net.bookstore.data.BookContract.StockEntry;
+
+/**
+ * Splits the stock of books between a warehouse and stores, and moves it between them.
+ */
+@RunWith(AndroidJUnit4.class)
+public class LocationStockTest {
+    
+    private ContentResolver mContentResolver;
+    private long mWarehouse;
+    private long mStore;
+    private long mFirstBook;
+    private long mSecondBook;
+    
+    @Before
+    public void setUp() {
+        Context context = InstrumentationRegistry.getInstrumentation().getTargetContext();
+        mContentResolver = context.getContentResolver();
+        mContentResolver.delete(BookEntry.CONTENT_URI, null, null);
+        
+        // Locations are never deleted, so every run adds its own
+        long run = System.nanoTime();
+        mWarehouse = insertLocation("Warehouse " + run);
+        mStore = insertLocation("Store " + run);
+        mFirstBook = insertBook("First");
+        mSecondBook = insertBook("Second");
+        
+        assertEquals(1, changeStock(mWarehouse, mFirstBook, 10));
+        assertEquals(1, changeStock(mWarehouse, mSecondBook, 4));
+    }
+    
+    @After
+    public void tearDown() {
+        mContentResolver.delete(BookEntry.CONTENT_URI, null, null);
+    }
+    
+    @Test
+    public void receiptAndSale_changeLocationAndQuantity() {
+        assertEquals(10, readQuantity(mFirstBook));
+        assertEquals(10, readStock(mWarehouse, mFirstBook));
+        
+        // The store has no copies to sell
+        assertEquals(0, changeStock(mStore, mFirstBook, -1));
+        assertEquals(10, readQuantity(mFirstBook));
+        
+        assertEquals(1, changeStock(mWarehouse, mFirstBook, -3));
+        assertEquals(7, readQuantity(mFirstBook));
+        assertEquals(7, readStock(mWarehouse, mFirstBook));
+    }
+    
+    @Test
+    public void transfer_movesCopiesWithoutChangingQuantity() {
+        Bundle result = transfer(mWarehouse, mStore, new long[]{mFirstBook, mSecondBook},
+                new int[]{6, 4});
+        assertEquals(10, result.getInt(EXTRA_TRANSFERRED_COPIES));
+        assertNull(result.getLongArray(EXTRA_SHORT_BOOK_IDS));
+        
+        assertEquals(4, readStock(mWarehouse, mFirstBook));
+        assertEquals(6, readStock(mStore, mFirstBook));
+        assertEquals(0, readStock(mWarehouse, mSecondBook));
+        assertEquals(4, readStock(mStore, mSecondBook));
+        assertEquals(10, readQuantity(mFirstBook));
+        assertEquals(4, readQuantity(mSecondBook));
+    }
+    
+    @Test
+    public void transfer_withShortLine_movesNothing() {
+        Bundle result = transfer(mWarehouse, mStore, new long[]{mFirstBook, mSecondBook},
+                new int[]{6, 5});
+        assertArrayEquals(new long[]{mSecondBook}, result.getLongArray(EXTRA_SHORT_BOOK_IDS));
+        
+        assertEquals(10, readStock(mWarehouse, mFirstBook));
+        assertEquals(0, readStock(mStore, mFirstBook));
+    }
+    
+    @Test(expected = IllegalArgumentException.class)
+    public void transfer_fromUnknownLocation_isRejected() {
+        transfer(Math.max(mWarehouse, mStore) + 1, mStore, new long[]{mFirstBook}, new int[]{1});
+    }
+    
+    @Test
+    public void saleWithoutLocation_keepsStockWithinQuantity() throws Exception {
+        // Two copies at no location, three in the store and seven in the warehouse
+        ContentValues receipt = new ContentValues();
+        receipt.put(BookEntry.QUANTITY_DELTA, 2);
+        assertEquals(1, mContentResolver.update(BookEntry.buildQuantityUri(mFirstBook), receipt,
+                null, null));
+        transfer(mWarehouse, mStore, new long[]{mFirstBook}, new int[]{3});
+        
+        // Committed in a batch, so that the sale is written at once
+        ArrayList<ContentProviderOperation> operations = new ArrayList<>();
+        operations.add(ContentProviderOperation.newUpdate(BookEntry.buildQuantityUri(mFirstBook))
+                .withValue(BookEntry.QUANTITY_DELTA, -4)
+                .build());
+        mContentResolver.applyBatch(CONTENT_AUTHORITY, operations);
+        
+        // The copies at no location went first, then those of the warehouse
+        assertEquals(8, readQuantity(mFirstBook));
+        assertEquals(5, readStock(mWarehouse, mFirstBook));
+        assertEquals(3, readStock(mStore, mFirstBook));
+    }
+    
+    @Test
+    public void whereIs_listsLocationsWithMostCopiesFirst() {
+        transfer(mWarehouse, mStore, new long[]{mFirstBook}, new int[]{7});
+        
+        Cursor cursor = mContentResolver.query(BookEntry.buildStockUri(mFirstBook), null, null,
+                null, null);
+        assertNotNull(cursor);
+        try {
+            assertEquals(2, cursor.getCount());
+            assertTrue(cursor.moveToFirst());
+            assertEquals(mStore, cursor.getLong(cursor.getColumnIndex(StockEntry.COLUMN_LOCATION_ID)));
+            assertEquals(7, cursor.getInt(cursor.getColumnIndex(StockEntry.COLUMN_QUANTITY)));
+            assertTrue(cursor.moveToNext());
+            assertEquals(mWarehouse, cursor.getLong(cursor.getColumnIndex(StockEntry.COLUMN_LOCATION_ID)));
+            assertFalse(cursor.moveToNext());
+        } finally {
+            cursor.close();
+        }
+    }
+    
+    private long insertLocation(String name) {
+        ContentValues values = new ContentValues();
+        values.put(LocationEntry.COLUMN_LOCATION_NAME, name);
+        Uri uri = mContentResolver.insert(LocationEntry.CONTENT_URI, values);
+        assertNotNull(uri);
+        return ContentUris.parseId(uri);
+    }
+    
+    private long insertBook(String title) {
+        ContentValues values = new ContentValues();
+        values.put(BookEntry.COLUMN_BOOK_TITLE, title);
+        values.put(BookEntry.COLUMN_BOOK_PRICE, 100);
+        values.put(BookEntry.COLUMN_BOOK_QUANTITY, 0);
+        values.put(BookEntry.COLUMN_BOOK_SUPPLIER_NAME, "AST");
+        values.put(BookEntry.COLUMN_BOOK_SUPPLIER_PHONE, "123");
+        Uri uri = mContentResolver.insert(BookEntry.CONTENT_URI, values);
+        assertNotNull(uri);
+        return ContentUris.parseId(uri);
+    }
+    
+    private int changeStock(long locationId, long bookId, int delta) {
+        ContentValues values = new ContentValues();
+        values.put(BookEntry.QUANTITY_DELTA, delta);
+        return mContentResolver.update(LocationEntry.buildStockUri(locationId, bookId), values,
+                null, null);
+    }
+    
+    private Bundle transfer(long from, long to, long[] bookIds, int[] quantities) {
+        Bundle extras = new Bundle();
+        extras.putLong(EXTRA_FROM_LOCATION, from);
+        extras.putLong(EXTRA_TO_LOCATION, to);
+        extras.putLongArray(EXTRA_BOOK_IDS, bookIds);
+        extras.putIntArray(EXTRA_QUANTITIES, quantities);
+        Bundle result = mContentResolver.call(LocationEntry.CONTENT_URI, METHOD_TRANSFER_STOCK,
+                null, extras);
+        assertNotNull(result);
+        return result;
+    }
+    
+    private int readStock(long locationId, long bookId) {
+        Cursor cursor = mContentResolver.query(LocationEntry.buildStockUri(locationId), null,
+                null, null, null);
+        assertNotNull(cursor);
+        try {
+            while (cursor.moveToNext()) {
+                if (cursor.getLong(cursor.getColumnIndex(BookEntry._ID)) == bookId) {
+                    return cursor.getInt(cursor.getColumnIndex(StockEntry.COLUMN_QUANTITY));
+                }
+            }
+            return 0;
+        } finally {
+            cursor.close();
+        }
+    }
+    
+    private int readQuantity(long bookId) {
+        Cursor cursor = mContentResolver.query(ContentUris.withAppendedId(BookEntry.CONTENT_URI,
+                bookId), new String[]{BookEntry.COLUMN_BOOK_QUANTITY}, null, null, null);
+        assertNotNull(cursor);
+        try {
+            assertTrue(cursor.moveToFirst());
+            return cursor.getInt(0);
+        } finally {
+            cursor.close();
+        }
+    }
+}
@@ -0,0 +1,76 @@
+package ru.kazakova_net.bookstore.data;
+
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.database.Cursor;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static ru.kazakova_net.bookstore.data.BookContract.BookEntry;
+
+/**
+ * Queries that differ only in whitespace inside a literal or an argument are cached apart.
+ */
+@RunWith(AndroidJUnit4.class)
+public class QueryCacheTest {
+    
+    private ContentResolver mContentResolver;
+    
+    @Before
+    public void setUp() {
+        mContentResolver = InstrumentationRegistry.getInstrumentation().getTargetContext()
+                .getContentResolver();
+        mContentResolver.delete(BookEntry.CONTENT_URI, null, null);
+        insertBook("a  b", 100);
+        insertBook("a b", 200);
+    }
+    
+    @After
+    public void tearDown() {
+        mContentResolver.delete(BookEntry.CONTENT_URI, null, null);
+    }
+    
+    @Test
+    public void whitespaceInLiteral_isPartOfTheKey() {
+        assertEquals(100, readPrice(BookEntry.COLUMN_BOOK_TITLE + "='a  b'", null));
+        assertEquals(200, readPrice(BookEntry.COLUMN_BOOK_TITLE + "='a b'", null));
+    }
+    
+    @Test
+    public void whitespaceInArgument_isPartOfTheKey() {
+        assertEquals(100, readPrice(BookEntry.COLUMN_BOOK_TITLE + "=?", new String[]{"a  b"}));
+        assertEquals(200, readPrice(BookEntry.COLUMN_BOOK_TITLE + "=?", new String[]{"a b"}));
+    }
+    
+    private void insertBook(String title, int price) {
+        ContentValues values = new ContentValues();
+        values.put(BookEntry.COLUMN_BOOK_TITLE, title);
+        values.put(BookEntry.COLUMN_BOOK_PRICE, price);
+        values.put(BookEntry.COLUMN_BOOK_QUANTITY, 1);
+        values.put(BookEntry.COLUMN_BOOK_SUPPLIER_NAME, "Supplier");
+        values.put(BookEntry.COLUMN_BOOK_SUPPLIER_PHONE, "123");
+        assertNotNull(mContentResolver.insert(BookEntry.CONTENT_URI, values));
+    }
+    
+    private int readPrice(String selection, String[] selectionArgs) {
+        Cursor cursor = mContentResolver.query(BookEntry.CONTENT_URI,
+                new String[]{BookEntry.COLUMN_BOOK_PRICE}, selection, selectionArgs, null);
+        assertNotNull(cursor);
+        try {
+            assertEquals(1, cursor.getCount());
+            assertTrue(cursor.moveToFirst());
+            return cursor.getInt(0);
+        } finally {
+            cursor.close();
+        }
+    }
+}
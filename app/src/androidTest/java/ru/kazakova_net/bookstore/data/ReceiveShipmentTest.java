@@ -0,0 +1,166 @@
+package ru.kazakova_net.bookstore.data;
+
+import android.content.ContentProviderOperation;
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.os.Bundle;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.Locale;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static ru.kazakova_net.bookstore.data.BookContract.BookEntry;
+import static ru.kazakova_net.bookstore.data.BookContract.CONTENT_AUTHORITY;
+import static ru.kazakova_net.bookstore.data.BookContract.EXTRA_ALREADY_RECEIVED;
+import static ru.kazakova_net.bookstore.data.BookContract.EXTRA_NEW_BOOKS;
+import static ru.kazakova_net.bookstore.data.BookContract.EXTRA_RECEIVED_COPIES;
+import static ru.kazakova_net.bookstore.data.BookContract.EXTRA_UNKNOWN_ISBNS;
+import static ru.kazakova_net.bookstore.data.BookContract.ShipmentEntry;
+
+/**
+ * Receives shipments through a {@link ReceivingSession}.
+ */
+@RunWith(AndroidJUnit4.class)
+public class ReceiveShipmentTest {
+    
+    private static final int BOOKS = 200;
+    
+    private ContentResolver mContentResolver;
+    
+    @Before
+    public void setUp() throws Exception {
+        Context context = InstrumentationRegistry.getInstrumentation().getTargetContext();
+        mContentResolver = context.getContentResolver();
+        mContentResolver.delete(BookEntry.CONTENT_URI, null, null);
+        
+        ArrayList<ContentProviderOperation> operations = new ArrayList<>(BOOKS);
+        for (int i = 0; i < BOOKS; i++) {
+            operations.add(ContentProviderOperation.newInsert(BookEntry.CONTENT_URI)
+                    .withValue(BookEntry.COLUMN_BOOK_TITLE, "Book " + i)
+                    .withValue(BookEntry.COLUMN_BOOK_ISBN, isbn(i))
+                    .withValue(BookEntry.COLUMN_BOOK_PRICE, 100)
+                    .withValue(BookEntry.COLUMN_BOOK_QUANTITY, 1)
+                    .withValue(BookEntry.COLUMN_BOOK_SUPPLIER_NAME, "AST")
+                    .withValue(BookEntry.COLUMN_BOOK_SUPPLIER_PHONE, "123")
+                    .build());
+        }
+        mContentResolver.applyBatch(CONTENT_AUTHORITY, operations);
+    }
+    
+    @After
+    public void tearDown() {
+        mContentResolver.delete(BookEntry.CONTENT_URI, null, null);
+    }
+    
+    @Test
+    public void shipment_addsCopiesAndNewTitles() {
+        ReceivingSession session = new ReceivingSession(mContentResolver, "Eksmo", "456");
+        for (int i = 0; i < BOOKS; i++) {
+            assertTrue(session.add(isbn(i), 2));
+        }
+        
+        // A second box of the same books is added to their lines
+        session.add(isbn(0), 3);
+        session.addNew(isbn(BOOKS), "New book", 350, 5);
+        assertFalse(session.add("not a barcode", 1));
+        assertEquals(BOOKS + 1, session.getLineCount());
+        
+        Bundle result = session.commit();
+        assertNotNull(result);
+        assertFalse(result.getBoolean(EXTRA_ALREADY_RECEIVED));
+        assertEquals(2 * BOOKS + 3 + 5, result.getInt(EXTRA_RECEIVED_COPIES));
+        assertEquals(1, result.getInt(EXTRA_NEW_BOOKS));
+        
+        assertEquals(6, readQuantity(isbn(0)));
+        assertEquals(3, readQuantity(isbn(BOOKS - 1)));
+        assertEquals(5, readQuantity(isbn(BOOKS)));
+        
+        Cursor cursor = mContentResolver.query(ShipmentEntry.CONTENT_URI,
+                new String[]{ShipmentEntry.COLUMN_SUPPLIER, ShipmentEntry.COLUMN_LINES},
+                ShipmentEntry.COLUMN_SHIPMENT_ID + "=?", new String[]{session.getShipmentId()},
+                null);
+        assertNotNull(cursor);
+        try {
+            assertTrue(cursor.moveToFirst());
+            assertEquals("Eksmo", cursor.getString(0));
+            assertEquals(BOOKS + 1, cursor.getInt(1));
+        } finally {
+            cursor.close();
+        }
+    }
+    
+    @Test
+    public void retriedShipment_isReceivedOnce() {
+        String shipmentId = "delivery-" + System.nanoTime();
+        ReceivingSession first = new ReceivingSession(mContentResolver, shipmentId, "Eksmo", "456");
+        first.add(isbn(7), 4);
+        first.commit();
+        
+        // The commit went through but its answer was lost, so the clerk sends it again
+        ReceivingSession retry = new ReceivingSession(mContentResolver, shipmentId, "Eksmo", "456");
+        retry.add(isbn(7), 4);
+        Bundle result = retry.commit();
+        assertNotNull(result);
+        assertTrue(result.getBoolean(EXTRA_ALREADY_RECEIVED));
+        assertEquals(4, result.getInt(EXTRA_RECEIVED_COPIES));
+        assertEquals(5, readQuantity(isbn(7)));
+    }
+    
+    @Test
+    public void unknownBook_rejectsTheWholeShipment() {
+        String unknown = isbn(BOOKS + 1);
+        ReceivingSession session = new ReceivingSession(mContentResolver, "Eksmo", "456");
+        session.add(isbn(3), 10);
+        session.add(unknown, 1);
+        
+        Bundle result = session.commit();
+        assertNotNull(result);
+        assertArrayEquals(new String[]{unknown}, result.getStringArray(EXTRA_UNKNOWN_ISBNS));
+        assertEquals(1, readQuantity(isbn(3)));
+        
+        // Once the missing book is described, the same session goes through
+        session.addNew(unknown, "Missing book", 200, 1);
+        result = session.commit();
+        assertEquals(12, result.getInt(EXTRA_RECEIVED_COPIES));
+        assertEquals(11, readQuantity(isbn(3)));
+        assertEquals(2, readQuantity(unknown));
+    }
+    
+    /**
+     * EAN-13 of the book with the given number
+     */
+    private static String isbn(int i) {
+        String digits = String.format(Locale.US, "97850%07d", i);
+        int sum = 0;
+        for (int d = 0; d < digits.length(); d++) {
+            sum += (digits.charAt(d) - '0') * (d % 2 == 0 ? 1 : 3);
+        }
+        return digits + (10 - sum % 10) % 10;
+    }
+    
+    private int readQuantity(String isbn) {
+        Cursor cursor = mContentResolver.query(BookEntry.buildIsbnUri(isbn),
+                new String[]{BookEntry.COLUMN_BOOK_QUANTITY}, null, null, null);
+        assertNotNull(cursor);
+        try {
+            assertTrue(cursor.moveToFirst());
+            return cursor.getInt(0);
+        } finally {
+            cursor.close();
+        }
+    }
+}
@@ -0,0 +1,209 @@
+package ru.kazakova_net.bookstore.data;
+
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
+import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.content.Context;
+import android.database.ContentObserver;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.SystemClock;
+import android.util.Log;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static ru.kazakova_net.bookstore.data.BookContract.BookEntry;
+import static ru.kazakova_net.bookstore.data.BookContract.BookFilter;
+import static ru.kazakova_net.bookstore.data.BookContract.CONTENT_AUTHORITY;
+import static ru.kazakova_net.bookstore.data.BookContract.EXTRA_DRY_RUN;
+import static ru.kazakova_net.bookstore.data.BookContract.EXTRA_PERCENT;
+import static ru.kazakova_net.bookstore.data.BookContract.EXTRA_REPRICED_BOOKS;
+import static ru.kazakova_net.bookstore.data.BookContract.EXTRA_ROUND_TO;
+import static ru.kazakova_net.bookstore.data.BookContract.EXTRA_SAMPLE_IDS;
+import static ru.kazakova_net.bookstore.data.BookContract.EXTRA_SAMPLE_NEW_PRICES;
+import static ru.kazakova_net.bookstore.data.BookContract.EXTRA_SAMPLE_OLD_PRICES;
+import static ru.kazakova_net.bookstore.data.BookContract.METHOD_REPRICE;
+
+/**
+ * Reprices a filtered part of a catalog, with and without a dry run.
+ */
+@RunWith(AndroidJUnit4.class)
+public class RepriceTest {
+    
+    private static final String LOG_TAG = RepriceTest.class.getSimpleName();
+    
+    private static final int BOOKS = 5000;
+    
+    private ContentResolver mContentResolver;
+    private long[] mIds;
+    
+    @Before
+    public void setUp() throws Exception {
+        Context context = InstrumentationRegistry.getInstrumentation().getTargetContext();
+        mContentResolver = context.getContentResolver();
+        mContentResolver.delete(BookEntry.CONTENT_URI, null, null);
+        
+        ArrayList<ContentProviderOperation> operations = new ArrayList<>(BOOKS);
+        for (int i = 0; i < BOOKS; i++) {
+            operations.add(ContentProviderOperation.newInsert(BookEntry.CONTENT_URI)
+                    .withValue(BookEntry.COLUMN_BOOK_TITLE, "Book " + i)
+                    .withValue(BookEntry.COLUMN_BOOK_PRICE, price(i))
+                    .withValue(BookEntry.COLUMN_BOOK_QUANTITY, 10)
+                    .withValue(BookEntry.COLUMN_BOOK_SUPPLIER_NAME, supplier(i))
+                    .withValue(BookEntry.COLUMN_BOOK_SUPPLIER_PHONE, "123")
+                    .build());
+        }
+        ContentProviderResult[] results = mContentResolver.applyBatch(CONTENT_AUTHORITY, operations);
+        mIds = new long[BOOKS];
+        for (int i = 0; i < BOOKS; i++) {
+            mIds[i] = ContentUris.parseId(results[i].uri);
+        }
+    }
+    
+    @After
+    public void tearDown() {
+        mContentResolver.delete(BookEntry.CONTENT_URI, null, null);
+    }
+    
+    @Test
+    public void dryRun_previewsWithoutWriting() {
+        Bundle rule = new Bundle();
+        rule.putInt(EXTRA_PERCENT, 10);
+        rule.putInt(EXTRA_ROUND_TO, 10);
+        rule.putBoolean(EXTRA_DRY_RUN, true);
+        Bundle result = mContentResolver.call(BookEntry.CONTENT_URI, METHOD_REPRICE,
+                new BookFilter().supplier("AST").buildUri().toString(), rule);
+        assertNotNull(result);
+        
+        // Every book of the supplier goes up by at least 10
+        assertEquals(BOOKS / 2, result.getInt(EXTRA_REPRICED_BOOKS));
+        long[] sampleIds = result.getLongArray(EXTRA_SAMPLE_IDS);
+        int[] oldPrices = result.getIntArray(EXTRA_SAMPLE_OLD_PRICES);
+        int[] newPrices = result.getIntArray(EXTRA_SAMPLE_NEW_PRICES);
+        assertEquals(20, sampleIds.length);
+        for (int s = 0; s < sampleIds.length; s++) {
+            int i = 2 * s + 1;
+            assertEquals(mIds[i], sampleIds[s]);
+            assertEquals(price(i), oldPrices[s]);
+            assertEquals(Math.round(price(i) * 1.1 / 10) * 10, newPrices[s]);
+        }
+        
+        assertArrayEquals(expectedPrices(0, 0, Integer.MAX_VALUE, 1), readPrices());
+    }
+    
+    @Test
+    public void markdown_changesFilteredBooksWithOneNotification() throws Exception {
+        HandlerThread thread = new HandlerThread(LOG_TAG);
+        thread.start();
+        final AtomicInteger notifications = new AtomicInteger();
+        ContentObserver observer = new ContentObserver(new Handler(thread.getLooper())) {
+            @Override
+            public void onChange(boolean selfChange, Uri uri) {
+                notifications.incrementAndGet();
+            }
+        };
+        mContentResolver.registerContentObserver(BookEntry.CONTENT_URI, true, observer);
+        
+        long changedVersion = readVersion(mIds[20]);
+        long unchangedVersion = readVersion(mIds[0]);
+        
+        Bundle rule = new Bundle();
+        rule.putInt(EXTRA_PERCENT, -25);
+        rule.putInt(EXTRA_ROUND_TO, 10);
+        long started = SystemClock.elapsedRealtime();
+        Bundle result = mContentResolver.call(BookEntry.CONTENT_URI, METHOD_REPRICE,
+                new BookFilter().priceRange(300, 400).buildUri().toString(), rule);
+        long elapsed = SystemClock.elapsedRealtime() - started;
+        assertNotNull(result);
+        
+        int[] expected = expectedPrices(-25, 300, 400, 10);
+        int changed = 0;
+        for (int i = 0; i < BOOKS; i++) {
+            if (expected[i] != price(i)) {
+                changed++;
+            }
+        }
+        Log.i(LOG_TAG, "Repriced " + changed + " of " + BOOKS + " books in " + elapsed + " ms");
+        assertEquals(changed, result.getInt(EXTRA_REPRICED_BOOKS));
+        assertArrayEquals(expected, readPrices());
+        
+        // Repriced books get a new version, so open editors see the change
+        assertEquals(changedVersion + 1, readVersion(mIds[20]));
+        assertEquals(unchangedVersion, readVersion(mIds[0]));
+        
+        SystemClock.sleep(500);
+        mContentResolver.unregisterContentObserver(observer);
+        thread.quit();
+        assertEquals(1, notifications.get());
+    }
+    
+    @Test(expected = IllegalArgumentException.class)
+    public void ruleWithoutChange_isRejected() {
+        mContentResolver.call(BookEntry.CONTENT_URI, METHOD_REPRICE, null, new Bundle());
+    }
+    
+    private static int price(int i) {
+        return 100 + i % 50 * 10;
+    }
+    
+    private static String supplier(int i) {
+        return i % 2 == 0 ? "Eksmo" : "AST";
+    }
+    
+    /**
+     * Prices after changing by the percent the prices within the band, rounded.
+     */
+    private static int[] expectedPrices(int percent, int minPrice, int maxPrice, int roundTo) {
+        int[] prices = new int[BOOKS];
+        for (int i = 0; i < BOOKS; i++) {
+            int price = price(i);
+            prices[i] = price >= minPrice && price <= maxPrice
+                    ? (int) Math.max(0, Math.round(price * (100 + percent) / 100.0 / roundTo) * roundTo)
+                    : price;
+        }
+        return prices;
+    }
+    
+    private int[] readPrices() {
+        Cursor cursor = mContentResolver.query(BookEntry.CONTENT_URI,
+                new String[]{BookEntry.COLUMN_BOOK_PRICE}, null, null, BookEntry._ID);
+        assertNotNull(cursor);
+        try {
+            int[] prices = new int[cursor.getCount()];
+            for (int i = 0; cursor.moveToNext(); i++) {
+                prices[i] = cursor.getInt(0);
+            }
+            return prices;
+        } finally {
+            cursor.close();
+        }
+    }
+    
+    private long readVersion(long id) {
+        Cursor cursor = mContentResolver.query(ContentUris.withAppendedId(BookEntry.CONTENT_URI, id),
+                new String[]{BookEntry.COLUMN_BOOK_VERSION}, null, null, null);
+        assertNotNull(cursor);
+        try {
+            cursor.moveToFirst();
+            return cursor.getLong(0);
+        } finally {
+            cursor.close();
+        }
+    }
+}
@@ -0,0 +1,187 @@
+package ru.kazakova_net.bookstore.data;
+
+import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.os.Bundle;
+import android.util.Log;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+import java.util.Random;
+
+import ru.kazakova_net.bookstore.inventory.CatalogGenerator;
+import ru.kazakova_net.bookstore.inventory.SoakHarness;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static ru.kazakova_net.bookstore.data.BookContract.BookEntry;
+
+/**
+ * Seeds a generated catalog and replays a point-of-sale mix against the provider from
+ * concurrent workers. The size of the run is taken from the instrumentation arguments, e.g.
+ * {@code -e soakSeconds 3600 -e soakWorkers 8 -e soakBooks 1000000}; the report is logged and
+ * written to {@code bookstore-soak.json} in the external files directory of the app.
+ */
+@RunWith(AndroidJUnit4.class)
+public class SoakTest {
+    
+    private static final String LOG_TAG = SoakTest.class.getSimpleName();
+    
+    private static final String REPORT_FILE = "bookstore-soak.json";
+    
+    private static final long SEED = 42;
+    
+    /**
+     * Books inserted by each worker are numbered from a range of this size past the catalog
+     */
+    private static final int INSERTS_PER_WORKER = 1000000;
+    
+    private Context mContext;
+    private ContentResolver mContentResolver;
+    
+    @Before
+    public void setUp() {
+        mContext = InstrumentationRegistry.getInstrumentation().getTargetContext();
+        mContentResolver = mContext.getContentResolver();
+        mContentResolver.delete(BookEntry.CONTENT_URI, null, null);
+    }
+    
+    @After
+    public void tearDown() {
+        mContentResolver.delete(BookEntry.CONTENT_URI, null, null);
+    }
+    
+    @Test
+    public void posMix_runsWithoutErrors() throws Exception {
+        Bundle arguments = InstrumentationRegistry.getArguments();
+        int seconds = Integer.parseInt(arguments.getString("soakSeconds", "30"));
+        int workers = Integer.parseInt(arguments.getString("soakWorkers", "4"));
+        int books = Integer.parseInt(arguments.getString("soakBooks", "10000"));
+        
+        CatalogSeeder seeder = new CatalogSeeder(mContentResolver, SEED);
+        seeder.insert(0, books);
+        
+        SoakHarness.Report report = new SoakHarness(new ProviderTarget(seeder, books, workers),
+                workers, SEED)
+                .setWeight(SoakHarness.Operation.SELL, 60)
+                .setWeight(SoakHarness.Operation.SEARCH, 20)
+                .setWeight(SoakHarness.Operation.EDIT, 10)
+                .setWeight(SoakHarness.Operation.LIST, 5)
+                .setWeight(SoakHarness.Operation.INSERT, 5)
+                .run(seconds * 1000L);
+        
+        File file = new File(mContext.getExternalFilesDir(null), REPORT_FILE);
+        OutputStream out = new FileOutputStream(file);
+        try {
+            out.write(report.toJson().getBytes("UTF-8"));
+        } finally {
+            out.close();
+        }
+        Log.i(LOG_TAG, "Catalog of " + books + " books, report written to " + file + "\n" + report);
+        
+        if (report.getFirstError() != null) {
+            Log.e(LOG_TAG, "First error", report.getFirstError());
+        }
+        assertEquals(0, report.getErrors());
+        assertTrue(report.getCount() > 0);
+    }
+    
+    /**
+     * Runs the operations of the mix through the content resolver, like the app does.
+     */
+    private class ProviderTarget implements SoakHarness.Target {
+        
+        private final CatalogSeeder mSeeder;
+        private final long[] mIds;
+        private final int mBooks;
+        
+        /**
+         * Number of the next book each worker inserts
+         */
+        private final int[] mNextInserts;
+        
+        ProviderTarget(CatalogSeeder seeder, int books, int workers) {
+            mSeeder = seeder;
+            mBooks = books;
+            mNextInserts = new int[workers];
+            
+            // Sales and edits go to the seeded books only, so the mix does not change as it runs
+            mIds = new long[books];
+            int read = 0;
+            BookColumns chunk;
+            long afterId = 0;
+            do {
+                chunk = BookColumns.read(mContentResolver, new String[0], afterId);
+                System.arraycopy(chunk.getIds(), 0, mIds, read, chunk.size());
+                read += chunk.size();
+                afterId = chunk.getLastId();
+            } while (!chunk.isLast());
+            assertEquals(books, read);
+        }
+        
+        @Override
+        public void run(SoakHarness.Operation operation, int worker, Random random) {
+            long id = mIds[random.nextInt(mIds.length)];
+            switch (operation) {
+                case SELL:
+                    ContentValues sale = new ContentValues();
+                    sale.put(BookEntry.QUANTITY_DELTA, -1);
+                    mContentResolver.update(BookEntry.buildQuantityUri(id), sale, null, null);
+                    break;
+                case EDIT:
+                    ContentValues edit = new ContentValues();
+                    edit.put(BookEntry.COLUMN_BOOK_PRICE, 50 + 10 * random.nextInt(100));
+                    mContentResolver.update(ContentUris.withAppendedId(BookEntry.CONTENT_URI, id),
+                            edit, null, null);
+                    break;
+                case INSERT:
+                    mSeeder.insert(mBooks + worker * INSERTS_PER_WORKER + mNextInserts[worker]++);
+                    break;
+                case SEARCH:
+                    read(mContentResolver.query(BookEntry.CONTENT_URI,
+                            new String[]{BookEntry._ID, BookEntry.COLUMN_BOOK_TITLE},
+                            BookEntry.COLUMN_BOOK_TITLE + " LIKE ?",
+                            new String[]{"%" + CatalogGenerator.randomWord(random) + "%"}, null));
+                    break;
+                case LIST:
+                    // The shelf reads the books a window at a time; the count fills the first one
+                    Cursor cursor = mContentResolver.query(BookEntry.CONTENT_URI, null, null, null,
+                            null);
+                    try {
+                        cursor.getCount();
+                    } finally {
+                        cursor.close();
+                    }
+                    break;
+            }
+        }
+        
+        @Override
+        public long storageBytes() {
+            File database = mContext.getDatabasePath(BookStoreDbHelper.DATABASE_NAME);
+            return database.length() + new File(database.getPath() + "-wal").length();
+        }
+        
+        private void read(Cursor cursor) {
+            try {
+                while (cursor.moveToNext()) {
+                    cursor.getString(1);
+                }
+            } finally {
+                cursor.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,241 @@
+package ru.kazakova_net.bookstore.data;
+
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
+import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.os.Bundle;
+import android.os.SystemClock;
+import android.util.Log;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static ru.kazakova_net.bookstore.data.BookContract.BookEntry;
+import static ru.kazakova_net.bookstore.data.BookContract.CONTENT_AUTHORITY;
+import static ru.kazakova_net.bookstore.data.BookContract.CounterEntry;
+import static ru.kazakova_net.bookstore.data.BookContract.EXTRA_ADJUSTED_BOOKS;
+import static ru.kazakova_net.bookstore.data.BookContract.EXTRA_ISBNS;
+import static ru.kazakova_net.bookstore.data.BookContract.EXTRA_QUANTITIES;
+import static ru.kazakova_net.bookstore.data.BookContract.EXTRA_UNKNOWN_ISBNS;
+import static ru.kazakova_net.bookstore.data.BookContract.METHOD_ADD_COUNTS;
+import static ru.kazakova_net.bookstore.data.BookContract.METHOD_APPLY_STOCKTAKE;
+import static ru.kazakova_net.bookstore.data.BookContract.StocktakeEntry;
+
+/**
+ * Counts a shop of books, reconciles the counts and applies them.
+ */
+@RunWith(AndroidJUnit4.class)
+public class StocktakeTest {
+    
+    private static final String LOG_TAG = StocktakeTest.class.getSimpleName();
+    
+    private static final int BOOKS = 20000;
+    
+    /**
+     * Every this many books is counted one copy short
+     */
+    private static final int SHORT_EVERY = 100;
+    
+    private ContentResolver mContentResolver;
+    private long[] mIds;
+    
+    @Before
+    public void setUp() throws Exception {
+        Context context = InstrumentationRegistry.getInstrumentation().getTargetContext();
+        mContentResolver = context.getContentResolver();
+        mContentResolver.delete(BookEntry.CONTENT_URI, null, null);
+        mContentResolver.delete(StocktakeEntry.CONTENT_URI, null, null);
+        
+        ArrayList<ContentProviderOperation> operations = new ArrayList<>(BOOKS);
+        for (int i = 0; i < BOOKS; i++) {
+            operations.add(ContentProviderOperation.newInsert(BookEntry.CONTENT_URI)
+                    .withValue(BookEntry.COLUMN_BOOK_TITLE, "Book " + i)
+                    .withValue(BookEntry.COLUMN_BOOK_ISBN, String.valueOf(9780000000000L + i))
+                    .withValue(BookEntry.COLUMN_BOOK_PRICE, 100)
+                    .withValue(BookEntry.COLUMN_BOOK_QUANTITY, 10)
+                    .withValue(BookEntry.COLUMN_BOOK_SUPPLIER_NAME, "Supplier")
+                    .withValue(BookEntry.COLUMN_BOOK_SUPPLIER_PHONE, "123")
+                    .build());
+        }
+        ContentProviderResult[] results = mContentResolver.applyBatch(CONTENT_AUTHORITY, operations);
+        mIds = new long[BOOKS];
+        for (int i = 0; i < BOOKS; i++) {
+            mIds[i] = ContentUris.parseId(results[i].uri);
+        }
+    }
+    
+    @After
+    public void tearDown() {
+        mContentResolver.delete(StocktakeEntry.CONTENT_URI, null, null);
+        mContentResolver.delete(BookEntry.CONTENT_URI, null, null);
+    }
+    
+    @Test
+    public void fullCount_listsAndAppliesOnlyDiscrepancies() {
+        // Count in two passes, as if the books were found on two shelves
+        ContentValues[] counts = new ContentValues[BOOKS];
+        for (int pass = 0; pass < 2; pass++) {
+            for (int i = 0; i < BOOKS; i++) {
+                counts[i] = new ContentValues();
+                counts[i].put(StocktakeEntry.COLUMN_BOOK_ID, mIds[i]);
+                counts[i].put(StocktakeEntry.COLUMN_COUNTED, i % SHORT_EVERY == 0 && pass == 0 ? 4 : 5);
+            }
+            assertEquals(BOOKS, mContentResolver.bulkInsert(StocktakeEntry.CONTENT_URI, counts));
+        }
+        
+        long started = SystemClock.elapsedRealtime();
+        Cursor cursor = mContentResolver.query(StocktakeEntry.CONTENT_DISCREPANCIES_URI,
+                null, null, null, null);
+        assertNotNull(cursor);
+        try {
+            assertEquals(BOOKS / SHORT_EVERY, cursor.getCount());
+            Log.i(LOG_TAG, "Reconciled " + BOOKS + " counts in "
+                    + (SystemClock.elapsedRealtime() - started) + " ms");
+            
+            long previous = 0;
+            while (cursor.moveToNext()) {
+                long id = cursor.getLong(cursor.getColumnIndexOrThrow(BookEntry._ID));
+                assertFalse(id <= previous);
+                previous = id;
+                assertEquals(9, cursor.getInt(cursor.getColumnIndexOrThrow(StocktakeEntry.COLUMN_COUNTED)));
+            }
+        } finally {
+            cursor.close();
+        }
+        
+        // The first discrepancy is rejected and keeps its quantity
+        ContentValues rejected = new ContentValues();
+        rejected.put(StocktakeEntry.COLUMN_ACCEPTED, false);
+        assertEquals(1, mContentResolver.update(StocktakeEntry.buildCountUri(mIds[0]), rejected,
+                null, null));
+        
+        Bundle result = mContentResolver.call(StocktakeEntry.CONTENT_URI, METHOD_APPLY_STOCKTAKE,
+                null, null);
+        assertNotNull(result);
+        assertEquals(BOOKS / SHORT_EVERY - 1, result.getInt(EXTRA_ADJUSTED_BOOKS));
+        
+        assertEquals(10, queryQuantity(mIds[0]));
+        assertEquals(9, queryQuantity(mIds[SHORT_EVERY]));
+        assertEquals(10, queryQuantity(mIds[1]));
+        
+        // The counters agree with the corrected quantities, so later changes start from them
+        assertEquals(10, queryCountersSum(mIds[0]));
+        assertEquals(9, queryCountersSum(mIds[SHORT_EVERY]));
+        
+        Cursor stocktake = mContentResolver.query(StocktakeEntry.CONTENT_URI, null, null, null, null);
+        assertNotNull(stocktake);
+        try {
+            assertEquals(0, stocktake.getCount());
+        } finally {
+            stocktake.close();
+        }
+    }
+    
+    @Test
+    public void countByIsbn_addsToTheBook() {
+        ContentValues count = new ContentValues();
+        count.put(BookEntry.COLUMN_BOOK_ISBN, "978-0-00-000000-7");
+        count.put(StocktakeEntry.COLUMN_COUNTED, 3);
+        assertEquals(StocktakeEntry.buildCountUri(mIds[7]),
+                mContentResolver.insert(StocktakeEntry.CONTENT_URI, count));
+        
+        ContentValues unknown = new ContentValues();
+        unknown.put(BookEntry.COLUMN_BOOK_ISBN, "1");
+        unknown.put(StocktakeEntry.COLUMN_COUNTED, 3);
+        assertNull(mContentResolver.insert(StocktakeEntry.CONTENT_URI, unknown));
+    }
+    
+    @Test
+    public void scannedCounts_skipOnlyUnknownIsbns() {
+        Bundle extras = new Bundle();
+        extras.putStringArray(EXTRA_ISBNS, new String[]{"9780000000007", "1", "978-0-00-000000-8"});
+        extras.putIntArray(EXTRA_QUANTITIES, new int[]{3, 2, 4});
+        Bundle result = mContentResolver.call(StocktakeEntry.CONTENT_URI, METHOD_ADD_COUNTS, null,
+                extras);
+        assertNotNull(result);
+        assertArrayEquals(new String[]{"1"}, result.getStringArray(EXTRA_UNKNOWN_ISBNS));
+        
+        // The counts of the known books were added despite the unknown one
+        Cursor cursor = mContentResolver.query(StocktakeEntry.CONTENT_URI, new String[]{
+                        StocktakeEntry.COLUMN_BOOK_ID, StocktakeEntry.COLUMN_COUNTED}, null, null,
+                StocktakeEntry.COLUMN_BOOK_ID);
+        assertNotNull(cursor);
+        try {
+            assertEquals(2, cursor.getCount());
+            cursor.moveToFirst();
+            assertEquals(mIds[7], cursor.getLong(0));
+            assertEquals(3, cursor.getInt(1));
+            cursor.moveToNext();
+            assertEquals(mIds[8], cursor.getLong(0));
+            assertEquals(4, cursor.getInt(1));
+        } finally {
+            cursor.close();
+        }
+    }
+    
+    @Test
+    public void discrepancies_areFoundInOneOrderedPass() {
+        BookStoreDbHelper dbHelper = new BookStoreDbHelper(
+                InstrumentationRegistry.getInstrumentation().getTargetContext());
+        try {
+            SQLiteDatabase database = dbHelper.getReadableDatabase();
+            Cursor cursor = database.rawQuery("EXPLAIN QUERY PLAN "
+                    + BookStoreProvider.STOCKTAKE_DISCREPANCIES_QUERY, null);
+            try {
+                while (cursor.moveToNext()) {
+                    String detail = cursor.getString(cursor.getColumnIndexOrThrow("detail"));
+                    assertFalse(detail, detail.contains("TEMP B-TREE"));
+                }
+            } finally {
+                cursor.close();
+            }
+        } finally {
+            dbHelper.close();
+        }
+    }
+    
+    private int queryQuantity(long id) {
+        Cursor cursor = mContentResolver.query(ContentUris.withAppendedId(BookEntry.CONTENT_URI, id),
+                new String[]{BookEntry.COLUMN_BOOK_QUANTITY}, null, null, null);
+        assertNotNull(cursor);
+        try {
+            cursor.moveToFirst();
+            return cursor.getInt(0);
+        } finally {
+            cursor.close();
+        }
+    }
+    
+    private int queryCountersSum(long id) {
+        Cursor cursor = mContentResolver.query(BookEntry.buildCountersUri(id), new String[]{
+                CounterEntry.COLUMN_INCREMENTS,
+                CounterEntry.COLUMN_DECREMENTS}, null, null, null);
+        assertNotNull(cursor);
+        try {
+            int sum = 0;
+            while (cursor.moveToNext()) {
+                sum += cursor.getInt(0) - cursor.getInt(1);
+            }
+            return sum;
+        } finally {
+            cursor.close();
+        }
+    }
+}
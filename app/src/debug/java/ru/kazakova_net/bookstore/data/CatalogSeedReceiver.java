@@ -0,0 +1,51 @@
+package ru.kazakova_net.bookstore.data;
+
+import android.content.BroadcastReceiver;
+import android.content.ContentResolver;
+import android.content.Context;
+import android.content.Intent;
+import android.util.Log;
+
+import static ru.kazakova_net.bookstore.data.BookContract.BookEntry;
+
+/**
+ * Replaces the books with a catalog made by {@link CatalogSeeder}, for benchmarks. Sent from the
+ * shell with {@code am broadcast -a ru.kazakova_net.bookstore.action.SEED_CATALOG --ei count 5000},
+ * which waits until the books are inserted; the result code is the number of books.
+ */
+public class CatalogSeedReceiver extends BroadcastReceiver {
+    
+    public static final String LOG_TAG = CatalogSeedReceiver.class.getSimpleName();
+    
+    public static final String EXTRA_COUNT = "count";
+    
+    private static final int DEFAULT_COUNT = 5000;
+    
+    /**
+     * A fixed seed gives every run the same catalog
+     */
+    private static final long SEED = 42;
+    
+    @Override
+    public void onReceive(Context context, Intent intent) {
+        final int count = intent.getIntExtra(EXTRA_COUNT, DEFAULT_COUNT);
+        final ContentResolver contentResolver = context.getContentResolver();
+        final PendingResult result = goAsync();
+        
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    contentResolver.delete(BookEntry.CONTENT_URI, null, null);
+                    new CatalogSeeder(contentResolver, SEED).insert(0, count);
+                    result.setResultCode(count);
+                } catch (Exception e) {
+                    Log.e(LOG_TAG, "Failed to seed the catalog", e);
+                    result.setResultCode(-1);
+                } finally {
+                    result.finish();
+                }
+            }
+        }, LOG_TAG).start();
+    }
+}
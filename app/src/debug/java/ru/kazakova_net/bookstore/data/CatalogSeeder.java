@@ -0,0 +1,86 @@
+package ru.kazakova_net.bookstore.data;
+
+import android.content.ContentProviderOperation;
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.content.OperationApplicationException;
+import android.os.RemoteException;
+
+import java.util.ArrayList;
+
+import ru.kazakova_net.bookstore.inventory.CatalogGenerator;
+
+import static ru.kazakova_net.bookstore.data.BookContract.BookEntry;
+import static ru.kazakova_net.bookstore.data.BookContract.CONTENT_AUTHORITY;
+
+/**
+ * Inserts books made by a {@link CatalogGenerator} through the provider, so that seeded
+ * books are indexed, counted and audited like books added in the editor.
+ */
+public final class CatalogSeeder {
+    
+    /**
+     * Books inserted per transaction
+     */
+    private static final int BATCH_SIZE = 500;
+    
+    private static final int SUPPLIERS = 50;
+    
+    private final ContentResolver mContentResolver;
+    private final CatalogGenerator mGenerator;
+    
+    public CatalogSeeder(ContentResolver contentResolver, long seed) {
+        mContentResolver = contentResolver;
+        mGenerator = new CatalogGenerator(seed, SUPPLIERS);
+    }
+    
+    /**
+     * Insert the books with the given numbers. Numbers already inserted make books with
+     * ISBNs that are already taken, which the provider rejects.
+     */
+    public void insert(int first, int count) throws RemoteException, OperationApplicationException {
+        final ArrayList<ContentProviderOperation> operations = new ArrayList<>(BATCH_SIZE);
+        for (int start = first; start < first + count; start += BATCH_SIZE) {
+            mGenerator.generate(start, Math.min(BATCH_SIZE, first + count - start),
+                    new CatalogGenerator.BookSink() {
+                        @Override
+                        public void onBook(String title, String isbn, int price, int quantity,
+                                           String supplier, String supplierPhone) {
+                            operations.add(ContentProviderOperation
+                                    .newInsert(BookEntry.CONTENT_URI)
+                                    .withValues(toValues(title, isbn, price, quantity, supplier,
+                                            supplierPhone))
+                                    .build());
+                        }
+                    });
+            mContentResolver.applyBatch(CONTENT_AUTHORITY, operations);
+            operations.clear();
+        }
+    }
+    
+    /**
+     * Insert the book with the given number on its own.
+     */
+    public void insert(int number) {
+        mGenerator.generate(number, 1, new CatalogGenerator.BookSink() {
+            @Override
+            public void onBook(String title, String isbn, int price, int quantity,
+                               String supplier, String supplierPhone) {
+                mContentResolver.insert(BookEntry.CONTENT_URI,
+                        toValues(title, isbn, price, quantity, supplier, supplierPhone));
+            }
+        });
+    }
+    
+    private static ContentValues toValues(String title, String isbn, int price, int quantity,
+                                          String supplier, String supplierPhone) {
+        ContentValues values = new ContentValues();
+        values.put(BookEntry.COLUMN_BOOK_TITLE, title);
+        values.put(BookEntry.COLUMN_BOOK_ISBN, isbn);
+        values.put(BookEntry.COLUMN_BOOK_PRICE, price);
+        values.put(BookEntry.COLUMN_BOOK_QUANTITY, quantity);
+        values.put(BookEntry.COLUMN_BOOK_SUPPLIER_NAME, supplier);
+        values.put(BookEntry.COLUMN_BOOK_SUPPLIER_PHONE, supplierPhone);
+        return values;
+    }
+}
@@ -1,43 +1,108 @@
 package ru.kazakova_net.bookstore;
 
-import android.app.LoaderManager;
+import android.app.AlertDialog;
+import android.content.ContentResolver;
 import android.content.ContentUris;
-import android.content.CursorLoader;
+import android.content.ContentValues;
+import android.content.DialogInterface;
 import android.content.Intent;
-import android.content.Loader;
 import android.database.Cursor;
 import android.net.Uri;
 import android.os.Bundle;
+import android.os.Trace;
+import android.text.TextUtils;
 import com.google.android.material.floatingactionbutton.FloatingActionButton;
 import androidx.appcompat.app.AppCompatActivity;
+import androidx.core.content.ContextCompat;
+import androidx.lifecycle.LiveData;
+import androidx.lifecycle.Observer;
 import android.util.Log;
 import android.view.Menu;
+import android.view.KeyEvent;
+import android.view.LayoutInflater;
 import android.view.MenuItem;
 import android.view.View;
+import android.view.inputmethod.EditorInfo;
 import android.widget.AdapterView;
+import android.widget.CheckBox;
+import android.widget.EditText;
 import android.widget.ListView;
+import android.widget.TextView;
+import android.widget.Toast;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import ru.kazakova_net.bookstore.data.BookHistoryRetentionService;
+import ru.kazakova_net.bookstore.data.BookRepository;
+import ru.kazakova_net.bookstore.data.BookStoreBackupService;
+import ru.kazakova_net.bookstore.data.BookStoreIntegrityService;
+import ru.kazakova_net.bookstore.data.InventoryHttpService;
+import ru.kazakova_net.bookstore.data.ReceivingSession;
+import ru.kazakova_net.bookstore.data.ScanBuffer;
 
 import static ru.kazakova_net.bookstore.data.BookContract.BookEntry;
+import static ru.kazakova_net.bookstore.data.BookContract.BookFilter;
+import static ru.kazakova_net.bookstore.data.BookContract.EXTRA_ADJUSTED_BOOKS;
+import static ru.kazakova_net.bookstore.data.BookContract.EXTRA_AMOUNT;
+import static ru.kazakova_net.bookstore.data.BookContract.EXTRA_DRY_RUN;
+import static ru.kazakova_net.bookstore.data.BookContract.EXTRA_ISBNS;
+import static ru.kazakova_net.bookstore.data.BookContract.EXTRA_PERCENT;
+import static ru.kazakova_net.bookstore.data.BookContract.EXTRA_QUANTITIES;
+import static ru.kazakova_net.bookstore.data.BookContract.EXTRA_RECEIVED_COPIES;
+import static ru.kazakova_net.bookstore.data.BookContract.EXTRA_REPRICED_BOOKS;
+import static ru.kazakova_net.bookstore.data.BookContract.EXTRA_ROUND_TO;
+import static ru.kazakova_net.bookstore.data.BookContract.EXTRA_SAMPLE_NEW_PRICES;
+import static ru.kazakova_net.bookstore.data.BookContract.EXTRA_SAMPLE_OLD_PRICES;
+import static ru.kazakova_net.bookstore.data.BookContract.EXTRA_SAMPLE_TITLES;
+import static ru.kazakova_net.bookstore.data.BookContract.EXTRA_UNKNOWN_ISBNS;
+import static ru.kazakova_net.bookstore.data.BookContract.METHOD_ADD_COUNTS;
+import static ru.kazakova_net.bookstore.data.BookContract.METHOD_APPLY_STOCKTAKE;
+import static ru.kazakova_net.bookstore.data.BookContract.METHOD_REPRICE;
+import static ru.kazakova_net.bookstore.data.BookContract.StocktakeEntry;
 
-public class BookShelfActivity extends AppCompatActivity implements
-        LoaderManager.LoaderCallbacks<Cursor> {
+public class BookShelfActivity extends AppCompatActivity implements Observer<Cursor> {
     
     private static final String LOG_TAG = "BOOK_LOG";
     
     /**
-     * Identifier for the book data loader
+     * Number of counted barcodes that are added to the stocktake together
+     */
+    private static final int STOCKTAKE_BATCH_SIZE = 50;
+    
+    /**
+     * Columns of the books table shown in the list
      */
-    private static final int BOOK_LOADER = 0;
+    private static final String[] PROJECTION = {
+            BookEntry._ID,
+            BookEntry.COLUMN_BOOK_TITLE,
+            BookEntry.COLUMN_BOOK_PRICE,
+            BookEntry.COLUMN_BOOK_QUANTITY,
+            BookEntry.COLUMN_BOOK_COVER};
     
     /**
      * Adapter for the ListView
      */
     BookStoreAdapter mBookStoreAdapter;
     
+    /**
+     * Filter of the list, and the books that match it
+     */
+    private BookFilter mFilter = new BookFilter();
+    private LiveData<Cursor> mBooks;
+    
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
-        setContentView(R.layout.activity_book_shelf);
+        
+        // The database is warmed up by the provider while the layout is inflated
+        Trace.beginSection("BookShelfActivity.inflate");
+        try {
+            setContentView(R.layout.activity_book_shelf);
+        } finally {
+            Trace.endSection();
+        }
         
         // Setup FAB to open EditorActivity
         FloatingActionButton fab = findViewById(R.id.fab);
@@ -79,16 +144,623 @@ public class BookShelfActivity extends AppCompatActivity implements
             }
         });
         
-        // Kick off the loader
-        getLoaderManager().initLoader(BOOK_LOADER, null, this);
+        // Observe the books; the query runs on a background thread and again whenever
+        // the books change
+        observeBooks();
+        
+        // Make sure the database is backed up and checked regularly and its history stays small
+        BookStoreBackupService.schedule(this);
+        BookStoreIntegrityService.schedule(this);
+        BookHistoryRetentionService.schedule(this);
+    }
+    
+    /**
+     * Observe the books that match the current filter instead of the previous one.
+     */
+    private void observeBooks() {
+        if (mBooks != null) {
+            mBooks.removeObserver(this);
+        }
+        
+        mBooks = BookRepository.getInstance(this).observeBooks(mFilter, PROJECTION);
+        mBooks.observe(this, this);
+    }
+    
+    /**
+     * Show a dialog that lets the user filter the list by price, supplier and quantity.
+     */
+    private void showFilterDialog() {
+        final View filterView = LayoutInflater.from(this).inflate(R.layout.dialog_filter, null);
+        final EditText minPriceEditText = filterView.findViewById(R.id.filter_min_price);
+        final EditText maxPriceEditText = filterView.findViewById(R.id.filter_max_price);
+        final EditText supplierEditText = filterView.findViewById(R.id.filter_supplier);
+        final EditText quantityBelowEditText = filterView.findViewById(R.id.filter_quantity_below);
+        final CheckBox inStockCheckBox = filterView.findViewById(R.id.filter_in_stock);
+        
+        // Show the current filter
+        setNumber(minPriceEditText, mFilter.getMinPrice());
+        setNumber(maxPriceEditText, mFilter.getMaxPrice());
+        supplierEditText.setText(mFilter.getSupplier());
+        setNumber(quantityBelowEditText, mFilter.getQuantityBelow());
+        inStockCheckBox.setChecked(mFilter.isInStock());
+        
+        AlertDialog.Builder builder = new AlertDialog.Builder(this);
+        builder.setTitle(R.string.action_filter);
+        builder.setView(filterView);
+        builder.setPositiveButton(R.string.apply, new DialogInterface.OnClickListener() {
+            @Override
+            public void onClick(DialogInterface dialogInterface, int i) {
+                String supplier = supplierEditText.getText().toString().trim();
+                
+                mFilter = new BookFilter()
+                        .priceRange(getNumber(minPriceEditText), getNumber(maxPriceEditText))
+                        .supplier(TextUtils.isEmpty(supplier) ? null : supplier)
+                        .quantityBelow(getNumber(quantityBelowEditText))
+                        .inStock(inStockCheckBox.isChecked());
+                observeBooks();
+            }
+        });
+        builder.setNegativeButton(R.string.clear, new DialogInterface.OnClickListener() {
+            @Override
+            public void onClick(DialogInterface dialogInterface, int i) {
+                mFilter = new BookFilter();
+                observeBooks();
+            }
+        });
+        
+        builder.create().show();
+    }
+    
+    private static void setNumber(EditText editText, Integer number) {
+        editText.setText(number == null ? "" : String.valueOf(number));
+    }
+    
+    /**
+     * Return the number in the field, or null if it is empty.
+     */
+    private static Integer getNumber(EditText editText) {
+        String text = editText.getText().toString().trim();
+        if (TextUtils.isEmpty(text)) {
+            return null;
+        }
+        
+        try {
+            return Integer.valueOf(text);
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+    
+    /**
+     * Show a dialog that changes the price of the books of the current filter by a percent
+     * and an amount. The new prices are previewed before they are applied.
+     */
+    private void showRepriceDialog() {
+        final View repriceView = LayoutInflater.from(this).inflate(R.layout.dialog_reprice, null);
+        final EditText percentEditText = repriceView.findViewById(R.id.reprice_percent);
+        final EditText amountEditText = repriceView.findViewById(R.id.reprice_amount);
+        final EditText roundToEditText = repriceView.findViewById(R.id.reprice_round_to);
+        
+        AlertDialog.Builder builder = new AlertDialog.Builder(this);
+        builder.setTitle(R.string.action_reprice);
+        builder.setView(repriceView);
+        builder.setPositiveButton(R.string.preview, new DialogInterface.OnClickListener() {
+            @Override
+            public void onClick(DialogInterface dialogInterface, int i) {
+                Integer percent = getNumber(percentEditText);
+                Integer amount = getNumber(amountEditText);
+                Integer roundTo = getNumber(roundToEditText);
+                if ((percent == null || percent == 0) && (amount == null || amount == 0)) {
+                    Toast.makeText(BookShelfActivity.this, R.string.reprice_no_change_msg,
+                            Toast.LENGTH_SHORT).show();
+                    return;
+                }
+                
+                Bundle rule = new Bundle();
+                rule.putInt(EXTRA_PERCENT, percent == null ? 0 : percent);
+                rule.putInt(EXTRA_AMOUNT, amount == null ? 0 : amount);
+                rule.putInt(EXTRA_ROUND_TO, roundTo == null || roundTo <= 0 ? 1 : roundTo);
+                showRepricePreview(rule);
+            }
+        });
+        builder.setNegativeButton(R.string.cancel, null);
+        
+        builder.create().show();
+    }
+    
+    /**
+     * Show how many books the rule changes and the first new prices, and apply it on request.
+     * The preview and the change are both made in the background.
+     */
+    private void showRepricePreview(final Bundle rule) {
+        final String filterUri = mFilter.buildUri().toString();
+        rule.putBoolean(EXTRA_DRY_RUN, true);
+        final BookRepository repository = BookRepository.getInstance(this);
+        repository.run(new BookRepository.Task<Bundle>() {
+            @Override
+            public Bundle run(ContentResolver contentResolver) {
+                return contentResolver.call(BookEntry.CONTENT_URI, METHOD_REPRICE, filterUri, rule);
+            }
+        }, new BookRepository.Callback<Bundle>() {
+            @Override
+            public void onResult(Bundle preview) {
+                if (preview == null || isFinishing()) {
+                    return;
+                }
+                
+                int count = preview.getInt(EXTRA_REPRICED_BOOKS);
+                if (count == 0) {
+                    Toast.makeText(BookShelfActivity.this, R.string.reprice_nothing_msg,
+                            Toast.LENGTH_SHORT).show();
+                    return;
+                }
+                
+                String[] titles = preview.getStringArray(EXTRA_SAMPLE_TITLES);
+                int[] oldPrices = preview.getIntArray(EXTRA_SAMPLE_OLD_PRICES);
+                int[] newPrices = preview.getIntArray(EXTRA_SAMPLE_NEW_PRICES);
+                String[] items = new String[titles.length];
+                for (int i = 0; i < titles.length; i++) {
+                    items[i] = getString(R.string.reprice_sample, titles[i], oldPrices[i],
+                            newPrices[i]);
+                }
+                
+                AlertDialog.Builder builder = new AlertDialog.Builder(BookShelfActivity.this);
+                builder.setTitle(getString(R.string.reprice_preview_title, count));
+                builder.setItems(items, null);
+                builder.setPositiveButton(R.string.apply, new DialogInterface.OnClickListener() {
+                    @Override
+                    public void onClick(DialogInterface dialogInterface, int i) {
+                        final Bundle apply = new Bundle(rule);
+                        apply.putBoolean(EXTRA_DRY_RUN, false);
+                        repository.run(new BookRepository.Task<Bundle>() {
+                            @Override
+                            public Bundle run(ContentResolver contentResolver) {
+                                return contentResolver.call(BookEntry.CONTENT_URI, METHOD_REPRICE,
+                                        filterUri, apply);
+                            }
+                        }, new BookRepository.Callback<Bundle>() {
+                            @Override
+                            public void onResult(Bundle result) {
+                                if (result != null) {
+                                    Toast.makeText(BookShelfActivity.this,
+                                            getString(R.string.reprice_applied_msg,
+                                                    result.getInt(EXTRA_REPRICED_BOOKS)),
+                                            Toast.LENGTH_SHORT).show();
+                                }
+                            }
+                        });
+                    }
+                });
+                builder.setNegativeButton(R.string.cancel, null);
+                
+                builder.create().show();
+            }
+        });
+    }
+    
+    /**
+     * Show a dialog that counts the books on the shelves with the scanner. Every scan counts
+     * one copy; the counts are added to the stocktake in batches and reconciled at the end.
+     */
+    private void showStocktakeDialog() {
+        final Map<String, Integer> counts = new LinkedHashMap<>();
+        
+        final EditText scanEditText = new EditText(this);
+        scanEditText.setHint(R.string.scan_dialog_hint);
+        scanEditText.setSingleLine();
+        scanEditText.setOnEditorActionListener(new TextView.OnEditorActionListener() {
+            @Override
+            public boolean onEditorAction(TextView textView, int actionId, KeyEvent keyEvent) {
+                if (actionId == EditorInfo.IME_ACTION_DONE || (keyEvent != null
+                        && keyEvent.getKeyCode() == KeyEvent.KEYCODE_ENTER
+                        && keyEvent.getAction() == KeyEvent.ACTION_DOWN)) {
+                    String isbn = BookEntry.normalizeIsbn(scanEditText.getText().toString());
+                    if (isbn != null) {
+                        Integer count = counts.get(isbn);
+                        counts.put(isbn, count == null ? 1 : count + 1);
+                        if (counts.size() >= STOCKTAKE_BATCH_SIZE) {
+                            addCounts(counts);
+                        }
+                    }
+                    scanEditText.setText("");
+                }
+                
+                // Keep the focus in the field for the next scan
+                return true;
+            }
+        });
+        
+        AlertDialog.Builder builder = new AlertDialog.Builder(this);
+        builder.setTitle(R.string.stocktake_dialog_title);
+        builder.setView(scanEditText);
+        builder.setPositiveButton(R.string.stocktake_reconcile, new DialogInterface.OnClickListener() {
+            @Override
+            public void onClick(DialogInterface dialogInterface, int i) {
+                addCounts(counts);
+                showDiscrepanciesDialog();
+            }
+        });
+        builder.setOnDismissListener(new DialogInterface.OnDismissListener() {
+            @Override
+            public void onDismiss(DialogInterface dialogInterface) {
+                // The counts so far stay in the stocktake until it is applied or discarded
+                addCounts(counts);
+            }
+        });
+        
+        builder.create().show();
+    }
+    
+    /**
+     * Add the pending counts to the stocktake in one transaction, in the background, and
+     * report unknown ISBNs. The counts are put back if they could not be added.
+     */
+    private void addCounts(final Map<String, Integer> counts) {
+        if (counts.isEmpty()) {
+            return;
+        }
+        
+        final String[] isbns = counts.keySet().toArray(new String[0]);
+        final int[] quantities = new int[isbns.length];
+        for (int i = 0; i < isbns.length; i++) {
+            quantities[i] = counts.get(isbns[i]);
+        }
+        counts.clear();
+        
+        BookRepository.getInstance(this).run(new BookRepository.Task<Bundle>() {
+            @Override
+            public Bundle run(ContentResolver contentResolver) {
+                Bundle extras = new Bundle();
+                extras.putStringArray(EXTRA_ISBNS, isbns);
+                extras.putIntArray(EXTRA_QUANTITIES, quantities);
+                return contentResolver.call(StocktakeEntry.CONTENT_URI, METHOD_ADD_COUNTS, null,
+                        extras);
+            }
+        }, new BookRepository.Callback<Bundle>() {
+            @Override
+            public void onResult(Bundle result) {
+                if (result == null) {
+                    Log.e(LOG_TAG, "Failed to add counted books");
+                    
+                    // Counted again with the scans made meanwhile
+                    for (int i = 0; i < isbns.length; i++) {
+                        Integer count = counts.get(isbns[i]);
+                        counts.put(isbns[i], count == null ? quantities[i] : count + quantities[i]);
+                    }
+                    return;
+                }
+                
+                String[] unknown = result.getStringArray(EXTRA_UNKNOWN_ISBNS);
+                if (unknown != null && unknown.length != 0) {
+                    Toast.makeText(BookShelfActivity.this, getString(R.string.scan_unknown_isbn_msg,
+                            TextUtils.join(", ", unknown)), Toast.LENGTH_LONG).show();
+                }
+            }
+        });
+    }
+    
+    /**
+     * List the counted books whose quantity differs from the count. The ticked counts replace
+     * the quantities when applied; discarding drops the whole stocktake. The discrepancies
+     * are read in the background, after the counts added before.
+     */
+    private void showDiscrepanciesDialog() {
+        final BookRepository repository = BookRepository.getInstance(this);
+        repository.run(new BookRepository.Task<Choices>() {
+            @Override
+            public Choices run(ContentResolver contentResolver) {
+                Cursor cursor = contentResolver.query(StocktakeEntry.CONTENT_DISCREPANCIES_URI,
+                        null, null, null, null);
+                if (cursor == null) {
+                    return null;
+                }
+                
+                Choices choices;
+                try {
+                    choices = new Choices(cursor.getCount());
+                    int idIndex = cursor.getColumnIndexOrThrow(BookEntry._ID);
+                    int titleIndex = cursor.getColumnIndexOrThrow(BookEntry.COLUMN_BOOK_TITLE);
+                    int quantityIndex = cursor.getColumnIndexOrThrow(BookEntry.COLUMN_BOOK_QUANTITY);
+                    int countedIndex = cursor.getColumnIndexOrThrow(StocktakeEntry.COLUMN_COUNTED);
+                    int acceptedIndex = cursor.getColumnIndexOrThrow(StocktakeEntry.COLUMN_ACCEPTED);
+                    for (int i = 0; cursor.moveToNext(); i++) {
+                        choices.mIds[i] = cursor.getLong(idIndex);
+                        choices.mItems[i] = getString(R.string.stocktake_discrepancy,
+                                cursor.getString(titleIndex), cursor.getInt(quantityIndex),
+                                cursor.getInt(countedIndex));
+                        choices.mChecked[i] = cursor.getInt(acceptedIndex) != 0;
+                    }
+                } finally {
+                    cursor.close();
+                }
+                
+                if (choices.mIds.length == 0) {
+                    contentResolver.delete(StocktakeEntry.CONTENT_URI, null, null);
+                }
+                return choices;
+            }
+        }, new BookRepository.Callback<Choices>() {
+            @Override
+            public void onResult(Choices choices) {
+                if (choices == null || isFinishing()) {
+                    return;
+                }
+                if (choices.mIds.length == 0) {
+                    Toast.makeText(BookShelfActivity.this, R.string.stocktake_no_discrepancies_msg,
+                            Toast.LENGTH_SHORT).show();
+                    return;
+                }
+                showDiscrepanciesDialog(repository, choices);
+            }
+        });
+    }
+    
+    private void showDiscrepanciesDialog(final BookRepository repository, final Choices choices) {
+        AlertDialog.Builder builder = new AlertDialog.Builder(this);
+        builder.setTitle(R.string.stocktake_discrepancies_title);
+        builder.setMultiChoiceItems(choices.mItems, choices.mChecked,
+                new DialogInterface.OnMultiChoiceClickListener() {
+                    @Override
+                    public void onClick(DialogInterface dialogInterface, final int which,
+                                        final boolean isChecked) {
+                        repository.run(new BookRepository.Task<Integer>() {
+                            @Override
+                            public Integer run(ContentResolver contentResolver) {
+                                ContentValues values = new ContentValues();
+                                values.put(StocktakeEntry.COLUMN_ACCEPTED, isChecked);
+                                return contentResolver.update(
+                                        StocktakeEntry.buildCountUri(choices.mIds[which]), values,
+                                        null, null);
+                            }
+                        }, null);
+                    }
+                });
+        builder.setPositiveButton(R.string.apply, new DialogInterface.OnClickListener() {
+            @Override
+            public void onClick(DialogInterface dialogInterface, int i) {
+                repository.run(new BookRepository.Task<Bundle>() {
+                    @Override
+                    public Bundle run(ContentResolver contentResolver) {
+                        return contentResolver.call(StocktakeEntry.CONTENT_URI,
+                                METHOD_APPLY_STOCKTAKE, null, null);
+                    }
+                }, new BookRepository.Callback<Bundle>() {
+                    @Override
+                    public void onResult(Bundle result) {
+                        if (result != null) {
+                            Toast.makeText(BookShelfActivity.this,
+                                    getString(R.string.stocktake_applied_msg,
+                                            result.getInt(EXTRA_ADJUSTED_BOOKS)),
+                                    Toast.LENGTH_SHORT).show();
+                        }
+                    }
+                });
+            }
+        });
+        builder.setNeutralButton(R.string.stocktake_keep_counting, new DialogInterface.OnClickListener() {
+            @Override
+            public void onClick(DialogInterface dialogInterface, int i) {
+                showStocktakeDialog();
+            }
+        });
+        builder.setNegativeButton(R.string.discard, new DialogInterface.OnClickListener() {
+            @Override
+            public void onClick(DialogInterface dialogInterface, int i) {
+                repository.run(new BookRepository.Task<Integer>() {
+                    @Override
+                    public Integer run(ContentResolver contentResolver) {
+                        return contentResolver.delete(StocktakeEntry.CONTENT_URI, null, null);
+                    }
+                }, null);
+            }
+        });
+        
+        builder.create().show();
+    }
+    
+    /**
+     * List the pairs of books whose titles are so similar that they may be the same book.
+     * Tapping a pair opens the second book of it in the editor. The titles are compared in
+     * the background.
+     */
+    private void showDuplicatesDialog() {
+        BookRepository.getInstance(this).run(new BookRepository.Task<Choices>() {
+            @Override
+            public Choices run(ContentResolver contentResolver) {
+                Cursor cursor = contentResolver.query(BookEntry.CONTENT_DUPLICATES_URI,
+                        null, null, null, null);
+                if (cursor == null) {
+                    return null;
+                }
+                
+                try {
+                    Choices choices = new Choices(cursor.getCount());
+                    int titleIndex = cursor.getColumnIndexOrThrow(BookEntry.COLUMN_BOOK_TITLE);
+                    int duplicateIdIndex = cursor.getColumnIndexOrThrow(BookEntry.COLUMN_DUPLICATE_ID);
+                    int duplicateTitleIndex = cursor.getColumnIndexOrThrow(BookEntry.COLUMN_DUPLICATE_TITLE);
+                    for (int i = 0; cursor.moveToNext(); i++) {
+                        choices.mIds[i] = cursor.getLong(duplicateIdIndex);
+                        choices.mItems[i] = getString(R.string.duplicate_pair,
+                                cursor.getString(titleIndex), cursor.getString(duplicateTitleIndex));
+                    }
+                    return choices;
+                } finally {
+                    cursor.close();
+                }
+            }
+        }, new BookRepository.Callback<Choices>() {
+            @Override
+            public void onResult(final Choices choices) {
+                if (choices == null || isFinishing()) {
+                    return;
+                }
+                if (choices.mIds.length == 0) {
+                    Toast.makeText(BookShelfActivity.this, R.string.no_duplicates_msg,
+                            Toast.LENGTH_SHORT).show();
+                    return;
+                }
+                
+                AlertDialog.Builder builder = new AlertDialog.Builder(BookShelfActivity.this);
+                builder.setTitle(R.string.duplicates_dialog_title);
+                builder.setItems(choices.mItems, new DialogInterface.OnClickListener() {
+                    @Override
+                    public void onClick(DialogInterface dialogInterface, int which) {
+                        Intent intent = new Intent(BookShelfActivity.this, EditorActivity.class);
+                        intent.setData(ContentUris.withAppendedId(BookEntry.CONTENT_URI,
+                                choices.mIds[which]));
+                        startActivity(intent);
+                    }
+                });
+                builder.setNegativeButton(R.string.cancel, null);
+                
+                builder.create().show();
+            }
+        });
+    }
+    
+    /**
+     * Start or stop serving the inventory to point-of-sale clients on the local network.
+     */
+    private void toggleLanApi(boolean enabled) {
+        Intent intent = new Intent(this, InventoryHttpService.class);
+        if (enabled) {
+            // In the foreground, so that the clients keep being served while the app is not
+            ContextCompat.startForegroundService(this, intent);
+        } else {
+            stopService(intent);
+        }
+    }
+    
+    /**
+     * Show a dialog that receives barcodes from a scanner working as a keyboard.
+     * Every scan ends with Enter; sales are committed in batches by {@link ScanBuffer}.
+     */
+    private void showScanDialog() {
+        final ScanBuffer scanBuffer = new ScanBuffer(BookRepository.getInstance(this),
+                new ScanBuffer.OnUnsoldIsbnListener() {
+                    @Override
+                    public void onUnsoldIsbn(List<String> isbns) {
+                        Toast.makeText(BookShelfActivity.this,
+                                getString(R.string.scan_unsold_isbn_msg, TextUtils.join(", ", isbns)),
+                                Toast.LENGTH_LONG).show();
+                    }
+                });
+        
+        final EditText scanEditText = new EditText(this);
+        scanEditText.setHint(R.string.scan_dialog_hint);
+        scanEditText.setSingleLine();
+        scanEditText.setOnEditorActionListener(new TextView.OnEditorActionListener() {
+            @Override
+            public boolean onEditorAction(TextView textView, int actionId, KeyEvent keyEvent) {
+                if (actionId == EditorInfo.IME_ACTION_DONE || (keyEvent != null
+                        && keyEvent.getKeyCode() == KeyEvent.KEYCODE_ENTER
+                        && keyEvent.getAction() == KeyEvent.ACTION_DOWN)) {
+                    scanBuffer.scan(scanEditText.getText().toString());
+                    scanEditText.setText("");
+                }
+                
+                // Keep the focus in the field for the next scan
+                return true;
+            }
+        });
+        
+        AlertDialog.Builder builder = new AlertDialog.Builder(this);
+        builder.setTitle(R.string.scan_dialog_title);
+        builder.setView(scanEditText);
+        builder.setPositiveButton(R.string.done, null);
+        builder.setOnDismissListener(new DialogInterface.OnDismissListener() {
+            @Override
+            public void onDismiss(DialogInterface dialogInterface) {
+                // Commit whatever is still pending
+                scanBuffer.flush();
+            }
+        });
+        
+        builder.create().show();
+    }
+    
+    /**
+     * Show a dialog that collects the books of a delivery with the scanner. Every scan adds
+     * one copy to a {@link ReceivingSession}; nothing is written until the whole delivery is
+     * received in one transaction.
+     */
+    private void showReceiveDialog() {
+        final ReceivingSession session = new ReceivingSession(getContentResolver(), null, null);
+        
+        final EditText scanEditText = new EditText(this);
+        scanEditText.setHint(R.string.scan_dialog_hint);
+        scanEditText.setSingleLine();
+        scanEditText.setOnEditorActionListener(new TextView.OnEditorActionListener() {
+            @Override
+            public boolean onEditorAction(TextView textView, int actionId, KeyEvent keyEvent) {
+                if (actionId == EditorInfo.IME_ACTION_DONE || (keyEvent != null
+                        && keyEvent.getKeyCode() == KeyEvent.KEYCODE_ENTER
+                        && keyEvent.getAction() == KeyEvent.ACTION_DOWN)) {
+                    session.add(scanEditText.getText().toString(), 1);
+                    scanEditText.setText("");
+                }
+                
+                // Keep the focus in the field for the next scan
+                return true;
+            }
+        });
+        
+        AlertDialog.Builder builder = new AlertDialog.Builder(this);
+        builder.setTitle(R.string.receive_dialog_title);
+        builder.setView(scanEditText);
+        builder.setPositiveButton(R.string.receive, new DialogInterface.OnClickListener() {
+            @Override
+            public void onClick(DialogInterface dialogInterface, int i) {
+                if (session.getLineCount() == 0) {
+                    return;
+                }
+                
+                // The dialog is closed, so no line is added while the shipment is received
+                BookRepository.getInstance(BookShelfActivity.this).run(
+                        new BookRepository.Task<Bundle>() {
+                            @Override
+                            public Bundle run(ContentResolver contentResolver) {
+                                return session.commit();
+                            }
+                        }, new BookRepository.Callback<Bundle>() {
+                            @Override
+                            public void onResult(Bundle result) {
+                                showReceiveResult(result);
+                            }
+                        });
+            }
+        });
+        builder.setNegativeButton(R.string.cancel, null);
+        
+        builder.create().show();
+    }
+    
+    private void showReceiveResult(Bundle result) {
+        if (result == null) {
+            return;
+        }
+        String[] unknown = result.getStringArray(EXTRA_UNKNOWN_ISBNS);
+        if (unknown != null) {
+            Toast.makeText(this, getString(R.string.receive_unknown_isbn_msg,
+                    TextUtils.join(", ", unknown)), Toast.LENGTH_LONG).show();
+        } else {
+            Toast.makeText(this, getString(R.string.receive_applied_msg,
+                    result.getInt(EXTRA_RECEIVED_COPIES)), Toast.LENGTH_SHORT).show();
+        }
     }
     
     /**
-     * Helper method to delete all books in the database.
+     * Helper method to delete all books in the database, in the background.
      */
     private void deleteAllBooks() {
-        int rowsDeleted = getContentResolver().delete(BookEntry.CONTENT_URI, null, null);
-        Log.v(LOG_TAG, rowsDeleted + " rows deleted from book database");
+        BookRepository.getInstance(this).run(new BookRepository.Task<Integer>() {
+            @Override
+            public Integer run(ContentResolver contentResolver) {
+                int rowsDeleted = contentResolver.delete(BookEntry.CONTENT_URI, null, null);
+                Log.v(LOG_TAG, rowsDeleted + " rows deleted from book database");
+                return rowsDeleted;
+            }
+        }, null);
     }
     
     @Override
@@ -99,10 +771,45 @@ public class BookShelfActivity extends AppCompatActivity implements
         return true;
     }
     
+    @Override
+    public boolean onPrepareOptionsMenu(Menu menu) {
+        menu.findItem(R.id.action_lan_api).setChecked(InventoryHttpService.isRunning());
+        return super.onPrepareOptionsMenu(menu);
+    }
+    
     @Override
     public boolean onOptionsItemSelected(MenuItem item) {
         // User clicked on a menu option in the app bar overflow menu
         switch (item.getItemId()) {
+            // Respond to a click on the "Filter" menu option
+            case R.id.action_filter:
+                showFilterDialog();
+                return true;
+            // Respond to a click on the "Reprice" menu option
+            case R.id.action_reprice:
+                showRepriceDialog();
+                return true;
+            // Respond to a click on the "Scan to sell" menu option
+            case R.id.action_scan_to_sell:
+                showScanDialog();
+                return true;
+            // Respond to a click on the "Receive shipment" menu option
+            case R.id.action_receive_shipment:
+                showReceiveDialog();
+                return true;
+            // Respond to a click on the "Stocktake" menu option
+            case R.id.action_stocktake:
+                showStocktakeDialog();
+                return true;
+            // Respond to a click on the "Find duplicates" menu option
+            case R.id.action_find_duplicates:
+                showDuplicatesDialog();
+                return true;
+            // Respond to a click on the "LAN API" menu option
+            case R.id.action_lan_api:
+                toggleLanApi(!item.isChecked());
+                item.setChecked(!item.isChecked());
+                return true;
             // Respond to a click on the "Delete all entries" menu option
             case R.id.action_delete_all_entries:
                 deleteAllBooks();
@@ -112,32 +819,28 @@ public class BookShelfActivity extends AppCompatActivity implements
     }
     
     @Override
-    public Loader<Cursor> onCreateLoader(int i, Bundle bundle) {
-        // Define a projection that specifies the columns from the table we care about.
-        String[] projection = {
-                BookEntry._ID,
-                BookEntry.COLUMN_BOOK_TITLE,
-                BookEntry.COLUMN_BOOK_PRICE,
-                BookEntry.COLUMN_BOOK_QUANTITY};
-        
-        // This loader will execute the ContentProvider's query method on a background thread
-        return new CursorLoader(this,   // Parent activity context
-                BookEntry.CONTENT_URI,   // Provider content URI to query
-                projection,             // Columns to include in the resulting Cursor
-                null,                   // No selection clause
-                null,                   // No selection arguments
-                null);                  // Default sort order
-    }
-    
-    @Override
-    public void onLoadFinished(Loader<Cursor> loader, Cursor data) {
+    public void onChanged(Cursor data) {
         // Update {@link BookStoreAdapter} with this new cursor containing updated book data
         mBookStoreAdapter.swapCursor(data);
+        
+        // The shelf is usable once the books are bound; only the first call after a launch
+        // is reported, as the fully drawn time of the start
+        reportFullyDrawn();
     }
     
-    @Override
-    public void onLoaderReset(Loader<Cursor> loader) {
-        // Callback called when the data needs to be deleted
-        mBookStoreAdapter.swapCursor(null);
+    /**
+     * Books listed in a dialog: their IDs, their lines and which of them are ticked
+     */
+    private static class Choices {
+        
+        private final long[] mIds;
+        private final String[] mItems;
+        private final boolean[] mChecked;
+        
+        Choices(int count) {
+            mIds = new long[count];
+            mItems = new String[count];
+            mChecked = new boolean[count];
+        }
     }
 }
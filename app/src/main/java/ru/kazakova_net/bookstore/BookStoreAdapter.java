@@ -15,23 +15,37 @@
  */
 package ru.kazakova_net.bookstore;
 
-import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.Context;
 import android.database.Cursor;
-import android.net.Uri;
+import android.os.Trace;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
 import android.widget.CursorAdapter;
 import android.widget.ImageButton;
+import android.widget.ImageView;
 import android.widget.TextView;
 import android.widget.Toast;
 
+import ru.kazakova_net.bookstore.inventory.InventoryRules;
+
 import static ru.kazakova_net.bookstore.data.BookContract.BookEntry;
 
 public class BookStoreAdapter extends CursorAdapter {
     
+    /**
+     * Whether the first bind has already been traced
+     */
+    private boolean mFirstBindTraced;
+    
+    /**
+     * Loads the covers at the size of the thumbnails in the list
+     */
+    private final CoverLoader mCoverLoader;
+    private final int mCoverWidth;
+    private final int mCoverHeight;
+    
     /**
      * Constructs a new {@link BookStoreAdapter}.
      *
@@ -40,6 +54,9 @@ public class BookStoreAdapter extends CursorAdapter {
      */
     public BookStoreAdapter(Context context, Cursor c) {
         super(context, c, 0);
+        mCoverLoader = CoverLoader.getInstance(context);
+        mCoverWidth = context.getResources().getDimensionPixelSize(R.dimen.cover_thumbnail_width);
+        mCoverHeight = context.getResources().getDimensionPixelSize(R.dimen.cover_thumbnail_height);
     }
     
     /**
@@ -67,11 +84,28 @@ public class BookStoreAdapter extends CursorAdapter {
      *                correct row.
      */
     @Override
-    public void bindView(View view, final Context context, final Cursor cursor) {
+    public void bindView(View view, Context context, Cursor cursor) {
+        // The first bind ends the cold start, so it is traced on its own
+        if (!mFirstBindTraced) {
+            mFirstBindTraced = true;
+            
+            Trace.beginSection("BookStoreAdapter.firstBind");
+            try {
+                bindBook(view, context, cursor);
+            } finally {
+                Trace.endSection();
+            }
+        } else {
+            bindBook(view, context, cursor);
+        }
+    }
+    
+    private void bindBook(View view, final Context context, final Cursor cursor) {
         // Find individual views that we want to modify in the list item layout
         TextView titleTextView = view.findViewById(R.id.book_title);
         TextView priceTextView = view.findViewById(R.id.book_price);
         TextView quantityTextView = view.findViewById(R.id.book_quantity);
+        ImageView coverImageView = view.findViewById(R.id.book_cover);
         
         // Find the button, by clicking on which the number of books will decrease
         ImageButton saleImageButton = view.findViewById(R.id.sale);
@@ -81,6 +115,7 @@ public class BookStoreAdapter extends CursorAdapter {
         int titleColumnIndex = cursor.getColumnIndex(BookEntry.COLUMN_BOOK_TITLE);
         int priceColumnIndex = cursor.getColumnIndex(BookEntry.COLUMN_BOOK_PRICE);
         int quantityColumnIndex = cursor.getColumnIndex(BookEntry.COLUMN_BOOK_QUANTITY);
+        int coverColumnIndex = cursor.getColumnIndex(BookEntry.COLUMN_BOOK_COVER);
         
         // Read the book attributes from the Cursor for the current book
         final int bookId = cursor.getInt(idColumnIndex);
@@ -93,28 +128,32 @@ public class BookStoreAdapter extends CursorAdapter {
         priceTextView.setText(context.getString(R.string.item_price_label, bookPrice));
         quantityTextView.setText(context.getString(R.string.item_quantity_label, bookQuantity));
         
+        // The cover is decoded in the background; a recycled view drops the previous request
+        mCoverLoader.load(coverImageView, cursor.getString(coverColumnIndex), mCoverWidth, mCoverHeight);
+        
         // Assign a click handler to the Sale button
         saleImageButton.setOnClickListener(new View.OnClickListener() {
             @Override
             public void onClick(View v) {
-                int quantityInteger = Integer.parseInt(bookQuantity) - 1;
-                Uri currentBookUri = ContentUris.withAppendedId(BookEntry.CONTENT_URI, bookId);
-                
-                // Check for a negative value
-                if (quantityInteger >= 0) {
+                // Check that there is a copy to sell
+                if (InventoryRules.canSell(Integer.parseInt(bookQuantity), 1)) {
+                    // Record the sale as a change of the quantity rather than its new value,
+                    // so that sales made on other devices at the same time are not lost
                     ContentValues values = new ContentValues();
-                    values.put(BookEntry.COLUMN_BOOK_QUANTITY, Integer.parseInt(String.valueOf(quantityInteger)));
+                    values.put(BookEntry.QUANTITY_DELTA, -1);
                     
-                    // The record is updated
-                    context.getContentResolver().update(currentBookUri, values, null, null);
+                    // The sale is acknowledged once it is journaled; the record is updated
+                    // with the next batch. No row means another terminal sold the last copy
+                    int rowsUpdated = context.getContentResolver().update(
+                            BookEntry.buildQuantityUri(bookId), values, null, null);
     
-                    Toast.makeText(context, "One book sailed!", Toast.LENGTH_SHORT).show();
+                    if (rowsUpdated != 0) {
+                        Toast.makeText(context, "One book sailed!", Toast.LENGTH_SHORT).show();
+                    }
                 }
                 
-                // If the number has decreased to 0, the book is removed from storage
-                if (quantityInteger == 0) {
-                    context.getContentResolver().delete(currentBookUri, null, null);
-                }
+                // A sold-out book stays on the shelf: the shown quantity may be behind copies
+                // received or merged meanwhile, and deleting it would drop their counters
             }
         });
     }
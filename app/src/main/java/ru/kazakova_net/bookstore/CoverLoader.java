@@ -0,0 +1,300 @@
+package ru.kazakova_net.bookstore;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+import android.util.LruCache;
+import android.widget.ImageView;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import ru.kazakova_net.bookstore.data.CoverStore;
+
+/**
+ * Loads cover thumbnails into image views of the book list.
+ * <p>
+ * Thumbnails are decoded at the size of the view on a background thread and kept in two
+ * levels: a memory cache bounded by the size of the bitmaps, and a disk cache of the already
+ * scaled thumbnails, so that a cover evicted from memory does not have to be decoded from
+ * the full image again. A request is cancelled when its view is bound to another book.
+ */
+public class CoverLoader {
+    
+    public static final String LOG_TAG = CoverLoader.class.getSimpleName();
+    
+    /**
+     * Directory in the app cache where thumbnails are stored
+     */
+    private static final String THUMBNAIL_DIR = "thumbnails";
+    
+    /**
+     * Share of the app heap used by the memory cache
+     */
+    private static final int MEMORY_CACHE_DIVIDER = 8;
+    
+    /**
+     * Size of the disk cache, trimmed every {@link #DISK_TRIM_INTERVAL} written thumbnails
+     */
+    private static final long MAX_DISK_CACHE_BYTES = 32 * 1024 * 1024;
+    private static final int DISK_TRIM_INTERVAL = 50;
+    
+    private static final int THUMBNAIL_QUALITY = 85;
+    
+    private static final int THREAD_COUNT = 2;
+    
+    private static CoverLoader sInstance;
+    
+    private final Context mContext;
+    private final LruCache<String, Bitmap> mMemoryCache;
+    private final File mDiskCacheDir;
+    private final ExecutorService mExecutor = Executors.newFixedThreadPool(THREAD_COUNT);
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+    private int mWritesSinceTrim;
+    
+    public static synchronized CoverLoader getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new CoverLoader(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+    
+    private CoverLoader(Context context) {
+        mContext = context;
+        mDiskCacheDir = new File(context.getCacheDir(), THUMBNAIL_DIR);
+        
+        // The cache is measured in kilobytes
+        int cacheSize = (int) (Runtime.getRuntime().maxMemory() / 1024 / MEMORY_CACHE_DIVIDER);
+        mMemoryCache = new LruCache<String, Bitmap>(cacheSize) {
+            @Override
+            protected int sizeOf(String key, Bitmap bitmap) {
+                return bitmap.getByteCount() / 1024;
+            }
+        };
+    }
+    
+    /**
+     * Show the cover with the given name in the view, scaled to the given size.
+     * Must be called on the main thread.
+     *
+     * @param cover file name of the cover, or null to show the placeholder
+     */
+    public void load(ImageView imageView, String cover, int width, int height) {
+        String key = cover == null ? null : cover + "@" + width + "x" + height;
+        
+        // Cancel the request of the book this view showed before
+        Request previous = (Request) imageView.getTag();
+        if (previous != null) {
+            if (previous.mKey.equals(key)) {
+                return;
+            }
+            previous.cancel();
+            imageView.setTag(null);
+        }
+        
+        if (key == null) {
+            imageView.setImageResource(R.drawable.ic_book_cover);
+            return;
+        }
+        
+        Bitmap bitmap = mMemoryCache.get(key);
+        if (bitmap != null) {
+            imageView.setImageBitmap(bitmap);
+            return;
+        }
+        
+        imageView.setImageResource(R.drawable.ic_book_cover);
+        
+        Request request = new Request(imageView, key, cover, width, height);
+        imageView.setTag(request);
+        request.mFuture = mExecutor.submit(request);
+    }
+    
+    /**
+     * Read the thumbnail from the disk cache, or decode it from the cover and store it there.
+     */
+    private Bitmap loadThumbnail(String key, String cover, int width, int height) {
+        File thumbnail = new File(mDiskCacheDir, key);
+        if (thumbnail.exists()) {
+            Bitmap bitmap = BitmapFactory.decodeFile(thumbnail.getPath());
+            if (bitmap != null) {
+                // Mark the thumbnail as recently used for the trimming
+                thumbnail.setLastModified(System.currentTimeMillis());
+                return bitmap;
+            }
+        }
+        
+        File file = CoverStore.getCoverFile(mContext, cover);
+        
+        // Decode only as many pixels as the view needs
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeFile(file.getPath(), options);
+        if (options.outWidth <= 0 || options.outHeight <= 0) {
+            return null;
+        }
+        
+        options.inJustDecodeBounds = false;
+        options.inSampleSize = CoverStore.calculateInSampleSize(options.outWidth, options.outHeight,
+                width, height);
+        options.inPreferredConfig = Bitmap.Config.RGB_565;
+        Bitmap bitmap = BitmapFactory.decodeFile(file.getPath(), options);
+        if (bitmap == null) {
+            return null;
+        }
+        bitmap = scaleToCover(bitmap, width, height);
+        
+        writeThumbnail(thumbnail, bitmap);
+        
+        return bitmap;
+    }
+    
+    /**
+     * Scale the bitmap down, keeping its aspect ratio, so that it just covers the given size.
+     */
+    private static Bitmap scaleToCover(Bitmap bitmap, int width, int height) {
+        float scale = Math.max((float) width / bitmap.getWidth(), (float) height / bitmap.getHeight());
+        if (scale >= 1) {
+            return bitmap;
+        }
+        
+        Bitmap scaled = Bitmap.createScaledBitmap(bitmap, Math.round(bitmap.getWidth() * scale),
+                Math.round(bitmap.getHeight() * scale), true);
+        if (scaled != bitmap) {
+            bitmap.recycle();
+        }
+        return scaled;
+    }
+    
+    private void writeThumbnail(File thumbnail, Bitmap bitmap) {
+        if (!mDiskCacheDir.isDirectory() && !mDiskCacheDir.mkdirs()) {
+            Log.w(LOG_TAG, "Cannot create " + mDiskCacheDir);
+            return;
+        }
+        
+        // Write into a temporary file, so that a thumbnail is either complete or absent
+        File partial = new File(thumbnail.getPath() + "." + Thread.currentThread().getId() + ".tmp");
+        try {
+            OutputStream out = new FileOutputStream(partial);
+            try {
+                bitmap.compress(Bitmap.CompressFormat.JPEG, THUMBNAIL_QUALITY, out);
+            } finally {
+                out.close();
+            }
+            if (!partial.renameTo(thumbnail)) {
+                throw new IOException("Cannot rename " + partial + " to " + thumbnail);
+            }
+        } catch (IOException e) {
+            Log.w(LOG_TAG, "Cannot write thumbnail " + thumbnail, e);
+            partial.delete();
+            return;
+        }
+        
+        boolean trim;
+        synchronized (this) {
+            trim = ++mWritesSinceTrim >= DISK_TRIM_INTERVAL;
+            if (trim) {
+                mWritesSinceTrim = 0;
+            }
+        }
+        if (trim) {
+            trimDiskCache();
+        }
+    }
+    
+    /**
+     * Delete the least recently used thumbnails until the cache fits in its size.
+     */
+    private void trimDiskCache() {
+        File[] files = mDiskCacheDir.listFiles();
+        if (files == null) {
+            return;
+        }
+        
+        long size = 0;
+        for (File file : files) {
+            size += file.length();
+        }
+        if (size <= MAX_DISK_CACHE_BYTES) {
+            return;
+        }
+        
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File a, File b) {
+                return Long.compare(a.lastModified(), b.lastModified());
+            }
+        });
+        for (File file : files) {
+            if (size <= MAX_DISK_CACHE_BYTES) {
+                break;
+            }
+            size -= file.length();
+            file.delete();
+        }
+    }
+    
+    /**
+     * Loading of one thumbnail into one view.
+     */
+    private class Request implements Runnable {
+        
+        private final ImageView mImageView;
+        private final String mKey;
+        private final String mCover;
+        private final int mWidth;
+        private final int mHeight;
+        private volatile boolean mCancelled;
+        private Future<?> mFuture;
+        
+        Request(ImageView imageView, String key, String cover, int width, int height) {
+            mImageView = imageView;
+            mKey = key;
+            mCover = cover;
+            mWidth = width;
+            mHeight = height;
+        }
+        
+        void cancel() {
+            mCancelled = true;
+            if (mFuture != null) {
+                // A request still in the queue is dropped without decoding
+                mFuture.cancel(false);
+            }
+        }
+        
+        @Override
+        public void run() {
+            if (mCancelled) {
+                return;
+            }
+            
+            final Bitmap bitmap = loadThumbnail(mKey, mCover, mWidth, mHeight);
+            if (bitmap == null) {
+                return;
+            }
+            mMemoryCache.put(mKey, bitmap);
+            
+            mMainHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    // The view may have been recycled for another book meanwhile
+                    if (!mCancelled && mImageView.getTag() == Request.this) {
+                        mImageView.setImageBitmap(bitmap);
+                        mImageView.setTag(null);
+                    }
+                }
+            });
+        }
+    }
+}
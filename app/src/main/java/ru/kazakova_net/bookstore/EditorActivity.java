@@ -1,17 +1,19 @@
 package ru.kazakova_net.bookstore;
 
 import android.app.AlertDialog;
-import android.app.LoaderManager;
+import android.content.ContentResolver;
+import android.content.ContentUris;
 import android.content.ContentValues;
-import android.content.CursorLoader;
 import android.content.DialogInterface;
 import android.content.Intent;
-import android.content.Loader;
 import android.database.Cursor;
 import android.net.Uri;
 import android.os.Bundle;
+import android.util.Log;
 import androidx.core.app.NavUtils;
 import androidx.appcompat.app.AppCompatActivity;
+import androidx.lifecycle.LiveData;
+import androidx.lifecycle.Observer;
 import android.text.TextUtils;
 import android.view.Menu;
 import android.view.MenuItem;
@@ -20,8 +22,13 @@ import android.view.View;
 import android.view.inputmethod.InputMethodManager;
 import android.widget.EditText;
 import android.widget.ImageButton;
+import android.widget.ImageView;
 import android.widget.Toast;
 
+import java.io.IOException;
+
+import ru.kazakova_net.bookstore.data.BookRepository;
+import ru.kazakova_net.bookstore.data.CoverStore;
 import ru.kazakova_net.bookstore.utils.CommonUtils;
 
 import static android.content.Context.INPUT_METHOD_SERVICE;
@@ -30,14 +37,16 @@ import static ru.kazakova_net.bookstore.data.BookContract.BookEntry;
 /**
  * Allows user to create a new book or edit an existing one.
  */
-public class EditorActivity extends AppCompatActivity implements
-        LoaderManager.LoaderCallbacks<Cursor> {
+public class EditorActivity extends AppCompatActivity implements Observer<Cursor> {
+    
+    private static final String LOG_TAG = EditorActivity.class.getSimpleName();
+    
+    private static final int MY_PERMISSIONS_REQUEST_READ_CONTACTS = 1;
     
     /**
-     * Identifier for the book data loader
+     * Request code of the image picker for the cover
      */
-    private static final int EXISTING_BOOK_LOADER = 0;
-    private static final int MY_PERMISSIONS_REQUEST_READ_CONTACTS = 1;
+    private static final int REQUEST_PICK_COVER = 2;
     
     /**
      * Content URI for the existing book (null if it's a new book)
@@ -45,14 +54,64 @@ public class EditorActivity extends AppCompatActivity implements
     private Uri mCurrentBookUri;
     
     /**
-     * Boolean flag that keeps track of whether the book has been edited (true) or not (false)
+     * Columns shown in the editor, in the same order as {@link #mFieldEditTexts}
+     */
+    private static final String[] FIELD_COLUMNS = {
+            BookEntry.COLUMN_BOOK_TITLE,
+            BookEntry.COLUMN_BOOK_ISBN,
+            BookEntry.COLUMN_BOOK_PRICE,
+            BookEntry.COLUMN_BOOK_QUANTITY,
+            BookEntry.COLUMN_BOOK_SUPPLIER_NAME,
+            BookEntry.COLUMN_BOOK_SUPPLIER_PHONE};
+    
+    /**
+     * Index of the title in {@link #FIELD_COLUMNS}
+     */
+    private static final int TITLE_FIELD = 0;
+    
+    /**
+     * Index of the quantity in {@link #FIELD_COLUMNS}
+     */
+    private static final int QUANTITY_FIELD = 3;
+    
+    /**
+     * Values of the fields as last loaded from the database (null for a new book or until
+     * the book is loaded). A field is changed when its text differs from this snapshot.
+     */
+    private String[] mLoadedFields;
+    
+    /**
+     * Version of the book the snapshot was taken from
+     */
+    private long mLoadedVersion;
+    
+    /**
+     * Cover as last loaded from the database, and the cover currently shown
+     * (file names in {@link CoverStore}, null for no cover)
+     */
+    private String mLoadedCover;
+    private String mCover;
+    
+    /**
+     * Whether the user chose to save the title although similar titles exist
+     */
+    private boolean mDuplicateTitleConfirmed;
+    
+    /**
+     * Whether the similar titles are being looked up; saving waits for them
      */
-    private boolean mBookHasChanged = false;
+    private boolean mCheckingTitle;
+    
+    /**
+     * Current data of the existing book
+     */
+    private LiveData<Cursor> mBookData;
     
     /**
      * Widgets
      */
     private EditText mTitleEditText;
+    private EditText mIsbnEditText;
     private EditText mPriceEditText;
     private EditText mQuantityEditText;
     private EditText mSupplierNameEditText;
@@ -61,18 +120,9 @@ public class EditorActivity extends AppCompatActivity implements
     private ImageButton mMinusImageButton;
     private ImageButton mDeleteButton;
     private ImageButton mCallButton;
+    private EditText[] mFieldEditTexts;
+    private ImageView mCoverImageView;
     
-    /**
-     * OnTouchListener that listens for any user touches on a View, implying that they are modifying
-     * the view, and we change the mBookHasChanged boolean to true.
-     */
-    private View.OnTouchListener mTouchListener = new View.OnTouchListener() {
-        @Override
-        public boolean onTouch(View view, MotionEvent motionEvent) {
-            mBookHasChanged = true;
-            return false;
-        }
-    };
     private String mPhoneNumber;
     
     @Override
@@ -97,13 +147,28 @@ public class EditorActivity extends AppCompatActivity implements
             // Otherwise this is an existing book, so change app bar to say "Edit Book"
             setTitle(getString(R.string.editor_activity_title_edit_book));
             
-            // Initialize a loader to read the book data from the database
+            // Since the editor shows all book attributes, define a projection that contains
+            // all columns from the book table
+            String[] projection = {
+                    BookEntry._ID,
+                    BookEntry.COLUMN_BOOK_TITLE,
+                    BookEntry.COLUMN_BOOK_ISBN,
+                    BookEntry.COLUMN_BOOK_PRICE,
+                    BookEntry.COLUMN_BOOK_QUANTITY,
+                    BookEntry.COLUMN_BOOK_SUPPLIER_NAME,
+                    BookEntry.COLUMN_BOOK_SUPPLIER_PHONE,
+                    BookEntry.COLUMN_BOOK_COVER,
+                    BookEntry.COLUMN_BOOK_VERSION};
+            
+            // Observe the book to read its data from the database
             // and display the current values in the editor
-            getLoaderManager().initLoader(EXISTING_BOOK_LOADER, null, this);
+            mBookData = BookRepository.getInstance(this).observeBook(mCurrentBookUri, projection);
+            mBookData.observe(this, this);
         }
         
         // Find all relevant views that we will need to read user input from
         mTitleEditText = findViewById(R.id.edit_book_title);
+        mIsbnEditText = findViewById(R.id.edit_book_isbn);
         mPriceEditText = findViewById(R.id.edit_book_price);
         mQuantityEditText = findViewById(R.id.edit_book_quantity);
         mSupplierNameEditText = findViewById(R.id.edit_supplier_name);
@@ -112,28 +177,30 @@ public class EditorActivity extends AppCompatActivity implements
         mPlusImageButton = findViewById(R.id.plus_button);
         mDeleteButton = findViewById(R.id.delete_button);
         mCallButton = findViewById(R.id.phone_call);
+        mFieldEditTexts = new EditText[]{mTitleEditText, mIsbnEditText, mPriceEditText,
+                mQuantityEditText, mSupplierNameEditText, mSupplierPhoneEditText};
+        mCoverImageView = findViewById(R.id.edit_book_cover);
         
+        // Let the user pick the cover from the images on the device
+        mCoverImageView.setOnClickListener(new View.OnClickListener() {
+            @Override
+            public void onClick(View v) {
+                Intent intent = new Intent(Intent.ACTION_OPEN_DOCUMENT);
+                intent.addCategory(Intent.CATEGORY_OPENABLE);
+                intent.setType("image/*");
+                startActivityForResult(intent, REQUEST_PICK_COVER);
+            }
+        });
         
         // Set the initial value of the number of books
         if (mCurrentBookUri == null) {
             mQuantityEditText.setText("1");
         }
         
-        // Setup OnTouchListeners on all the input fields, so we can determine if the user
-        // has touched or modified them. This will let us know if there are unsaved changes
-        // or not, if the user tries to leave the editor without saving.
-        mTitleEditText.setOnTouchListener(mTouchListener);
-        mPriceEditText.setOnTouchListener(mTouchListener);
-        mQuantityEditText.setOnTouchListener(mTouchListener);
-        mSupplierNameEditText.setOnTouchListener(mTouchListener);
-        mSupplierPhoneEditText.setOnTouchListener(mTouchListener);
-        
         // Setup OnClickListeners on buttons
         mMinusImageButton.setOnClickListener(new View.OnClickListener() {
             @Override
             public void onClick(View v) {
-                mBookHasChanged = true;
-                
                 int currentQuantity = Integer.parseInt(mQuantityEditText.getText().toString());
                 if (currentQuantity > 1) {
                     mQuantityEditText.setText(String.valueOf(--currentQuantity));
@@ -144,8 +211,6 @@ public class EditorActivity extends AppCompatActivity implements
         mPlusImageButton.setOnClickListener(new View.OnClickListener() {
             @Override
             public void onClick(View v) {
-                mBookHasChanged = true;
-                
                 int currentQuantity = Integer.parseInt(mQuantityEditText.getText().toString());
                 mQuantityEditText.setText(String.valueOf(++currentQuantity));
             }
@@ -179,6 +244,7 @@ public class EditorActivity extends AppCompatActivity implements
     private boolean saveBook() {
         // Read from input fields
         String titleString = mTitleEditText.getText().toString().trim();
+        String isbnString = mIsbnEditText.getText().toString().trim();
         String priceString = mPriceEditText.getText().toString().trim();
         String quantityString = mQuantityEditText.getText().toString().trim();
         String supplierName = mSupplierNameEditText.getText().toString().trim();
@@ -199,10 +265,15 @@ public class EditorActivity extends AppCompatActivity implements
         // and book attributes from the editor are the values.
         ContentValues values = new ContentValues();
         values.put(BookEntry.COLUMN_BOOK_TITLE, titleString);
+        // The ISBN is optional, an empty field clears it
+        values.put(BookEntry.COLUMN_BOOK_ISBN, isbnString);
         values.put(BookEntry.COLUMN_BOOK_PRICE, Integer.parseInt(priceString));
         values.put(BookEntry.COLUMN_BOOK_QUANTITY, Integer.parseInt(quantityString));
         values.put(BookEntry.COLUMN_BOOK_SUPPLIER_NAME, supplierName);
         values.put(BookEntry.COLUMN_BOOK_SUPPLIER_PHONE, supplierPhone);
+        if (mCover != null) {
+            values.put(BookEntry.COLUMN_BOOK_COVER, mCover);
+        }
         
         // Determine if this is a new or existing book
         if (mCurrentBookUri == null) {
@@ -221,11 +292,25 @@ public class EditorActivity extends AppCompatActivity implements
                         Toast.LENGTH_SHORT).show();
             }
         } else {
-            // Otherwise this is an EXISTING book, so update the book with content URI: mCurrentBookUri
+            // Otherwise this is an EXISTING book, so only send the fields that were changed
+            ContentValues changes = getChangedValues();
+            if (changes.size() == 0) {
+                return true;
+            }
+            
+            // The update only applies if nobody else has changed the book since it was loaded
+            changes.put(BookEntry.COLUMN_BOOK_VERSION, mLoadedVersion);
+            
+            // Update the book with content URI: mCurrentBookUri
             // and pass in the new ContentValues.
-            int rowsAffected = getContentResolver().update(mCurrentBookUri, values, null, null);
+            int rowsAffected = getContentResolver().update(mCurrentBookUri, changes, null, null);
             
-            if (rowsAffected == 0) {
+            if (rowsAffected == 0 && bookExists()) {
+                // The book has been changed meanwhile, let the user decide what to keep
+                showConflictDialog();
+                
+                return false;
+            } else if (rowsAffected == 0) {
                 // If no rows were affected, then there was an error with the update.
                 Toast.makeText(this, getString(R.string.editor_update_book_failed),
                         Toast.LENGTH_SHORT).show();
@@ -241,6 +326,84 @@ public class EditorActivity extends AppCompatActivity implements
         return true;
     }
     
+    /**
+     * Return the fields that differ from the loaded book. A changed quantity is sent as
+     * the difference to the loaded quantity, so that sales made meanwhile are kept.
+     */
+    private ContentValues getChangedValues() {
+        ContentValues values = new ContentValues();
+        
+        for (int i = 0; i < FIELD_COLUMNS.length; i++) {
+            if (!isFieldChanged(i)) {
+                continue;
+            }
+            
+            String text = getFieldText(i);
+            if (i == QUANTITY_FIELD) {
+                values.put(BookEntry.QUANTITY_DELTA,
+                        Integer.parseInt(text) - Integer.parseInt(mLoadedFields[i]));
+            } else if (BookEntry.COLUMN_BOOK_PRICE.equals(FIELD_COLUMNS[i])) {
+                values.put(FIELD_COLUMNS[i], Integer.parseInt(text));
+            } else {
+                values.put(FIELD_COLUMNS[i], text);
+            }
+        }
+        
+        if (isCoverChanged()) {
+            values.put(BookEntry.COLUMN_BOOK_COVER, mCover);
+        }
+        
+        return values;
+    }
+    
+    private String getFieldText(int field) {
+        return mFieldEditTexts[field].getText().toString().trim();
+    }
+    
+    private boolean isFieldChanged(int field) {
+        return mLoadedFields != null && !getFieldText(field).equals(mLoadedFields[field]);
+    }
+    
+    private boolean isCoverChanged() {
+        return mCover != null && !mCover.equals(mLoadedCover);
+    }
+    
+    /**
+     * Whether the user has entered anything that is not saved yet.
+     */
+    private boolean hasUnsavedChanges() {
+        if (isCoverChanged()) {
+            return true;
+        }
+        
+        if (mCurrentBookUri != null) {
+            for (int i = 0; i < FIELD_COLUMNS.length; i++) {
+                if (isFieldChanged(i)) {
+                    return true;
+                }
+            }
+            
+            return false;
+        }
+        
+        // For a new book, anything but the initial quantity counts as a change
+        for (int i = 0; i < FIELD_COLUMNS.length; i++) {
+            if (i == QUANTITY_FIELD ? !"1".equals(getFieldText(i)) : !getFieldText(i).isEmpty()) {
+                return true;
+            }
+        }
+        
+        return false;
+    }
+    
+    /**
+     * Whether the book being edited is still in the database.
+     */
+    private boolean bookExists() {
+        Cursor cursor = mBookData.getValue();
+        return cursor != null && cursor.getCount() > 0;
+    }
+    
     @Override
     public boolean onCreateOptionsMenu(Menu menu) {
         // Inflate the menu options from the res/menu/menu_editor.xml file.
@@ -252,16 +415,13 @@ public class EditorActivity extends AppCompatActivity implements
     public boolean onOptionsItemSelected(MenuItem item) {
         switch (item.getItemId()) {
             case R.id.action_save:
-                // If the book successfully saved to database exit activity
-                if (saveBook()) {
-                    finish();
-                }
-                
+                // Warn about possible duplicates first, the dialog saves the book if confirmed
+                checkTitleAndSave();
                 return true;
             case android.R.id.home:
                 // If the book hasn't changed, continue with navigating up to parent activity
                 // which is the BookShelfActivity.
-                if (!mBookHasChanged) {
+                if (!hasUnsavedChanges()) {
                     NavUtils.navigateUpFromSameTask(EditorActivity.this);
                     
                     return true;
@@ -292,7 +452,7 @@ public class EditorActivity extends AppCompatActivity implements
     @Override
     public void onBackPressed() {
         // If the book hasn't changed, continue with handling back button press
-        if (!mBookHasChanged) {
+        if (!hasUnsavedChanges()) {
             super.onBackPressed();
             
             return;
@@ -314,28 +474,7 @@ public class EditorActivity extends AppCompatActivity implements
     }
     
     @Override
-    public Loader<Cursor> onCreateLoader(int i, Bundle bundle) {
-        // Since the editor shows all book attributes, define a projection that contains
-        // all columns from the book table
-        String[] projection = {
-                BookEntry._ID,
-                BookEntry.COLUMN_BOOK_TITLE,
-                BookEntry.COLUMN_BOOK_PRICE,
-                BookEntry.COLUMN_BOOK_QUANTITY,
-                BookEntry.COLUMN_BOOK_SUPPLIER_NAME,
-                BookEntry.COLUMN_BOOK_SUPPLIER_PHONE};
-        
-        // This loader will execute the ContentProvider's query method on a background thread
-        return new CursorLoader(this,   // Parent activity context
-                mCurrentBookUri,         // Query the content URI for the current book
-                projection,             // Columns to include in the resulting Cursor
-                null,                   // No selection clause
-                null,                   // No selection arguments
-                null);                  // Default sort order
-    }
-    
-    @Override
-    public void onLoadFinished(Loader<Cursor> loader, Cursor cursor) {
+    public void onChanged(Cursor cursor) {
         // Bail early if the cursor is null or there is less than 1 row in the cursor
         if (cursor == null || cursor.getCount() < 1) {
             return;
@@ -344,37 +483,254 @@ public class EditorActivity extends AppCompatActivity implements
         // Proceed with moving to the first row of the cursor and reading data from it
         // (This should be the only row in the cursor)
         if (cursor.moveToFirst()) {
-            // Find the columns of book attributes that we're interested in
-            int titleColumnIndex = cursor.getColumnIndex(BookEntry.COLUMN_BOOK_TITLE);
-            int priceColumnIndex = cursor.getColumnIndex(BookEntry.COLUMN_BOOK_PRICE);
-            int quantityColumnIndex = cursor.getColumnIndex(BookEntry.COLUMN_BOOK_QUANTITY);
-            int supplierNameColumnIndex = cursor.getColumnIndex(BookEntry.COLUMN_BOOK_SUPPLIER_NAME);
-            int supplierPhoneColumnIndex = cursor.getColumnIndex(BookEntry.COLUMN_BOOK_SUPPLIER_PHONE);
+            // Extract out the values of the book attributes from the Cursor
+            String[] fields = readFields(cursor);
+            long version = cursor.getLong(cursor.getColumnIndex(BookEntry.COLUMN_BOOK_VERSION));
             
-            // Extract out the value from the Cursor for the given column index
-            String title = cursor.getString(titleColumnIndex);
-            String price = cursor.getString(priceColumnIndex);
-            String quantity = cursor.getString(quantityColumnIndex);
-            String supplierName = cursor.getString(supplierNameColumnIndex);
-            String supplierPhone = cursor.getString(supplierPhoneColumnIndex);
+            if (mLoadedFields == null) {
+                // First load: update the views on the screen with the values from the database
+                for (int i = 0; i < FIELD_COLUMNS.length; i++) {
+                    mFieldEditTexts[i].setText(fields[i]);
+                }
+                
+                // The editor is usable from here, which is the end of opening a book
+                reportFullyDrawn();
+            } else if (!rebaseFields(fields)) {
+                // The user has edited a field that was also changed elsewhere. Keep the old
+                // snapshot, so that saving reports the conflict instead of overwriting.
+                return;
+            }
             
-            // Update the views on the screen with the values from the database
-            mTitleEditText.setText(title);
-            mPriceEditText.setText(price);
-            mQuantityEditText.setText(quantity);
-            mSupplierNameEditText.setText(supplierName);
-            mSupplierPhoneEditText.setText(supplierPhone);
+            mLoadedFields = fields;
+            mLoadedVersion = version;
+            rebaseCover(cursor.getString(cursor.getColumnIndex(BookEntry.COLUMN_BOOK_COVER)));
+        }
+    }
+    
+    /**
+     * Show the given cover from the database unless the user has picked another one.
+     */
+    private void rebaseCover(String cover) {
+        if (!isCoverChanged()) {
+            mCover = cover;
+            showCover();
         }
+        mLoadedCover = cover;
+    }
+    
+    private void showCover() {
+        CoverLoader.getInstance(this).load(mCoverImageView, mCover,
+                getResources().getDimensionPixelSize(R.dimen.cover_editor_width),
+                getResources().getDimensionPixelSize(R.dimen.cover_editor_height));
     }
     
     @Override
-    public void onLoaderReset(Loader<Cursor> loader) {
-        // If the loader is invalidated, clear out all the data from the input fields.
-        mTitleEditText.setText("");
-        mPriceEditText.setText("");
-        mQuantityEditText.setText("");
-        mSupplierNameEditText.setText("");
-        mSupplierPhoneEditText.setText("");
+    protected void onActivityResult(int requestCode, int resultCode, Intent data) {
+        super.onActivityResult(requestCode, resultCode, data);
+        
+        if (requestCode != REQUEST_PICK_COVER || resultCode != RESULT_OK
+                || data == null || data.getData() == null) {
+            return;
+        }
+        
+        // Decoding and downscaling a photo takes a while, so it runs in the background
+        final Uri imageUri = data.getData();
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                String cover = null;
+                try {
+                    cover = CoverStore.importCover(EditorActivity.this, imageUri);
+                } catch (IOException e) {
+                    Log.e(LOG_TAG, "Cannot import cover " + imageUri, e);
+                }
+                
+                final String importedCover = cover;
+                runOnUiThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (importedCover == null) {
+                            Toast.makeText(EditorActivity.this, R.string.editor_cover_failed,
+                                    Toast.LENGTH_SHORT).show();
+                            return;
+                        }
+                        
+                        mCover = importedCover;
+                        showCover();
+                    }
+                });
+            }
+        }, "CoverImport").start();
+    }
+    
+    /**
+     * Read the values of all fields from the current row of the cursor.
+     */
+    private static String[] readFields(Cursor cursor) {
+        String[] fields = new String[FIELD_COLUMNS.length];
+        for (int i = 0; i < FIELD_COLUMNS.length; i++) {
+            String value = cursor.getString(cursor.getColumnIndex(FIELD_COLUMNS[i]));
+            fields[i] = value == null ? "" : value;
+        }
+        return fields;
+    }
+    
+    /**
+     * Bring the fields the user has not edited up to date with the given values.
+     * A quantity edited by the user is shifted by the change made elsewhere.
+     *
+     * @return false if a field was changed both by the user and elsewhere
+     */
+    private boolean rebaseFields(String[] fields) {
+        boolean conflict = false;
+        
+        for (int i = 0; i < FIELD_COLUMNS.length; i++) {
+            if (fields[i].equals(mLoadedFields[i])) {
+                continue;
+            }
+            
+            if (!isFieldChanged(i)) {
+                mFieldEditTexts[i].setText(fields[i]);
+            } else if (i == QUANTITY_FIELD) {
+                int shift = Integer.parseInt(fields[i]) - Integer.parseInt(mLoadedFields[i]);
+                mFieldEditTexts[i].setText(String.valueOf(Integer.parseInt(getFieldText(i)) + shift));
+            } else if (!getFieldText(i).equals(fields[i])) {
+                conflict = true;
+            }
+        }
+        
+        return !conflict;
+    }
+    
+    /**
+     * Show a dialog that tells the user the book has been changed since it was opened, and
+     * let them either keep their changes or reload the current values.
+     */
+    private void showConflictDialog() {
+        AlertDialog.Builder builder = new AlertDialog.Builder(this);
+        builder.setMessage(R.string.conflict_dialog_msg);
+        builder.setPositiveButton(R.string.overwrite, new DialogInterface.OnClickListener() {
+            public void onClick(DialogInterface dialog, int id) {
+                // Take the current version as the base of the user's changes and save again
+                Cursor cursor = mBookData.getValue();
+                if (cursor != null && cursor.moveToFirst()) {
+                    String[] fields = readFields(cursor);
+                    rebaseFields(fields);
+                    
+                    mLoadedFields = fields;
+                    mLoadedVersion = cursor.getLong(
+                            cursor.getColumnIndex(BookEntry.COLUMN_BOOK_VERSION));
+                    rebaseCover(cursor.getString(
+                            cursor.getColumnIndex(BookEntry.COLUMN_BOOK_COVER)));
+                }
+                
+                if (saveBook()) {
+                    finish();
+                }
+            }
+        });
+        builder.setNegativeButton(R.string.reload, new DialogInterface.OnClickListener() {
+            public void onClick(DialogInterface dialog, int id) {
+                // Drop the user's changes and show the current values
+                mLoadedFields = null;
+                mCover = mLoadedCover;
+                onChanged(mBookData.getValue());
+            }
+        });
+        
+        // Create and show the AlertDialog
+        AlertDialog alertDialog = builder.create();
+        alertDialog.show();
+    }
+    
+    /**
+     * Save the book and leave the editor, unless books with a similar title exist. Those are
+     * looked up in the background and listed in a dialog that lets the user either save the
+     * book anyway or keep editing.
+     */
+    private void checkTitleAndSave() {
+        if (mCheckingTitle) {
+            return;
+        }
+        
+        final String title = getFieldText(TITLE_FIELD);
+        if (mDuplicateTitleConfirmed || TextUtils.isEmpty(title)
+                || (mCurrentBookUri != null && !isFieldChanged(TITLE_FIELD))) {
+            // If the book successfully saved to database exit activity
+            if (saveBook()) {
+                finish();
+            }
+            return;
+        }
+        
+        final long currentId = mCurrentBookUri == null ? -1 : ContentUris.parseId(mCurrentBookUri);
+        mCheckingTitle = true;
+        BookRepository.getInstance(this).run(new BookRepository.Task<String>() {
+            @Override
+            public String run(ContentResolver contentResolver) {
+                Cursor cursor = contentResolver.query(BookEntry.buildSimilarUri(title, currentId),
+                        new String[]{BookEntry.COLUMN_BOOK_TITLE}, null, null, null);
+                if (cursor == null) {
+                    return null;
+                }
+                
+                StringBuilder titles = new StringBuilder();
+                try {
+                    while (cursor.moveToNext()) {
+                        titles.append("\n").append(cursor.getString(0));
+                    }
+                } finally {
+                    cursor.close();
+                }
+                return titles.toString();
+            }
+        }, new BookRepository.Callback<String>() {
+            @Override
+            public void onResult(String titles) {
+                mCheckingTitle = false;
+                if (isFinishing()) {
+                    return;
+                }
+                
+                if (TextUtils.isEmpty(titles)) {
+                    if (saveBook()) {
+                        finish();
+                    }
+                    return;
+                }
+                showSimilarTitlesDialog(titles);
+            }
+        });
+    }
+    
+    /**
+     * Show a dialog listing the books whose title is similar to the new or changed title,
+     * which let the user either save it anyway or keep editing.
+     *
+     * @param titles the similar titles, each on a line of its own
+     */
+    private void showSimilarTitlesDialog(String titles) {
+        AlertDialog.Builder builder = new AlertDialog.Builder(this);
+        builder.setMessage(getString(R.string.duplicate_title_dialog_msg) + titles);
+        builder.setPositiveButton(R.string.save_anyway, new DialogInterface.OnClickListener() {
+            public void onClick(DialogInterface dialog, int id) {
+                mDuplicateTitleConfirmed = true;
+                if (saveBook()) {
+                    finish();
+                }
+            }
+        });
+        builder.setNegativeButton(R.string.keep_editing, new DialogInterface.OnClickListener() {
+            public void onClick(DialogInterface dialog, int id) {
+                if (dialog != null) {
+                    dialog.dismiss();
+                }
+            }
+        });
+        
+        // Create and show the AlertDialog
+        AlertDialog alertDialog = builder.create();
+        alertDialog.show();
     }
     
     /**
@@ -0,0 +1,108 @@
+package ru.kazakova_net.bookstore.data;
+
+import android.content.ContentResolver;
+import android.os.Bundle;
+
+import static ru.kazakova_net.bookstore.data.BookContract.BookEntry;
+import static ru.kazakova_net.bookstore.data.BookContract.DICTIONARY_SUFFIX;
+import static ru.kazakova_net.bookstore.data.BookContract.EXTRA_AFTER_ID;
+import static ru.kazakova_net.bookstore.data.BookContract.EXTRA_COLUMNS;
+import static ru.kazakova_net.bookstore.data.BookContract.EXTRA_LAST_CHUNK;
+import static ru.kazakova_net.bookstore.data.BookContract.EXTRA_ROW_COUNT;
+import static ru.kazakova_net.bookstore.data.BookContract.METHOD_READ_COLUMNS;
+
+/**
+ * One chunk of columns of the books read with {@link BookContract#METHOD_READ_COLUMNS}.
+ * The whole catalog is read chunk by chunk:
+ * <pre>
+ * long afterId = 0;
+ * BookColumns chunk;
+ * do {
+ *     chunk = BookColumns.read(contentResolver, columns, afterId);
+ *     ...
+ *     afterId = chunk.getLastId();
+ * } while (!chunk.isLast());
+ * </pre>
+ */
+public final class BookColumns {
+    
+    private final Bundle mChunk;
+    private final int mSize;
+    private final long[] mIds;
+    
+    private BookColumns(Bundle chunk) {
+        mChunk = chunk;
+        mSize = chunk.getInt(EXTRA_ROW_COUNT);
+        mIds = chunk.getLongArray(BookEntry._ID);
+    }
+    
+    /**
+     * Read the chunk of books following the given ID.
+     *
+     * @param columns integer or text columns of {@link BookEntry}
+     * @param afterId 0 for the first chunk, then {@link #getLastId()} of the previous one
+     */
+    public static BookColumns read(ContentResolver contentResolver, String[] columns, long afterId) {
+        Bundle extras = new Bundle();
+        extras.putStringArray(EXTRA_COLUMNS, columns);
+        extras.putLong(EXTRA_AFTER_ID, afterId);
+        Bundle chunk = contentResolver.call(BookEntry.CONTENT_URI, METHOD_READ_COLUMNS, null, extras);
+        if (chunk == null) {
+            throw new IllegalStateException("Cannot read the columns of the books");
+        }
+        return new BookColumns(chunk);
+    }
+    
+    public int size() {
+        return mSize;
+    }
+    
+    /**
+     * @return true if no books follow this chunk
+     */
+    public boolean isLast() {
+        return mChunk.getBoolean(EXTRA_LAST_CHUNK);
+    }
+    
+    /**
+     * @return the ID to read the next chunk after
+     */
+    public long getLastId() {
+        if (mSize == 0) {
+            throw new IllegalStateException("The chunk is empty");
+        }
+        return mIds[mSize - 1];
+    }
+    
+    public long[] getIds() {
+        return mIds;
+    }
+    
+    /**
+     * @return the values of an integer column, 0 for null
+     */
+    public int[] getInts(String column) {
+        return requireArray(mChunk.getIntArray(column), column);
+    }
+    
+    /**
+     * @return the dictionary codes of a text column, -1 for null
+     */
+    public int[] getCodes(String column) {
+        return requireArray(mChunk.getIntArray(column), column);
+    }
+    
+    /**
+     * @return the distinct values of a text column, indexed by {@link #getCodes(String)}
+     */
+    public String[] getDictionary(String column) {
+        return requireArray(mChunk.getStringArray(column + DICTIONARY_SUFFIX), column);
+    }
+    
+    private static <T> T requireArray(T array, String column) {
+        if (array == null) {
+            throw new IllegalArgumentException("Column " + column + " was not read");
+        }
+        return array;
+    }
+}
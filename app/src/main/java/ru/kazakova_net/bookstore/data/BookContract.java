@@ -1,9 +1,13 @@
 package ru.kazakova_net.bookstore.data;
 
 import android.content.ContentResolver;
+import android.content.ContentUris;
 import android.net.Uri;
 import android.provider.BaseColumns;
 
+import java.util.ArrayList;
+import java.util.List;
+
 /**
  * API Contract for the BookStore app.
  */
@@ -25,11 +29,298 @@ public final class BookContract {
      */
     public static final Uri BASE_CONTENT_URI = Uri.parse("content://" + CONTENT_AUTHORITY);
     
+    /**
+     * {@link android.content.ContentProvider#call} method that writes a new backup of the
+     * database. The path of the backup is returned under {@link #EXTRA_BACKUP_PATH}.
+     */
+    public static final String METHOD_BACKUP = "backup";
+    
+    /**
+     * {@link android.content.ContentProvider#call} method that replaces the database with the
+     * backup whose path is passed as the argument, or with the latest backup if it is null.
+     */
+    public static final String METHOD_RESTORE = "restore";
+    
+    /**
+     * Key of the backup path in the result of {@link #METHOD_BACKUP} and {@link #METHOD_RESTORE}
+     */
+    public static final String EXTRA_BACKUP_PATH = "backup_path";
+    
+    /**
+     * {@link android.content.ContentProvider#call} method that returns the counters of the
+     * query result cache of the provider under the EXTRA_CACHE_* keys.
+     */
+    public static final String METHOD_QUERY_CACHE_STATS = "query_cache_stats";
+    
+    /**
+     * Keys of the result of {@link #METHOD_QUERY_CACHE_STATS}: queries served from the cache,
+     * queries that ran, results dropped to stay within the bounds, and results held
+     */
+    public static final String EXTRA_CACHE_HITS = "cache_hits";
+    public static final String EXTRA_CACHE_MISSES = "cache_misses";
+    public static final String EXTRA_CACHE_EVICTIONS = "cache_evictions";
+    public static final String EXTRA_CACHE_SIZE = "cache_size";
+    
+    /**
+     * {@link android.content.ContentProvider#call} method that applies the accepted
+     * discrepancies of the stocktake in one transaction and ends the session. The number of
+     * books adjusted is returned under {@link #EXTRA_ADJUSTED_BOOKS}.
+     */
+    public static final String METHOD_APPLY_STOCKTAKE = "apply_stocktake";
+    
+    /**
+     * {@link android.content.ContentProvider#call} method that adds scanned counts to the
+     * stocktake in one transaction. The ISBNs are given under {@link #EXTRA_ISBNS} and the
+     * copies of each under {@link #EXTRA_QUANTITIES}. The counts of ISBNs no book has are
+     * skipped, and those ISBNs are returned under {@link #EXTRA_UNKNOWN_ISBNS}.
+     */
+    public static final String METHOD_ADD_COUNTS = "add_counts";
+    
+    /**
+     * Key of the number of books adjusted in the result of {@link #METHOD_APPLY_STOCKTAKE}
+     */
+    public static final String EXTRA_ADJUSTED_BOOKS = "adjusted_books";
+    
+    /**
+     * {@link android.content.ContentProvider#call} method that drops the oldest history rows,
+     * those older than {@link #EXTRA_RETENTION_MILLIS} and those beyond the newest
+     * {@link #EXTRA_MAX_HISTORY_ROWS}, in small transactions. Both limits are optional in the
+     * extras. The number of rows dropped is returned under {@link #EXTRA_PRUNED_ROWS}.
+     */
+    public static final String METHOD_PRUNE_HISTORY = "prune_history";
+    
+    /**
+     * Keys of the arguments of {@link #METHOD_PRUNE_HISTORY}
+     */
+    public static final String EXTRA_RETENTION_MILLIS = "retention_millis";
+    public static final String EXTRA_MAX_HISTORY_ROWS = "max_history_rows";
+    
+    /**
+     * Key of the number of rows dropped in the result of {@link #METHOD_PRUNE_HISTORY}
+     */
+    public static final String EXTRA_PRUNED_ROWS = "pruned_rows";
+    
+    /**
+     * {@link android.content.ContentProvider#call} method that reads columns of the books as
+     * arrays, for consumers of the whole catalog. See {@link BookColumns}, which reads and
+     * decodes the chunks.
+     * <p>
+     * The books after the ID in {@link #EXTRA_AFTER_ID} are returned in ID order, as many as
+     * fit in one chunk, with the columns named in {@link #EXTRA_COLUMNS}. The IDs are always
+     * returned as a {@code long[]} under {@link BookEntry#_ID}. Integer columns are returned as
+     * an {@code int[]} under their name. Text columns are dictionary-encoded: an {@code int[]}
+     * of codes under their name, -1 for null, indexes the {@code String[]} under their name
+     * followed by {@link #DICTIONARY_SUFFIX}. {@link #EXTRA_LAST_CHUNK} tells whether more
+     * books follow.
+     */
+    public static final String METHOD_READ_COLUMNS = "read_columns";
+    
+    /**
+     * Keys of the arguments of {@link #METHOD_READ_COLUMNS}
+     */
+    public static final String EXTRA_COLUMNS = "columns";
+    public static final String EXTRA_AFTER_ID = "after_id";
+    
+    /**
+     * Keys of the result of {@link #METHOD_READ_COLUMNS}
+     */
+    public static final String EXTRA_ROW_COUNT = "row_count";
+    public static final String EXTRA_LAST_CHUNK = "last_chunk";
+    public static final String DICTIONARY_SUFFIX = "_dictionary";
+    
+    /**
+     * {@link android.content.ContentProvider#call} method that changes the price of many books
+     * in one statement: by {@link #EXTRA_PERCENT} percent, then by {@link #EXTRA_AMOUNT},
+     * rounded to a multiple of {@link #EXTRA_ROUND_TO}. At least one change is required, and
+     * prices never go below zero. The books are those of the {@link BookFilter} URI passed as
+     * the argument, or all books if it is null.
+     * <p>
+     * With {@link #EXTRA_DRY_RUN} nothing is written. Either way the number of books whose price
+     * changes is returned under {@link #EXTRA_REPRICED_BOOKS}, and the first of them in ID order
+     * under {@link #EXTRA_SAMPLE_IDS}, {@link #EXTRA_SAMPLE_TITLES},
+     * {@link #EXTRA_SAMPLE_OLD_PRICES} and {@link #EXTRA_SAMPLE_NEW_PRICES}.
+     */
+    public static final String METHOD_REPRICE = "reprice";
+    
+    /**
+     * Keys of the arguments of {@link #METHOD_REPRICE}
+     */
+    public static final String EXTRA_PERCENT = "percent";
+    public static final String EXTRA_AMOUNT = "amount";
+    public static final String EXTRA_ROUND_TO = "round_to";
+    public static final String EXTRA_DRY_RUN = "dry_run";
+    
+    /**
+     * Keys of the result of {@link #METHOD_REPRICE}
+     */
+    public static final String EXTRA_REPRICED_BOOKS = "repriced_books";
+    public static final String EXTRA_SAMPLE_IDS = "sample_ids";
+    public static final String EXTRA_SAMPLE_TITLES = "sample_titles";
+    public static final String EXTRA_SAMPLE_OLD_PRICES = "sample_old_prices";
+    public static final String EXTRA_SAMPLE_NEW_PRICES = "sample_new_prices";
+    
+    /**
+     * {@link android.content.ContentProvider#call} method that receives a delivery in one
+     * transaction. The argument is the ID of the shipment, which is received only once: a retry
+     * with the same ID changes nothing and returns {@link #EXTRA_ALREADY_RECEIVED}. See
+     * {@link ReceivingSession}, which collects the lines.
+     * <p>
+     * The lines are parallel arrays: the ISBNs under {@link #EXTRA_ISBNS} and the copies received
+     * under {@link #EXTRA_QUANTITIES}. The copies are added to the book with the ISBN. For a new
+     * title {@link #EXTRA_TITLES} and {@link #EXTRA_PRICES} hold its title and price, and the
+     * book is created with the {@link #EXTRA_SUPPLIER} and {@link #EXTRA_SUPPLIER_PHONE} of the
+     * shipment; a null title marks a book that must exist. If any such book is missing nothing
+     * is received, and the ISBNs are returned under {@link #EXTRA_UNKNOWN_ISBNS}.
+     */
+    public static final String METHOD_RECEIVE_SHIPMENT = "receive_shipment";
+    
+    /**
+     * Keys of the arguments of {@link #METHOD_RECEIVE_SHIPMENT}
+     */
+    public static final String EXTRA_ISBNS = "isbns";
+    public static final String EXTRA_QUANTITIES = "quantities";
+    public static final String EXTRA_TITLES = "titles";
+    public static final String EXTRA_PRICES = "prices";
+    public static final String EXTRA_SUPPLIER = "supplier";
+    public static final String EXTRA_SUPPLIER_PHONE = "supplier_phone";
+    
+    /**
+     * Keys of the result of {@link #METHOD_RECEIVE_SHIPMENT}: copies added, books created,
+     * whether the shipment had been received before, and the ISBNs of missing books
+     */
+    public static final String EXTRA_RECEIVED_COPIES = "received_copies";
+    public static final String EXTRA_NEW_BOOKS = "new_books";
+    public static final String EXTRA_ALREADY_RECEIVED = "already_received";
+    public static final String EXTRA_UNKNOWN_ISBNS = "unknown_isbns";
+    
+    /**
+     * {@link android.content.ContentProvider#call} method that moves copies between two
+     * locations in one transaction, see {@link StockEntry}. The books are given under
+     * {@link #EXTRA_BOOK_IDS} and the copies of each under {@link #EXTRA_QUANTITIES}; the
+     * locations under {@link #EXTRA_FROM_LOCATION} and {@link #EXTRA_TO_LOCATION}. If the
+     * source lacks copies of any book nothing moves, and the books are returned under
+     * {@link #EXTRA_SHORT_BOOK_IDS}. The quantity of the books does not change. Both
+     * locations must exist.
+     */
+    public static final String METHOD_TRANSFER_STOCK = "transfer_stock";
+    
+    /**
+     * Keys of the arguments of {@link #METHOD_TRANSFER_STOCK}
+     */
+    public static final String EXTRA_BOOK_IDS = "book_ids";
+    public static final String EXTRA_FROM_LOCATION = "from_location";
+    public static final String EXTRA_TO_LOCATION = "to_location";
+    
+    /**
+     * Keys of the result of {@link #METHOD_TRANSFER_STOCK}: copies moved, and the books
+     * the source location did not have enough of
+     */
+    public static final String EXTRA_TRANSFERRED_COPIES = "transferred_copies";
+    public static final String EXTRA_SHORT_BOOK_IDS = "short_book_ids";
+    
+    /**
+     * {@link android.content.ContentProvider#call} method that continues the integrity check of
+     * the database for at most {@link #EXTRA_MAX_MILLIS}, and repairs what it finds. A call
+     * returns the totals of the check so far; {@link #EXTRA_CHECK_COMPLETE} tells whether it
+     * ended, and the next call starts a new one. Damaged indexes are rebuilt and returned under
+     * {@link #EXTRA_REINDEXED}; books whose quantity or title trigrams had to be rewritten are
+     * counted under {@link #EXTRA_REPAIRED_BOOKS}; books sold below zero are only reported
+     * under {@link #EXTRA_NEGATIVE_BOOK_IDS}. A database damaged beyond its indexes is replaced
+     * with the latest backup that passes the check, returned under {@link #EXTRA_BACKUP_PATH}.
+     */
+    public static final String METHOD_CHECK_INTEGRITY = "check_integrity";
+    
+    /**
+     * Key of the time budget of one call of {@link #METHOD_CHECK_INTEGRITY}, optional
+     */
+    public static final String EXTRA_MAX_MILLIS = "max_millis";
+    
+    /**
+     * Keys of the result of {@link #METHOD_CHECK_INTEGRITY}
+     */
+    public static final String EXTRA_CHECK_COMPLETE = "check_complete";
+    public static final String EXTRA_REINDEXED = "reindexed";
+    public static final String EXTRA_REPAIRED_BOOKS = "repaired_books";
+    public static final String EXTRA_NEGATIVE_BOOK_IDS = "negative_book_ids";
+    
+    /**
+     * {@link android.content.ContentProvider#call} method that compacts the periods of the
+     * books that closed before the previous month into monthly snapshots, see
+     * {@link BookEntry#PARAM_AS_OF}. Before the last snapshot the books can only be read as of
+     * the start of a month, which is also the end of the month before it; any other time
+     * throws an {@link IllegalArgumentException}. The number of snapshots taken is returned under
+     * {@link #EXTRA_SNAPSHOT_MONTHS} and the number of periods dropped under
+     * {@link #EXTRA_COMPACTED_PERIODS}.
+     */
+    public static final String METHOD_COMPACT_PERIODS = "compact_periods";
+    
+    /**
+     * Keys of the result of {@link #METHOD_COMPACT_PERIODS}
+     */
+    public static final String EXTRA_SNAPSHOT_MONTHS = "snapshot_months";
+    public static final String EXTRA_COMPACTED_PERIODS = "compacted_periods";
+    
     /**
      * Possible path (appended to base content URI for possible URI's)
      */
     public static final String PATH_BOOKS = "books";
     
+    /**
+     * Path appended to a single book URI to apply a relative change to its quantity
+     */
+    public static final String PATH_QUANTITY = "quantity";
+    
+    /**
+     * Path appended to a single book URI to read or merge its per-device quantity counters
+     */
+    public static final String PATH_COUNTERS = "counters";
+    
+    /**
+     * Path appended to base content URI to list the received shipments
+     */
+    public static final String PATH_SHIPMENTS = "shipments";
+    
+    /**
+     * Path appended to base content URI to list the stores and warehouses
+     */
+    public static final String PATH_LOCATIONS = "locations";
+    
+    /**
+     * Path appended to a location URI for the books it holds, and to a single book URI for
+     * the locations holding the book
+     */
+    public static final String PATH_STOCK = "stock";
+    
+    /**
+     * Path appended to the books URI to look up a book by its ISBN
+     */
+    public static final String PATH_ISBN = "isbn";
+    
+    /**
+     * Path appended to the books URI to find the books with a title similar to a given one
+     */
+    public static final String PATH_SIMILAR = "similar";
+    
+    /**
+     * Path appended to the books URI to list the pairs of books with similar titles
+     */
+    public static final String PATH_DUPLICATES = "duplicates";
+    
+    /**
+     * Path appended to a book URI to list its changes
+     */
+    public static final String PATH_HISTORY = "history";
+    
+    /**
+     * Path of the quantities counted in the current stocktake
+     */
+    public static final String PATH_STOCKTAKE = "stocktake";
+    
+    /**
+     * Path appended to the stocktake URI to list the counted books whose quantity differs
+     */
+    public static final String PATH_DISCREPANCIES = "discrepancies";
+    
     /**
      * Inner class that defines constant values for the books database table.
      * Each entry in the table represents a single book.
@@ -97,5 +388,732 @@ public final class BookContract {
          * Type: TEXT
          */
         public final static String COLUMN_BOOK_SUPPLIER_PHONE = "supplier_phone_number";
+        
+        /**
+         * ISBN (or any other barcode) of the book, unique when present.
+         * Only digits and the 'X' check character are stored.
+         * <p>
+         * Type: TEXT
+         */
+        public final static String COLUMN_BOOK_ISBN = "isbn";
+        
+        /**
+         * Version of the book, increased by every change of its title, ISBN, price or
+         * supplier. Passing the version a change is based on to an update makes the update
+         * apply only if the book has not been changed since; otherwise no row is updated.
+         * <p>
+         * Type: INTEGER
+         */
+        public final static String COLUMN_BOOK_VERSION = "version";
+        
+        /**
+         * File name of the cover image of the book, null when the book has no cover.
+         * The image itself is stored in the app files, see {@link CoverStore}.
+         * <p>
+         * Type: TEXT
+         */
+        public final static String COLUMN_BOOK_COVER = "cover";
+        
+        /**
+         * Similarity of two titles from 0 to 1, returned by {@link #buildSimilarUri(String, long)}
+         * and {@link #CONTENT_DUPLICATES_URI}. Not stored in the table.
+         * <p>
+         * Type: REAL
+         */
+        public final static String COLUMN_SIMILARITY = "similarity";
+        
+        /**
+         * ID and title of the second book of a pair in {@link #CONTENT_DUPLICATES_URI}.
+         * Not stored in the table.
+         */
+        public final static String COLUMN_DUPLICATE_ID = "duplicate_id";
+        public final static String COLUMN_DUPLICATE_TITLE = "duplicate_title";
+        
+        /**
+         * Lists every pair of books whose titles are similar enough to be duplicates, the most
+         * similar first, with the columns {@link #_ID}, {@link #COLUMN_BOOK_TITLE},
+         * {@link #COLUMN_DUPLICATE_ID}, {@link #COLUMN_DUPLICATE_TITLE} and
+         * {@link #COLUMN_SIMILARITY}. The first book of a pair is the older one.
+         */
+        public static final Uri CONTENT_DUPLICATES_URI = Uri.withAppendedPath(CONTENT_URI, PATH_DUPLICATES);
+        
+        /**
+         * Query parameters of {@link #buildSimilarUri(String, long)}
+         */
+        public static final String PARAM_TITLE = "title";
+        public static final String PARAM_EXCLUDE = "exclude";
+        
+        /**
+         * Query parameter of the books and of a single book that reads them as they were at a
+         * time in milliseconds since the epoch, see {@link #buildAsOfUri(Uri, long)}. Only the id
+         * and the columns of the history are kept, not the version: projecting any other column
+         * throws an {@link IllegalArgumentException}. Before the last snapshot of
+         * {@link #METHOD_COMPACT_PERIODS} only the start of a month can be read.
+         */
+        public static final String PARAM_AS_OF = "as_of";
+        
+        /**
+         * Key of the relative quantity change passed to {@link #buildQuantityUri(long)}.
+         * Negative for sales, positive for receipts.
+         * <p>
+         * Type: INTEGER
+         */
+        public final static String QUANTITY_DELTA = "delta";
+        
+        /**
+         * Returns the URI used to change the quantity of the given book by a delta
+         * instead of overwriting it with an absolute value.
+         */
+        public static Uri buildQuantityUri(long id) {
+            return CONTENT_URI.buildUpon()
+                    .appendPath(String.valueOf(id))
+                    .appendPath(PATH_QUANTITY)
+                    .build();
+        }
+        
+        /**
+         * Returns the URI of the book with the given ISBN. Updating it with a
+         * {@link #QUANTITY_DELTA} sells or receives the book without knowing its ID; a sale of
+         * more copies than there are updates nothing.
+         */
+        public static Uri buildIsbnUri(String isbn) {
+            return CONTENT_URI.buildUpon()
+                    .appendPath(PATH_ISBN)
+                    .appendPath(normalizeIsbn(isbn))
+                    .build();
+        }
+        
+        /**
+         * Strips hyphens, spaces and other separators from a scanned or typed ISBN.
+         *
+         * @return normalized ISBN, or null if nothing is left
+         */
+        public static String normalizeIsbn(String isbn) {
+            if (isbn == null) {
+                return null;
+            }
+            
+            StringBuilder builder = new StringBuilder(isbn.length());
+            for (int i = 0; i < isbn.length(); i++) {
+                char c = isbn.charAt(i);
+                if (Character.isDigit(c)) {
+                    builder.append(c);
+                } else if (c == 'x' || c == 'X') {
+                    builder.append('X');
+                }
+            }
+            
+            return builder.length() == 0 ? null : builder.toString();
+        }
+        
+        /**
+         * Returns the URI listing the books whose title is similar enough to the given one to be
+         * a duplicate, the most similar first, with the columns {@link #_ID},
+         * {@link #COLUMN_BOOK_TITLE} and {@link #COLUMN_SIMILARITY}.
+         *
+         * @param excludeId ID of the book being edited, left out of the result; -1 for none
+         */
+        public static Uri buildSimilarUri(String title, long excludeId) {
+            return CONTENT_URI.buildUpon()
+                    .appendPath(PATH_SIMILAR)
+                    .appendQueryParameter(PARAM_TITLE, title)
+                    .appendQueryParameter(PARAM_EXCLUDE, String.valueOf(excludeId))
+                    .build();
+        }
+        
+        /**
+         * Returns the given URI of the books, of a {@link BookFilter} or of a single book, read
+         * as of the given time in milliseconds since the epoch.
+         */
+        public static Uri buildAsOfUri(Uri uri, long time) {
+            return uri.buildUpon()
+                    .appendQueryParameter(PARAM_AS_OF, String.valueOf(time))
+                    .build();
+        }
+        
+        /**
+         * Returns the URI of the per-device quantity counters of the given book.
+         */
+        public static Uri buildCountersUri(long id) {
+            return CONTENT_URI.buildUpon()
+                    .appendPath(String.valueOf(id))
+                    .appendPath(PATH_COUNTERS)
+                    .build();
+        }
+        
+        /**
+         * Returns the URI of the changes of the given book, the newest first, see
+         * {@link HistoryEntry}. The history outlives the book.
+         */
+        public static Uri buildHistoryUri(long id) {
+            return CONTENT_URI.buildUpon()
+                    .appendPath(String.valueOf(id))
+                    .appendPath(PATH_HISTORY)
+                    .build();
+        }
+        
+        /**
+         * Returns the URI of the locations holding copies of the given book, the one with the
+         * most copies first, with the columns {@link StockEntry#COLUMN_LOCATION_ID},
+         * {@link LocationEntry#COLUMN_LOCATION_NAME} and {@link StockEntry#COLUMN_QUANTITY}.
+         */
+        public static Uri buildStockUri(long id) {
+            return CONTENT_URI.buildUpon()
+                    .appendPath(String.valueOf(id))
+                    .appendPath(PATH_STOCK)
+                    .build();
+        }
+    }
+    
+    /**
+     * Inner class that defines constant values for the audit trail of the books.
+     * <p>
+     * Triggers add a row whenever a book is inserted, deleted, or has any column other than
+     * its version changed, in the same transaction as the change. A row holds only the changed
+     * columns, one per line, as the column name, '=', the old value, '>' and the new value,
+     * both written as SQL literals: {@code price=100>120}. An insert has no old values and a
+     * delete no new ones. Old rows are dropped with {@link #METHOD_PRUNE_HISTORY}.
+     */
+    public static final class HistoryEntry {
+        
+        /**
+         * The MIME type of {@link BookEntry#buildHistoryUri(long)}.
+         */
+        public static final String CONTENT_LIST_TYPE =
+                ContentResolver.CURSOR_DIR_BASE_TYPE + "/" + CONTENT_AUTHORITY + "/" + PATH_HISTORY;
+        
+        /**
+         * Name of database table for the changes of the books
+         */
+        public final static String TABLE_NAME = "book_history";
+        
+        /**
+         * Number of the change, increasing and never reused, even after pruning.
+         * <p>
+         * Type: INTEGER
+         */
+        public final static String COLUMN_SEQUENCE = "seq";
+        
+        /**
+         * ID of the changed book.
+         * <p>
+         * Type: INTEGER
+         */
+        public final static String COLUMN_BOOK_ID = "book_id";
+        
+        /**
+         * Time of the change in milliseconds since the epoch.
+         * <p>
+         * Type: INTEGER
+         */
+        public final static String COLUMN_CHANGED_AT = "changed_at";
+        
+        /**
+         * One of {@link #OPERATION_INSERT}, {@link #OPERATION_UPDATE} or {@link #OPERATION_DELETE}.
+         * <p>
+         * Type: TEXT
+         */
+        public final static String COLUMN_OPERATION = "operation";
+        
+        /**
+         * The changed columns with their old and new values.
+         * <p>
+         * Type: TEXT
+         */
+        public final static String COLUMN_CHANGES = "changes";
+        
+        /**
+         * ID of the device that wrote the change, as in {@link CounterEntry#COLUMN_DEVICE_ID}.
+         * Quantity changes merged from other devices are recorded with the device that merged
+         * them; changes recorded before the device was kept have none.
+         * <p>
+         * Type: TEXT
+         */
+        public final static String COLUMN_DEVICE_ID = "device_id";
+        
+        /**
+         * Possible values of {@link #COLUMN_OPERATION}
+         */
+        public static final String OPERATION_INSERT = "I";
+        public static final String OPERATION_UPDATE = "U";
+        public static final String OPERATION_DELETE = "D";
+    }
+    
+    /**
+     * Inner class that defines constant values for the quantity counters table.
+     * The quantity of a book is kept as a PN-counter: every device owns one row per book
+     * with the total it has ever added and the total it has ever removed. Rows from other
+     * devices are merged by taking the maximum of each count, so merges can be applied
+     * in any order and any number of times. {@link BookEntry#COLUMN_BOOK_QUANTITY} holds
+     * the cached sum of all rows.
+     */
+    public static final class CounterEntry implements BaseColumns {
+        
+        /**
+         * Name of database table for quantity counters
+         */
+        public final static String TABLE_NAME = "quantity_counters";
+        
+        /**
+         * ID of the book the counter belongs to.
+         * <p>
+         * Type: INTEGER
+         */
+        public final static String COLUMN_BOOK_ID = "book_id";
+        
+        /**
+         * Identifier of the device that owns the counter.
+         * <p>
+         * Type: TEXT
+         */
+        public final static String COLUMN_DEVICE_ID = "device_id";
+        
+        /**
+         * Total number of books ever added on the device.
+         * <p>
+         * Type: INTEGER
+         */
+        public final static String COLUMN_INCREMENTS = "increments";
+        
+        /**
+         * Total number of books ever removed on the device.
+         * <p>
+         * Type: INTEGER
+         */
+        public final static String COLUMN_DECREMENTS = "decrements";
+    }
+    
+    /**
+     * Inner class that defines constant values for the stocktake staging table.
+     * <p>
+     * A stocktake collects the counted quantity of every book found on the shelves, clustered
+     * by book ID like the books table. The counts are reconciled against the books in one
+     * ordered pass over both tables through {@link #CONTENT_DISCREPANCIES_URI}, and the
+     * accepted discrepancies are applied with {@link #METHOD_APPLY_STOCKTAKE}.
+     */
+    public static final class StocktakeEntry {
+        
+        /**
+         * Inserting into this URI adds to the counted quantity of a book, given by
+         * {@link #COLUMN_BOOK_ID} or by {@link BookEntry#COLUMN_BOOK_ISBN}. Deleting it
+         * discards the stocktake.
+         */
+        public static final Uri CONTENT_URI = Uri.withAppendedPath(BASE_CONTENT_URI, PATH_STOCKTAKE);
+        
+        /**
+         * Lists the counted books whose quantity differs from the count, in ID order, with
+         * the columns {@link BookEntry#_ID}, {@link BookEntry#COLUMN_BOOK_TITLE},
+         * {@link BookEntry#COLUMN_BOOK_QUANTITY}, {@link #COLUMN_COUNTED} and
+         * {@link #COLUMN_ACCEPTED}.
+         */
+        public static final Uri CONTENT_DISCREPANCIES_URI =
+                Uri.withAppendedPath(CONTENT_URI, PATH_DISCREPANCIES);
+        
+        /**
+         * The MIME type of the {@link #CONTENT_URI} for a list of counts.
+         */
+        public static final String CONTENT_LIST_TYPE =
+                ContentResolver.CURSOR_DIR_BASE_TYPE + "/" + CONTENT_AUTHORITY + "/" + PATH_STOCKTAKE;
+        
+        /**
+         * The MIME type of the {@link #CONTENT_URI} for the count of a single book.
+         */
+        public static final String CONTENT_ITEM_TYPE =
+                ContentResolver.CURSOR_ITEM_BASE_TYPE + "/" + CONTENT_AUTHORITY + "/" + PATH_STOCKTAKE;
+        
+        /**
+         * Name of database table for counted quantities
+         */
+        public final static String TABLE_NAME = "stocktake";
+        
+        /**
+         * ID of the counted book.
+         * <p>
+         * Type: INTEGER
+         */
+        public final static String COLUMN_BOOK_ID = "book_id";
+        
+        /**
+         * Number of copies counted.
+         * <p>
+         * Type: INTEGER
+         */
+        public final static String COLUMN_COUNTED = "counted";
+        
+        /**
+         * Whether the count replaces the quantity when the stocktake is applied, 1 by default.
+         * Updating the URI of a single count with 0 rejects its discrepancy.
+         * <p>
+         * Type: INTEGER
+         */
+        public final static String COLUMN_ACCEPTED = "accepted";
+        
+        /**
+         * Returns the URI of the count of the given book.
+         */
+        public static Uri buildCountUri(long bookId) {
+            return ContentUris.withAppendedId(CONTENT_URI, bookId);
+        }
+    }
+    
+    /**
+     * Inner class that defines constant values for the received shipments table. A row is
+     * written in the transaction that receives a shipment, so its ID is never received twice.
+     */
+    public static final class ShipmentEntry {
+        
+        /**
+         * Lists the received shipments. Shipments are added with {@link #METHOD_RECEIVE_SHIPMENT}.
+         */
+        public static final Uri CONTENT_URI = Uri.withAppendedPath(BASE_CONTENT_URI, PATH_SHIPMENTS);
+        
+        /**
+         * The MIME type of the {@link #CONTENT_URI} for a list of shipments.
+         */
+        public static final String CONTENT_LIST_TYPE =
+                ContentResolver.CURSOR_DIR_BASE_TYPE + "/" + CONTENT_AUTHORITY + "/" + PATH_SHIPMENTS;
+        
+        /**
+         * Name of database table for received shipments
+         */
+        public final static String TABLE_NAME = "shipments";
+        
+        /**
+         * ID of the shipment, chosen by the client.
+         * <p>
+         * Type: TEXT
+         */
+        public final static String COLUMN_SHIPMENT_ID = "shipment_id";
+        
+        /**
+         * Supplier of the shipment, if given.
+         * <p>
+         * Type: TEXT
+         */
+        public final static String COLUMN_SUPPLIER = "supplier";
+        
+        /**
+         * Time of receipt in milliseconds since the epoch.
+         * <p>
+         * Type: INTEGER
+         */
+        public final static String COLUMN_RECEIVED_AT = "received_at";
+        
+        /**
+         * Number of lines, copies received and books created.
+         * <p>
+         * Type: INTEGER
+         */
+        public final static String COLUMN_LINES = "lines";
+        public final static String COLUMN_COPIES = "copies";
+        public final static String COLUMN_NEW_BOOKS = "new_books";
+    }
+    
+    /**
+     * Inner class that defines constant values for the locations table: the stores and the
+     * warehouse that hold the stock.
+     */
+    public static final class LocationEntry implements BaseColumns {
+        
+        /**
+         * Lists the locations. Inserting into it adds a location with a unique
+         * {@link #COLUMN_LOCATION_NAME}. Changes of stock are notified on this URI.
+         */
+        public static final Uri CONTENT_URI = Uri.withAppendedPath(BASE_CONTENT_URI, PATH_LOCATIONS);
+        
+        /**
+         * The MIME type of the {@link #CONTENT_URI} for a list of locations.
+         */
+        public static final String CONTENT_LIST_TYPE =
+                ContentResolver.CURSOR_DIR_BASE_TYPE + "/" + CONTENT_AUTHORITY + "/" + PATH_LOCATIONS;
+        
+        /**
+         * The MIME type of the {@link #CONTENT_URI} for a single location.
+         */
+        public static final String CONTENT_ITEM_TYPE =
+                ContentResolver.CURSOR_ITEM_BASE_TYPE + "/" + CONTENT_AUTHORITY + "/" + PATH_LOCATIONS;
+        
+        /**
+         * Name of database table for locations
+         */
+        public final static String TABLE_NAME = "locations";
+        
+        /**
+         * Unique ID number for the location (only for use in the database table).
+         * <p>
+         * Type: INTEGER
+         */
+        public final static String _ID = BaseColumns._ID;
+        
+        /**
+         * Name of the location.
+         * <p>
+         * Type: TEXT
+         */
+        public final static String COLUMN_LOCATION_NAME = "name";
+        
+        /**
+         * Returns the URI of the books held at the given location, in ID order, with the
+         * columns {@link BookEntry#_ID}, {@link BookEntry#COLUMN_BOOK_TITLE} and
+         * {@link StockEntry#COLUMN_QUANTITY}.
+         */
+        public static Uri buildStockUri(long locationId) {
+            return ContentUris.withAppendedId(CONTENT_URI, locationId).buildUpon()
+                    .appendPath(PATH_STOCK)
+                    .build();
+        }
+        
+        /**
+         * Returns the URI used to change the copies of a book at a location by the delta
+         * passed under {@link BookEntry#QUANTITY_DELTA}. The quantity of the book changes by
+         * the same delta; a sale that the location cannot cover changes nothing.
+         */
+        public static Uri buildStockUri(long locationId, long bookId) {
+            return ContentUris.withAppendedId(buildStockUri(locationId), bookId);
+        }
+    }
+    
+    /**
+     * Inner class that defines constant values for the stock table, which splits the quantity
+     * of the books between the locations.
+     * <p>
+     * The rows are clustered by location, so the stock of one location is one range of the
+     * table; an index by book answers where a title is. Copies move between locations with
+     * {@link #METHOD_TRANSFER_STOCK}.
+     * <p>
+     * The stock of the locations never adds up to more than the quantity of the book; the
+     * other copies are at no location. Copies received without a location are at none. A
+     * sale or correction without a location takes the copies at no location first, then
+     * those of the locations with the most copies.
+     */
+    public static final class StockEntry {
+        
+        /**
+         * The MIME type of the stock URIs of {@link LocationEntry} and {@link BookEntry}.
+         */
+        public static final String CONTENT_LIST_TYPE =
+                ContentResolver.CURSOR_DIR_BASE_TYPE + "/" + CONTENT_AUTHORITY + "/" + PATH_STOCK;
+        
+        /**
+         * The MIME type of the stock of a single book at a location.
+         */
+        public static final String CONTENT_ITEM_TYPE =
+                ContentResolver.CURSOR_ITEM_BASE_TYPE + "/" + CONTENT_AUTHORITY + "/" + PATH_STOCK;
+        
+        /**
+         * Name of database table for the stock of the locations
+         */
+        public final static String TABLE_NAME = "stock";
+        
+        /**
+         * ID of the location.
+         * <p>
+         * Type: INTEGER
+         */
+        public final static String COLUMN_LOCATION_ID = "location_id";
+        
+        /**
+         * ID of the book.
+         * <p>
+         * Type: INTEGER
+         */
+        public final static String COLUMN_BOOK_ID = "book_id";
+        
+        /**
+         * Number of copies at the location, never negative.
+         * <p>
+         * Type: INTEGER
+         */
+        public final static String COLUMN_QUANTITY = "quantity";
+    }
+    
+    /**
+     * Structured filter over the books list, passed to the provider as query parameters
+     * of {@link BookEntry#CONTENT_URI} instead of a raw selection.
+     * <p>
+     * The filter always turns into the same parameterized selection for the same combination
+     * of conditions, so SQLite can reuse the compiled statement, and every combination is
+     * served by one of the indexes created in {@link BookStoreDbHelper}.
+     */
+    public static final class BookFilter {
+        
+        /**
+         * Query parameters of the filter
+         */
+        public static final String PARAM_MIN_PRICE = "min_price";
+        public static final String PARAM_MAX_PRICE = "max_price";
+        public static final String PARAM_SUPPLIER = "supplier";
+        public static final String PARAM_IN_STOCK = "in_stock";
+        public static final String PARAM_QUANTITY_BELOW = "quantity_below";
+        
+        private Integer mMinPrice;
+        private Integer mMaxPrice;
+        private String mSupplier;
+        private boolean mInStock;
+        private Integer mQuantityBelow;
+        
+        /**
+         * Only books with a price in the given range, bounds included. Either bound may be null.
+         */
+        public BookFilter priceRange(Integer minPrice, Integer maxPrice) {
+            mMinPrice = minPrice;
+            mMaxPrice = maxPrice;
+            return this;
+        }
+        
+        /**
+         * Only books of the given supplier, or of any supplier if null.
+         */
+        public BookFilter supplier(String supplier) {
+            mSupplier = supplier;
+            return this;
+        }
+        
+        /**
+         * Only books that have at least one copy.
+         */
+        public BookFilter inStock(boolean inStock) {
+            mInStock = inStock;
+            return this;
+        }
+        
+        /**
+         * Only books with fewer copies than the given number, or any number if null.
+         */
+        public BookFilter quantityBelow(Integer quantity) {
+            mQuantityBelow = quantity;
+            return this;
+        }
+        
+        public Integer getMinPrice() {
+            return mMinPrice;
+        }
+        
+        public Integer getMaxPrice() {
+            return mMaxPrice;
+        }
+        
+        public String getSupplier() {
+            return mSupplier;
+        }
+        
+        public boolean isInStock() {
+            return mInStock;
+        }
+        
+        public Integer getQuantityBelow() {
+            return mQuantityBelow;
+        }
+        
+        /**
+         * Whether no condition is set.
+         */
+        public boolean isEmpty() {
+            return mMinPrice == null && mMaxPrice == null && mSupplier == null && !mInStock
+                    && mQuantityBelow == null;
+        }
+        
+        /**
+         * Returns the books URI with the conditions of the filter.
+         */
+        public Uri buildUri() {
+            Uri.Builder builder = BookEntry.CONTENT_URI.buildUpon();
+            if (mMinPrice != null) {
+                builder.appendQueryParameter(PARAM_MIN_PRICE, String.valueOf(mMinPrice));
+            }
+            if (mMaxPrice != null) {
+                builder.appendQueryParameter(PARAM_MAX_PRICE, String.valueOf(mMaxPrice));
+            }
+            if (mSupplier != null) {
+                builder.appendQueryParameter(PARAM_SUPPLIER, mSupplier);
+            }
+            if (mInStock) {
+                builder.appendQueryParameter(PARAM_IN_STOCK, "1");
+            }
+            if (mQuantityBelow != null) {
+                builder.appendQueryParameter(PARAM_QUANTITY_BELOW, String.valueOf(mQuantityBelow));
+            }
+            return builder.build();
+        }
+        
+        /**
+         * Read the filter from the query parameters of a books URI.
+         *
+         * @throws IllegalArgumentException if a number parameter is not a number
+         */
+        public static BookFilter fromUri(Uri uri) {
+            BookFilter filter = new BookFilter();
+            filter.mMinPrice = parseInteger(uri, PARAM_MIN_PRICE);
+            filter.mMaxPrice = parseInteger(uri, PARAM_MAX_PRICE);
+            filter.mSupplier = uri.getQueryParameter(PARAM_SUPPLIER);
+            filter.mInStock = "1".equals(uri.getQueryParameter(PARAM_IN_STOCK))
+                    || "true".equals(uri.getQueryParameter(PARAM_IN_STOCK));
+            filter.mQuantityBelow = parseInteger(uri, PARAM_QUANTITY_BELOW);
+            return filter;
+        }
+        
+        /**
+         * Returns the selection of the filter with a placeholder for every value, or null
+         * if the filter is empty. Conditions always appear in the same order.
+         */
+        public String getSelection() {
+            StringBuilder selection = new StringBuilder();
+            if (mSupplier != null) {
+                appendCondition(selection, BookEntry.COLUMN_BOOK_SUPPLIER_NAME + "=?");
+            }
+            if (mMinPrice != null) {
+                appendCondition(selection, BookEntry.COLUMN_BOOK_PRICE + ">=?");
+            }
+            if (mMaxPrice != null) {
+                appendCondition(selection, BookEntry.COLUMN_BOOK_PRICE + "<=?");
+            }
+            if (mInStock) {
+                appendCondition(selection, BookEntry.COLUMN_BOOK_QUANTITY + ">0");
+            }
+            if (mQuantityBelow != null) {
+                appendCondition(selection, BookEntry.COLUMN_BOOK_QUANTITY + "<?");
+            }
+            return selection.length() == 0 ? null : selection.toString();
+        }
+        
+        /**
+         * Returns the values for the placeholders of {@link #getSelection()}.
+         */
+        public String[] getSelectionArgs() {
+            List<String> args = new ArrayList<>();
+            if (mSupplier != null) {
+                args.add(mSupplier);
+            }
+            if (mMinPrice != null) {
+                args.add(String.valueOf(mMinPrice));
+            }
+            if (mMaxPrice != null) {
+                args.add(String.valueOf(mMaxPrice));
+            }
+            if (mQuantityBelow != null) {
+                args.add(String.valueOf(mQuantityBelow));
+            }
+            return args.toArray(new String[0]);
+        }
+        
+        private static void appendCondition(StringBuilder selection, String condition) {
+            if (selection.length() != 0) {
+                selection.append(" AND ");
+            }
+            selection.append(condition);
+        }
+        
+        private static Integer parseInteger(Uri uri, String param) {
+            String value = uri.getQueryParameter(param);
+            if (value == null) {
+                return null;
+            }
+            
+            try {
+                return Integer.valueOf(value);
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Invalid " + param + " " + value);
+            }
+        }
     }
 }
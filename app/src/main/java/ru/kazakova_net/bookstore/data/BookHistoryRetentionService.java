@@ -0,0 +1,81 @@
+package ru.kazakova_net.bookstore.data;
+
+import android.app.job.JobInfo;
+import android.app.job.JobParameters;
+import android.app.job.JobScheduler;
+import android.app.job.JobService;
+import android.content.ComponentName;
+import android.content.Context;
+import android.os.Bundle;
+import android.util.Log;
+
+import java.util.concurrent.TimeUnit;
+
+import static ru.kazakova_net.bookstore.data.BookContract.BookEntry;
+import static ru.kazakova_net.bookstore.data.BookContract.EXTRA_COMPACTED_PERIODS;
+import static ru.kazakova_net.bookstore.data.BookContract.EXTRA_PRUNED_ROWS;
+import static ru.kazakova_net.bookstore.data.BookContract.EXTRA_SNAPSHOT_MONTHS;
+import static ru.kazakova_net.bookstore.data.BookContract.METHOD_COMPACT_PERIODS;
+import static ru.kazakova_net.bookstore.data.BookContract.METHOD_PRUNE_HISTORY;
+
+/**
+ * Periodically drops the oldest rows of the history of the books through
+ * {@link BookStoreProvider} while the device is idle, so that the history stays small, and
+ * compacts the closed periods of the books into monthly snapshots.
+ */
+public class BookHistoryRetentionService extends JobService {
+    
+    public static final String LOG_TAG = BookHistoryRetentionService.class.getSimpleName();
+    
+    private static final int JOB_ID = 2;
+    
+    private static final long PRUNE_INTERVAL_MILLIS = TimeUnit.DAYS.toMillis(1);
+    
+    /**
+     * Schedule the daily prune unless it is already scheduled.
+     *
+     * @param context app context
+     */
+    public static void schedule(Context context) {
+        JobScheduler scheduler = (JobScheduler) context.getSystemService(Context.JOB_SCHEDULER_SERVICE);
+        if (scheduler == null || scheduler.getPendingJob(JOB_ID) != null) {
+            return;
+        }
+        
+        scheduler.schedule(new JobInfo.Builder(JOB_ID,
+                new ComponentName(context, BookHistoryRetentionService.class))
+                .setPeriodic(PRUNE_INTERVAL_MILLIS)
+                .setRequiresDeviceIdle(true)
+                .setPersisted(false)
+                .build());
+    }
+    
+    @Override
+    public boolean onStartJob(final JobParameters params) {
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                Bundle result = getContentResolver().call(BookEntry.CONTENT_URI,
+                        METHOD_PRUNE_HISTORY, null, null);
+                if (result != null) {
+                    Log.i(LOG_TAG, "Pruned " + result.getInt(EXTRA_PRUNED_ROWS) + " history rows");
+                }
+                result = getContentResolver().call(BookEntry.CONTENT_URI,
+                        METHOD_COMPACT_PERIODS, null, null);
+                if (result != null) {
+                    Log.i(LOG_TAG, "Took " + result.getInt(EXTRA_SNAPSHOT_MONTHS)
+                            + " monthly snapshots, compacted "
+                            + result.getInt(EXTRA_COMPACTED_PERIODS) + " periods");
+                }
+                jobFinished(params, false);
+            }
+        }, LOG_TAG).start();
+        
+        return true;
+    }
+    
+    @Override
+    public boolean onStopJob(JobParameters params) {
+        return true;
+    }
+}
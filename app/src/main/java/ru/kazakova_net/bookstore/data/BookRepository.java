@@ -0,0 +1,234 @@
+package ru.kazakova_net.bookstore.data;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.database.ContentObserver;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+
+import androidx.lifecycle.LiveData;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import static ru.kazakova_net.bookstore.data.BookContract.BookEntry;
+
+/**
+ * Entry point for observable queries over {@link BookStoreProvider}.
+ * <p>
+ * Queries are tracked per table: the repository keeps one content observer per table that
+ * has active queries, collects invalidations for {@link #DEBOUNCE_MILLIS} and then re-runs
+ * every active query on that table once, on a small background pool. A query that is
+ * already running is not started again, and a result equal to the previous one is not
+ * delivered, so a burst of writes costs at most one query per observer.
+ * <p>
+ * Other work on the provider, such as a batch of sales or a report that takes a while, is
+ * given to {@link #run}, which keeps it off the main thread as well.
+ */
+public class BookRepository {
+    
+    /**
+     * Time during which invalidations of a table are coalesced
+     */
+    private static final long DEBOUNCE_MILLIS = 50;
+    
+    /**
+     * Number of threads that run queries
+     */
+    private static final int QUERY_THREADS = 2;
+    
+    /**
+     * Work on the provider that runs off the main thread, see {@link #run}
+     */
+    public interface Task<T> {
+        T run(ContentResolver contentResolver);
+    }
+    
+    /**
+     * Receives the result of a {@link Task} on the main thread
+     */
+    public interface Callback<T> {
+        void onResult(T result);
+    }
+    
+    private static BookRepository sInstance;
+    
+    private final ContentResolver mContentResolver;
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+    private final ExecutorService mQueryExecutor = new ThreadPoolExecutor(
+            QUERY_THREADS, QUERY_THREADS, 30, TimeUnit.SECONDS,
+            new LinkedBlockingQueue<Runnable>());
+    
+    /**
+     * Runs the tasks one at a time, in the order they were given
+     */
+    private final ExecutorService mTaskExecutor = new ThreadPoolExecutor(
+            1, 1, 30, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>());
+    
+    /**
+     * Observers of the tables that have active queries, by table name
+     */
+    private final Map<String, TableObserver> mTableObservers = new HashMap<>();
+    
+    /**
+     * Returns the repository of the app.
+     *
+     * @param context any context of the app
+     */
+    public static synchronized BookRepository getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new BookRepository(context.getApplicationContext().getContentResolver());
+        }
+        return sInstance;
+    }
+    
+    private BookRepository(ContentResolver contentResolver) {
+        mContentResolver = contentResolver;
+        ((ThreadPoolExecutor) mQueryExecutor).allowCoreThreadTimeOut(true);
+        ((ThreadPoolExecutor) mTaskExecutor).allowCoreThreadTimeOut(true);
+    }
+    
+    /**
+     * Run the task on a background thread and deliver its result on the main thread. The
+     * tasks run one after another on a thread of their own, so a task sees the changes of
+     * the tasks given before it and never holds up the queries.
+     *
+     * @param callback receives the result, or null if there is nothing to deliver
+     */
+    public <T> void run(final Task<T> task, final Callback<T> callback) {
+        mTaskExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                final T result = task.run(mContentResolver);
+                if (callback == null) {
+                    return;
+                }
+                mMainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        callback.onResult(result);
+                    }
+                });
+            }
+        });
+    }
+    
+    /**
+     * Observe all books with the given projection.
+     */
+    public LiveData<Cursor> observeBooks(String[] projection) {
+        return new QueryLiveData(this, BookEntry.TABLE_NAME, BookEntry.CONTENT_URI,
+                projection, null, null, null);
+    }
+    
+    /**
+     * Observe the books that match the filter with the given projection.
+     */
+    public LiveData<Cursor> observeBooks(BookContract.BookFilter filter, String[] projection) {
+        return new QueryLiveData(this, BookEntry.TABLE_NAME, filter.buildUri(),
+                projection, null, null, null);
+    }
+    
+    /**
+     * Observe a single book with the given projection.
+     *
+     * @param bookUri content URI of the book
+     */
+    public LiveData<Cursor> observeBook(Uri bookUri, String[] projection) {
+        return new QueryLiveData(this, BookEntry.TABLE_NAME, bookUri,
+                projection, null, null, null);
+    }
+    
+    ContentResolver getContentResolver() {
+        return mContentResolver;
+    }
+    
+    Handler getMainHandler() {
+        return mMainHandler;
+    }
+    
+    ExecutorService getQueryExecutor() {
+        return mQueryExecutor;
+    }
+    
+    /**
+     * Start delivering invalidations of the query's table to the query. Main thread only.
+     */
+    void addQuery(QueryLiveData query) {
+        TableObserver observer = mTableObservers.get(query.getTable());
+        if (observer == null) {
+            observer = new TableObserver(query.getTable());
+            mTableObservers.put(query.getTable(), observer);
+            mContentResolver.registerContentObserver(tableUri(query.getTable()), true, observer);
+        }
+        observer.mQueries.add(query);
+    }
+    
+    /**
+     * Stop delivering invalidations to the query. Main thread only.
+     */
+    void removeQuery(QueryLiveData query) {
+        TableObserver observer = mTableObservers.get(query.getTable());
+        if (observer == null) {
+            return;
+        }
+        
+        observer.mQueries.remove(query);
+        if (observer.mQueries.isEmpty()) {
+            mContentResolver.unregisterContentObserver(observer);
+            mMainHandler.removeCallbacks(observer);
+            mTableObservers.remove(query.getTable());
+        }
+    }
+    
+    /**
+     * Content URI whose notifications invalidate the given table.
+     */
+    private static Uri tableUri(String table) {
+        if (BookEntry.TABLE_NAME.equals(table)) {
+            return BookEntry.CONTENT_URI;
+        }
+        throw new IllegalArgumentException("Unknown table " + table);
+    }
+    
+    /**
+     * Receives the change notifications of one table and re-runs its queries once
+     * the notifications stop for {@link #DEBOUNCE_MILLIS}.
+     */
+    private class TableObserver extends ContentObserver implements Runnable {
+        
+        private final String mTable;
+        private final Set<QueryLiveData> mQueries = new HashSet<>();
+        
+        TableObserver(String table) {
+            super(mMainHandler);
+            mTable = table;
+        }
+        
+        @Override
+        public void onChange(boolean selfChange) {
+            mMainHandler.removeCallbacks(this);
+            mMainHandler.postDelayed(this, DEBOUNCE_MILLIS);
+        }
+        
+        @Override
+        public void run() {
+            for (QueryLiveData query : mQueries) {
+                query.invalidate();
+            }
+        }
+        
+        @Override
+        public String toString() {
+            return "TableObserver{" + mTable + "}";
+        }
+    }
+}
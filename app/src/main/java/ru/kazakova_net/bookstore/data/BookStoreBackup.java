@@ -0,0 +1,364 @@
+package ru.kazakova_net.bookstore.data;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.DigestInputStream;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Takes compressed snapshots of the books database while it is in use and restores them.
+ * <p>
+ * The snapshot is written by {@code VACUUM INTO} from a separate read-only connection.
+ * With write-ahead logging this is a plain read transaction, so the provider keeps writing
+ * while the copy is made. SQLite versions older than 3.27 (before API 30) do not have
+ * {@code VACUUM INTO}; there the files are copied under a write transaction instead,
+ * which holds writers back for the duration of the copy.
+ * <p>
+ * Every snapshot is gzipped, stored next to a SHA-256 checksum of the compressed file
+ * and only the latest {@link #MAX_BACKUPS} snapshots are kept.
+ */
+public class BookStoreBackup {
+    
+    public static final String LOG_TAG = BookStoreBackup.class.getSimpleName();
+    
+    /**
+     * Directory in the app files where snapshots are stored
+     */
+    private static final String BACKUP_DIR = "backups";
+    
+    private static final String BACKUP_PREFIX = "bookstore-";
+    private static final String BACKUP_SUFFIX = ".db.gz";
+    private static final String CHECKSUM_SUFFIX = ".sha256";
+    
+    /**
+     * Number of snapshots kept by the rotation
+     */
+    private static final int MAX_BACKUPS = 7;
+    
+    private static final int BUFFER_SIZE = 64 * 1024;
+    
+    private final Context mContext;
+    private final File mDatabaseFile;
+    private final File mBackupDir;
+    
+    public BookStoreBackup(Context context) {
+        mContext = context;
+        mDatabaseFile = context.getDatabasePath(BookStoreDbHelper.DATABASE_NAME);
+        mBackupDir = new File(context.getFilesDir(), BACKUP_DIR);
+    }
+    
+    /**
+     * Write a new snapshot of the database and drop the oldest ones.
+     *
+     * @param database open writable database, only used on SQLite versions without
+     *                 {@code VACUUM INTO}
+     * @return the compressed snapshot
+     */
+    public File backup(SQLiteDatabase database) throws IOException {
+        if (!mBackupDir.isDirectory() && !mBackupDir.mkdirs()) {
+            throw new IOException("Cannot create " + mBackupDir);
+        }
+        
+        File snapshot = new File(mContext.getCacheDir(), "snapshot.db");
+        deleteDatabaseFiles(snapshot);
+        
+        try {
+            if (supportsVacuumInto(database)) {
+                SQLiteDatabase source = SQLiteDatabase.openDatabase(mDatabaseFile.getPath(), null,
+                        SQLiteDatabase.OPEN_READONLY);
+                try {
+                    source.execSQL("VACUUM INTO ?", new Object[]{snapshot.getPath()});
+                } finally {
+                    source.close();
+                }
+            } else {
+                copyLocked(database, snapshot);
+            }
+            
+            String name = BACKUP_PREFIX
+                    + new SimpleDateFormat("yyyyMMdd-HHmmss-SSS", Locale.US).format(new Date())
+                    + BACKUP_SUFFIX;
+            File target = new File(mBackupDir, name);
+            File partial = new File(mBackupDir, name + ".tmp");
+            
+            // Compress into a temporary file first, so that a snapshot is either
+            // complete or absent
+            String checksum = compress(snapshot, partial);
+            writeString(checksumFile(target), checksum);
+            if (!partial.renameTo(target)) {
+                throw new IOException("Cannot rename " + partial + " to " + target);
+            }
+            
+            rotate();
+            
+            return target;
+        } finally {
+            deleteDatabaseFiles(snapshot);
+        }
+    }
+    
+    /**
+     * @return stored snapshots, newest first
+     */
+    public List<File> listBackups() {
+        File[] files = mBackupDir.listFiles();
+        if (files == null) {
+            return new ArrayList<>();
+        }
+        
+        List<File> backups = new ArrayList<>();
+        for (File file : files) {
+            if (file.getName().startsWith(BACKUP_PREFIX) && file.getName().endsWith(BACKUP_SUFFIX)) {
+                backups.add(file);
+            }
+        }
+        
+        // The timestamp in the name sorts chronologically
+        Collections.sort(backups, Collections.reverseOrder());
+        
+        return backups;
+    }
+    
+    /**
+     * Check a snapshot against its stored checksum.
+     */
+    public boolean verify(File backup) {
+        try {
+            return digest(backup).equals(readString(checksumFile(backup)));
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "Cannot verify " + backup, e);
+            return false;
+        }
+    }
+    
+    /**
+     * Verify and decompress a snapshot next to the database, ready to be swapped in
+     * by {@link #swapIn(File)}.
+     *
+     * @return the decompressed database file
+     */
+    public File prepareRestore(File backup) throws IOException {
+        if (!verify(backup)) {
+            throw new IOException("Checksum mismatch for " + backup);
+        }
+        
+        File restored = new File(mDatabaseFile.getPath() + ".restore");
+        deleteDatabaseFiles(restored);
+        
+        InputStream in = new GZIPInputStream(new FileInputStream(backup), BUFFER_SIZE);
+        try {
+            OutputStream out = new FileOutputStream(restored);
+            try {
+                copy(in, out);
+            } finally {
+                out.close();
+            }
+        } finally {
+            in.close();
+        }
+        
+        return restored;
+    }
+    
+    /**
+     * Replace the database with a file prepared by {@link #prepareRestore(File)}.
+     * All connections to the database must be closed.
+     */
+    public void swapIn(File restored) throws IOException {
+        // The log of the old database must not be applied to the restored one
+        deleteFile(new File(mDatabaseFile.getPath() + "-wal"));
+        deleteFile(new File(mDatabaseFile.getPath() + "-shm"));
+        deleteFile(new File(mDatabaseFile.getPath() + "-journal"));
+        
+        // Renaming within one directory replaces the database atomically
+        if (!restored.renameTo(mDatabaseFile)) {
+            throw new IOException("Cannot rename " + restored + " to " + mDatabaseFile);
+        }
+    }
+    
+    /**
+     * VACUUM INTO is available since SQLite 3.27.
+     */
+    private static boolean supportsVacuumInto(SQLiteDatabase database) {
+        String version = DatabaseUtils.stringForQuery(database, "SELECT sqlite_version()", null);
+        String[] parts = version.split("\\.");
+        int major = Integer.parseInt(parts[0]);
+        int minor = parts.length > 1 ? Integer.parseInt(parts[1]) : 0;
+        
+        return major > 3 || (major == 3 && minor >= 27);
+    }
+    
+    /**
+     * Copy the database and its write-ahead log while holding the write lock, then fold
+     * the log into the copy by opening it once.
+     */
+    private void copyLocked(SQLiteDatabase database, File snapshot) throws IOException {
+        // Move as much of the log as possible into the database before taking the lock
+        Cursor cursor = database.rawQuery("PRAGMA wal_checkpoint(TRUNCATE)", null);
+        try {
+            cursor.moveToFirst();
+        } finally {
+            cursor.close();
+        }
+        
+        File wal = new File(mDatabaseFile.getPath() + "-wal");
+        database.beginTransaction();
+        try {
+            copyFile(mDatabaseFile, snapshot);
+            if (wal.exists()) {
+                copyFile(wal, new File(snapshot.getPath() + "-wal"));
+            }
+        } finally {
+            database.endTransaction();
+        }
+        
+        SQLiteDatabase.openDatabase(snapshot.getPath(), null, SQLiteDatabase.OPEN_READWRITE).close();
+    }
+    
+    /**
+     * Delete all but the newest {@link #MAX_BACKUPS} snapshots.
+     */
+    private void rotate() {
+        List<File> backups = listBackups();
+        for (int i = MAX_BACKUPS; i < backups.size(); i++) {
+            deleteFile(backups.get(i));
+            deleteFile(checksumFile(backups.get(i)));
+        }
+    }
+    
+    /**
+     * Gzip a file and return the SHA-256 of the compressed output.
+     */
+    private static String compress(File source, File target) throws IOException {
+        MessageDigest digest = newDigest();
+        InputStream in = new FileInputStream(source);
+        try {
+            OutputStream out = new GZIPOutputStream(
+                    new DigestOutputStream(new FileOutputStream(target), digest), BUFFER_SIZE);
+            try {
+                copy(in, out);
+            } finally {
+                out.close();
+            }
+        } finally {
+            in.close();
+        }
+        
+        return toHex(digest.digest());
+    }
+    
+    private static String digest(File file) throws IOException {
+        MessageDigest digest = newDigest();
+        InputStream in = new DigestInputStream(new FileInputStream(file), digest);
+        try {
+            byte[] buffer = new byte[BUFFER_SIZE];
+            while (in.read(buffer) != -1) {
+                // Only the digest is needed
+            }
+        } finally {
+            in.close();
+        }
+        
+        return toHex(digest.digest());
+    }
+    
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+    
+    private static String toHex(byte[] bytes) {
+        StringBuilder builder = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            builder.append(String.format(Locale.US, "%02x", b));
+        }
+        return builder.toString();
+    }
+    
+    private static File checksumFile(File backup) {
+        return new File(backup.getPath() + CHECKSUM_SUFFIX);
+    }
+    
+    private static void copyFile(File source, File target) throws IOException {
+        InputStream in = new FileInputStream(source);
+        try {
+            OutputStream out = new FileOutputStream(target);
+            try {
+                copy(in, out);
+            } finally {
+                out.close();
+            }
+        } finally {
+            in.close();
+        }
+    }
+    
+    private static void copy(InputStream in, OutputStream out) throws IOException {
+        byte[] buffer = new byte[BUFFER_SIZE];
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+            out.write(buffer, 0, read);
+        }
+    }
+    
+    private static void writeString(File file, String value) throws IOException {
+        OutputStream out = new FileOutputStream(file);
+        try {
+            out.write(value.getBytes("UTF-8"));
+        } finally {
+            out.close();
+        }
+    }
+    
+    private static String readString(File file) throws IOException {
+        InputStream in = new FileInputStream(file);
+        try {
+            byte[] bytes = new byte[(int) file.length()];
+            int offset = 0;
+            int read;
+            while (offset < bytes.length
+                    && (read = in.read(bytes, offset, bytes.length - offset)) != -1) {
+                offset += read;
+            }
+            return new String(bytes, 0, offset, "UTF-8").trim();
+        } finally {
+            in.close();
+        }
+    }
+    
+    private static void deleteDatabaseFiles(File database) {
+        for (String suffix : Arrays.asList("", "-wal", "-shm", "-journal")) {
+            deleteFile(new File(database.getPath() + suffix));
+        }
+    }
+    
+    private static void deleteFile(File file) {
+        if (file.exists() && !file.delete()) {
+            Log.w(LOG_TAG, "Cannot delete " + file);
+        }
+    }
+}
@@ -0,0 +1,72 @@
+package ru.kazakova_net.bookstore.data;
+
+import android.app.job.JobInfo;
+import android.app.job.JobParameters;
+import android.app.job.JobScheduler;
+import android.app.job.JobService;
+import android.content.ComponentName;
+import android.content.Context;
+import android.os.Bundle;
+import android.util.Log;
+
+import java.util.concurrent.TimeUnit;
+
+import static ru.kazakova_net.bookstore.data.BookContract.BookEntry;
+import static ru.kazakova_net.bookstore.data.BookContract.METHOD_BACKUP;
+
+/**
+ * Periodically writes a backup of the database through {@link BookStoreProvider}
+ * while the device is idle and charging.
+ */
+public class BookStoreBackupService extends JobService {
+    
+    public static final String LOG_TAG = BookStoreBackupService.class.getSimpleName();
+    
+    private static final int JOB_ID = 1;
+    
+    private static final long BACKUP_INTERVAL_MILLIS = TimeUnit.DAYS.toMillis(1);
+    
+    /**
+     * Schedule the daily backup unless it is already scheduled.
+     *
+     * @param context app context
+     */
+    public static void schedule(Context context) {
+        JobScheduler scheduler = (JobScheduler) context.getSystemService(Context.JOB_SCHEDULER_SERVICE);
+        if (scheduler == null || scheduler.getPendingJob(JOB_ID) != null) {
+            return;
+        }
+        
+        scheduler.schedule(new JobInfo.Builder(JOB_ID,
+                new ComponentName(context, BookStoreBackupService.class))
+                .setPeriodic(BACKUP_INTERVAL_MILLIS)
+                .setRequiresDeviceIdle(true)
+                .setRequiresCharging(true)
+                .setPersisted(false)
+                .build());
+    }
+    
+    @Override
+    public boolean onStartJob(final JobParameters params) {
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                Bundle result = getContentResolver().call(BookEntry.CONTENT_URI, METHOD_BACKUP,
+                        null, null);
+                
+                // Retry later if the backup failed
+                if (result == null) {
+                    Log.w(LOG_TAG, "Backup failed");
+                }
+                jobFinished(params, result == null);
+            }
+        }, LOG_TAG).start();
+        
+        return true;
+    }
+    
+    @Override
+    public boolean onStopJob(JobParameters params) {
+        return true;
+    }
+}
@@ -16,10 +16,23 @@
 package ru.kazakova_net.bookstore.data;
 
 import android.content.Context;
+import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
+
+import java.util.Locale;
+
+import ru.kazakova_net.bookstore.inventory.TitleTrigrams;
+import ru.kazakova_net.bookstore.utils.DeviceUtils;
 
 import static ru.kazakova_net.bookstore.data.BookContract.BookEntry;
+import static ru.kazakova_net.bookstore.data.BookContract.HistoryEntry;
+import static ru.kazakova_net.bookstore.data.BookContract.LocationEntry;
+import static ru.kazakova_net.bookstore.data.BookContract.CounterEntry;
+import static ru.kazakova_net.bookstore.data.BookContract.StocktakeEntry;
+import static ru.kazakova_net.bookstore.data.BookContract.ShipmentEntry;
+import static ru.kazakova_net.bookstore.data.BookContract.StockEntry;
 
 /**
  * Database helper for BookStore app. Manages database creation and version management.
@@ -30,11 +43,77 @@ public class BookStoreDbHelper extends SQLiteOpenHelper {
     /**
      * Database version.
      */
-    private static final int DATABASE_VERSION = 1;
+    private static final int DATABASE_VERSION = 14;
     /**
      * Name of the database file
      */
-    private static final String DATABASE_NAME = "bookstore.db";
+    static final String DATABASE_NAME = "bookstore.db";
+    
+    /**
+     * Single row table with the sequence of the last journaled sale applied to the counters
+     */
+    static final String JOURNAL_TABLE_NAME = "sale_journal";
+    static final String COLUMN_APPLIED_SEQUENCE = "applied_sequence";
+    
+    /**
+     * Single row table with the ID of this device, which the history triggers record; kept up
+     * to date on every open, so that a database restored on another device records that one
+     */
+    static final String DEVICE_TABLE_NAME = "local_device";
+    static final String COLUMN_DEVICE_ID = "device_id";
+    
+    /**
+     * Trigrams of the normalized title of every book, see {@link TitleTrigrams}. The primary
+     * key finds the books containing a trigram, the index drops the trigrams of a book.
+     */
+    static final String TRIGRAM_TABLE_NAME = "title_trigrams";
+    static final String COLUMN_TRIGRAM = "trigram";
+    static final String COLUMN_TRIGRAM_BOOK_ID = "book_id";
+    
+    /**
+     * Periods of the books, see {@link #createPeriods(SQLiteDatabase)}. A period holds the
+     * columns the book had from its start, inclusive, to its end, exclusive, in milliseconds
+     * since the epoch; the current period of a book ends at {@link #PERIOD_OPEN}.
+     */
+    static final String PERIOD_TABLE_NAME = "book_periods";
+    static final String COLUMN_PERIOD_BOOK_ID = "book_id";
+    static final String COLUMN_VALID_FROM = "valid_from";
+    static final String COLUMN_VALID_TO = "valid_to";
+    static final long PERIOD_OPEN = Long.MAX_VALUE;
+    
+    /**
+     * Columns of the books at the start of every compacted month. The months table lists the
+     * snapshots taken, including those of months without books.
+     */
+    static final String SNAPSHOT_TABLE_NAME = "book_snapshots";
+    static final String SNAPSHOT_MONTH_TABLE_NAME = "snapshot_months";
+    static final String COLUMN_SNAPSHOT_AT = "snapshot_at";
+    static final String COLUMN_SNAPSHOT_BOOK_ID = "book_id";
+    
+    /**
+     * SQL expression of the current time in milliseconds since the epoch, the same for all
+     * triggers run by one statement
+     */
+    private static final String NOW_MILLIS =
+            "CAST((julianday('now') - 2440587.5) * 86400000 AS INTEGER)";
+    
+    /**
+     * Columns of the books recorded in the history and the periods; the version only follows
+     * the others
+     */
+    static final String[] HISTORY_COLUMNS = {
+            BookEntry.COLUMN_BOOK_TITLE,
+            BookEntry.COLUMN_BOOK_ISBN,
+            BookEntry.COLUMN_BOOK_PRICE,
+            BookEntry.COLUMN_BOOK_QUANTITY,
+            BookEntry.COLUMN_BOOK_SUPPLIER_NAME,
+            BookEntry.COLUMN_BOOK_SUPPLIER_PHONE,
+            BookEntry.COLUMN_BOOK_COVER};
+    
+    /**
+     * Context of the app
+     */
+    private final Context mContext;
     
     /**
      * Constructs a new instance of {@link BookStoreDbHelper}.
@@ -43,6 +122,10 @@ public class BookStoreDbHelper extends SQLiteOpenHelper {
      */
     public BookStoreDbHelper(Context context) {
         super(context, DATABASE_NAME, null, DATABASE_VERSION);
+        mContext = context;
+        
+        // Readers and backups do not block writers with write-ahead logging
+        setWriteAheadLoggingEnabled(true);
     }
     
     /**
@@ -61,13 +144,413 @@ public class BookStoreDbHelper extends SQLiteOpenHelper {
         
         // Execute the SQL statement
         sqLiteDatabase.execSQL(SQL_CREATE_BOOKS_TABLE);
+        
+        // Bring the new database up to the current version
+        onUpgrade(sqLiteDatabase, 1, DATABASE_VERSION);
     }
     
     /**
-     * This is called when the database needs to be upgraded.
+     * This is called when the database needs to be upgraded. Every step migrates the schema
+     * from the previous version, so the cases intentionally fall through.
      */
     @Override
-    public void onUpgrade(SQLiteDatabase sqLiteDatabase, int i, int i1) {
+    public void onUpgrade(SQLiteDatabase sqLiteDatabase, int oldVersion, int newVersion) {
+        switch (oldVersion) {
+            case 1:
+                createQuantityCounters(sqLiteDatabase);
+            case 2:
+                addIsbn(sqLiteDatabase);
+            case 3:
+                addVersion(sqLiteDatabase);
+            case 4:
+                addCover(sqLiteDatabase);
+            case 5:
+                createFilterIndexes(sqLiteDatabase);
+            case 6:
+                createJournalState(sqLiteDatabase);
+            case 7:
+                createStocktake(sqLiteDatabase);
+            case 8:
+                createTitleTrigrams(sqLiteDatabase);
+            case 9:
+                createHistory(sqLiteDatabase);
+            case 10:
+                createShipments(sqLiteDatabase);
+            case 11:
+                createLocations(sqLiteDatabase);
+            case 12:
+                createPeriods(sqLiteDatabase);
+            case 13:
+                addHistoryDevice(sqLiteDatabase);
+        }
+    }
+    
+    /**
+     * Record this device in the table that the history triggers read it from.
+     */
+    @Override
+    public void onOpen(SQLiteDatabase sqLiteDatabase) {
+        super.onOpen(sqLiteDatabase);
+        if (!sqLiteDatabase.isReadOnly()) {
+            sqLiteDatabase.execSQL("UPDATE " + DEVICE_TABLE_NAME + " SET " + COLUMN_DEVICE_ID
+                    + " = ?", new Object[]{DeviceUtils.getDeviceId(mContext)});
+        }
+    }
+    
+    /**
+     * Version 2: the quantity of a book is kept as a per-device PN-counter.
+     * Existing quantities are attributed to this device.
+     */
+    private void createQuantityCounters(SQLiteDatabase sqLiteDatabase) {
+        sqLiteDatabase.execSQL("CREATE TABLE " + CounterEntry.TABLE_NAME + " ("
+                + CounterEntry.COLUMN_BOOK_ID + " INTEGER NOT NULL, "
+                + CounterEntry.COLUMN_DEVICE_ID + " TEXT NOT NULL, "
+                + CounterEntry.COLUMN_INCREMENTS + " INTEGER NOT NULL DEFAULT 0, "
+                + CounterEntry.COLUMN_DECREMENTS + " INTEGER NOT NULL DEFAULT 0, "
+                + "PRIMARY KEY (" + CounterEntry.COLUMN_BOOK_ID + ", "
+                + CounterEntry.COLUMN_DEVICE_ID + "));");
+        
+        sqLiteDatabase.execSQL("INSERT INTO " + CounterEntry.TABLE_NAME + " ("
+                        + CounterEntry.COLUMN_BOOK_ID + ", "
+                        + CounterEntry.COLUMN_DEVICE_ID + ", "
+                        + CounterEntry.COLUMN_INCREMENTS + ") "
+                        + "SELECT " + BookEntry._ID + ", ?, " + BookEntry.COLUMN_BOOK_QUANTITY
+                        + " FROM " + BookEntry.TABLE_NAME,
+                new Object[]{DeviceUtils.getDeviceId(mContext)});
+    }
+    
+    /**
+     * Version 3: books get an optional ISBN. The unique index makes a scan resolve
+     * to its book with a single index lookup and rejects duplicate barcodes.
+     */
+    private void addIsbn(SQLiteDatabase sqLiteDatabase) {
+        sqLiteDatabase.execSQL("ALTER TABLE " + BookEntry.TABLE_NAME
+                + " ADD COLUMN " + BookEntry.COLUMN_BOOK_ISBN + " TEXT");
+        sqLiteDatabase.execSQL("CREATE UNIQUE INDEX " + BookEntry.TABLE_NAME + "_"
+                + BookEntry.COLUMN_BOOK_ISBN + " ON " + BookEntry.TABLE_NAME
+                + " (" + BookEntry.COLUMN_BOOK_ISBN + ")");
+    }
+    
+    /**
+     * Version 4: books get a version for optimistic concurrency. The trigger increases it
+     * whenever an edited column changes; quantity changes are merged and do not count.
+     */
+    private void addVersion(SQLiteDatabase sqLiteDatabase) {
+        sqLiteDatabase.execSQL("ALTER TABLE " + BookEntry.TABLE_NAME + " ADD COLUMN "
+                + BookEntry.COLUMN_BOOK_VERSION + " INTEGER NOT NULL DEFAULT 0");
+        sqLiteDatabase.execSQL("CREATE TRIGGER " + BookEntry.TABLE_NAME + "_version"
+                + " AFTER UPDATE ON " + BookEntry.TABLE_NAME
+                + " WHEN NEW." + BookEntry.COLUMN_BOOK_VERSION + " = OLD." + BookEntry.COLUMN_BOOK_VERSION
+                + " AND (NEW." + BookEntry.COLUMN_BOOK_TITLE + " IS NOT OLD." + BookEntry.COLUMN_BOOK_TITLE
+                + " OR NEW." + BookEntry.COLUMN_BOOK_ISBN + " IS NOT OLD." + BookEntry.COLUMN_BOOK_ISBN
+                + " OR NEW." + BookEntry.COLUMN_BOOK_PRICE + " IS NOT OLD." + BookEntry.COLUMN_BOOK_PRICE
+                + " OR NEW." + BookEntry.COLUMN_BOOK_SUPPLIER_NAME + " IS NOT OLD." + BookEntry.COLUMN_BOOK_SUPPLIER_NAME
+                + " OR NEW." + BookEntry.COLUMN_BOOK_SUPPLIER_PHONE + " IS NOT OLD." + BookEntry.COLUMN_BOOK_SUPPLIER_PHONE
+                + ") BEGIN UPDATE " + BookEntry.TABLE_NAME + " SET " + BookEntry.COLUMN_BOOK_VERSION
+                + " = OLD." + BookEntry.COLUMN_BOOK_VERSION + " + 1 WHERE " + BookEntry._ID
+                + " = NEW." + BookEntry._ID + "; END");
+    }
+    
+    /**
+     * Version 5: books get an optional cover. Only the file name is stored, so that
+     * the rows stay small and list queries fit in a single cursor window.
+     */
+    private void addCover(SQLiteDatabase sqLiteDatabase) {
+        sqLiteDatabase.execSQL("ALTER TABLE " + BookEntry.TABLE_NAME
+                + " ADD COLUMN " + BookEntry.COLUMN_BOOK_COVER + " TEXT");
+    }
+    
+    /**
+     * Version 6: indexes for {@link BookContract.BookFilter}. Every combination of conditions
+     * starts with one of the indexed columns: the supplier (equality, then the price range),
+     * the price range, or the quantity (in stock, below a number, then the price range).
+     */
+    private void createFilterIndexes(SQLiteDatabase sqLiteDatabase) {
+        createIndex(sqLiteDatabase, "supplier_price",
+                BookEntry.COLUMN_BOOK_SUPPLIER_NAME, BookEntry.COLUMN_BOOK_PRICE);
+        createIndex(sqLiteDatabase, "price", BookEntry.COLUMN_BOOK_PRICE);
+        createIndex(sqLiteDatabase, "quantity_price",
+                BookEntry.COLUMN_BOOK_QUANTITY, BookEntry.COLUMN_BOOK_PRICE);
+    }
+    
+    /**
+     * Version 7: sales are journaled before they are applied. The sequence of the last
+     * applied sale is updated in the same transaction as the counters, so that a replay
+     * of the journal skips exactly the sales already in the database.
+     */
+    private void createJournalState(SQLiteDatabase sqLiteDatabase) {
+        sqLiteDatabase.execSQL("CREATE TABLE " + JOURNAL_TABLE_NAME + " ("
+                + COLUMN_APPLIED_SEQUENCE + " INTEGER NOT NULL)");
+        sqLiteDatabase.execSQL("INSERT INTO " + JOURNAL_TABLE_NAME + " ("
+                + COLUMN_APPLIED_SEQUENCE + ") VALUES (0)");
+    }
+    
+    /**
+     * Version 8: staging table of a stocktake. Without a rowid the counts are stored in the
+     * order of the book IDs, so that reconciling walks both tables in the same order.
+     */
+    private void createStocktake(SQLiteDatabase sqLiteDatabase) {
+        sqLiteDatabase.execSQL("CREATE TABLE " + StocktakeEntry.TABLE_NAME + " ("
+                + StocktakeEntry.COLUMN_BOOK_ID + " INTEGER PRIMARY KEY, "
+                + StocktakeEntry.COLUMN_COUNTED + " INTEGER NOT NULL DEFAULT 0, "
+                + StocktakeEntry.COLUMN_ACCEPTED + " INTEGER NOT NULL DEFAULT 1) WITHOUT ROWID");
+    }
+    
+    /**
+     * Version 9: trigram index over the titles, to find near-duplicate books. The titles of
+     * the existing books are indexed here; the provider keeps the index up to date.
+     */
+    private void createTitleTrigrams(SQLiteDatabase sqLiteDatabase) {
+        sqLiteDatabase.execSQL("CREATE TABLE " + TRIGRAM_TABLE_NAME + " ("
+                + COLUMN_TRIGRAM + " TEXT NOT NULL, "
+                + COLUMN_TRIGRAM_BOOK_ID + " INTEGER NOT NULL, "
+                + "PRIMARY KEY (" + COLUMN_TRIGRAM + ", " + COLUMN_TRIGRAM_BOOK_ID + ")) WITHOUT ROWID");
+        sqLiteDatabase.execSQL("CREATE INDEX " + TRIGRAM_TABLE_NAME + "_" + COLUMN_TRIGRAM_BOOK_ID
+                + " ON " + TRIGRAM_TABLE_NAME + " (" + COLUMN_TRIGRAM_BOOK_ID + ")");
+        
+        Cursor cursor = sqLiteDatabase.query(BookEntry.TABLE_NAME,
+                new String[]{BookEntry._ID, BookEntry.COLUMN_BOOK_TITLE},
+                null, null, null, null, null);
+        try {
+            while (cursor.moveToNext()) {
+                indexTitle(sqLiteDatabase, cursor.getLong(0), cursor.getString(1));
+            }
+        } finally {
+            cursor.close();
+        }
+    }
+    
+    /**
+     * Replace the trigrams of a book with those of its title. Must be called inside a transaction.
+     */
+    static void indexTitle(SQLiteDatabase database, long bookId, String title) {
+        database.delete(TRIGRAM_TABLE_NAME, COLUMN_TRIGRAM_BOOK_ID + "=?",
+                new String[]{String.valueOf(bookId)});
+        if (title == null) {
+            return;
+        }
+        
+        SQLiteStatement statement = database.compileStatement("INSERT INTO " + TRIGRAM_TABLE_NAME
+                + " (" + COLUMN_TRIGRAM + ", " + COLUMN_TRIGRAM_BOOK_ID + ") VALUES (?, ?)");
+        try {
+            for (String trigram : TitleTrigrams.trigrams(title)) {
+                statement.bindString(1, trigram);
+                statement.bindLong(2, bookId);
+                statement.executeInsert();
+            }
+        } finally {
+            statement.close();
+        }
+    }
+    
+    /**
+     * Version 10: audit trail of the books, see {@link HistoryEntry}. The rows are written by
+     * triggers, so no change can skip them, and hold only the changed columns. AUTOINCREMENT
+     * keeps the sequence increasing after the oldest rows are pruned.
+     */
+    private void createHistory(SQLiteDatabase sqLiteDatabase) {
+        sqLiteDatabase.execSQL("CREATE TABLE " + HistoryEntry.TABLE_NAME + " ("
+                + HistoryEntry.COLUMN_SEQUENCE + " INTEGER PRIMARY KEY AUTOINCREMENT, "
+                + HistoryEntry.COLUMN_BOOK_ID + " INTEGER NOT NULL, "
+                + HistoryEntry.COLUMN_CHANGED_AT + " INTEGER NOT NULL, "
+                + HistoryEntry.COLUMN_OPERATION + " TEXT NOT NULL, "
+                + HistoryEntry.COLUMN_CHANGES + " TEXT NOT NULL)");
+        sqLiteDatabase.execSQL("CREATE INDEX " + HistoryEntry.TABLE_NAME + "_book_seq ON "
+                + HistoryEntry.TABLE_NAME + " (" + HistoryEntry.COLUMN_BOOK_ID + ", "
+                + HistoryEntry.COLUMN_SEQUENCE + ")");
+        
+        createHistoryTriggers(sqLiteDatabase, false);
+    }
+    
+    /**
+     * Create the triggers that write the history, with or without the device of the change.
+     */
+    private static void createHistoryTriggers(SQLiteDatabase sqLiteDatabase, boolean device) {
+        StringBuilder changed = new StringBuilder();
+        StringBuilder updated = new StringBuilder();
+        StringBuilder inserted = new StringBuilder();
+        StringBuilder deleted = new StringBuilder();
+        for (String column : HISTORY_COLUMNS) {
+            String oldValue = "OLD." + column;
+            String newValue = "NEW." + column;
+            changed.append(changed.length() == 0 ? "" : " OR ")
+                    .append(newValue).append(" IS NOT ").append(oldValue);
+            updated.append(historyLine(newValue + " IS NOT " + oldValue, column,
+                    "quote(" + oldValue + ")", "quote(" + newValue + ")"));
+            inserted.append(historyLine(newValue + " IS NOT NULL", column,
+                    "''", "quote(" + newValue + ")"));
+            deleted.append(historyLine(oldValue + " IS NOT NULL", column,
+                    "quote(" + oldValue + ")", "''"));
+        }
+        
+        createHistoryTrigger(sqLiteDatabase, "INSERT", null, "NEW",
+                HistoryEntry.OPERATION_INSERT, inserted, device);
+        createHistoryTrigger(sqLiteDatabase, "UPDATE", changed, "NEW",
+                HistoryEntry.OPERATION_UPDATE, updated, device);
+        createHistoryTrigger(sqLiteDatabase, "DELETE", null, "OLD",
+                HistoryEntry.OPERATION_DELETE, deleted, device);
+    }
+    
+    /**
+     * Version 11: shipments received, see {@link ShipmentEntry}. The client chooses the ID, so
+     * it is the primary key and a retried receipt finds the row written by the first one.
+     */
+    private void createShipments(SQLiteDatabase sqLiteDatabase) {
+        sqLiteDatabase.execSQL("CREATE TABLE " + ShipmentEntry.TABLE_NAME + " ("
+                + ShipmentEntry.COLUMN_SHIPMENT_ID + " TEXT PRIMARY KEY, "
+                + ShipmentEntry.COLUMN_SUPPLIER + " TEXT, "
+                + ShipmentEntry.COLUMN_RECEIVED_AT + " INTEGER NOT NULL, "
+                + ShipmentEntry.COLUMN_LINES + " INTEGER NOT NULL, "
+                + ShipmentEntry.COLUMN_COPIES + " INTEGER NOT NULL, "
+                + ShipmentEntry.COLUMN_NEW_BOOKS + " INTEGER NOT NULL) WITHOUT ROWID");
+    }
+    
+    /**
+     * Version 12: stock per location, see {@link StockEntry}. Without a rowid the rows are
+     * stored in the order of their key, so the stock of a location is one range of the table.
+     * The index by book also holds the location and quantity, so finding a title reads only
+     * the index.
+     */
+    private void createLocations(SQLiteDatabase sqLiteDatabase) {
+        sqLiteDatabase.execSQL("CREATE TABLE " + LocationEntry.TABLE_NAME + " ("
+                + LocationEntry._ID + " INTEGER PRIMARY KEY, "
+                + LocationEntry.COLUMN_LOCATION_NAME + " TEXT NOT NULL UNIQUE)");
+        sqLiteDatabase.execSQL("CREATE TABLE " + StockEntry.TABLE_NAME + " ("
+                + StockEntry.COLUMN_LOCATION_ID + " INTEGER NOT NULL, "
+                + StockEntry.COLUMN_BOOK_ID + " INTEGER NOT NULL, "
+                + StockEntry.COLUMN_QUANTITY + " INTEGER NOT NULL DEFAULT 0 CHECK ("
+                + StockEntry.COLUMN_QUANTITY + " >= 0), "
+                + "PRIMARY KEY (" + StockEntry.COLUMN_LOCATION_ID + ", "
+                + StockEntry.COLUMN_BOOK_ID + ")) WITHOUT ROWID");
+        sqLiteDatabase.execSQL("CREATE INDEX " + StockEntry.TABLE_NAME + "_book ON "
+                + StockEntry.TABLE_NAME + " (" + StockEntry.COLUMN_BOOK_ID + ", "
+                + StockEntry.COLUMN_QUANTITY + ")");
+    }
+    
+    /**
+     * Version 13: periods of the books, so that they can be read as they were at any time. A
+     * change of any column of the history closes the current period of the book and opens a
+     * new one, through triggers in the transaction of the change; a delete only closes it.
+     * The existing books open their first period now.
+     * <p>
+     * The key starts with the end of the period. The books at a time are the periods ending
+     * after it that started before it, so they are one range of the table from the time on,
+     * which holds only the answer and the periods closed since. Closed periods are compacted
+     * into the monthly snapshots, which keeps that range short for any time.
+     */
+    private void createPeriods(SQLiteDatabase sqLiteDatabase) {
+        StringBuilder columns = new StringBuilder();
+        StringBuilder definitions = new StringBuilder();
+        StringBuilder newValues = new StringBuilder();
+        StringBuilder changed = new StringBuilder();
+        for (String column : HISTORY_COLUMNS) {
+            columns.append(", ").append(column);
+            definitions.append(column).append(column.equals(BookEntry.COLUMN_BOOK_PRICE)
+                    || column.equals(BookEntry.COLUMN_BOOK_QUANTITY) ? " INTEGER, " : " TEXT, ");
+            newValues.append(", NEW.").append(column);
+            changed.append(changed.length() == 0 ? "" : " OR ")
+                    .append("NEW.").append(column).append(" IS NOT OLD.").append(column);
+        }
+        
+        sqLiteDatabase.execSQL("CREATE TABLE " + PERIOD_TABLE_NAME + " ("
+                + COLUMN_VALID_TO + " INTEGER NOT NULL, "
+                + COLUMN_PERIOD_BOOK_ID + " INTEGER NOT NULL, "
+                + COLUMN_VALID_FROM + " INTEGER NOT NULL, "
+                + definitions
+                + "PRIMARY KEY (" + COLUMN_VALID_TO + ", " + COLUMN_PERIOD_BOOK_ID + ", "
+                + COLUMN_VALID_FROM + ")) WITHOUT ROWID");
+        sqLiteDatabase.execSQL("CREATE TABLE " + SNAPSHOT_MONTH_TABLE_NAME + " ("
+                + COLUMN_SNAPSHOT_AT + " INTEGER PRIMARY KEY)");
+        sqLiteDatabase.execSQL("CREATE TABLE " + SNAPSHOT_TABLE_NAME + " ("
+                + COLUMN_SNAPSHOT_AT + " INTEGER NOT NULL, "
+                + COLUMN_SNAPSHOT_BOOK_ID + " INTEGER NOT NULL, "
+                + definitions
+                + "PRIMARY KEY (" + COLUMN_SNAPSHOT_AT + ", " + COLUMN_SNAPSHOT_BOOK_ID
+                + ")) WITHOUT ROWID");
+        
+        sqLiteDatabase.execSQL("INSERT INTO " + PERIOD_TABLE_NAME + " (" + COLUMN_VALID_TO + ", "
+                + COLUMN_PERIOD_BOOK_ID + ", " + COLUMN_VALID_FROM + columns + ") SELECT "
+                + PERIOD_OPEN + ", " + BookEntry._ID + ", " + NOW_MILLIS + columns + " FROM "
+                + BookEntry.TABLE_NAME);
+        
+        // A period that started within the same millisecond is replaced rather than closed,
+        // so that no period is empty
+        String close = "DELETE FROM " + PERIOD_TABLE_NAME + " WHERE " + COLUMN_VALID_TO + " = "
+                + PERIOD_OPEN + " AND " + COLUMN_PERIOD_BOOK_ID + " = OLD." + BookEntry._ID
+                + " AND " + COLUMN_VALID_FROM + " = " + NOW_MILLIS + "; UPDATE "
+                + PERIOD_TABLE_NAME + " SET " + COLUMN_VALID_TO + " = " + NOW_MILLIS + " WHERE "
+                + COLUMN_VALID_TO + " = " + PERIOD_OPEN + " AND " + COLUMN_PERIOD_BOOK_ID
+                + " = OLD." + BookEntry._ID + "; ";
+        String open = "INSERT INTO " + PERIOD_TABLE_NAME + " (" + COLUMN_VALID_TO + ", "
+                + COLUMN_PERIOD_BOOK_ID + ", " + COLUMN_VALID_FROM + columns + ") VALUES ("
+                + PERIOD_OPEN + ", NEW." + BookEntry._ID + ", " + NOW_MILLIS + newValues + "); ";
+        
+        createPeriodTrigger(sqLiteDatabase, "INSERT", null, open);
+        createPeriodTrigger(sqLiteDatabase, "UPDATE", changed, close + open);
+        createPeriodTrigger(sqLiteDatabase, "DELETE", null, close);
+    }
+    
+    private static void createPeriodTrigger(SQLiteDatabase sqLiteDatabase, String event,
+                                            CharSequence condition, String statements) {
+        sqLiteDatabase.execSQL("CREATE TRIGGER " + BookEntry.TABLE_NAME + "_periods_"
+                + event.toLowerCase(Locale.ROOT) + " AFTER " + event + " ON " + BookEntry.TABLE_NAME
+                + (condition == null ? "" : " WHEN " + condition)
+                + " BEGIN " + statements + "END");
+    }
+    
+    /**
+     * Version 14: the history records the device of every change. The device is read from a
+     * single row table, since triggers cannot reach the app; the existing rows have none.
+     */
+    private void addHistoryDevice(SQLiteDatabase sqLiteDatabase) {
+        sqLiteDatabase.execSQL("CREATE TABLE " + DEVICE_TABLE_NAME + " ("
+                + COLUMN_DEVICE_ID + " TEXT NOT NULL)");
+        sqLiteDatabase.execSQL("INSERT INTO " + DEVICE_TABLE_NAME + " (" + COLUMN_DEVICE_ID
+                + ") VALUES (?)", new Object[]{DeviceUtils.getDeviceId(mContext)});
+        sqLiteDatabase.execSQL("ALTER TABLE " + HistoryEntry.TABLE_NAME + " ADD COLUMN "
+                + HistoryEntry.COLUMN_DEVICE_ID + " TEXT");
+        
+        for (String event : new String[]{"insert", "update", "delete"}) {
+            sqLiteDatabase.execSQL("DROP TRIGGER " + BookEntry.TABLE_NAME + "_history_" + event);
+        }
+        createHistoryTriggers(sqLiteDatabase, true);
+    }
+    
+    /**
+     * SQL expression of the line of a changed column, empty if the column did not change.
+     */
+    private static String historyLine(String condition, String column, String oldValue,
+                                      String newValue) {
+        return " || CASE WHEN " + condition + " THEN char(10) || '" + column + "=' || "
+                + oldValue + " || '>' || " + newValue + " ELSE '' END";
+    }
+    
+    private static void createHistoryTrigger(SQLiteDatabase sqLiteDatabase, String event,
+                                             CharSequence condition, String row,
+                                             String operation, CharSequence lines,
+                                             boolean device) {
+        // The lines start with a separator, which is cut off along with the leading ''
+        sqLiteDatabase.execSQL("CREATE TRIGGER " + BookEntry.TABLE_NAME + "_history_"
+                + event.toLowerCase(Locale.ROOT) + " AFTER " + event + " ON " + BookEntry.TABLE_NAME
+                + (condition == null ? "" : " WHEN " + condition)
+                + " BEGIN INSERT INTO " + HistoryEntry.TABLE_NAME + " ("
+                + HistoryEntry.COLUMN_BOOK_ID + ", "
+                + HistoryEntry.COLUMN_CHANGED_AT + ", "
+                + HistoryEntry.COLUMN_OPERATION + ", "
+                + (device ? HistoryEntry.COLUMN_DEVICE_ID + ", " : "")
+                + HistoryEntry.COLUMN_CHANGES + ") VALUES (" + row + "." + BookEntry._ID
+                + ", " + NOW_MILLIS + ", '" + operation + "', "
+                + (device ? "(SELECT " + COLUMN_DEVICE_ID + " FROM " + DEVICE_TABLE_NAME + "), "
+                : "")
+                + "substr(''" + lines + ", 2)); END");
+    }
     
+    private static void createIndex(SQLiteDatabase sqLiteDatabase, String name, String... columns) {
+        StringBuilder sql = new StringBuilder("CREATE INDEX ").append(BookEntry.TABLE_NAME)
+                .append("_").append(name).append(" ON ").append(BookEntry.TABLE_NAME).append(" (");
+        for (int i = 0; i < columns.length; i++) {
+            sql.append(i == 0 ? "" : ", ").append(columns[i]);
+        }
+        sqLiteDatabase.execSQL(sql.append(")").toString());
     }
 }
@@ -0,0 +1,386 @@
+package ru.kazakova_net.bookstore.data;
+
+import android.database.Cursor;
+import android.database.DatabaseErrorHandler;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteDatabaseCorruptException;
+import android.database.sqlite.SQLiteException;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import ru.kazakova_net.bookstore.inventory.TitleTrigrams;
+
+import static ru.kazakova_net.bookstore.data.BookContract.BookEntry;
+import static ru.kazakova_net.bookstore.data.BookContract.CounterEntry;
+import static ru.kazakova_net.bookstore.data.BookContract.StockEntry;
+
+/**
+ * One pass of the integrity check of the books database, run in slices by
+ * {@link BookStoreProvider} while the device is idle.
+ * <p>
+ * The pass starts with {@code PRAGMA integrity_check} on a separate read-only connection,
+ * which is the first slice. With write-ahead logging this is a plain read transaction, so
+ * sales go on meanwhile. Unlike {@code quick_check} it also compares every index with its
+ * table, so it names the damaged indexes. Damage limited to indexes is repaired with
+ * {@code REINDEX}; anything else marks the database as corrupt, to be replaced with a backup.
+ * <p>
+ * Then the books are checked {@link #BOOKS_PER_SLICE} at a time, in ID order: the quantity
+ * must be the sum of the counters and the title trigrams must be those of the title. A slice
+ * only reads. A book that fails is repaired in a transaction of its own, which checks it
+ * again under the write lock, so the lock is held for one book at a time. Books whose counters
+ * add up below zero, or with negative stock at a location, were sold beyond their copies;
+ * they are reported rather than repaired.
+ */
+class BookStoreIntegrityCheck {
+    
+    public static final String LOG_TAG = BookStoreIntegrityCheck.class.getSimpleName();
+    
+    /**
+     * Books read by one slice of the check
+     */
+    private static final int BOOKS_PER_SLICE = 200;
+    
+    /**
+     * Most problems listed by the structural checks
+     */
+    private static final int MAX_ERRORS = 100;
+    
+    /**
+     * Finds the index named in the messages of {@code integrity_check} about index entries
+     */
+    private static final Pattern INDEX_ERROR =
+            Pattern.compile("(?:missing from|entries in|entry in) index (\\w+)");
+    
+    /**
+     * Keeps a damaged database in place, so that the check can report it and a backup can
+     * replace it. The default handler deletes the file.
+     */
+    private static final DatabaseErrorHandler KEEP_DAMAGED = new DatabaseErrorHandler() {
+        @Override
+        public void onCorruption(SQLiteDatabase database) {
+            Log.e(LOG_TAG, "Corruption reported in " + database.getPath());
+        }
+    };
+    
+    /**
+     * Books with their quantity and the sum of their counters, completed by a condition on
+     * the ID
+     */
+    private static final String BOOKS_QUERY = "SELECT b." + BookEntry._ID + ", b."
+            + BookEntry.COLUMN_BOOK_TITLE + ", b." + BookEntry.COLUMN_BOOK_QUANTITY
+            + ", (SELECT COALESCE(SUM(" + CounterEntry.COLUMN_INCREMENTS + " - "
+            + CounterEntry.COLUMN_DECREMENTS + "), 0) FROM " + CounterEntry.TABLE_NAME
+            + " c WHERE c." + CounterEntry.COLUMN_BOOK_ID + " = b." + BookEntry._ID + ") FROM "
+            + BookEntry.TABLE_NAME + " b WHERE b." + BookEntry._ID;
+    
+    private static final String SLICE_QUERY = BOOKS_QUERY + " > ? ORDER BY b." + BookEntry._ID
+            + " LIMIT " + BOOKS_PER_SLICE;
+    
+    private static final String[] TRIGRAM_COLUMNS = {
+            BookStoreDbHelper.COLUMN_TRIGRAM_BOOK_ID,
+            BookStoreDbHelper.COLUMN_TRIGRAM};
+    
+    private static final String TRIGRAM_RANGE = BookStoreDbHelper.COLUMN_TRIGRAM_BOOK_ID
+            + " > ? AND " + BookStoreDbHelper.COLUMN_TRIGRAM_BOOK_ID + " <= ?";
+    
+    private boolean mStructureChecked;
+    private boolean mCorrupt;
+    private boolean mComplete;
+    private long mLastBookId;
+    private int mRepairedBooks;
+    private final List<String> mReindexed = new ArrayList<>();
+    private final Set<Long> mNegativeBookIds = new LinkedHashSet<>();
+    
+    /**
+     * Run slices of the check until it ends or the deadline passes. The slice running at the
+     * deadline is finished.
+     *
+     * @param deadline in {@link SystemClock#uptimeMillis()} time
+     * @return the number of books repaired by this call
+     */
+    int run(SQLiteDatabase database, long deadline) throws IOException {
+        int repaired = 0;
+        if (!mStructureChecked) {
+            checkStructure(database);
+            mStructureChecked = true;
+            
+            // The books of a corrupt database are not worth checking, it is replaced as a whole
+            mComplete = mCorrupt;
+        }
+        while (!mComplete && SystemClock.uptimeMillis() < deadline) {
+            repaired += checkBooks(database);
+        }
+        mRepairedBooks += repaired;
+        return repaired;
+    }
+    
+    boolean isComplete() {
+        return mComplete;
+    }
+    
+    /**
+     * @return whether the database is damaged beyond its indexes
+     */
+    boolean isCorrupt() {
+        return mCorrupt;
+    }
+    
+    int getRepairedBooks() {
+        return mRepairedBooks;
+    }
+    
+    List<String> getReindexed() {
+        return Collections.unmodifiableList(mReindexed);
+    }
+    
+    long[] getNegativeBookIds() {
+        long[] ids = new long[mNegativeBookIds.size()];
+        int i = 0;
+        for (long id : mNegativeBookIds) {
+            ids[i++] = id;
+        }
+        return ids;
+    }
+    
+    /**
+     * @return whether the database file passes {@code PRAGMA quick_check}
+     */
+    static boolean passesQuickCheck(File file) throws IOException {
+        return runCheck(file.getPath(), "quick_check").isEmpty();
+    }
+    
+    /**
+     * Run the integrity check and rebuild the damaged indexes, or mark the database as corrupt.
+     */
+    private void checkStructure(SQLiteDatabase database) throws IOException {
+        Set<String> indexes = new LinkedHashSet<>();
+        for (String problem : runCheck(database.getPath(), "integrity_check")) {
+            Matcher matcher = INDEX_ERROR.matcher(problem);
+            if (!matcher.find()) {
+                Log.e(LOG_TAG, "Database is corrupt: " + problem);
+                mCorrupt = true;
+                return;
+            }
+            indexes.add(matcher.group(1));
+        }
+        
+        // Rebuilding an index holds the write lock while the table is sorted into it, which
+        // only happens once the index is known to be damaged
+        for (String index : indexes) {
+            Log.w(LOG_TAG, "Rebuilding index " + index);
+            try {
+                database.execSQL("REINDEX " + index);
+            } catch (SQLiteException e) {
+                // Such as a unique index over rows that are no longer unique
+                Log.e(LOG_TAG, "Cannot rebuild index " + index, e);
+                mCorrupt = true;
+                return;
+            }
+            mReindexed.add(index);
+        }
+    }
+    
+    /**
+     * Run an integrity pragma on a read-only connection of its own.
+     *
+     * @return the problems found, empty if there are none
+     */
+    private static List<String> runCheck(String path, String pragma) throws IOException {
+        List<String> problems = new ArrayList<>();
+        SQLiteDatabase connection = null;
+        try {
+            connection = SQLiteDatabase.openDatabase(path, null, SQLiteDatabase.OPEN_READONLY,
+                    KEEP_DAMAGED);
+            Cursor cursor = connection.rawQuery("PRAGMA " + pragma + "(" + MAX_ERRORS + ")", null);
+            try {
+                while (cursor.moveToNext()) {
+                    problems.add(cursor.getString(0));
+                }
+            } finally {
+                cursor.close();
+            }
+        } catch (SQLiteDatabaseCorruptException e) {
+            problems.add(String.valueOf(e.getMessage()));
+            return problems;
+        } catch (SQLiteException e) {
+            throw new IOException("Cannot run " + pragma + " on " + path, e);
+        } finally {
+            if (connection != null) {
+                connection.close();
+            }
+        }
+        
+        if (problems.size() == 1 && "ok".equals(problems.get(0))) {
+            problems.clear();
+        }
+        return problems;
+    }
+    
+    /**
+     * Check the next slice of books and repair those that fail.
+     *
+     * @return the number of books repaired
+     */
+    private int checkBooks(SQLiteDatabase database) {
+        long firstId = mLastBookId;
+        long[] ids = new long[BOOKS_PER_SLICE];
+        String[] titles = new String[BOOKS_PER_SLICE];
+        long[] quantities = new long[BOOKS_PER_SLICE];
+        long[] counted = new long[BOOKS_PER_SLICE];
+        int size = 0;
+        Cursor cursor = database.rawQuery(SLICE_QUERY, new String[]{String.valueOf(firstId)});
+        try {
+            while (cursor.moveToNext()) {
+                ids[size] = cursor.getLong(0);
+                titles[size] = cursor.getString(1);
+                quantities[size] = cursor.getLong(2);
+                counted[size] = cursor.getLong(3);
+                size++;
+            }
+        } finally {
+            cursor.close();
+        }
+        
+        // The last slice also takes the trigrams and stock of any books after the last one
+        boolean last = size < BOOKS_PER_SLICE;
+        long lastId = last ? Long.MAX_VALUE : ids[size - 1];
+        String[] range = {String.valueOf(firstId), String.valueOf(lastId)};
+        
+        Map<Long, Set<String>> trigrams = new HashMap<>();
+        cursor = database.query(BookStoreDbHelper.TRIGRAM_TABLE_NAME, TRIGRAM_COLUMNS,
+                TRIGRAM_RANGE, range, null, null, null);
+        try {
+            while (cursor.moveToNext()) {
+                Set<String> book = trigrams.get(cursor.getLong(0));
+                if (book == null) {
+                    book = new HashSet<>();
+                    trigrams.put(cursor.getLong(0), book);
+                }
+                book.add(cursor.getString(1));
+            }
+        } finally {
+            cursor.close();
+        }
+        
+        int repaired = 0;
+        for (int i = 0; i < size; i++) {
+            Set<String> indexed = trigrams.remove(ids[i]);
+            if (quantities[i] != counted[i] || !matchesTitle(titles[i], indexed)) {
+                if (repairBook(database, ids[i])) {
+                    repaired++;
+                }
+            } else if (counted[i] < 0) {
+                mNegativeBookIds.add(ids[i]);
+            }
+        }
+        
+        // Whatever is left belongs to books that no longer exist
+        for (long id : trigrams.keySet()) {
+            if (repairBook(database, id)) {
+                repaired++;
+            }
+        }
+        
+        cursor = database.query(true, StockEntry.TABLE_NAME,
+                new String[]{StockEntry.COLUMN_BOOK_ID}, StockEntry.COLUMN_BOOK_ID + " > ? AND "
+                        + StockEntry.COLUMN_BOOK_ID + " <= ? AND " + StockEntry.COLUMN_QUANTITY
+                        + " < 0", range, null, null, null, null);
+        try {
+            while (cursor.moveToNext()) {
+                mNegativeBookIds.add(cursor.getLong(0));
+            }
+        } finally {
+            cursor.close();
+        }
+        
+        mLastBookId = lastId;
+        mComplete = last;
+        return repaired;
+    }
+    
+    /**
+     * Check a book again in a write transaction and rewrite its quantity or trigrams if they
+     * are still wrong. The trigrams of a book that no longer exists are dropped.
+     *
+     * @return whether the book was repaired
+     */
+    private boolean repairBook(SQLiteDatabase database, long bookId) {
+        String[] id = {String.valueOf(bookId)};
+        boolean repaired = false;
+        database.beginTransaction();
+        try {
+            Cursor cursor = database.rawQuery(BOOKS_QUERY + " = ?", id);
+            try {
+                if (!cursor.moveToFirst()) {
+                    repaired = database.delete(BookStoreDbHelper.TRIGRAM_TABLE_NAME,
+                            BookStoreDbHelper.COLUMN_TRIGRAM_BOOK_ID + "=?", id) > 0;
+                } else {
+                    String title = cursor.getString(1);
+                    long counted = cursor.getLong(3);
+                    if (cursor.getLong(2) != counted) {
+                        BookStoreProvider.refreshQuantity(database, bookId);
+                        BookStoreProvider.trimStock(database, bookId);
+                        repaired = true;
+                    }
+                    if (!matchesTitle(title, readTrigrams(database, id))) {
+                        BookStoreDbHelper.indexTitle(database, bookId, title);
+                        repaired = true;
+                    }
+                    if (counted < 0) {
+                        mNegativeBookIds.add(bookId);
+                    }
+                }
+            } finally {
+                cursor.close();
+            }
+            database.setTransactionSuccessful();
+        } finally {
+            database.endTransaction();
+        }
+        
+        if (repaired) {
+            Log.w(LOG_TAG, "Repaired book " + bookId);
+        }
+        return repaired;
+    }
+    
+    private static Set<String> readTrigrams(SQLiteDatabase database, String[] id) {
+        Set<String> trigrams = new HashSet<>();
+        Cursor cursor = database.query(BookStoreDbHelper.TRIGRAM_TABLE_NAME,
+                new String[]{BookStoreDbHelper.COLUMN_TRIGRAM},
+                BookStoreDbHelper.COLUMN_TRIGRAM_BOOK_ID + "=?", id, null, null, null);
+        try {
+            while (cursor.moveToNext()) {
+                trigrams.add(cursor.getString(0));
+            }
+        } finally {
+            cursor.close();
+        }
+        return trigrams;
+    }
+    
+    /**
+     * @param indexed trigrams stored for the book, null if there are none
+     */
+    private static boolean matchesTitle(String title, Set<String> indexed) {
+        String[] expected = title == null ? new String[0] : TitleTrigrams.trigrams(title);
+        if (indexed == null) {
+            return expected.length == 0;
+        }
+        return indexed.equals(new HashSet<>(Arrays.asList(expected)));
+    }
+}
@@ -0,0 +1,98 @@
+package ru.kazakova_net.bookstore.data;
+
+import android.app.job.JobInfo;
+import android.app.job.JobParameters;
+import android.app.job.JobScheduler;
+import android.app.job.JobService;
+import android.content.ComponentName;
+import android.content.Context;
+import android.os.Bundle;
+import android.util.Log;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import static ru.kazakova_net.bookstore.data.BookContract.BookEntry;
+import static ru.kazakova_net.bookstore.data.BookContract.EXTRA_BACKUP_PATH;
+import static ru.kazakova_net.bookstore.data.BookContract.EXTRA_CHECK_COMPLETE;
+import static ru.kazakova_net.bookstore.data.BookContract.EXTRA_NEGATIVE_BOOK_IDS;
+import static ru.kazakova_net.bookstore.data.BookContract.EXTRA_REINDEXED;
+import static ru.kazakova_net.bookstore.data.BookContract.EXTRA_REPAIRED_BOOKS;
+import static ru.kazakova_net.bookstore.data.BookContract.METHOD_CHECK_INTEGRITY;
+
+/**
+ * Periodically checks the database for damage through {@link BookStoreProvider} while the
+ * device is idle. The check runs in short calls, so that the job stops soon after it is told to;
+ * the next run continues where it stopped.
+ */
+public class BookStoreIntegrityService extends JobService {
+    
+    public static final String LOG_TAG = BookStoreIntegrityService.class.getSimpleName();
+    
+    private static final int JOB_ID = 3;
+    
+    private static final long CHECK_INTERVAL_MILLIS = TimeUnit.DAYS.toMillis(1);
+    
+    /**
+     * Whether the running job was told to stop
+     */
+    private volatile boolean mStopped;
+    
+    /**
+     * Schedule the daily check unless it is already scheduled.
+     *
+     * @param context app context
+     */
+    public static void schedule(Context context) {
+        JobScheduler scheduler = (JobScheduler) context.getSystemService(Context.JOB_SCHEDULER_SERVICE);
+        if (scheduler == null || scheduler.getPendingJob(JOB_ID) != null) {
+            return;
+        }
+        
+        scheduler.schedule(new JobInfo.Builder(JOB_ID,
+                new ComponentName(context, BookStoreIntegrityService.class))
+                .setPeriodic(CHECK_INTERVAL_MILLIS)
+                .setRequiresDeviceIdle(true)
+                .setPersisted(false)
+                .build());
+    }
+    
+    @Override
+    public boolean onStartJob(final JobParameters params) {
+        mStopped = false;
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                Bundle result;
+                do {
+                    result = getContentResolver().call(BookEntry.CONTENT_URI,
+                            METHOD_CHECK_INTEGRITY, null, null);
+                } while (result != null && !result.getBoolean(EXTRA_CHECK_COMPLETE) && !mStopped);
+                
+                if (result == null) {
+                    Log.w(LOG_TAG, "Integrity check failed");
+                } else if (result.getBoolean(EXTRA_CHECK_COMPLETE)) {
+                    Log.i(LOG_TAG, "Integrity check done, reindexed "
+                            + Arrays.toString(result.getStringArray(EXTRA_REINDEXED)) + ", repaired "
+                            + result.getInt(EXTRA_REPAIRED_BOOKS) + " books, sold below zero "
+                            + Arrays.toString(result.getLongArray(EXTRA_NEGATIVE_BOOK_IDS))
+                            + (result.containsKey(EXTRA_BACKUP_PATH)
+                            ? ", restored " + result.getString(EXTRA_BACKUP_PATH) : ""));
+                }
+                
+                // Retry later if the check could not run
+                if (!mStopped) {
+                    jobFinished(params, result == null);
+                }
+            }
+        }, LOG_TAG).start();
+        
+        return true;
+    }
+    
+    @Override
+    public boolean onStopJob(JobParameters params) {
+        mStopped = true;
+        return true;
+    }
+}
@@ -16,17 +16,127 @@
 package ru.kazakova_net.bookstore.data;
 
 import android.content.ContentProvider;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentUris;
 import android.content.ContentValues;
+import android.content.OperationApplicationException;
 import android.content.UriMatcher;
 import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.MatrixCursor;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteDoneException;
+import android.database.sqlite.SQLiteStatement;
 import android.net.Uri;
+import android.os.Bundle;
+import android.os.SystemClock;
+import android.os.Trace;
 import android.util.Log;
 
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import ru.kazakova_net.bookstore.inventory.DuplicateTitleFinder;
+import ru.kazakova_net.bookstore.inventory.InventoryRules;
+import ru.kazakova_net.bookstore.inventory.SaleJournal;
+import ru.kazakova_net.bookstore.inventory.StockLedger;
+import ru.kazakova_net.bookstore.inventory.TitleTrigrams;
+import ru.kazakova_net.bookstore.utils.DeviceUtils;
+
 import static ru.kazakova_net.bookstore.data.BookContract.BookEntry;
+import static ru.kazakova_net.bookstore.data.BookContract.BookFilter;
 import static ru.kazakova_net.bookstore.data.BookContract.CONTENT_AUTHORITY;
+import static ru.kazakova_net.bookstore.data.BookContract.CounterEntry;
+import static ru.kazakova_net.bookstore.data.BookContract.DICTIONARY_SUFFIX;
+import static ru.kazakova_net.bookstore.data.BookContract.EXTRA_ADJUSTED_BOOKS;
+import static ru.kazakova_net.bookstore.data.BookContract.EXTRA_ALREADY_RECEIVED;
+import static ru.kazakova_net.bookstore.data.BookContract.EXTRA_AFTER_ID;
+import static ru.kazakova_net.bookstore.data.BookContract.EXTRA_AMOUNT;
+import static ru.kazakova_net.bookstore.data.BookContract.EXTRA_BOOK_IDS;
+import static ru.kazakova_net.bookstore.data.BookContract.EXTRA_BACKUP_PATH;
+import static ru.kazakova_net.bookstore.data.BookContract.EXTRA_CHECK_COMPLETE;
+import static ru.kazakova_net.bookstore.data.BookContract.EXTRA_CACHE_EVICTIONS;
+import static ru.kazakova_net.bookstore.data.BookContract.EXTRA_CACHE_HITS;
+import static ru.kazakova_net.bookstore.data.BookContract.EXTRA_CACHE_MISSES;
+import static ru.kazakova_net.bookstore.data.BookContract.EXTRA_CACHE_SIZE;
+import static ru.kazakova_net.bookstore.data.BookContract.EXTRA_COLUMNS;
+import static ru.kazakova_net.bookstore.data.BookContract.EXTRA_COMPACTED_PERIODS;
+import static ru.kazakova_net.bookstore.data.BookContract.EXTRA_DRY_RUN;
+import static ru.kazakova_net.bookstore.data.BookContract.EXTRA_FROM_LOCATION;
+import static ru.kazakova_net.bookstore.data.BookContract.EXTRA_ISBNS;
+import static ru.kazakova_net.bookstore.data.BookContract.EXTRA_LAST_CHUNK;
+import static ru.kazakova_net.bookstore.data.BookContract.EXTRA_MAX_HISTORY_ROWS;
+import static ru.kazakova_net.bookstore.data.BookContract.EXTRA_MAX_MILLIS;
+import static ru.kazakova_net.bookstore.data.BookContract.EXTRA_NEGATIVE_BOOK_IDS;
+import static ru.kazakova_net.bookstore.data.BookContract.EXTRA_NEW_BOOKS;
+import static ru.kazakova_net.bookstore.data.BookContract.EXTRA_PERCENT;
+import static ru.kazakova_net.bookstore.data.BookContract.EXTRA_PRICES;
+import static ru.kazakova_net.bookstore.data.BookContract.EXTRA_PRUNED_ROWS;
+import static ru.kazakova_net.bookstore.data.BookContract.EXTRA_QUANTITIES;
+import static ru.kazakova_net.bookstore.data.BookContract.EXTRA_RECEIVED_COPIES;
+import static ru.kazakova_net.bookstore.data.BookContract.EXTRA_REINDEXED;
+import static ru.kazakova_net.bookstore.data.BookContract.EXTRA_REPAIRED_BOOKS;
+import static ru.kazakova_net.bookstore.data.BookContract.EXTRA_REPRICED_BOOKS;
+import static ru.kazakova_net.bookstore.data.BookContract.EXTRA_RETENTION_MILLIS;
+import static ru.kazakova_net.bookstore.data.BookContract.EXTRA_ROUND_TO;
+import static ru.kazakova_net.bookstore.data.BookContract.EXTRA_ROW_COUNT;
+import static ru.kazakova_net.bookstore.data.BookContract.EXTRA_SAMPLE_IDS;
+import static ru.kazakova_net.bookstore.data.BookContract.EXTRA_SAMPLE_NEW_PRICES;
+import static ru.kazakova_net.bookstore.data.BookContract.EXTRA_SAMPLE_OLD_PRICES;
+import static ru.kazakova_net.bookstore.data.BookContract.EXTRA_SAMPLE_TITLES;
+import static ru.kazakova_net.bookstore.data.BookContract.EXTRA_SHORT_BOOK_IDS;
+import static ru.kazakova_net.bookstore.data.BookContract.EXTRA_SNAPSHOT_MONTHS;
+import static ru.kazakova_net.bookstore.data.BookContract.EXTRA_SUPPLIER;
+import static ru.kazakova_net.bookstore.data.BookContract.EXTRA_SUPPLIER_PHONE;
+import static ru.kazakova_net.bookstore.data.BookContract.EXTRA_TITLES;
+import static ru.kazakova_net.bookstore.data.BookContract.EXTRA_TO_LOCATION;
+import static ru.kazakova_net.bookstore.data.BookContract.EXTRA_TRANSFERRED_COPIES;
+import static ru.kazakova_net.bookstore.data.BookContract.EXTRA_UNKNOWN_ISBNS;
+import static ru.kazakova_net.bookstore.data.BookContract.HistoryEntry;
+import static ru.kazakova_net.bookstore.data.BookContract.LocationEntry;
+import static ru.kazakova_net.bookstore.data.BookContract.METHOD_ADD_COUNTS;
+import static ru.kazakova_net.bookstore.data.BookContract.METHOD_APPLY_STOCKTAKE;
+import static ru.kazakova_net.bookstore.data.BookContract.METHOD_BACKUP;
+import static ru.kazakova_net.bookstore.data.BookContract.METHOD_CHECK_INTEGRITY;
+import static ru.kazakova_net.bookstore.data.BookContract.METHOD_COMPACT_PERIODS;
+import static ru.kazakova_net.bookstore.data.BookContract.METHOD_PRUNE_HISTORY;
+import static ru.kazakova_net.bookstore.data.BookContract.METHOD_QUERY_CACHE_STATS;
+import static ru.kazakova_net.bookstore.data.BookContract.METHOD_READ_COLUMNS;
+import static ru.kazakova_net.bookstore.data.BookContract.METHOD_RECEIVE_SHIPMENT;
+import static ru.kazakova_net.bookstore.data.BookContract.METHOD_REPRICE;
+import static ru.kazakova_net.bookstore.data.BookContract.METHOD_RESTORE;
+import static ru.kazakova_net.bookstore.data.BookContract.METHOD_TRANSFER_STOCK;
 import static ru.kazakova_net.bookstore.data.BookContract.PATH_BOOKS;
+import static ru.kazakova_net.bookstore.data.BookContract.PATH_COUNTERS;
+import static ru.kazakova_net.bookstore.data.BookContract.PATH_DISCREPANCIES;
+import static ru.kazakova_net.bookstore.data.BookContract.PATH_DUPLICATES;
+import static ru.kazakova_net.bookstore.data.BookContract.PATH_HISTORY;
+import static ru.kazakova_net.bookstore.data.BookContract.PATH_ISBN;
+import static ru.kazakova_net.bookstore.data.BookContract.PATH_LOCATIONS;
+import static ru.kazakova_net.bookstore.data.BookContract.PATH_QUANTITY;
+import static ru.kazakova_net.bookstore.data.BookContract.PATH_SHIPMENTS;
+import static ru.kazakova_net.bookstore.data.BookContract.PATH_SIMILAR;
+import static ru.kazakova_net.bookstore.data.BookContract.PATH_STOCK;
+import static ru.kazakova_net.bookstore.data.BookContract.PATH_STOCKTAKE;
+import static ru.kazakova_net.bookstore.data.BookContract.ShipmentEntry;
+import static ru.kazakova_net.bookstore.data.BookContract.StockEntry;
+import static ru.kazakova_net.bookstore.data.BookContract.StocktakeEntry;
 
 
 /**
@@ -46,6 +156,194 @@ public class BookStoreProvider extends ContentProvider {
      */
     private static final int BOOK_ID = 101;
     
+    /**
+     * URI matcher code for the content URI for a relative change of the quantity of a book
+     */
+    private static final int BOOK_QUANTITY = 102;
+    
+    /**
+     * URI matcher code for the content URI for the quantity counters of a book
+     */
+    private static final int BOOK_COUNTERS = 103;
+    
+    /**
+     * URI matcher code for the content URI for a single book looked up by its ISBN
+     */
+    private static final int BOOK_ISBN = 104;
+    
+    /**
+     * URI matcher code for the content URI for the counts of the stocktake
+     */
+    private static final int STOCKTAKE = 105;
+    
+    /**
+     * URI matcher code for the content URI for the count of a single book in the stocktake
+     */
+    private static final int STOCKTAKE_ID = 106;
+    
+    /**
+     * URI matcher code for the content URI for the discrepancies found by the stocktake
+     */
+    private static final int STOCKTAKE_DISCREPANCIES = 107;
+    
+    /**
+     * URI matcher code for the content URI for the books with a title similar to a given one
+     */
+    private static final int BOOK_SIMILAR = 108;
+    
+    /**
+     * URI matcher code for the content URI for the pairs of books with similar titles
+     */
+    private static final int BOOK_DUPLICATES = 109;
+    
+    /**
+     * URI matcher code for the content URI for the changes of a single book
+     */
+    private static final int BOOK_HISTORY = 110;
+    
+    /**
+     * URI matcher code for the content URI for the received shipments
+     */
+    private static final int SHIPMENTS = 111;
+    
+    /**
+     * URI matcher code for the content URI for the locations table
+     */
+    private static final int LOCATIONS = 112;
+    
+    /**
+     * URI matcher code for the content URI for a single location
+     */
+    private static final int LOCATION_ID = 113;
+    
+    /**
+     * URI matcher code for the content URI for the books held at a location
+     */
+    private static final int LOCATION_STOCK = 114;
+    
+    /**
+     * URI matcher code for the content URI for the copies of a book at a location
+     */
+    private static final int LOCATION_BOOK_STOCK = 115;
+    
+    /**
+     * URI matcher code for the content URI for the locations holding a book
+     */
+    private static final int BOOK_STOCK = 116;
+    
+    /**
+     * Most trigrams of a title looked up at once, within the limit of SQLite on arguments
+     */
+    private static final int MAX_LOOKUP_TRIGRAMS = 500;
+    
+    /**
+     * Most books returned as similar to a title
+     */
+    private static final int MAX_SIMILAR_BOOKS = 10;
+    
+    /**
+     * Counted books whose quantity differs from the count. The stocktake is walked in the
+     * order of its primary key and every book is probed by its rowid in the same order, so
+     * the join is a single merge pass over both tables without a sort.
+     */
+    static final String STOCKTAKE_DISCREPANCIES_QUERY = "SELECT s."
+            + StocktakeEntry.COLUMN_BOOK_ID + " AS " + BookEntry._ID + ", b."
+            + BookEntry.COLUMN_BOOK_TITLE + ", b." + BookEntry.COLUMN_BOOK_QUANTITY + ", s."
+            + StocktakeEntry.COLUMN_COUNTED + ", s." + StocktakeEntry.COLUMN_ACCEPTED
+            + " FROM " + StocktakeEntry.TABLE_NAME + " s CROSS JOIN " + BookEntry.TABLE_NAME
+            + " b ON b." + BookEntry._ID + " = s." + StocktakeEntry.COLUMN_BOOK_ID
+            + " WHERE b." + BookEntry.COLUMN_BOOK_QUANTITY + " <> s." + StocktakeEntry.COLUMN_COUNTED
+            + " ORDER BY s." + StocktakeEntry.COLUMN_BOOK_ID;
+    
+    /**
+     * Books held at a location, read from its range of the stock table in book order
+     */
+    private static final String LOCATION_STOCK_QUERY = "SELECT s."
+            + StockEntry.COLUMN_BOOK_ID + " AS " + BookEntry._ID + ", b."
+            + BookEntry.COLUMN_BOOK_TITLE + ", s." + StockEntry.COLUMN_QUANTITY
+            + " FROM " + StockEntry.TABLE_NAME + " s CROSS JOIN " + BookEntry.TABLE_NAME
+            + " b ON b." + BookEntry._ID + " = s." + StockEntry.COLUMN_BOOK_ID
+            + " WHERE s." + StockEntry.COLUMN_LOCATION_ID + " = ? AND s."
+            + StockEntry.COLUMN_QUANTITY + " > 0 ORDER BY s." + StockEntry.COLUMN_BOOK_ID;
+    
+    /**
+     * Locations holding a book, read from the index by book, the most copies first
+     */
+    private static final String BOOK_STOCK_QUERY = "SELECT s."
+            + StockEntry.COLUMN_LOCATION_ID + ", l." + LocationEntry.COLUMN_LOCATION_NAME + ", s."
+            + StockEntry.COLUMN_QUANTITY + " FROM " + StockEntry.TABLE_NAME
+            + " s INDEXED BY " + StockEntry.TABLE_NAME + "_book CROSS JOIN "
+            + LocationEntry.TABLE_NAME + " l ON l." + LocationEntry._ID + " = s."
+            + StockEntry.COLUMN_LOCATION_ID + " WHERE s." + StockEntry.COLUMN_BOOK_ID
+            + " = ? AND s." + StockEntry.COLUMN_QUANTITY + " > 0 ORDER BY s."
+            + StockEntry.COLUMN_QUANTITY + " DESC";
+    
+    /**
+     * IDs of the books whose accepted count differs from their quantity
+     */
+    private static final String ACCEPTED_DISCREPANCIES_QUERY = "SELECT s."
+            + StocktakeEntry.COLUMN_BOOK_ID + " FROM " + StocktakeEntry.TABLE_NAME
+            + " s CROSS JOIN " + BookEntry.TABLE_NAME + " b ON b." + BookEntry._ID + " = s."
+            + StocktakeEntry.COLUMN_BOOK_ID + " WHERE s." + StocktakeEntry.COLUMN_ACCEPTED
+            + " AND b." + BookEntry.COLUMN_BOOK_QUANTITY + " <> s." + StocktakeEntry.COLUMN_COUNTED;
+    
+    /**
+     * Default age and number of history rows kept by {@link BookContract#METHOD_PRUNE_HISTORY},
+     * and how many rows are deleted at a time, so that writers never wait long for a prune
+     */
+    private static final long HISTORY_RETENTION_MILLIS = TimeUnit.DAYS.toMillis(365);
+    private static final long MAX_HISTORY_ROWS = 200000;
+    private static final int HISTORY_PRUNE_CHUNK = 500;
+    
+    /**
+     * Closed periods dropped at a time by {@link BookContract#METHOD_COMPACT_PERIODS}
+     */
+    private static final int PERIOD_COMPACT_CHUNK = 500;
+    
+    /**
+     * Time one call of {@link BookContract#METHOD_CHECK_INTEGRITY} spends checking, by default
+     */
+    private static final long INTEGRITY_CHECK_MILLIS = 1000;
+    
+    /**
+     * Columns of the books {@link BookContract#METHOD_READ_COLUMNS} can read, by type
+     */
+    private static final List<String> INTEGER_COLUMNS = Arrays.asList(
+            BookEntry.COLUMN_BOOK_PRICE,
+            BookEntry.COLUMN_BOOK_QUANTITY,
+            BookEntry.COLUMN_BOOK_VERSION);
+    private static final List<String> TEXT_COLUMNS = Arrays.asList(
+            BookEntry.COLUMN_BOOK_TITLE,
+            BookEntry.COLUMN_BOOK_ISBN,
+            BookEntry.COLUMN_BOOK_SUPPLIER_NAME,
+            BookEntry.COLUMN_BOOK_SUPPLIER_PHONE,
+            BookEntry.COLUMN_BOOK_COVER);
+    
+    /**
+     * Most rows and approximate bytes of one chunk of columns, well within the Binder buffer
+     */
+    private static final int COLUMN_CHUNK_ROWS = 20000;
+    private static final int COLUMN_CHUNK_BYTES = 256 * 1024;
+    
+    /**
+     * Most repriced books described in the result of {@link BookContract#METHOD_REPRICE}
+     */
+    private static final int REPRICE_SAMPLE_SIZE = 20;
+    
+    /**
+     * Lock stripes of the sale ledger, and how many sales or how long they wait to be
+     * committed together
+     */
+    private static final int LEDGER_STRIPES = 32;
+    private static final int LEDGER_BATCH_SIZE = 64;
+    private static final long LEDGER_MAX_DELAY_MILLIS = 50;
+    
+    /**
+     * Directory in the app files holding the sale journal, and the size of each of its segments
+     */
+    private static final String JOURNAL_DIR = "journal";
+    private static final int JOURNAL_SEGMENT_BYTES = 1024 * 1024;
+    
     /**
      * UriMatcher object to match a content URI to a corresponding code.
      */
@@ -57,48 +355,1272 @@ public class BookStoreProvider extends ContentProvider {
         
         // This URI is used to provide access to ONE single row of the books table.
         sUriMatcher.addURI(CONTENT_AUTHORITY, PATH_BOOKS + "/#", BOOK_ID);
+        
+        // This URI is used to add to or subtract from the quantity of ONE book.
+        sUriMatcher.addURI(CONTENT_AUTHORITY, PATH_BOOKS + "/#/" + PATH_QUANTITY, BOOK_QUANTITY);
+        
+        // This URI is used to read and merge the per-device quantity counters of ONE book.
+        sUriMatcher.addURI(CONTENT_AUTHORITY, PATH_BOOKS + "/#/" + PATH_COUNTERS, BOOK_COUNTERS);
+        
+        // This URI is used to find or sell ONE book by its scanned ISBN.
+        sUriMatcher.addURI(CONTENT_AUTHORITY, PATH_BOOKS + "/" + PATH_ISBN + "/*", BOOK_ISBN);
+        
+        // This URI is used to list the changes of a single book.
+        sUriMatcher.addURI(CONTENT_AUTHORITY, PATH_BOOKS + "/#/" + PATH_HISTORY, BOOK_HISTORY);
+        
+        // This URI is used to find the books with a title similar to a new one.
+        sUriMatcher.addURI(CONTENT_AUTHORITY, PATH_BOOKS + "/" + PATH_SIMILAR, BOOK_SIMILAR);
+        
+        // This URI is used to list the pairs of books that may be duplicates.
+        sUriMatcher.addURI(CONTENT_AUTHORITY, PATH_BOOKS + "/" + PATH_DUPLICATES, BOOK_DUPLICATES);
+        
+        // This URI is used to add to and discard the counts of a stocktake.
+        sUriMatcher.addURI(CONTENT_AUTHORITY, PATH_STOCKTAKE, STOCKTAKE);
+        
+        // This URI is used to accept or reject the count of ONE book in the stocktake.
+        sUriMatcher.addURI(CONTENT_AUTHORITY, PATH_STOCKTAKE + "/#", STOCKTAKE_ID);
+        
+        // This URI is used to list the books whose count differs from their quantity.
+        sUriMatcher.addURI(CONTENT_AUTHORITY, PATH_STOCKTAKE + "/" + PATH_DISCREPANCIES,
+                STOCKTAKE_DISCREPANCIES);
+        
+        // This URI is used to list the received shipments.
+        sUriMatcher.addURI(CONTENT_AUTHORITY, PATH_SHIPMENTS, SHIPMENTS);
+        
+        // This URI is used to list and add the locations.
+        sUriMatcher.addURI(CONTENT_AUTHORITY, PATH_LOCATIONS, LOCATIONS);
+        
+        // This URI is used to read ONE location.
+        sUriMatcher.addURI(CONTENT_AUTHORITY, PATH_LOCATIONS + "/#", LOCATION_ID);
+        
+        // This URI is used to list the books held at a location.
+        sUriMatcher.addURI(CONTENT_AUTHORITY, PATH_LOCATIONS + "/#/" + PATH_STOCK, LOCATION_STOCK);
+        
+        // This URI is used to sell or receive copies of a book at a location.
+        sUriMatcher.addURI(CONTENT_AUTHORITY, PATH_LOCATIONS + "/#/" + PATH_STOCK + "/#",
+                LOCATION_BOOK_STOCK);
+        
+        // This URI is used to list the locations holding a book.
+        sUriMatcher.addURI(CONTENT_AUTHORITY, PATH_BOOKS + "/#/" + PATH_STOCK, BOOK_STOCK);
     }
     
     /**
-     * Database helper object
+     * Database helper object. Replaced when a backup is restored.
+     */
+    private volatile BookStoreDbHelper mBookStoreDbHelper;
+    
+    /**
+     * Held for reading by every use of the database helper and for writing while it is
+     * replaced, see {@link #swapIn(File)}. The ledger committer runs without it, since it is
+     * stopped for the swap.
+     */
+    private final ReadWriteLock mDatabaseLock = new ReentrantReadWriteLock();
+    
+    /**
+     * Snapshots of the database
+     */
+    private BookStoreBackup mBookStoreBackup;
+    
+    /**
+     * Whether the first query has already been traced
+     */
+    private final AtomicBoolean mFirstQueryTraced = new AtomicBoolean();
+    
+    /**
+     * Set when a change of quantity took copies from the locations, so that the change of
+     * stock is notified with it
+     */
+    private final AtomicBoolean mStockTrimmed = new AtomicBoolean();
+    
+    /**
+     * Results of recent list and single book queries
+     */
+    private final QueryCache mQueryCache = new QueryCache();
+    
+    /**
+     * Stock of the books being sold, shared by all terminals
+     */
+    private StockLedger mStockLedger;
+    
+    /**
+     * Sales acknowledged by the ledger and not yet applied to the database
      */
-    private BookStoreDbHelper mBookStoreDbHelper;
+    private SaleJournal mSaleJournal;
+    private LedgerBackend mLedgerBackend;
+    
+    /**
+     * Copies reserved in the ledger by the sales written in the transaction of the calling
+     * thread, as pairs of book id and count, released once the transaction has ended
+     */
+    private final ThreadLocal<List<long[]>> mReservations = new ThreadLocal<List<long[]>>() {
+        @Override
+        protected List<long[]> initialValue() {
+            return new ArrayList<>();
+        }
+    };
+    
+    /**
+     * Integrity check in progress, replaced by a new one once it ends. Guarded by the lock.
+     */
+    private BookStoreIntegrityCheck mIntegrityCheck = new BookStoreIntegrityCheck();
+    private final Object mIntegrityLock = new Object();
     
     @Override
     public boolean onCreate() {
-        mBookStoreDbHelper = new BookStoreDbHelper(getContext());
+        Trace.beginSection("BookStoreProvider.onCreate");
+        try {
+            mBookStoreDbHelper = new BookStoreDbHelper(getContext());
+            mBookStoreBackup = new BookStoreBackup(getContext());
+            
+            try {
+                mSaleJournal = new SaleJournal(new File(getContext().getFilesDir(), JOURNAL_DIR),
+                        JOURNAL_SEGMENT_BYTES);
+            } catch (IOException e) {
+                // Sales are still committed in batches, only without surviving a crash meanwhile
+                Log.e(LOG_TAG, "Cannot open the sale journal", e);
+            }
+            
+            // The committer replays the journal from the last run before it accepts sales
+            mLedgerBackend = new LedgerBackend();
+            mStockLedger = new StockLedger(mLedgerBackend, mSaleJournal, LEDGER_STRIPES,
+                    LEDGER_BATCH_SIZE, LEDGER_MAX_DELAY_MILLIS);
+            mStockLedger.start();
+            
+            warmUpDatabase();
+        } finally {
+            Trace.endSection();
+        }
         return true;
     }
     
+    /**
+     * Open the database and read the books table on a background thread, so that schema
+     * creation and the page cache are ready by the time the first loader queries it.
+     * The helper opens the database only once; a loader that comes first simply waits for it.
+     */
+    private void warmUpDatabase() {
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                mDatabaseLock.readLock().lock();
+                try {
+                    warmUp();
+                } finally {
+                    mDatabaseLock.readLock().unlock();
+                }
+            }
+            
+            private void warmUp() {
+                Trace.beginSection("BookStoreDbHelper.open");
+                SQLiteDatabase database;
+                try {
+                    database = mBookStoreDbHelper.getWritableDatabase();
+                } finally {
+                    Trace.endSection();
+                }
+                
+                Trace.beginSection("BookStoreProvider.warmUp");
+                try {
+                    // Counting the rows of the list projection pulls its pages into the cache
+                    Cursor cursor = database.query(BookEntry.TABLE_NAME, new String[]{
+                                    BookEntry._ID,
+                                    BookEntry.COLUMN_BOOK_TITLE,
+                                    BookEntry.COLUMN_BOOK_PRICE,
+                                    BookEntry.COLUMN_BOOK_QUANTITY},
+                            null, null, null, null, null);
+                    try {
+                        cursor.getCount();
+                    } finally {
+                        cursor.close();
+                    }
+                } finally {
+                    Trace.endSection();
+                }
+            }
+        }, "BookStoreWarmUp");
+        thread.setPriority(Thread.NORM_PRIORITY - 1);
+        thread.start();
+    }
+    
+    @Override
+    public Bundle call(String method, String arg, Bundle extras) {
+        try {
+            // A restore replaces the database, and so may the integrity check, so they lock
+            // it themselves
+            switch (method) {
+                case METHOD_RESTORE:
+                    return backupResult(restore(arg));
+                case METHOD_CHECK_INTEGRITY:
+                    return checkIntegrity(extras);
+                default:
+                    mDatabaseLock.readLock().lock();
+                    try {
+                        return callLocked(method, arg, extras);
+                    } finally {
+                        mDatabaseLock.readLock().unlock();
+                    }
+            }
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "Failed to " + method + " the database", e);
+            return null;
+        }
+    }
+    
+    private Bundle callLocked(String method, String arg, Bundle extras) throws IOException {
+        switch (method) {
+            case METHOD_BACKUP:
+                // Sales still in the ledger belong in the backup
+                mStockLedger.flush();
+                return backupResult(mBookStoreBackup.backup(
+                        mBookStoreDbHelper.getWritableDatabase()));
+            case METHOD_QUERY_CACHE_STATS:
+                return queryCacheStats();
+            case METHOD_ADD_COUNTS:
+                return addCounts(extras);
+            case METHOD_APPLY_STOCKTAKE:
+                return applyStocktake();
+            case METHOD_PRUNE_HISTORY:
+                return pruneHistory(extras);
+            case METHOD_READ_COLUMNS:
+                return readColumns(extras);
+            case METHOD_REPRICE:
+                return reprice(arg, extras);
+            case METHOD_RECEIVE_SHIPMENT:
+                return receiveShipment(arg, extras);
+            case METHOD_TRANSFER_STOCK:
+                return transferStock(extras);
+            case METHOD_COMPACT_PERIODS:
+                return compactPeriods();
+            default:
+                return super.call(method, arg, extras);
+        }
+    }
+    
+    /**
+     * Replace the database with the given backup, or with the latest one if the path is null.
+     * Return the backup that was restored.
+     */
+    private File restore(String path) throws IOException {
+        File backup;
+        if (path != null) {
+            backup = new File(path);
+        } else {
+            List<File> backups = mBookStoreBackup.listBackups();
+            if (backups.isEmpty()) {
+                throw new IOException("There is no backup to restore");
+            }
+            backup = backups.get(0);
+        }
+        
+        // Decompress and verify before touching the live database
+        swapIn(mBookStoreBackup.prepareRestore(backup));
+        return backup;
+    }
+    
+    /**
+     * Replace a corrupt database with the latest backup that matches its checksum and passes
+     * the quick check; a backup taken from a database that was already damaged does not.
+     * Return the backup that was restored.
+     */
+    private File restoreLatestGood() throws IOException {
+        for (File backup : mBookStoreBackup.listBackups()) {
+            File restored;
+            try {
+                restored = mBookStoreBackup.prepareRestore(backup);
+            } catch (IOException e) {
+                Log.w(LOG_TAG, "Skipping backup " + backup, e);
+                continue;
+            }
+            if (BookStoreIntegrityCheck.passesQuickCheck(restored)) {
+                swapIn(restored);
+                return backup;
+            }
+            Log.w(LOG_TAG, "Skipping damaged backup " + backup);
+        }
+        throw new IOException("There is no good backup to restore");
+    }
+    
+    /**
+     * Replace the database with a file prepared by {@link BookStoreBackup#prepareRestore(File)}.
+     * The ledger committer is stopped and every other use of the database waits for the swap,
+     * so that no sale is written to the closed database or marked applied without being
+     * committed.
+     */
+    private void swapIn(File restored) throws IOException {
+        // Commit the sales made so far into the database being replaced
+        try {
+            mStockLedger.stop();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            mStockLedger.start();
+            throw new IOException("Interrupted while stopping the ledger", e);
+        }
+        
+        mDatabaseLock.writeLock().lock();
+        try {
+            // Sales accepted since the committer stopped go in too; none can be made meanwhile
+            mStockLedger.flush();
+            
+            mBookStoreDbHelper.close();
+            try {
+                mBookStoreBackup.swapIn(restored);
+            } finally {
+                // Reopen whatever database is in place, upgrading it if the backup is older
+                mBookStoreDbHelper = new BookStoreDbHelper(getContext());
+            }
+            
+            // The journal is applied up to the last committed sale, whatever sequence the
+            // backup stored, so that the sales are not replayed into it
+            if (mSaleJournal != null) {
+                storeAppliedSequence(mBookStoreDbHelper.getWritableDatabase(),
+                        mLedgerBackend.getCommittedSequence());
+            }
+            
+            // Every book may have changed, so nothing cached is used once the lock is released
+            mQueryCache.invalidate();
+            mStockLedger.invalidate();
+        } finally {
+            mDatabaseLock.writeLock().unlock();
+            mStockLedger.start();
+        }
+        
+        notifyChange(BookEntry.CONTENT_URI);
+    }
+    
+    /**
+     * Continue the integrity check for the time in the extras, see
+     * {@link BookStoreIntegrityCheck}. A corrupt database is replaced with a backup.
+     */
+    private Bundle checkIntegrity(Bundle extras) throws IOException {
+        long budgetMillis = extras != null
+                ? extras.getLong(EXTRA_MAX_MILLIS, INTEGRITY_CHECK_MILLIS) : INTEGRITY_CHECK_MILLIS;
+        
+        Bundle result = new Bundle();
+        synchronized (mIntegrityLock) {
+            BookStoreIntegrityCheck check = mIntegrityCheck;
+            int repaired;
+            mDatabaseLock.readLock().lock();
+            try {
+                repaired = check.run(mBookStoreDbHelper.getWritableDatabase(),
+                        SystemClock.uptimeMillis() + budgetMillis);
+            } finally {
+                mDatabaseLock.readLock().unlock();
+            }
+            if (repaired != 0) {
+                notifyChange(BookEntry.CONTENT_URI);
+            }
+            
+            if (check.isComplete()) {
+                mIntegrityCheck = new BookStoreIntegrityCheck();
+            }
+            if (check.isCorrupt()) {
+                result.putString(EXTRA_BACKUP_PATH, restoreLatestGood().getPath());
+            }
+            
+            result.putBoolean(EXTRA_CHECK_COMPLETE, check.isComplete());
+            result.putStringArray(EXTRA_REINDEXED, check.getReindexed().toArray(new String[0]));
+            result.putInt(EXTRA_REPAIRED_BOOKS, check.getRepairedBooks());
+            result.putLongArray(EXTRA_NEGATIVE_BOOK_IDS, check.getNegativeBookIds());
+        }
+        return result;
+    }
+    
+    private Bundle queryCacheStats() {
+        Bundle result = new Bundle();
+        result.putLong(EXTRA_CACHE_HITS, mQueryCache.getHitCount());
+        result.putLong(EXTRA_CACHE_MISSES, mQueryCache.getMissCount());
+        result.putLong(EXTRA_CACHE_EVICTIONS, mQueryCache.getEvictionCount());
+        result.putInt(EXTRA_CACHE_SIZE, mQueryCache.size());
+        return result;
+    }
+    
+    /**
+     * Add scanned counts to the stocktake in one transaction. An unknown ISBN only skips its
+     * own count, and is returned so that it can be reported.
+     */
+    private Bundle addCounts(Bundle extras) {
+        String[] isbns = extras == null ? null : extras.getStringArray(EXTRA_ISBNS);
+        int[] quantities = extras == null ? null : extras.getIntArray(EXTRA_QUANTITIES);
+        if (isbns == null || quantities == null || quantities.length != isbns.length) {
+            throw new IllegalArgumentException("Counts require an ISBN and a quantity each");
+        }
+        
+        ContentValues[] counts = new ContentValues[isbns.length];
+        for (int i = 0; i < isbns.length; i++) {
+            counts[i] = new ContentValues();
+            counts[i].put(BookEntry.COLUMN_BOOK_ISBN, isbns[i]);
+            counts[i].put(StocktakeEntry.COLUMN_COUNTED, quantities[i]);
+        }
+        insertCounts(counts);
+        
+        // The counts of the books found were given their ID
+        ArrayList<String> unknown = new ArrayList<>();
+        for (int i = 0; i < isbns.length; i++) {
+            if (counts[i].getAsLong(StocktakeEntry.COLUMN_BOOK_ID) == null) {
+                unknown.add(isbns[i]);
+            }
+        }
+        
+        Bundle result = new Bundle();
+        result.putStringArray(EXTRA_UNKNOWN_ISBNS, unknown.toArray(new String[0]));
+        return result;
+    }
+    
+    /**
+     * Replace the quantity of every book whose accepted count differs from it, in one
+     * transaction, and end the stocktake. The difference is recorded on the counter of this
+     * device, like any other change of quantity.
+     */
+    private Bundle applyStocktake() {
+        // Sales still in the ledger are part of the quantities being corrected
+        mStockLedger.flush();
+        
+        SQLiteDatabase database = mBookStoreDbHelper.getWritableDatabase();
+        String deviceId = DeviceUtils.getDeviceId(getContext());
+        String difference = "(SELECT s." + StocktakeEntry.COLUMN_COUNTED + " - b."
+                + BookEntry.COLUMN_BOOK_QUANTITY + " FROM " + StocktakeEntry.TABLE_NAME
+                + " s CROSS JOIN " + BookEntry.TABLE_NAME + " b ON b." + BookEntry._ID + " = s."
+                + StocktakeEntry.COLUMN_BOOK_ID + " WHERE s." + StocktakeEntry.COLUMN_BOOK_ID
+                + " = " + CounterEntry.TABLE_NAME + "." + CounterEntry.COLUMN_BOOK_ID + ")";
+        
+        int adjusted;
+        database.beginTransaction();
+        try {
+            database.execSQL("INSERT OR IGNORE INTO " + CounterEntry.TABLE_NAME + " ("
+                            + CounterEntry.COLUMN_BOOK_ID + ", "
+                            + CounterEntry.COLUMN_DEVICE_ID + ") SELECT "
+                            + StocktakeEntry.COLUMN_BOOK_ID + ", ? FROM ("
+                            + ACCEPTED_DISCREPANCIES_QUERY + ")",
+                    new Object[]{deviceId});
+            
+            // The quantities are still the old ones here, so the difference is read from them
+            database.execSQL("UPDATE " + CounterEntry.TABLE_NAME + " SET "
+                            + CounterEntry.COLUMN_INCREMENTS + " = "
+                            + CounterEntry.COLUMN_INCREMENTS + " + MAX(0, " + difference + "), "
+                            + CounterEntry.COLUMN_DECREMENTS + " = "
+                            + CounterEntry.COLUMN_DECREMENTS + " + MAX(0, -" + difference + ") WHERE "
+                            + CounterEntry.COLUMN_DEVICE_ID + " = ? AND "
+                            + CounterEntry.COLUMN_BOOK_ID + " IN (" + ACCEPTED_DISCREPANCIES_QUERY + ")",
+                    new Object[]{deviceId});
+            
+            SQLiteStatement statement = database.compileStatement("UPDATE " + BookEntry.TABLE_NAME
+                    + " SET " + BookEntry.COLUMN_BOOK_QUANTITY + " = (SELECT "
+                    + StocktakeEntry.COLUMN_COUNTED + " FROM " + StocktakeEntry.TABLE_NAME
+                    + " WHERE " + StocktakeEntry.COLUMN_BOOK_ID + " = " + BookEntry.TABLE_NAME + "."
+                    + BookEntry._ID + ") WHERE " + BookEntry._ID + " IN ("
+                    + ACCEPTED_DISCREPANCIES_QUERY + ")");
+            try {
+                adjusted = statement.executeUpdateDelete();
+            } finally {
+                statement.close();
+            }
+            
+            // A count below the copies at the locations takes the difference from them
+            Cursor overstocked = database.rawQuery("SELECT s." + StocktakeEntry.COLUMN_BOOK_ID
+                    + " FROM " + StocktakeEntry.TABLE_NAME + " s WHERE (SELECT COALESCE(SUM("
+                    + StockEntry.COLUMN_QUANTITY + "), 0) FROM " + StockEntry.TABLE_NAME + " WHERE "
+                    + StockEntry.COLUMN_BOOK_ID + " = s." + StocktakeEntry.COLUMN_BOOK_ID
+                    + ") > (SELECT " + BookEntry.COLUMN_BOOK_QUANTITY + " FROM "
+                    + BookEntry.TABLE_NAME + " WHERE " + BookEntry._ID + " = s."
+                    + StocktakeEntry.COLUMN_BOOK_ID + ")", null);
+            try {
+                while (overstocked.moveToNext()) {
+                    trimStock(database, overstocked.getLong(0));
+                    mStockTrimmed.set(true);
+                }
+            } finally {
+                overstocked.close();
+            }
+            
+            database.delete(StocktakeEntry.TABLE_NAME, null, null);
+            database.setTransactionSuccessful();
+        } finally {
+            database.endTransaction();
+        }
+        
+        notifyChange(BookEntry.CONTENT_URI);
+        getContext().getContentResolver().notifyChange(StocktakeEntry.CONTENT_URI, null);
+        
+        Bundle result = new Bundle();
+        result.putInt(EXTRA_ADJUSTED_BOOKS, adjusted);
+        return result;
+    }
+    
+    /**
+     * Delete the history rows that are too old or beyond the newest ones kept, oldest first.
+     * Every statement deletes at most one chunk in its own transaction, and finds it by reading
+     * at most one chunk in sequence order, so a prune never holds the write lock for long.
+     */
+    private Bundle pruneHistory(Bundle extras) {
+        long retentionMillis = HISTORY_RETENTION_MILLIS;
+        long maxRows = MAX_HISTORY_ROWS;
+        if (extras != null) {
+            retentionMillis = extras.getLong(EXTRA_RETENTION_MILLIS, retentionMillis);
+            maxRows = extras.getLong(EXTRA_MAX_HISTORY_ROWS, maxRows);
+        }
+        long oldestKept = System.currentTimeMillis() - retentionMillis;
+        
+        SQLiteDatabase database = mBookStoreDbHelper.getWritableDatabase();
+        
+        // Newest row beyond the limit, found once by walking the primary key from its end
+        long lastOverflowing = -1;
+        Cursor overflowing = database.query(HistoryEntry.TABLE_NAME,
+                new String[]{HistoryEntry.COLUMN_SEQUENCE}, null, null, null, null,
+                HistoryEntry.COLUMN_SEQUENCE + " DESC", maxRows + ", 1");
+        try {
+            if (overflowing.moveToFirst()) {
+                lastOverflowing = overflowing.getLong(0);
+            }
+        } finally {
+            overflowing.close();
+        }
+        
+        int pruned = 0;
+        String[] columns = {HistoryEntry.COLUMN_SEQUENCE, HistoryEntry.COLUMN_CHANGED_AT};
+        while (true) {
+            long lastDue = -1;
+            int due = 0;
+            Cursor cursor = database.query(HistoryEntry.TABLE_NAME, columns, null, null, null,
+                    null, HistoryEntry.COLUMN_SEQUENCE, String.valueOf(HISTORY_PRUNE_CHUNK));
+            try {
+                while (cursor.moveToNext()
+                        && (cursor.getLong(0) <= lastOverflowing || cursor.getLong(1) < oldestKept)) {
+                    lastDue = cursor.getLong(0);
+                    due++;
+                }
+            } finally {
+                cursor.close();
+            }
+            
+            if (due == 0) {
+                break;
+            }
+            pruned += database.delete(HistoryEntry.TABLE_NAME, HistoryEntry.COLUMN_SEQUENCE + "<=?",
+                    new String[]{String.valueOf(lastDue)});
+            
+            // A chunk that was not due in full ends the rows to prune
+            if (due < HISTORY_PRUNE_CHUNK) {
+                break;
+            }
+        }
+        
+        Bundle result = new Bundle();
+        result.putInt(EXTRA_PRUNED_ROWS, pruned);
+        return result;
+    }
+    
+    /**
+     * Take a snapshot of the books at the start of every month since the last snapshot, or
+     * since the first period, up to the start of the previous month, each in its own
+     * transaction. Then drop the periods that closed by the last snapshot, a chunk at a time
+     * like {@link #pruneHistory(Bundle)}, since the snapshots answer for the times before it.
+     */
+    private Bundle compactPeriods() {
+        SQLiteDatabase database = mBookStoreDbHelper.getWritableDatabase();
+        
+        Calendar calendar = Calendar.getInstance();
+        calendar.add(Calendar.MONTH, -1);
+        long lastMonth = startOfMonth(calendar, calendar.getTimeInMillis());
+        
+        long lastSnapshot = DatabaseUtils.longForQuery(database, "SELECT COALESCE(MAX("
+                + BookStoreDbHelper.COLUMN_SNAPSHOT_AT + "), 0) FROM "
+                + BookStoreDbHelper.SNAPSHOT_MONTH_TABLE_NAME, null);
+        long firstPeriod = DatabaseUtils.longForQuery(database, "SELECT COALESCE(MIN("
+                + BookStoreDbHelper.COLUMN_VALID_FROM + "), 0) FROM "
+                + BookStoreDbHelper.PERIOD_TABLE_NAME, null);
+        
+        int months = 0;
+        if (lastSnapshot != 0 || firstPeriod != 0) {
+            // The first month that starts after the last snapshot, or when the first period does
+            long from = lastSnapshot != 0 ? lastSnapshot + 1 : firstPeriod;
+            long month = startOfMonth(calendar, from);
+            if (month < from) {
+                calendar.add(Calendar.MONTH, 1);
+                month = calendar.getTimeInMillis();
+            }
+            
+            StringBuilder columns = new StringBuilder();
+            for (String column : BookStoreDbHelper.HISTORY_COLUMNS) {
+                columns.append(", ").append(column);
+            }
+            SQLiteStatement snapshot = database.compileStatement("INSERT INTO "
+                    + BookStoreDbHelper.SNAPSHOT_TABLE_NAME + " ("
+                    + BookStoreDbHelper.COLUMN_SNAPSHOT_AT + ", "
+                    + BookStoreDbHelper.COLUMN_SNAPSHOT_BOOK_ID + columns + ") SELECT ?1, "
+                    + BookStoreDbHelper.COLUMN_PERIOD_BOOK_ID + columns + " FROM "
+                    + BookStoreDbHelper.PERIOD_TABLE_NAME + " WHERE "
+                    + BookStoreDbHelper.COLUMN_VALID_TO + " > ?1 AND "
+                    + BookStoreDbHelper.COLUMN_VALID_FROM + " <= ?1");
+            SQLiteStatement snapshotMonth = database.compileStatement("INSERT INTO "
+                    + BookStoreDbHelper.SNAPSHOT_MONTH_TABLE_NAME + " ("
+                    + BookStoreDbHelper.COLUMN_SNAPSHOT_AT + ") VALUES (?)");
+            try {
+                while (month <= lastMonth) {
+                    database.beginTransaction();
+                    try {
+                        snapshot.bindLong(1, month);
+                        snapshot.executeInsert();
+                        snapshotMonth.bindLong(1, month);
+                        snapshotMonth.executeInsert();
+                        database.setTransactionSuccessful();
+                    } finally {
+                        database.endTransaction();
+                    }
+                    months++;
+                    lastSnapshot = month;
+                    
+                    calendar.add(Calendar.MONTH, 1);
+                    month = calendar.getTimeInMillis();
+                }
+            } finally {
+                snapshot.close();
+                snapshotMonth.close();
+            }
+        }
+        
+        // The periods are stored in the order of their end, so every chunk is the start of
+        // the table
+        int compacted = 0;
+        String[] columns = {BookStoreDbHelper.COLUMN_VALID_TO};
+        String[] cutoff = {String.valueOf(lastSnapshot)};
+        while (lastSnapshot != 0) {
+            long lastDue = -1;
+            int due = 0;
+            Cursor cursor = database.query(BookStoreDbHelper.PERIOD_TABLE_NAME, columns,
+                    BookStoreDbHelper.COLUMN_VALID_TO + " <= ?", cutoff, null, null,
+                    BookStoreDbHelper.COLUMN_VALID_TO, String.valueOf(PERIOD_COMPACT_CHUNK));
+            try {
+                while (cursor.moveToNext()) {
+                    lastDue = cursor.getLong(0);
+                    due++;
+                }
+            } finally {
+                cursor.close();
+            }
+            
+            if (due == 0) {
+                break;
+            }
+            compacted += database.delete(BookStoreDbHelper.PERIOD_TABLE_NAME,
+                    BookStoreDbHelper.COLUMN_VALID_TO + " <= ?",
+                    new String[]{String.valueOf(lastDue)});
+            if (due < PERIOD_COMPACT_CHUNK) {
+                break;
+            }
+        }
+        
+        // Reads as of the times before the new snapshots now come from them
+        if (months > 0) {
+            notifyChange(BookEntry.CONTENT_URI);
+        }
+        
+        Bundle result = new Bundle();
+        result.putInt(EXTRA_SNAPSHOT_MONTHS, months);
+        result.putInt(EXTRA_COMPACTED_PERIODS, compacted);
+        return result;
+    }
+    
+    /**
+     * Set the calendar to the start of the month of the given time in the local time zone.
+     *
+     * @return the start of the month
+     */
+    private static long startOfMonth(Calendar calendar, long time) {
+        calendar.setTimeInMillis(time);
+        calendar.set(Calendar.DAY_OF_MONTH, 1);
+        calendar.set(Calendar.HOUR_OF_DAY, 0);
+        calendar.set(Calendar.MINUTE, 0);
+        calendar.set(Calendar.SECOND, 0);
+        calendar.set(Calendar.MILLISECOND, 0);
+        return calendar.getTimeInMillis();
+    }
+    
+    /**
+     * Change the price of the books of the filter with one UPDATE that computes every new price
+     * in SQL, instead of reading and writing the books one by one. Books whose price would not
+     * change are left alone, so they get no new version or history row. The count and the
+     * sample are read in the transaction of the update; a dry run only reads them, without a
+     * transaction.
+     */
+    private Bundle reprice(String filterUri, Bundle extras) {
+        int percent = 0;
+        int amount = 0;
+        int roundTo = 1;
+        boolean dryRun = false;
+        if (extras != null) {
+            percent = extras.getInt(EXTRA_PERCENT, percent);
+            amount = extras.getInt(EXTRA_AMOUNT, amount);
+            roundTo = extras.getInt(EXTRA_ROUND_TO, roundTo);
+            dryRun = extras.getBoolean(EXTRA_DRY_RUN);
+        }
+        if (percent == 0 && amount == 0) {
+            throw new IllegalArgumentException("Repricing requires a percent or an amount");
+        }
+        if (percent < -100) {
+            throw new IllegalArgumentException("Price cannot drop by more than 100%");
+        }
+        if (roundTo <= 0) {
+            throw new IllegalArgumentException("Prices must be rounded to a positive multiple");
+        }
+        
+        // The rule is made of validated numbers, so it is written into the statement
+        String newPrice = String.format(Locale.US,
+                "MAX(0, CAST(ROUND((%1$s * (100 + %2$d) / 100.0 + %3$d) / %4$d) AS INTEGER) * %4$d)",
+                BookEntry.COLUMN_BOOK_PRICE, percent, amount, roundTo);
+        
+        BookFilter filter = filterUri == null
+                ? new BookFilter()
+                : BookFilter.fromUri(Uri.parse(filterUri));
+        String selection = andSelection(filter.getSelection(),
+                newPrice + " <> " + BookEntry.COLUMN_BOOK_PRICE);
+        String[] selectionArgs = filter.isEmpty() ? null : filter.getSelectionArgs();
+        
+        Bundle result = new Bundle();
+        int repriced;
+        
+        // A dry run only reads, so it does not hold the write lock against the sales
+        if (dryRun) {
+            SQLiteDatabase database = mBookStoreDbHelper.getReadableDatabase();
+            putRepriceSample(database, result, newPrice, selection, selectionArgs);
+            repriced = (int) DatabaseUtils.queryNumEntries(database, BookEntry.TABLE_NAME,
+                    selection, selectionArgs);
+            result.putInt(EXTRA_REPRICED_BOOKS, repriced);
+            return result;
+        }
+        
+        SQLiteDatabase database = mBookStoreDbHelper.getWritableDatabase();
+        database.beginTransaction();
+        try {
+            putRepriceSample(database, result, newPrice, selection, selectionArgs);
+            
+            SQLiteStatement statement = database.compileStatement("UPDATE "
+                    + BookEntry.TABLE_NAME + " SET " + BookEntry.COLUMN_BOOK_PRICE + " = "
+                    + newPrice + " WHERE " + selection);
+            try {
+                if (selectionArgs != null) {
+                    statement.bindAllArgsAsStrings(selectionArgs);
+                }
+                repriced = statement.executeUpdateDelete();
+            } finally {
+                statement.close();
+            }
+            database.setTransactionSuccessful();
+        } finally {
+            database.endTransaction();
+        }
+        
+        // One notification for the whole change, however many books it touched
+        if (repriced != 0) {
+            notifyChange(BookEntry.CONTENT_URI);
+        }
+        
+        result.putInt(EXTRA_REPRICED_BOOKS, repriced);
+        return result;
+    }
+    
+    /**
+     * Put the first books the rule changes, with their old and new prices, into the result.
+     */
+    private static void putRepriceSample(SQLiteDatabase database, Bundle result, String newPrice,
+                                         String selection, String[] selectionArgs) {
+        Cursor sample = database.query(BookEntry.TABLE_NAME, new String[]{BookEntry._ID,
+                        BookEntry.COLUMN_BOOK_TITLE, BookEntry.COLUMN_BOOK_PRICE, newPrice},
+                selection, selectionArgs, null, null, BookEntry._ID,
+                String.valueOf(REPRICE_SAMPLE_SIZE));
+        try {
+            int count = sample.getCount();
+            long[] ids = new long[count];
+            String[] titles = new String[count];
+            int[] oldPrices = new int[count];
+            int[] newPrices = new int[count];
+            for (int i = 0; sample.moveToNext(); i++) {
+                ids[i] = sample.getLong(0);
+                titles[i] = sample.getString(1);
+                oldPrices[i] = sample.getInt(2);
+                newPrices[i] = sample.getInt(3);
+            }
+            result.putLongArray(EXTRA_SAMPLE_IDS, ids);
+            result.putStringArray(EXTRA_SAMPLE_TITLES, titles);
+            result.putIntArray(EXTRA_SAMPLE_OLD_PRICES, oldPrices);
+            result.putIntArray(EXTRA_SAMPLE_NEW_PRICES, newPrices);
+        } finally {
+            sample.close();
+        }
+    }
+    
+    /**
+     * Receive every line of a shipment in one transaction: the copies are added to the counter
+     * of this device for books that exist, and new titles are inserted with their copies. The
+     * row of the shipment is written in the same transaction, so a receipt that is retried
+     * after it committed finds the row and changes nothing. If a book must exist but does not,
+     * nothing is written and the missing ISBNs are returned.
+     */
+    private Bundle receiveShipment(String shipmentId, Bundle extras) {
+        if (shipmentId == null || shipmentId.isEmpty()) {
+            throw new IllegalArgumentException("Shipment requires an ID");
+        }
+        String[] isbns = extras == null ? null : extras.getStringArray(EXTRA_ISBNS);
+        int[] quantities = extras == null ? null : extras.getIntArray(EXTRA_QUANTITIES);
+        if (isbns == null || quantities == null || quantities.length != isbns.length) {
+            throw new IllegalArgumentException("Shipment requires an ISBN and a quantity per line");
+        }
+        // Normalized in a copy, the extras may be those of the caller
+        isbns = isbns.clone();
+        String[] titles = extras.getStringArray(EXTRA_TITLES);
+        int[] prices = extras.getIntArray(EXTRA_PRICES);
+        if (titles != null && (prices == null || titles.length != isbns.length
+                || prices.length != isbns.length)) {
+            throw new IllegalArgumentException("Shipment requires a title and a price per line");
+        }
+        String supplier = extras.getString(EXTRA_SUPPLIER);
+        String supplierPhone = extras.getString(EXTRA_SUPPLIER_PHONE);
+        
+        HashSet<String> seen = new HashSet<>();
+        for (int i = 0; i < isbns.length; i++) {
+            isbns[i] = BookEntry.normalizeIsbn(isbns[i]);
+            if (isbns[i] == null) {
+                throw new IllegalArgumentException("Shipment line requires a valid ISBN");
+            }
+            if (!seen.add(isbns[i])) {
+                throw new IllegalArgumentException("Shipment lists ISBN " + isbns[i] + " twice");
+            }
+            if (quantities[i] <= 0) {
+                throw new IllegalArgumentException("Shipment line requires a positive quantity");
+            }
+            if (titles != null && titles[i] != null) {
+                if (!InventoryRules.isValidPrice(prices[i])) {
+                    throw new IllegalArgumentException("New book requires valid price");
+                }
+                if (supplier == null || supplierPhone == null) {
+                    throw new IllegalArgumentException("New book requires a supplier and its phone");
+                }
+            }
+        }
+        
+        SQLiteDatabase database = mBookStoreDbHelper.getWritableDatabase();
+        Bundle result = new Bundle();
+        int copies = 0;
+        int newBooks = 0;
+        
+        // The transaction is exclusive, so two receipts of the same shipment cannot both miss
+        // its row
+        database.beginTransaction();
+        try {
+            Cursor received = database.query(ShipmentEntry.TABLE_NAME, new String[]{
+                            ShipmentEntry.COLUMN_COPIES, ShipmentEntry.COLUMN_NEW_BOOKS},
+                    ShipmentEntry.COLUMN_SHIPMENT_ID + "=?", new String[]{shipmentId},
+                    null, null, null);
+            try {
+                if (received.moveToFirst()) {
+                    result.putBoolean(EXTRA_ALREADY_RECEIVED, true);
+                    result.putInt(EXTRA_RECEIVED_COPIES, received.getInt(0));
+                    result.putInt(EXTRA_NEW_BOOKS, received.getInt(1));
+                    return result;
+                }
+            } finally {
+                received.close();
+            }
+            
+            // Resolve every line before writing any, so a missing book leaves nothing half done
+            long[] bookIds = new long[isbns.length];
+            ArrayList<String> unknown = new ArrayList<>();
+            SQLiteStatement findByIsbn = database.compileStatement("SELECT " + BookEntry._ID
+                    + " FROM " + BookEntry.TABLE_NAME + " WHERE " + BookEntry.COLUMN_BOOK_ISBN + " = ?");
+            try {
+                for (int i = 0; i < isbns.length; i++) {
+                    findByIsbn.bindString(1, isbns[i]);
+                    try {
+                        bookIds[i] = findByIsbn.simpleQueryForLong();
+                    } catch (SQLiteDoneException e) {
+                        bookIds[i] = -1;
+                        if (titles == null || titles[i] == null) {
+                            unknown.add(isbns[i]);
+                        }
+                    }
+                }
+            } finally {
+                findByIsbn.close();
+            }
+            if (!unknown.isEmpty()) {
+                result.putStringArray(EXTRA_UNKNOWN_ISBNS, unknown.toArray(new String[0]));
+                return result;
+            }
+            
+            for (int i = 0; i < isbns.length; i++) {
+                long bookId = bookIds[i];
+                if (bookId == -1) {
+                    ContentValues values = new ContentValues();
+                    values.put(BookEntry.COLUMN_BOOK_TITLE, titles[i]);
+                    values.put(BookEntry.COLUMN_BOOK_ISBN, isbns[i]);
+                    values.put(BookEntry.COLUMN_BOOK_PRICE, prices[i]);
+                    values.put(BookEntry.COLUMN_BOOK_QUANTITY, quantities[i]);
+                    values.put(BookEntry.COLUMN_BOOK_SUPPLIER_NAME, supplier);
+                    values.put(BookEntry.COLUMN_BOOK_SUPPLIER_PHONE, supplierPhone);
+                    bookId = database.insertOrThrow(BookEntry.TABLE_NAME, null, values);
+                    BookStoreDbHelper.indexTitle(database, bookId, titles[i]);
+                    newBooks++;
+                }
+                addToCounter(database, bookId, quantities[i]);
+                copies += quantities[i];
+            }
+            
+            ContentValues shipment = new ContentValues();
+            shipment.put(ShipmentEntry.COLUMN_SHIPMENT_ID, shipmentId);
+            shipment.put(ShipmentEntry.COLUMN_SUPPLIER, supplier);
+            shipment.put(ShipmentEntry.COLUMN_RECEIVED_AT, System.currentTimeMillis());
+            shipment.put(ShipmentEntry.COLUMN_LINES, isbns.length);
+            shipment.put(ShipmentEntry.COLUMN_COPIES, copies);
+            shipment.put(ShipmentEntry.COLUMN_NEW_BOOKS, newBooks);
+            database.insertOrThrow(ShipmentEntry.TABLE_NAME, null, shipment);
+            
+            database.setTransactionSuccessful();
+        } finally {
+            database.endTransaction();
+        }
+        
+        // One notification for the whole shipment
+        notifyChange(BookEntry.CONTENT_URI);
+        getContext().getContentResolver().notifyChange(ShipmentEntry.CONTENT_URI, null);
+        
+        result.putInt(EXTRA_RECEIVED_COPIES, copies);
+        result.putInt(EXTRA_NEW_BOOKS, newBooks);
+        return result;
+    }
+    
+    /**
+     * Move copies of books from one location to another in one short transaction. Every
+     * statement is bound to the key of one stock row, so it touches the two locations only.
+     * The copies are taken from the source only if it has enough of them, and nothing moves
+     * unless every book can be taken. The quantity of the books stays the same.
+     */
+    private Bundle transferStock(Bundle extras) {
+        long[] bookIds = extras == null ? null : extras.getLongArray(EXTRA_BOOK_IDS);
+        int[] quantities = extras == null ? null : extras.getIntArray(EXTRA_QUANTITIES);
+        if (bookIds == null || quantities == null || quantities.length != bookIds.length) {
+            throw new IllegalArgumentException("Transfer requires a book and a quantity per line");
+        }
+        long from = extras.getLong(EXTRA_FROM_LOCATION, -1);
+        long to = extras.getLong(EXTRA_TO_LOCATION, -1);
+        if (from == to) {
+            throw new IllegalArgumentException("Transfer requires two different locations");
+        }
+        for (int quantity : quantities) {
+            if (quantity <= 0) {
+                throw new IllegalArgumentException("Transfer line requires a positive quantity");
+            }
+        }
+        
+        SQLiteDatabase database = mBookStoreDbHelper.getWritableDatabase();
+        for (long location : new long[]{from, to}) {
+            if (DatabaseUtils.queryNumEntries(database, LocationEntry.TABLE_NAME,
+                    LocationEntry._ID + "=?", new String[]{String.valueOf(location)}) == 0) {
+                throw new IllegalArgumentException("Unknown location " + location);
+            }
+        }
+        
+        Bundle result = new Bundle();
+        int copies = 0;
+        database.beginTransaction();
+        try {
+            SQLiteStatement take = database.compileStatement("UPDATE " + StockEntry.TABLE_NAME
+                    + " SET " + StockEntry.COLUMN_QUANTITY + " = " + StockEntry.COLUMN_QUANTITY
+                    + " - ?1 WHERE " + StockEntry.COLUMN_LOCATION_ID + " = ?2 AND "
+                    + StockEntry.COLUMN_BOOK_ID + " = ?3 AND " + StockEntry.COLUMN_QUANTITY + " >= ?1");
+            SQLiteStatement create = database.compileStatement("INSERT OR IGNORE INTO "
+                    + StockEntry.TABLE_NAME + " (" + StockEntry.COLUMN_LOCATION_ID + ", "
+                    + StockEntry.COLUMN_BOOK_ID + ") VALUES (?, ?)");
+            SQLiteStatement put = database.compileStatement("UPDATE " + StockEntry.TABLE_NAME
+                    + " SET " + StockEntry.COLUMN_QUANTITY + " = " + StockEntry.COLUMN_QUANTITY
+                    + " + ? WHERE " + StockEntry.COLUMN_LOCATION_ID + " = ? AND "
+                    + StockEntry.COLUMN_BOOK_ID + " = ?");
+            ArrayList<Long> shortBooks = new ArrayList<>();
+            try {
+                for (int i = 0; i < bookIds.length; i++) {
+                    take.bindLong(1, quantities[i]);
+                    take.bindLong(2, from);
+                    take.bindLong(3, bookIds[i]);
+                    if (take.executeUpdateDelete() == 0) {
+                        shortBooks.add(bookIds[i]);
+                        continue;
+                    }
+                    
+                    create.bindLong(1, to);
+                    create.bindLong(2, bookIds[i]);
+                    create.executeInsert();
+                    put.bindLong(1, quantities[i]);
+                    put.bindLong(2, to);
+                    put.bindLong(3, bookIds[i]);
+                    put.executeUpdateDelete();
+                    copies += quantities[i];
+                }
+            } finally {
+                take.close();
+                create.close();
+                put.close();
+            }
+            
+            if (!shortBooks.isEmpty()) {
+                long[] ids = new long[shortBooks.size()];
+                for (int i = 0; i < ids.length; i++) {
+                    ids[i] = shortBooks.get(i);
+                }
+                result.putLongArray(EXTRA_SHORT_BOOK_IDS, ids);
+                return result;
+            }
+            database.setTransactionSuccessful();
+        } finally {
+            database.endTransaction();
+        }
+        
+        // The books themselves did not change, only where their copies are
+        getContext().getContentResolver().notifyChange(LocationEntry.CONTENT_URI, null);
+        
+        result.putInt(EXTRA_TRANSFERRED_COPIES, copies);
+        return result;
+    }
+    
+    /**
+     * Read the next chunk of books as one array per column. A cursor would copy every row
+     * through a CursorWindow and parcel the windows one by one; here the values are packed
+     * while walking the primary key, and repeated strings such as suppliers are sent once.
+     */
+    private Bundle readColumns(Bundle extras) {
+        String[] columns = extras == null ? null : extras.getStringArray(EXTRA_COLUMNS);
+        if (columns == null) {
+            throw new IllegalArgumentException("Columns to read are required");
+        }
+        long afterId = extras.getLong(EXTRA_AFTER_ID);
+        
+        boolean[] text = new boolean[columns.length];
+        String[] projection = new String[columns.length + 1];
+        projection[0] = BookEntry._ID;
+        for (int c = 0; c < columns.length; c++) {
+            if (TEXT_COLUMNS.contains(columns[c])) {
+                text[c] = true;
+            } else if (!INTEGER_COLUMNS.contains(columns[c])) {
+                throw new IllegalArgumentException("Cannot read column " + columns[c]);
+            }
+            projection[c + 1] = columns[c];
+        }
+        
+        // The quantities include the sales still in the ledger
+        mStockLedger.flush();
+        
+        SQLiteDatabase database = mBookStoreDbHelper.getReadableDatabase();
+        Cursor cursor = database.query(BookEntry.TABLE_NAME, projection, BookEntry._ID + ">?",
+                new String[]{String.valueOf(afterId)}, null, null, BookEntry._ID,
+                String.valueOf(COLUMN_CHUNK_ROWS + 1));
+        
+        long[] ids;
+        int[][] values = new int[columns.length][];
+        List<Map<String, Integer>> dictionaries = new ArrayList<>(columns.length);
+        int size = 0;
+        boolean last;
+        try {
+            int capacity = Math.min(cursor.getCount(), COLUMN_CHUNK_ROWS);
+            ids = new long[capacity];
+            for (int c = 0; c < columns.length; c++) {
+                values[c] = new int[capacity];
+                dictionaries.add(text[c] ? new LinkedHashMap<String, Integer>() : null);
+            }
+            
+            int bytes = 0;
+            while (size < capacity && bytes < COLUMN_CHUNK_BYTES && cursor.moveToNext()) {
+                ids[size] = cursor.getLong(0);
+                bytes += 8 + 4 * columns.length;
+                for (int c = 0; c < columns.length; c++) {
+                    if (!text[c]) {
+                        values[c][size] = cursor.getInt(c + 1);
+                        continue;
+                    }
+                    
+                    String value = cursor.getString(c + 1);
+                    Map<String, Integer> dictionary = dictionaries.get(c);
+                    Integer code = value == null ? Integer.valueOf(-1) : dictionary.get(value);
+                    if (code == null) {
+                        code = dictionary.size();
+                        dictionary.put(value, code);
+                        bytes += 8 + 2 * value.length();
+                    }
+                    values[c][size] = code;
+                }
+                size++;
+            }
+            
+            // The query asks for one row more than a chunk, so all rows read means no more
+            last = size == cursor.getCount();
+        } finally {
+            cursor.close();
+        }
+        
+        Bundle result = new Bundle();
+        result.putInt(EXTRA_ROW_COUNT, size);
+        result.putBoolean(EXTRA_LAST_CHUNK, last);
+        result.putLongArray(BookEntry._ID, Arrays.copyOf(ids, size));
+        for (int c = 0; c < columns.length; c++) {
+            result.putIntArray(columns[c], Arrays.copyOf(values[c], size));
+            if (text[c]) {
+                result.putStringArray(columns[c] + DICTIONARY_SUFFIX,
+                        dictionaries.get(c).keySet().toArray(new String[0]));
+            }
+        }
+        return result;
+    }
+    
+    private static Bundle backupResult(File backup) {
+        Bundle result = new Bundle();
+        result.putString(EXTRA_BACKUP_PATH, backup.getPath());
+        return result;
+    }
+    
     @Override
     public Cursor query(Uri uri, String[] projection, String selection, String[] selectionArgs,
                         String sortOrder) {
+        mDatabaseLock.readLock().lock();
+        try {
+            return queryLocked(uri, projection, selection, selectionArgs, sortOrder);
+        } finally {
+            mDatabaseLock.readLock().unlock();
+        }
+    }
+    
+    private Cursor queryLocked(Uri uri, String[] projection, String selection,
+                               String[] selectionArgs, String sortOrder) {
+        // Figure out if the URI matcher can match the URI to a specific code
+        int match = sUriMatcher.match(uri);
+        
+        // The list and single books are served from the cache while nothing has been written.
+        // The generation is read before the query, so that a result that raced with a write
+        // is not cached.
+        boolean cacheable = match == BOOKS || match == BOOK_ID;
+        String cacheKey = null;
+        long generation = 0;
+        if (cacheable) {
+            cacheKey = QueryCache.key(uri, projection, selection, selectionArgs, sortOrder);
+            Cursor cached = mQueryCache.get(cacheKey);
+            if (cached != null) {
+                cached.setNotificationUri(getContext().getContentResolver(), uri);
+                return cached;
+            }
+            generation = mQueryCache.getGeneration();
+        }
+        
         // Get readable database
         SQLiteDatabase database = mBookStoreDbHelper.getReadableDatabase();
         
         Cursor cursor;
         
-        // Figure out if the URI matcher can match the URI to a specific code
-        int match = sUriMatcher.match(uri);
         switch (match) {
             case BOOKS:
                 // For the BOOKS code, query the books table directly with the given
                 // projection, selection, selection arguments, and sort order. 
-                cursor = database.query(BookEntry.TABLE_NAME, projection, selection, selectionArgs,
-                        null, null, sortOrder);
+                // Conditions of a {@link BookFilter} in the URI are added to the selection.
+                BookFilter filter = BookFilter.fromUri(uri);
+                if (!filter.isEmpty()) {
+                    selection = andSelection(selection, filter.getSelection());
+                    selectionArgs = concatArgs(selectionArgs, filter.getSelectionArgs());
+                }
+                
+                cursor = database.query(queryBooksSource(database, uri, projection), projection,
+                        selection, selectionArgs, null, null, sortOrder);
                 break;
             case BOOK_ID:
                 // For the BOOK_ID code, extract out the ID from the URI.
                 selection = BookEntry._ID + "=?";
                 selectionArgs = new String[]{String.valueOf(ContentUris.parseId(uri))};
                 
+                cursor = database.query(queryBooksSource(database, uri, projection), projection,
+                        selection, selectionArgs, null, null, sortOrder);
+                break;
+            case BOOK_ISBN:
+                // For the BOOK_ISBN code, look the book up through the unique ISBN index.
+                // The ISBN is normalized like the stored ones; one without digits matches nothing.
+                String isbn = BookEntry.normalizeIsbn(uri.getLastPathSegment());
+                selection = BookEntry.COLUMN_BOOK_ISBN + "=?";
+                selectionArgs = new String[]{isbn == null ? "" : isbn};
+                
                 cursor = database.query(BookEntry.TABLE_NAME, projection, selection, selectionArgs,
                         null, null, sortOrder);
                 break;
+            case BOOK_COUNTERS:
+                // For the BOOK_COUNTERS code, return the counters of every device for the book.
+                selection = CounterEntry.COLUMN_BOOK_ID + "=?";
+                selectionArgs = new String[]{uri.getPathSegments().get(1)};
+                
+                cursor = database.query(CounterEntry.TABLE_NAME, projection, selection,
+                        selectionArgs, null, null, sortOrder);
+                break;
+            case STOCKTAKE:
+                cursor = database.query(StocktakeEntry.TABLE_NAME, projection, selection,
+                        selectionArgs, null, null, sortOrder);
+                break;
+            case SHIPMENTS:
+                cursor = database.query(ShipmentEntry.TABLE_NAME, projection, selection,
+                        selectionArgs, null, null, sortOrder != null ? sortOrder
+                                : ShipmentEntry.COLUMN_RECEIVED_AT + " DESC");
+                break;
+            case LOCATIONS:
+                cursor = database.query(LocationEntry.TABLE_NAME, projection, selection,
+                        selectionArgs, null, null, sortOrder);
+                break;
+            case LOCATION_ID:
+                selection = LocationEntry._ID + "=?";
+                selectionArgs = new String[]{String.valueOf(ContentUris.parseId(uri))};
+                
+                cursor = database.query(LocationEntry.TABLE_NAME, projection, selection,
+                        selectionArgs, null, null, sortOrder);
+                break;
+            case LOCATION_STOCK:
+            case BOOK_STOCK:
+                // The columns and order are fixed. Stock changes are notified on the locations.
+                cursor = database.rawQuery(match == LOCATION_STOCK ? LOCATION_STOCK_QUERY
+                        : BOOK_STOCK_QUERY, new String[]{uri.getPathSegments().get(1)});
+                cursor.setNotificationUri(getContext().getContentResolver(),
+                        LocationEntry.CONTENT_URI);
+                return cursor;
+            case BOOK_HISTORY:
+                // For the BOOK_HISTORY code, walk the (book, sequence) index, newest first.
+                // Sales still in the ledger are part of the history.
+                mStockLedger.flush();
+                selection = andSelection(selection, HistoryEntry.COLUMN_BOOK_ID + "=?");
+                selectionArgs = concatArgs(selectionArgs, new String[]{uri.getPathSegments().get(1)});
+                
+                cursor = database.query(HistoryEntry.TABLE_NAME, projection, selection,
+                        selectionArgs, null, null, sortOrder != null ? sortOrder
+                                : HistoryEntry.COLUMN_SEQUENCE + " DESC");
+                break;
+            case BOOK_SIMILAR:
+                cursor = querySimilar(database, uri);
+                break;
+            case BOOK_DUPLICATES:
+                cursor = queryDuplicates(database);
+                break;
+            case STOCKTAKE_DISCREPANCIES:
+                // Sales still in the ledger are compared too. The columns and order are fixed.
+                mStockLedger.flush();
+                cursor = database.rawQuery(STOCKTAKE_DISCREPANCIES_QUERY, null);
+                cursor.setNotificationUri(getContext().getContentResolver(),
+                        StocktakeEntry.CONTENT_URI);
+                return cursor;
             default:
                 throw new IllegalArgumentException("Cannot query unknown URI " + uri);
         }
         
+        // The first query is the last step of the cold start before binding, trace it
+        // including the window fill that the loader would otherwise do
+        if (mFirstQueryTraced.compareAndSet(false, true)) {
+            Trace.beginSection("BookStoreProvider.firstQuery");
+            try {
+                cursor.getCount();
+            } finally {
+                Trace.endSection();
+            }
+        }
+        
+        if (cacheable) {
+            cursor = mQueryCache.put(cacheKey, generation, cursor);
+        }
+        
         // Set notification URI on the Cursor.
         cursor.setNotificationUri(getContext().getContentResolver(), uri);
         
@@ -106,17 +1628,314 @@ public class BookStoreProvider extends ContentProvider {
         return cursor;
     }
     
+    /**
+     * Return the books table, or the books as they were at the time of the
+     * {@link BookEntry#PARAM_AS_OF} parameter of the URI: those of the periods that started by
+     * then and ended after it, read from one range of the period table. Once the periods of
+     * the time are compacted only the snapshots at the start of each month are left, so the
+     * time must be one of them. Only the id and the columns of the history can be projected.
+     */
+    private String queryBooksSource(SQLiteDatabase database, Uri uri, String[] projection) {
+        String asOf = uri.getQueryParameter(BookEntry.PARAM_AS_OF);
+        if (asOf == null) {
+            return BookEntry.TABLE_NAME;
+        }
+        long time;
+        try {
+            time = Long.parseLong(asOf);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid time " + asOf + " in " + uri);
+        }
+        if (projection != null) {
+            List<String> kept = Arrays.asList(BookStoreDbHelper.HISTORY_COLUMNS);
+            for (String column : projection) {
+                if (!BookEntry._ID.equals(column) && !kept.contains(column)) {
+                    throw new IllegalArgumentException("Column " + column
+                            + " is not kept as of a time in " + uri);
+                }
+            }
+        }
+        
+        // Sales still in the ledger are part of the periods
+        mStockLedger.flush();
+        
+        StringBuilder columns = new StringBuilder();
+        for (String column : BookStoreDbHelper.HISTORY_COLUMNS) {
+            columns.append(", ").append(column);
+        }
+        
+        long lastSnapshot = DatabaseUtils.longForQuery(database, "SELECT COALESCE(MAX("
+                + BookStoreDbHelper.COLUMN_SNAPSHOT_AT + "), 0) FROM "
+                + BookStoreDbHelper.SNAPSHOT_MONTH_TABLE_NAME, null);
+        if (time < lastSnapshot) {
+            // The snapshot after the time holds the books at the end of its month
+            long nextSnapshot = DatabaseUtils.longForQuery(database, "SELECT MIN("
+                    + BookStoreDbHelper.COLUMN_SNAPSHOT_AT + ") FROM "
+                    + BookStoreDbHelper.SNAPSHOT_MONTH_TABLE_NAME + " WHERE "
+                    + BookStoreDbHelper.COLUMN_SNAPSHOT_AT + " >= " + time, null);
+            if (nextSnapshot != time) {
+                throw new IllegalArgumentException("Time " + time + " is compacted, only the "
+                        + "start of its month is kept; the end of it is " + nextSnapshot);
+            }
+            return "(SELECT " + BookStoreDbHelper.COLUMN_SNAPSHOT_BOOK_ID + " AS " + BookEntry._ID
+                    + columns + " FROM " + BookStoreDbHelper.SNAPSHOT_TABLE_NAME + " WHERE "
+                    + BookStoreDbHelper.COLUMN_SNAPSHOT_AT + " = " + time + ")";
+        }
+        return "(SELECT " + BookStoreDbHelper.COLUMN_PERIOD_BOOK_ID + " AS " + BookEntry._ID
+                + columns + " FROM " + BookStoreDbHelper.PERIOD_TABLE_NAME + " WHERE "
+                + BookStoreDbHelper.COLUMN_VALID_TO + " > " + time + " AND "
+                + BookStoreDbHelper.COLUMN_VALID_FROM + " <= " + time + ")";
+    }
+    
+    /**
+     * Find the books whose title is similar to the one in the URI. The trigram index narrows
+     * them down to the books sharing enough trigrams, whose similarity is then computed.
+     */
+    private static Cursor querySimilar(SQLiteDatabase database, Uri uri) {
+        String title = uri.getQueryParameter(BookEntry.PARAM_TITLE);
+        if (title == null) {
+            throw new IllegalArgumentException("Similar books require a title");
+        }
+        String exclude = uri.getQueryParameter(BookEntry.PARAM_EXCLUDE);
+        long excludeId = exclude == null ? -1 : Long.parseLong(exclude);
+        
+        MatrixCursor result = new MatrixCursor(new String[]{
+                BookEntry._ID, BookEntry.COLUMN_BOOK_TITLE, BookEntry.COLUMN_SIMILARITY});
+        String[] trigrams = TitleTrigrams.trigrams(title);
+        if (trigrams.length == 0) {
+            return result;
+        }
+        
+        String[] lookup = Arrays.copyOf(trigrams, Math.min(trigrams.length, MAX_LOOKUP_TRIGRAMS));
+        String[] args = Arrays.copyOf(lookup, lookup.length + 1);
+        args[lookup.length] = String.valueOf(
+                TitleTrigrams.minShared(lookup.length, TitleTrigrams.DUPLICATE_THRESHOLD));
+        
+        StringBuilder placeholders = new StringBuilder();
+        for (int i = 0; i < lookup.length; i++) {
+            placeholders.append(i == 0 ? "?" : ", ?");
+        }
+        
+        Cursor candidates = database.rawQuery("SELECT b." + BookEntry._ID + ", b."
+                + BookEntry.COLUMN_BOOK_TITLE + " FROM (SELECT "
+                + BookStoreDbHelper.COLUMN_TRIGRAM_BOOK_ID + " FROM "
+                + BookStoreDbHelper.TRIGRAM_TABLE_NAME + " WHERE "
+                + BookStoreDbHelper.COLUMN_TRIGRAM + " IN (" + placeholders + ") GROUP BY "
+                + BookStoreDbHelper.COLUMN_TRIGRAM_BOOK_ID + " HAVING COUNT(*) >= ?) c JOIN "
+                + BookEntry.TABLE_NAME + " b ON b." + BookEntry._ID + " = c."
+                + BookStoreDbHelper.COLUMN_TRIGRAM_BOOK_ID, args);
+        
+        List<Object[]> similar = new ArrayList<>();
+        try {
+            while (candidates.moveToNext()) {
+                long id = candidates.getLong(0);
+                String candidate = candidates.getString(1);
+                double similarity = TitleTrigrams.similarity(trigrams, TitleTrigrams.trigrams(candidate));
+                if (id != excludeId && similarity >= TitleTrigrams.DUPLICATE_THRESHOLD) {
+                    similar.add(new Object[]{id, candidate, similarity});
+                }
+            }
+        } finally {
+            candidates.close();
+        }
+        
+        sortBySimilarity(similar, 2);
+        for (int i = 0; i < similar.size() && i < MAX_SIMILAR_BOOKS; i++) {
+            result.addRow(similar.get(i));
+        }
+        return result;
+    }
+    
+    /**
+     * Find every pair of books with similar titles. The titles are read once and compared
+     * only within the blocks formed by their rarest trigrams, see {@link DuplicateTitleFinder}.
+     */
+    private static Cursor queryDuplicates(SQLiteDatabase database) {
+        DuplicateTitleFinder finder = new DuplicateTitleFinder(TitleTrigrams.DUPLICATE_THRESHOLD);
+        final Map<Long, String> titles = new HashMap<>();
+        Cursor cursor = database.query(BookEntry.TABLE_NAME,
+                new String[]{BookEntry._ID, BookEntry.COLUMN_BOOK_TITLE},
+                null, null, null, null, null);
+        try {
+            while (cursor.moveToNext()) {
+                titles.put(cursor.getLong(0), cursor.getString(1));
+                finder.add(cursor.getLong(0), cursor.getString(1));
+            }
+        } finally {
+            cursor.close();
+        }
+        
+        final List<Object[]> pairs = new ArrayList<>();
+        finder.find(new DuplicateTitleFinder.Listener() {
+            @Override
+            public void onDuplicate(long id, long otherId, double similarity) {
+                pairs.add(new Object[]{id, titles.get(id), otherId, titles.get(otherId), similarity});
+            }
+        });
+        sortBySimilarity(pairs, 4);
+        
+        MatrixCursor result = new MatrixCursor(new String[]{
+                BookEntry._ID, BookEntry.COLUMN_BOOK_TITLE, BookEntry.COLUMN_DUPLICATE_ID,
+                BookEntry.COLUMN_DUPLICATE_TITLE, BookEntry.COLUMN_SIMILARITY}, pairs.size());
+        for (Object[] pair : pairs) {
+            result.addRow(pair);
+        }
+        return result;
+    }
+    
+    /**
+     * Sort rows by the similarity in the given column, the most similar first.
+     */
+    private static void sortBySimilarity(List<Object[]> rows, final int column) {
+        Collections.sort(rows, new Comparator<Object[]>() {
+            @Override
+            public int compare(Object[] a, Object[] b) {
+                return Double.compare((Double) b[column], (Double) a[column]);
+            }
+        });
+    }
+    
     @Override
     public Uri insert(Uri uri, ContentValues contentValues) {
+        mDatabaseLock.readLock().lock();
+        try {
+            return insertLocked(uri, contentValues);
+        } finally {
+            mDatabaseLock.readLock().unlock();
+        }
+    }
+    
+    private Uri insertLocked(Uri uri, ContentValues contentValues) {
         final int match = sUriMatcher.match(uri);
         switch (match) {
             case BOOKS:
                 return insertBook(uri, contentValues);
+            case STOCKTAKE:
+                return insertCounts(new ContentValues[]{contentValues}) == 1
+                        ? StocktakeEntry.buildCountUri(contentValues.getAsLong(StocktakeEntry.COLUMN_BOOK_ID))
+                        : null;
+            case LOCATIONS:
+                return insertLocation(uri, contentValues);
             default:
                 throw new IllegalArgumentException("Insertion is not supported for " + uri);
         }
     }
     
+    /**
+     * Counts of a stocktake are added in a single transaction; other rows are inserted one
+     * at a time.
+     */
+    @Override
+    public int bulkInsert(Uri uri, ContentValues[] values) {
+        if (sUriMatcher.match(uri) == STOCKTAKE) {
+            mDatabaseLock.readLock().lock();
+            try {
+                return insertCounts(values);
+            } finally {
+                mDatabaseLock.readLock().unlock();
+            }
+        }
+        return super.bulkInsert(uri, values);
+    }
+    
+    /**
+     * Add counted quantities to the stocktake in one transaction. Every count names its book
+     * either by ID or by ISBN; the ID of the book is put into the values of a count by ISBN.
+     * Return the number of counts whose book was found.
+     */
+    private int insertCounts(ContentValues[] values) {
+        for (ContentValues count : values) {
+            if (!InventoryRules.isValidQuantity(count.getAsInteger(StocktakeEntry.COLUMN_COUNTED))) {
+                throw new IllegalArgumentException("Count requires valid quantity");
+            }
+            if (count.getAsLong(StocktakeEntry.COLUMN_BOOK_ID) == null
+                    && BookEntry.normalizeIsbn(count.getAsString(BookEntry.COLUMN_BOOK_ISBN)) == null) {
+                throw new IllegalArgumentException("Count requires a book ID or an ISBN");
+            }
+        }
+        
+        SQLiteDatabase database = mBookStoreDbHelper.getWritableDatabase();
+        
+        int rowsInserted = 0;
+        database.beginTransaction();
+        try {
+            SQLiteStatement findById = database.compileStatement("SELECT " + BookEntry._ID
+                    + " FROM " + BookEntry.TABLE_NAME + " WHERE " + BookEntry._ID + " = ?");
+            SQLiteStatement findByIsbn = database.compileStatement("SELECT " + BookEntry._ID
+                    + " FROM " + BookEntry.TABLE_NAME + " WHERE " + BookEntry.COLUMN_BOOK_ISBN + " = ?");
+            SQLiteStatement create = database.compileStatement("INSERT OR IGNORE INTO "
+                    + StocktakeEntry.TABLE_NAME + " (" + StocktakeEntry.COLUMN_BOOK_ID + ") VALUES (?)");
+            
+            // A book found on several shelves is counted on each of them
+            SQLiteStatement add = database.compileStatement("UPDATE " + StocktakeEntry.TABLE_NAME
+                    + " SET " + StocktakeEntry.COLUMN_COUNTED + " = " + StocktakeEntry.COLUMN_COUNTED
+                    + " + ? WHERE " + StocktakeEntry.COLUMN_BOOK_ID + " = ?");
+            try {
+                for (ContentValues count : values) {
+                    Long bookId = count.getAsLong(StocktakeEntry.COLUMN_BOOK_ID);
+                    SQLiteStatement find;
+                    if (bookId != null) {
+                        find = findById;
+                        find.bindLong(1, bookId);
+                    } else {
+                        find = findByIsbn;
+                        find.bindString(1, BookEntry.normalizeIsbn(
+                                count.getAsString(BookEntry.COLUMN_BOOK_ISBN)));
+                    }
+                    
+                    try {
+                        bookId = find.simpleQueryForLong();
+                    } catch (SQLiteDoneException e) {
+                        continue;
+                    }
+                    count.put(StocktakeEntry.COLUMN_BOOK_ID, bookId);
+                    
+                    create.bindLong(1, bookId);
+                    create.executeInsert();
+                    add.bindLong(1, count.getAsInteger(StocktakeEntry.COLUMN_COUNTED));
+                    add.bindLong(2, bookId);
+                    add.executeUpdateDelete();
+                    rowsInserted++;
+                }
+            } finally {
+                findById.close();
+                findByIsbn.close();
+                create.close();
+                add.close();
+            }
+            
+            database.setTransactionSuccessful();
+        } finally {
+            database.endTransaction();
+        }
+        
+        if (rowsInserted != 0) {
+            getContext().getContentResolver().notifyChange(StocktakeEntry.CONTENT_URI, null);
+        }
+        
+        return rowsInserted;
+    }
+    
+    /**
+     * Insert a location with the given name. Return its URI, or null if the name is taken.
+     */
+    private Uri insertLocation(Uri uri, ContentValues values) {
+        String name = values.getAsString(LocationEntry.COLUMN_LOCATION_NAME);
+        if (name == null || name.isEmpty()) {
+            throw new IllegalArgumentException("Location requires a name");
+        }
+        
+        SQLiteDatabase database = mBookStoreDbHelper.getWritableDatabase();
+        long id = database.insert(LocationEntry.TABLE_NAME, null, values);
+        if (id == -1) {
+            Log.e(LOG_TAG, "Failed to insert row for " + uri);
+            return null;
+        }
+        
+        getContext().getContentResolver().notifyChange(uri, null);
+        return ContentUris.withAppendedId(uri, id);
+    }
+    
     /**
      * Insert a book into the database with the given content values. Return the new content URI
      * for that specific row in the database.
@@ -130,13 +1949,13 @@ public class BookStoreProvider extends ContentProvider {
         
         // Check that the price is valid
         Integer price = values.getAsInteger(BookEntry.COLUMN_BOOK_PRICE);
-        if (price == null || price < 0) {
+        if (!InventoryRules.isValidPrice(price)) {
             throw new IllegalArgumentException("Book requires valid price");
         }
         
         // Check that the quantity is valid
         Integer quantity = values.getAsInteger(BookEntry.COLUMN_BOOK_QUANTITY);
-        if (quantity == null || quantity < 0) {
+        if (!InventoryRules.isValidQuantity(quantity)) {
             throw new IllegalArgumentException("Book requires valid quantity");
         }
         
@@ -152,20 +1971,35 @@ public class BookStoreProvider extends ContentProvider {
             throw new IllegalArgumentException("Requires valid phone of supplier");
         }
         
+        // Store the ISBN in its normalized form, so that scans always match it
+        normalizeIsbn(values);
+        
         // Get writeable database
         SQLiteDatabase database = mBookStoreDbHelper.getWritableDatabase();
         
-        // Insert the new book with the given values
-        long id = database.insert(BookEntry.TABLE_NAME, null, values);
-        // If the ID is -1, then the insertion failed. Log an error and return null.
-        if (id == -1) {
-            Log.e(LOG_TAG, "Failed to insert row for " + uri);
+        long id;
+        database.beginTransaction();
+        try {
+            // Insert the new book with the given values
+            id = database.insert(BookEntry.TABLE_NAME, null, values);
+            // If the ID is -1, then the insertion failed. Log an error and return null.
+            if (id == -1) {
+                Log.e(LOG_TAG, "Failed to insert row for " + uri);
+                
+                return null;
+            }
             
-            return null;
+            // The initial quantity is the first increment made by this device
+            addToCounter(database, id, quantity);
+            BookStoreDbHelper.indexTitle(database, id, title);
+            
+            database.setTransactionSuccessful();
+        } finally {
+            database.endTransaction();
         }
         
         // Notify all listeners that the data has changed for the book content URI
-        getContext().getContentResolver().notifyChange(uri, null);
+        notifyChange(uri);
         
         // Return the new URI with the ID (of the newly inserted row) appended at the end
         return ContentUris.withAppendedId(uri, id);
@@ -174,6 +2008,16 @@ public class BookStoreProvider extends ContentProvider {
     @Override
     public int update(Uri uri, ContentValues contentValues, String selection,
                       String[] selectionArgs) {
+        mDatabaseLock.readLock().lock();
+        try {
+            return updateLocked(uri, contentValues, selection, selectionArgs);
+        } finally {
+            mDatabaseLock.readLock().unlock();
+        }
+    }
+    
+    private int updateLocked(Uri uri, ContentValues contentValues, String selection,
+                             String[] selectionArgs) {
         final int match = sUriMatcher.match(uri);
         
         switch (match) {
@@ -185,6 +2029,16 @@ public class BookStoreProvider extends ContentProvider {
                 selectionArgs = new String[]{String.valueOf(ContentUris.parseId(uri))};
                 
                 return updateBook(uri, contentValues, selection, selectionArgs);
+            case BOOK_QUANTITY:
+                return updateQuantity(uri, contentValues);
+            case BOOK_ISBN:
+                return updateQuantityByIsbn(uri, contentValues);
+            case BOOK_COUNTERS:
+                return mergeCounters(uri, contentValues);
+            case STOCKTAKE_ID:
+                return updateAccepted(uri, contentValues);
+            case LOCATION_BOOK_STOCK:
+                return updateLocationStock(uri, contentValues);
             default:
                 throw new IllegalArgumentException("Update is not supported for " + uri);
         }
@@ -209,7 +2063,7 @@ public class BookStoreProvider extends ContentProvider {
         // check that the price value is valid.
         if (values.containsKey(BookEntry.COLUMN_BOOK_PRICE)) {
             Integer price = values.getAsInteger(BookEntry.COLUMN_BOOK_PRICE);
-            if (price == null || price < 0) {
+            if (!InventoryRules.isValidPrice(price)) {
                 throw new IllegalArgumentException("Book requires valid price");
             }
         }
@@ -218,7 +2072,7 @@ public class BookStoreProvider extends ContentProvider {
         // check that the quantity value is valid.
         if (values.containsKey(BookEntry.COLUMN_BOOK_QUANTITY)) {
             Integer quantity = values.getAsInteger(BookEntry.COLUMN_BOOK_QUANTITY);
-            if (quantity == null || quantity < 0) {
+            if (!InventoryRules.isValidQuantity(quantity)) {
                 throw new IllegalArgumentException("Book requires valid quantity");
             }
         }
@@ -241,6 +2095,22 @@ public class BookStoreProvider extends ContentProvider {
             }
         }
         
+        // If the {@link BookEntry#COLUMN_BOOK_ISBN} key is present, normalize it.
+        normalizeIsbn(values);
+        
+        // If the {@link BookEntry#COLUMN_BOOK_VERSION} key is present, it is the version the
+        // change is based on: only update the books that have not been changed since.
+        if (values.containsKey(BookEntry.COLUMN_BOOK_VERSION)) {
+            Long version = values.getAsLong(BookEntry.COLUMN_BOOK_VERSION);
+            if (version == null) {
+                throw new IllegalArgumentException("Book requires valid version");
+            }
+            values.remove(BookEntry.COLUMN_BOOK_VERSION);
+            
+            selection = andSelection(selection, BookEntry.COLUMN_BOOK_VERSION + "=?");
+            selectionArgs = concatArgs(selectionArgs, new String[]{String.valueOf(version)});
+        }
+        
         // If there are no values to update, then don't try to update the database
         if (values.size() == 0) {
             return 0;
@@ -249,21 +2119,591 @@ public class BookStoreProvider extends ContentProvider {
         // Otherwise, get writable database to update the data
         SQLiteDatabase database = mBookStoreDbHelper.getWritableDatabase();
         
-        // Perform the update on the database and get the number of rows affected
-        int rowsUpdated = database.update(BookEntry.TABLE_NAME, values, selection, selectionArgs);
+        // Sales still in the ledger are part of a quantity being replaced. A batch cannot wait
+        // for the committer, which waits for its transaction.
+        if (values.containsKey(BookEntry.COLUMN_BOOK_QUANTITY) && !database.inTransaction()) {
+            mStockLedger.flush();
+        }
+        
+        // Covers replaced by the update are deleted once it is committed
+        List<String> oldCovers = new ArrayList<>();
+        
+        int rowsUpdated = 0;
+        database.beginTransaction();
+        try {
+            if (values.containsKey(BookEntry.COLUMN_BOOK_COVER)) {
+                oldCovers = queryCovers(database, selection, selectionArgs);
+                oldCovers.remove(values.getAsString(BookEntry.COLUMN_BOOK_COVER));
+            }
+            
+            Integer quantity = values.getAsInteger(BookEntry.COLUMN_BOOK_QUANTITY);
+            values.remove(BookEntry.COLUMN_BOOK_QUANTITY);
+            Integer delta = values.getAsInteger(BookEntry.QUANTITY_DELTA);
+            values.remove(BookEntry.QUANTITY_DELTA);
+            
+            // The books whose title may change, found before the version in the selection moves
+            List<Long> retitled = values.containsKey(BookEntry.COLUMN_BOOK_TITLE)
+                    ? queryIds(database, selection, selectionArgs)
+                    : Collections.<Long>emptyList();
+            
+            // An absolute quantity is turned into a change of the counter of this device,
+            // so that it can be merged with changes made on other devices. This runs before
+            // the other columns are updated, because that changes the version. A book with
+            // fewer copies than are taken away rolls back the whole update.
+            if (quantity != null || delta != null) {
+                Cursor cursor = database.query(BookEntry.TABLE_NAME,
+                        new String[]{BookEntry._ID, BookEntry.COLUMN_BOOK_QUANTITY},
+                        selection, selectionArgs, null, null, null);
+                try {
+                    while (cursor.moveToNext()) {
+                        if (addToStock(database, cursor.getLong(0),
+                                delta != null ? delta : quantity - cursor.getLong(1)) == 0) {
+                            return 0;
+                        }
+                    }
+                    rowsUpdated = cursor.getCount();
+                } finally {
+                    cursor.close();
+                }
+            }
+            
+            // Perform the update on the database and get the number of rows affected.
+            // A duplicate ISBN or a changed version leaves the books unchanged and rolls
+            // back the quantity change.
+            if (values.size() != 0) {
+                rowsUpdated = database.updateWithOnConflict(BookEntry.TABLE_NAME, values,
+                        selection, selectionArgs, SQLiteDatabase.CONFLICT_IGNORE);
+                if (rowsUpdated == 0) {
+                    return 0;
+                }
+            }
+            
+            // Index the titles as stored, since a conflicting row keeps its old title
+            for (long id : retitled) {
+                BookStoreDbHelper.indexTitle(database, id, queryTitle(database, id));
+            }
+            
+            database.setTransactionSuccessful();
+        } finally {
+            database.endTransaction();
+            releaseReservations(database);
+        }
+        
+        deleteCovers(oldCovers);
         
         // If 1 or more rows were updated, then notify all listeners that the data at the
         // given URI has changed
         if (rowsUpdated != 0) {
-            getContext().getContentResolver().notifyChange(uri, null);
+            notifyChange(uri);
         }
         
         // Return the number of rows updated
         return rowsUpdated;
     }
     
+    private static List<Long> queryIds(SQLiteDatabase database, String selection,
+                                       String[] selectionArgs) {
+        List<Long> ids = new ArrayList<>();
+        Cursor cursor = database.query(BookEntry.TABLE_NAME, new String[]{BookEntry._ID},
+                selection, selectionArgs, null, null, null);
+        try {
+            while (cursor.moveToNext()) {
+                ids.add(cursor.getLong(0));
+            }
+        } finally {
+            cursor.close();
+        }
+        return ids;
+    }
+    
+    private static String queryTitle(SQLiteDatabase database, long id) {
+        Cursor cursor = database.query(BookEntry.TABLE_NAME,
+                new String[]{BookEntry.COLUMN_BOOK_TITLE}, BookEntry._ID + "=?",
+                new String[]{String.valueOf(id)}, null, null, null);
+        try {
+            return cursor.moveToFirst() ? cursor.getString(0) : null;
+        } finally {
+            cursor.close();
+        }
+    }
+    
+    /**
+     * Add the delta passed under {@link BookEntry#QUANTITY_DELTA} to the quantity of a book.
+     * Return the number of rows that were successfully updated.
+     */
+    private int updateQuantity(Uri uri, ContentValues values) {
+        Integer delta = values.getAsInteger(BookEntry.QUANTITY_DELTA);
+        if (delta == null) {
+            throw new IllegalArgumentException("Quantity change requires a delta");
+        }
+        
+        long bookId = Long.parseLong(uri.getPathSegments().get(1));
+        
+        SQLiteDatabase database = mBookStoreDbHelper.getWritableDatabase();
+        
+        // A sale outside of a batch is checked against the ledger and committed with others
+        if (delta < 0 && !database.inTransaction()) {
+            return mStockLedger.sell(bookId, -delta) ? 1 : 0;
+        }
+        
+        int rowsUpdated;
+        database.beginTransaction();
+        try {
+            rowsUpdated = addToStock(database, bookId, delta);
+            database.setTransactionSuccessful();
+        } finally {
+            database.endTransaction();
+            releaseReservations(database);
+        }
+        
+        if (rowsUpdated != 0) {
+            notifyBookChanged(bookId);
+        }
+        
+        return rowsUpdated;
+    }
+    
+    /**
+     * Add the delta passed under {@link BookEntry#QUANTITY_DELTA} to the copies of a book at a
+     * location and to the quantity of the book, in one transaction. Return 0 and change
+     * nothing if the location or the book does not exist, or if the location has fewer copies
+     * than are sold.
+     */
+    private int updateLocationStock(Uri uri, ContentValues values) {
+        Integer delta = values.getAsInteger(BookEntry.QUANTITY_DELTA);
+        if (delta == null) {
+            throw new IllegalArgumentException("Quantity change requires a delta");
+        }
+        
+        List<String> segments = uri.getPathSegments();
+        long locationId = Long.parseLong(segments.get(1));
+        long bookId = Long.parseLong(segments.get(3));
+        
+        SQLiteDatabase database = mBookStoreDbHelper.getWritableDatabase();
+        
+        int rowsUpdated = 0;
+        database.beginTransaction();
+        try {
+            database.execSQL("INSERT OR IGNORE INTO " + StockEntry.TABLE_NAME + " ("
+                            + StockEntry.COLUMN_LOCATION_ID + ", " + StockEntry.COLUMN_BOOK_ID
+                            + ") SELECT ?1, ?2 WHERE EXISTS (SELECT 1 FROM "
+                            + LocationEntry.TABLE_NAME + " WHERE " + LocationEntry._ID + " = ?1)",
+                    new Object[]{locationId, bookId});
+            
+            SQLiteStatement statement = database.compileStatement("UPDATE "
+                    + StockEntry.TABLE_NAME + " SET " + StockEntry.COLUMN_QUANTITY + " = "
+                    + StockEntry.COLUMN_QUANTITY + " + ?1 WHERE " + StockEntry.COLUMN_LOCATION_ID
+                    + " = ?2 AND " + StockEntry.COLUMN_BOOK_ID + " = ?3 AND "
+                    + StockEntry.COLUMN_QUANTITY + " + ?1 >= 0");
+            try {
+                statement.bindLong(1, delta);
+                statement.bindLong(2, locationId);
+                statement.bindLong(3, bookId);
+                if (statement.executeUpdateDelete() != 0) {
+                    rowsUpdated = addToStock(database, bookId, delta);
+                }
+            } finally {
+                statement.close();
+            }
+            
+            // A missing or short book leaves a stock row behind, so it is rolled back too
+            if (rowsUpdated != 0) {
+                database.setTransactionSuccessful();
+            }
+        } finally {
+            database.endTransaction();
+            releaseReservations(database);
+        }
+        
+        if (rowsUpdated != 0) {
+            notifyBookChanged(bookId);
+            getContext().getContentResolver().notifyChange(LocationEntry.CONTENT_URI, null);
+        }
+        
+        return rowsUpdated;
+    }
+    
+    /**
+     * Add the delta passed under {@link BookEntry#QUANTITY_DELTA} to the quantity of the book
+     * with the ISBN given in the URI. Return 0 and change nothing if no book has this ISBN or
+     * if the book has fewer copies than are sold.
+     */
+    private int updateQuantityByIsbn(Uri uri, ContentValues values) {
+        Integer delta = values.getAsInteger(BookEntry.QUANTITY_DELTA);
+        if (delta == null) {
+            throw new IllegalArgumentException("Quantity change requires a delta");
+        }
+        
+        // The ISBN is looked up as it is stored, without separators
+        String isbn = BookEntry.normalizeIsbn(uri.getLastPathSegment());
+        if (isbn == null) {
+            return 0;
+        }
+        
+        SQLiteDatabase database = mBookStoreDbHelper.getWritableDatabase();
+        
+        // Resolve the book with a single probe of the unique ISBN index
+        long bookId = -1;
+        Cursor cursor = database.query(BookEntry.TABLE_NAME, new String[]{BookEntry._ID},
+                BookEntry.COLUMN_BOOK_ISBN + "=?", new String[]{isbn}, null, null, null);
+        try {
+            if (cursor.moveToFirst()) {
+                bookId = cursor.getLong(0);
+            }
+        } finally {
+            cursor.close();
+        }
+        if (bookId == -1) {
+            return 0;
+        }
+        
+        // A sale outside of a batch is checked against the ledger and committed with others
+        if (delta < 0 && !database.inTransaction()) {
+            return mStockLedger.sell(bookId, -delta) ? 1 : 0;
+        }
+        
+        int rowsUpdated = 0;
+        database.beginTransaction();
+        try {
+            // A sale in a batch is rejected if the book has fewer copies than are sold
+            rowsUpdated = addToStock(database, bookId, delta);
+            database.setTransactionSuccessful();
+        } finally {
+            database.endTransaction();
+            releaseReservations(database);
+        }
+        
+        if (rowsUpdated != 0) {
+            notifyBookChanged(bookId);
+        }
+        
+        return rowsUpdated;
+    }
+    
+    /**
+     * Accept or reject the count of the book in the URI. Return the number of counts updated.
+     */
+    private int updateAccepted(Uri uri, ContentValues values) {
+        Boolean accepted = values.getAsBoolean(StocktakeEntry.COLUMN_ACCEPTED);
+        if (accepted == null || values.size() != 1) {
+            throw new IllegalArgumentException("Only the acceptance of a count can be updated");
+        }
+        
+        ContentValues update = new ContentValues();
+        update.put(StocktakeEntry.COLUMN_ACCEPTED, accepted ? 1 : 0);
+        int rowsUpdated = mBookStoreDbHelper.getWritableDatabase().update(StocktakeEntry.TABLE_NAME,
+                update, StocktakeEntry.COLUMN_BOOK_ID + "=?",
+                new String[]{String.valueOf(ContentUris.parseId(uri))});
+        
+        if (rowsUpdated != 0) {
+            getContext().getContentResolver().notifyChange(StocktakeEntry.CONTENT_URI, null);
+        }
+        return rowsUpdated;
+    }
+    
+    /**
+     * Replace the ISBN in the given values, if any, with its normalized form.
+     */
+    private static void normalizeIsbn(ContentValues values) {
+        if (values.containsKey(BookEntry.COLUMN_BOOK_ISBN)) {
+            String isbn = BookEntry.normalizeIsbn(values.getAsString(BookEntry.COLUMN_BOOK_ISBN));
+            if (isbn == null) {
+                values.putNull(BookEntry.COLUMN_BOOK_ISBN);
+            } else {
+                values.put(BookEntry.COLUMN_BOOK_ISBN, isbn);
+            }
+        }
+    }
+    
+    /**
+     * Merge the counter of one device, received from another replica, into the counters
+     * of a book. Return the number of books whose quantity was updated.
+     */
+    private int mergeCounters(Uri uri, ContentValues values) {
+        String deviceId = values.getAsString(CounterEntry.COLUMN_DEVICE_ID);
+        Long increments = values.getAsLong(CounterEntry.COLUMN_INCREMENTS);
+        Long decrements = values.getAsLong(CounterEntry.COLUMN_DECREMENTS);
+        if (deviceId == null || increments == null || increments < 0
+                || decrements == null || decrements < 0) {
+            throw new IllegalArgumentException("Merge requires a valid device counter");
+        }
+        
+        long bookId = Long.parseLong(uri.getPathSegments().get(1));
+        
+        SQLiteDatabase database = mBookStoreDbHelper.getWritableDatabase();
+        
+        int rowsUpdated;
+        database.beginTransaction();
+        try {
+            database.execSQL("INSERT OR IGNORE INTO " + CounterEntry.TABLE_NAME + " ("
+                            + CounterEntry.COLUMN_BOOK_ID + ", "
+                            + CounterEntry.COLUMN_DEVICE_ID + ") VALUES (?, ?)",
+                    new Object[]{bookId, deviceId});
+            
+            // Counts only ever grow, so the maximum of both replicas is the merged value
+            database.execSQL("UPDATE " + CounterEntry.TABLE_NAME + " SET "
+                            + CounterEntry.COLUMN_INCREMENTS + " = MAX("
+                            + CounterEntry.COLUMN_INCREMENTS + ", ?), "
+                            + CounterEntry.COLUMN_DECREMENTS + " = MAX("
+                            + CounterEntry.COLUMN_DECREMENTS + ", ?) WHERE "
+                            + CounterEntry.COLUMN_BOOK_ID + "=? AND "
+                            + CounterEntry.COLUMN_DEVICE_ID + "=?",
+                    new Object[]{increments, decrements, bookId, deviceId});
+            
+            rowsUpdated = refreshQuantity(database, bookId);
+            if (rowsUpdated != 0 && trimStock(database, bookId) != 0) {
+                mStockTrimmed.set(true);
+            }
+            database.setTransactionSuccessful();
+        } finally {
+            database.endTransaction();
+        }
+        
+        if (rowsUpdated != 0) {
+            notifyBookChanged(bookId);
+        }
+        
+        return rowsUpdated;
+    }
+    
+    /**
+     * Add a delta to the quantity of a book like {@link #addToCounter}, but take the copies of
+     * a decrement from the ledger first, so that no sale made meanwhile counts them. Must be
+     * called inside a transaction, followed by {@link #releaseReservations} once it has ended.
+     * Return 0 and change nothing if the book has fewer copies than are taken.
+     */
+    private int addToStock(SQLiteDatabase database, long bookId, long delta) {
+        if (delta >= 0) {
+            return addToCounter(database, bookId, delta);
+        }
+        
+        if (!mStockLedger.reserve(bookId, (int) -delta)) {
+            return 0;
+        }
+        mReservations.get().add(new long[]{bookId, -delta});
+        return addToCounter(database, bookId, delta);
+    }
+    
+    /**
+     * Give the copies reserved by {@link #addToStock} back to the ledger once the outermost
+     * transaction of the calling thread has ended, committed or not.
+     */
+    private void releaseReservations(SQLiteDatabase database) {
+        if (database.inTransaction()) {
+            return;
+        }
+        
+        List<long[]> reservations = mReservations.get();
+        for (long[] reservation : reservations) {
+            mStockLedger.release(reservation[0], (int) reservation[1]);
+        }
+        reservations.clear();
+    }
+    
+    /**
+     * Add a delta to the counter this device owns for the given book and refresh the cached
+     * quantity. Must be called inside a transaction. Return the number of books updated.
+     */
+    private int addToCounter(SQLiteDatabase database, long bookId, long delta) {
+        if (delta == 0) {
+            return 1;
+        }
+        
+        String deviceId = DeviceUtils.getDeviceId(getContext());
+        String column = delta > 0 ? CounterEntry.COLUMN_INCREMENTS : CounterEntry.COLUMN_DECREMENTS;
+        
+        // No counter is made for a deleted book, such as by a sale committed after the delete
+        database.execSQL("INSERT OR IGNORE INTO " + CounterEntry.TABLE_NAME + " ("
+                        + CounterEntry.COLUMN_BOOK_ID + ", "
+                        + CounterEntry.COLUMN_DEVICE_ID + ") SELECT ?1, ?2 WHERE EXISTS (SELECT 1 FROM "
+                        + BookEntry.TABLE_NAME + " WHERE " + BookEntry._ID + " = ?1)",
+                new Object[]{bookId, deviceId});
+        database.execSQL("UPDATE " + CounterEntry.TABLE_NAME + " SET "
+                        + column + " = " + column + " + ? WHERE "
+                        + CounterEntry.COLUMN_BOOK_ID + "=? AND "
+                        + CounterEntry.COLUMN_DEVICE_ID + "=?",
+                new Object[]{Math.abs(delta), bookId, deviceId});
+        
+        int rowsUpdated = refreshQuantity(database, bookId);
+        if (delta < 0 && rowsUpdated != 0 && trimStock(database, bookId) != 0) {
+            mStockTrimmed.set(true);
+        }
+        return rowsUpdated;
+    }
+    
+    /**
+     * Recompute the cached quantity of a book as the sum of its counters.
+     * Return the number of books updated.
+     */
+    static int refreshQuantity(SQLiteDatabase database, long bookId) {
+        SQLiteStatement statement = database.compileStatement("UPDATE " + BookEntry.TABLE_NAME
+                + " SET " + BookEntry.COLUMN_BOOK_QUANTITY + " = (SELECT COALESCE(SUM("
+                + CounterEntry.COLUMN_INCREMENTS + " - " + CounterEntry.COLUMN_DECREMENTS
+                + "), 0) FROM " + CounterEntry.TABLE_NAME + " WHERE "
+                + CounterEntry.COLUMN_BOOK_ID + " = ?1) WHERE " + BookEntry._ID + " = ?1");
+        try {
+            statement.bindLong(1, bookId);
+            return statement.executeUpdateDelete();
+        } finally {
+            statement.close();
+        }
+    }
+    
+    /**
+     * Take copies of a book from its locations until they hold no more than its quantity, so
+     * that a sale or correction made without a location keeps the stock of the locations
+     * within the quantity. The copies at no location are the first to go, then those of the
+     * locations with the most copies. Return the number of copies taken.
+     */
+    static int trimStock(SQLiteDatabase database, long bookId) {
+        String[] args = {String.valueOf(bookId)};
+        long excess = DatabaseUtils.longForQuery(database, "SELECT COALESCE(SUM("
+                + StockEntry.COLUMN_QUANTITY + "), 0) - (SELECT " + BookEntry.COLUMN_BOOK_QUANTITY
+                + " FROM " + BookEntry.TABLE_NAME + " WHERE " + BookEntry._ID + " = ?1) FROM "
+                + StockEntry.TABLE_NAME + " WHERE " + StockEntry.COLUMN_BOOK_ID + " = ?1", args);
+        if (excess <= 0) {
+            return 0;
+        }
+        
+        int taken = 0;
+        Cursor cursor = database.query(StockEntry.TABLE_NAME, new String[]{
+                        StockEntry.COLUMN_LOCATION_ID, StockEntry.COLUMN_QUANTITY},
+                StockEntry.COLUMN_BOOK_ID + "=? AND " + StockEntry.COLUMN_QUANTITY + " > 0", args,
+                null, null, StockEntry.COLUMN_QUANTITY + " DESC, " + StockEntry.COLUMN_LOCATION_ID);
+        try {
+            while (excess > 0 && cursor.moveToNext()) {
+                int take = (int) Math.min(excess, cursor.getInt(1));
+                database.execSQL("UPDATE " + StockEntry.TABLE_NAME + " SET "
+                                + StockEntry.COLUMN_QUANTITY + " = " + StockEntry.COLUMN_QUANTITY
+                                + " - ? WHERE " + StockEntry.COLUMN_LOCATION_ID + " = ? AND "
+                                + StockEntry.COLUMN_BOOK_ID + " = ?",
+                        new Object[]{take, cursor.getLong(0), bookId});
+                excess -= take;
+                taken += take;
+            }
+        } finally {
+            cursor.close();
+        }
+        return taken;
+    }
+    
+    /**
+     * Notify listeners of the list and of the single book that a book has changed.
+     */
+    private void notifyBookChanged(long bookId) {
+        notifyChange(ContentUris.withAppendedId(BookEntry.CONTENT_URI, bookId));
+    }
+    
+    /**
+     * Drop the cached query results and notify listeners that the data at the URI has
+     * changed. Called once the change is committed.
+     */
+    private void notifyChange(Uri uri) {
+        mQueryCache.invalidate();
+        
+        // Within a batch the stock would be read back with its own sales in it, on top of
+        // their reservations, so the ledger is invalidated once the batch has ended
+        if (!mBookStoreDbHelper.getWritableDatabase().inTransaction()) {
+            mStockLedger.invalidate();
+        }
+        getContext().getContentResolver().notifyChange(uri, null);
+        notifyStockTrimmed();
+    }
+    
+    /**
+     * Notify listeners of the locations if a change of quantity took copies from them.
+     */
+    private void notifyStockTrimmed() {
+        if (mStockTrimmed.getAndSet(false)) {
+            getContext().getContentResolver().notifyChange(LocationEntry.CONTENT_URI, null);
+        }
+    }
+    
+    private static void storeAppliedSequence(SQLiteDatabase database, long sequence) {
+        database.execSQL("UPDATE " + BookStoreDbHelper.JOURNAL_TABLE_NAME + " SET "
+                + BookStoreDbHelper.COLUMN_APPLIED_SEQUENCE + " = ?", new Object[]{sequence});
+    }
+    
+    /**
+     * Reads the stock of the ledger from the books table and commits its sales to the
+     * counters of this device, together with the journal sequence they reach.
+     */
+    private class LedgerBackend implements StockLedger.Backend {
+        
+        /**
+         * Journal sequence of the last committed sale
+         */
+        private volatile long mCommittedSequence;
+        
+        long getCommittedSequence() {
+            return mCommittedSequence;
+        }
+        
+        @Override
+        public int loadQuantity(long id) {
+            SQLiteDatabase database = mBookStoreDbHelper.getReadableDatabase();
+            Cursor cursor = database.query(BookEntry.TABLE_NAME,
+                    new String[]{BookEntry.COLUMN_BOOK_QUANTITY}, BookEntry._ID + "=?",
+                    new String[]{String.valueOf(id)}, null, null, null);
+            try {
+                return cursor.moveToFirst() ? cursor.getInt(0) : -1;
+            } finally {
+                cursor.close();
+            }
+        }
+        
+        @Override
+        public long loadAppliedSequence() {
+            SQLiteDatabase database = mBookStoreDbHelper.getReadableDatabase();
+            Cursor cursor = database.query(BookStoreDbHelper.JOURNAL_TABLE_NAME,
+                    new String[]{BookStoreDbHelper.COLUMN_APPLIED_SEQUENCE},
+                    null, null, null, null, null);
+            try {
+                mCommittedSequence = cursor.moveToFirst() ? cursor.getLong(0) : 0;
+                return mCommittedSequence;
+            } finally {
+                cursor.close();
+            }
+        }
+        
+        @Override
+        public void commit(long[] ids, int[] deltas, int count, long sequence) {
+            SQLiteDatabase database = mBookStoreDbHelper.getWritableDatabase();
+            
+            Trace.beginSection("BookStoreProvider.commitSales");
+            database.beginTransaction();
+            try {
+                for (int i = 0; i < count; i++) {
+                    addToCounter(database, ids[i], deltas[i]);
+                }
+                if (mSaleJournal != null) {
+                    storeAppliedSequence(database, sequence);
+                }
+                database.setTransactionSuccessful();
+            } finally {
+                database.endTransaction();
+                Trace.endSection();
+            }
+            mCommittedSequence = sequence;
+            
+            // The ledger already holds the new stock, so only the query results are dropped
+            mQueryCache.invalidate();
+            getContext().getContentResolver().notifyChange(BookEntry.CONTENT_URI, null);
+            notifyStockTrimmed();
+        }
+    }
+    
     @Override
     public int delete(Uri uri, String selection, String[] selectionArgs) {
+        mDatabaseLock.readLock().lock();
+        try {
+            return deleteLocked(uri, selection, selectionArgs);
+        } finally {
+            mDatabaseLock.readLock().unlock();
+        }
+    }
+    
+    private int deleteLocked(Uri uri, String selection, String[] selectionArgs) {
         // Get writeable database
         SQLiteDatabase database = mBookStoreDbHelper.getWritableDatabase();
         
@@ -272,31 +2712,149 @@ public class BookStoreProvider extends ContentProvider {
         
         final int match = sUriMatcher.match(uri);
         
+        // The covers of the deleted books
+        List<String> covers;
+        
         switch (match) {
             case BOOKS:
                 // Delete all rows that match the selection and selection args
-                rowsDeleted = database.delete(BookEntry.TABLE_NAME, selection, selectionArgs);
                 break;
             case BOOK_ID:
                 // Delete a single row given by the ID in the URI
                 selection = BookEntry._ID + "=?";
                 selectionArgs = new String[]{String.valueOf(ContentUris.parseId(uri))};
-                rowsDeleted = database.delete(BookEntry.TABLE_NAME, selection, selectionArgs);
                 break;
+            case STOCKTAKE:
+                // Discard the counts; the books are not touched
+                rowsDeleted = database.delete(StocktakeEntry.TABLE_NAME, selection, selectionArgs);
+                if (rowsDeleted != 0) {
+                    getContext().getContentResolver().notifyChange(uri, null);
+                }
+                return rowsDeleted;
             default:
                 throw new IllegalArgumentException("Deletion is not supported for " + uri);
         }
         
+        // The books go together with their counters, stock and title trigrams, found by the
+        // ids of the deleted books, so that a crash leaves none of them behind
+        boolean stockDeleted = false;
+        database.beginTransaction();
+        try {
+            covers = queryCovers(database, selection, selectionArgs);
+            List<Long> ids = queryIds(database, selection, selectionArgs);
+            rowsDeleted = 0;
+            for (long id : ids) {
+                String[] idArgs = {String.valueOf(id)};
+                rowsDeleted += database.delete(BookEntry.TABLE_NAME, BookEntry._ID + "=?", idArgs);
+                database.delete(CounterEntry.TABLE_NAME, CounterEntry.COLUMN_BOOK_ID + "=?", idArgs);
+                stockDeleted |= database.delete(StockEntry.TABLE_NAME,
+                        StockEntry.COLUMN_BOOK_ID + "=?", idArgs) != 0;
+                BookStoreDbHelper.indexTitle(database, id, null);
+            }
+            database.setTransactionSuccessful();
+        } finally {
+            database.endTransaction();
+        }
+        
+        deleteCovers(covers);
+        if (stockDeleted) {
+            getContext().getContentResolver().notifyChange(LocationEntry.CONTENT_URI, null);
+        }
+        
         // If 1 or more rows were deleted, then notify all listeners that the data at the
         // given URI has changed
         if (rowsDeleted != 0) {
-            getContext().getContentResolver().notifyChange(uri, null);
+            notifyChange(uri);
         }
         
         // Return the number of rows deleted
         return rowsDeleted;
     }
     
+    /**
+     * Combine two selections, either of which may be null, with AND.
+     */
+    private static String andSelection(String selection, String condition) {
+        if (selection == null) {
+            return condition;
+        }
+        return "(" + selection + ") AND (" + condition + ")";
+    }
+    
+    /**
+     * Append the arguments of a condition added by {@link #andSelection(String, String)}.
+     */
+    private static String[] concatArgs(String[] selectionArgs, String[] conditionArgs) {
+        String[] args = selectionArgs == null ? new String[0] : selectionArgs;
+        String[] result = new String[args.length + conditionArgs.length];
+        System.arraycopy(args, 0, result, 0, args.length);
+        System.arraycopy(conditionArgs, 0, result, args.length, conditionArgs.length);
+        return result;
+    }
+    
+    /**
+     * Return the covers of the books that match the selection.
+     */
+    private static List<String> queryCovers(SQLiteDatabase database, String selection,
+                                            String[] selectionArgs) {
+        List<String> covers = new ArrayList<>();
+        Cursor cursor = database.query(BookEntry.TABLE_NAME,
+                new String[]{BookEntry.COLUMN_BOOK_COVER},
+                BookEntry.COLUMN_BOOK_COVER + " IS NOT NULL"
+                        + (selection == null ? "" : " AND (" + selection + ")"),
+                selectionArgs, null, null, null);
+        try {
+            while (cursor.moveToNext()) {
+                covers.add(cursor.getString(0));
+            }
+        } finally {
+            cursor.close();
+        }
+        return covers;
+    }
+    
+    /**
+     * Delete the files of covers no book refers to anymore.
+     */
+    private void deleteCovers(List<String> covers) {
+        for (String cover : covers) {
+            CoverStore.deleteCover(getContext(), cover);
+        }
+    }
+    
+    /**
+     * Apply all operations in a single transaction, so that a batch of scanned sales
+     * costs one commit instead of one per book.
+     */
+    @Override
+    public ContentProviderResult[] applyBatch(ArrayList<ContentProviderOperation> operations)
+            throws OperationApplicationException {
+        // The database is not replaced in the middle of the batch
+        mDatabaseLock.readLock().lock();
+        try {
+            SQLiteDatabase database = mBookStoreDbHelper.getWritableDatabase();
+            
+            database.beginTransaction();
+            try {
+                ContentProviderResult[] results = super.applyBatch(operations);
+                database.setTransactionSuccessful();
+                
+                return results;
+            } finally {
+                database.endTransaction();
+                
+                // The operations dropped the cached results before the batch was committed,
+                // so results read meanwhile are dropped again. The stock it changed is read
+                // again too, with its sales committed or rolled back.
+                mQueryCache.invalidate();
+                mStockLedger.invalidate();
+                releaseReservations(database);
+            }
+        } finally {
+            mDatabaseLock.readLock().unlock();
+        }
+    }
+    
     @Override
     public String getType(Uri uri) {
         final int match = sUriMatcher.match(uri);
@@ -304,7 +2862,31 @@ public class BookStoreProvider extends ContentProvider {
             case BOOKS:
                 return BookEntry.CONTENT_LIST_TYPE;
             case BOOK_ID:
+            case BOOK_QUANTITY:
+            case BOOK_ISBN:
                 return BookEntry.CONTENT_ITEM_TYPE;
+            case BOOK_COUNTERS:
+            case BOOK_SIMILAR:
+            case BOOK_DUPLICATES:
+                return BookEntry.CONTENT_LIST_TYPE;
+            case STOCKTAKE:
+            case STOCKTAKE_DISCREPANCIES:
+                return StocktakeEntry.CONTENT_LIST_TYPE;
+            case STOCKTAKE_ID:
+                return StocktakeEntry.CONTENT_ITEM_TYPE;
+            case BOOK_HISTORY:
+                return HistoryEntry.CONTENT_LIST_TYPE;
+            case SHIPMENTS:
+                return ShipmentEntry.CONTENT_LIST_TYPE;
+            case LOCATIONS:
+                return LocationEntry.CONTENT_LIST_TYPE;
+            case LOCATION_ID:
+                return LocationEntry.CONTENT_ITEM_TYPE;
+            case LOCATION_STOCK:
+            case BOOK_STOCK:
+                return StockEntry.CONTENT_LIST_TYPE;
+            case LOCATION_BOOK_STOCK:
+                return StockEntry.CONTENT_ITEM_TYPE;
             default:
                 throw new IllegalStateException("Unknown URI " + uri + " with match " + match);
         }
@@ -0,0 +1,69 @@
+package ru.kazakova_net.bookstore.data;
+
+import android.content.ContentResolver;
+
+import java.io.File;
+import java.io.IOException;
+
+import ru.kazakova_net.bookstore.inventory.CatalogSnapshot;
+import ru.kazakova_net.bookstore.inventory.CatalogSnapshotWriter;
+
+import static ru.kazakova_net.bookstore.data.BookContract.BookEntry;
+
+/**
+ * Exports the books as a {@link CatalogSnapshot} for the lookup kiosks, which read it
+ * memory-mapped instead of opening the database.
+ */
+public final class CatalogSnapshotExporter {
+    
+    /**
+     * Name of the snapshot in the app files
+     */
+    public static final String SNAPSHOT_FILE = "catalog.snapshot";
+    
+    private static final String[] COLUMNS = {
+            BookEntry.COLUMN_BOOK_TITLE,
+            BookEntry.COLUMN_BOOK_ISBN,
+            BookEntry.COLUMN_BOOK_PRICE,
+            BookEntry.COLUMN_BOOK_QUANTITY,
+            BookEntry.COLUMN_BOOK_SUPPLIER_NAME};
+    
+    private CatalogSnapshotExporter() {
+    }
+    
+    /**
+     * Read every book in packed columns and write the snapshot over the given file.
+     *
+     * @return the number of books exported
+     */
+    public static int export(ContentResolver contentResolver, File file) throws IOException {
+        CatalogSnapshotWriter writer = new CatalogSnapshotWriter();
+        BookColumns chunk;
+        long afterId = 0;
+        do {
+            chunk = BookColumns.read(contentResolver, COLUMNS, afterId);
+            long[] ids = chunk.getIds();
+            int[] titles = chunk.getCodes(BookEntry.COLUMN_BOOK_TITLE);
+            String[] titleDictionary = chunk.getDictionary(BookEntry.COLUMN_BOOK_TITLE);
+            int[] isbns = chunk.getCodes(BookEntry.COLUMN_BOOK_ISBN);
+            String[] isbnDictionary = chunk.getDictionary(BookEntry.COLUMN_BOOK_ISBN);
+            int[] prices = chunk.getInts(BookEntry.COLUMN_BOOK_PRICE);
+            int[] quantities = chunk.getInts(BookEntry.COLUMN_BOOK_QUANTITY);
+            int[] suppliers = chunk.getCodes(BookEntry.COLUMN_BOOK_SUPPLIER_NAME);
+            String[] supplierDictionary = chunk.getDictionary(BookEntry.COLUMN_BOOK_SUPPLIER_NAME);
+            for (int i = 0; i < chunk.size(); i++) {
+                writer.add(ids[i], decode(titleDictionary, titles[i]),
+                        decode(isbnDictionary, isbns[i]), prices[i], quantities[i],
+                        decode(supplierDictionary, suppliers[i]));
+            }
+            afterId = chunk.getLastId();
+        } while (!chunk.isLast());
+        
+        writer.writeTo(file);
+        return writer.size();
+    }
+    
+    private static String decode(String[] dictionary, int code) {
+        return code < 0 ? null : dictionary[code];
+    }
+}
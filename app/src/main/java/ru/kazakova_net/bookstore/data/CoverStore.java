@@ -0,0 +1,149 @@
+package ru.kazakova_net.bookstore.data;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.net.Uri;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.UUID;
+
+/**
+ * Keeps the cover images of the books as files in the app storage.
+ * <p>
+ * The books table only stores the file name (see {@link BookContract.BookEntry#COLUMN_BOOK_COVER}),
+ * which keeps the rows small. Covers are imported once, downscaled to {@link #MAX_COVER_SIZE},
+ * and never changed afterwards, so a file name always identifies the same image.
+ */
+public class CoverStore {
+    
+    public static final String LOG_TAG = CoverStore.class.getSimpleName();
+    
+    /**
+     * Directory in the app files where covers are stored
+     */
+    private static final String COVER_DIR = "covers";
+    
+    /**
+     * Largest side of a stored cover, in pixels
+     */
+    private static final int MAX_COVER_SIZE = 1024;
+    
+    private static final int COVER_QUALITY = 90;
+    
+    private CoverStore() {
+    }
+    
+    /**
+     * @return the file of the cover with the given name
+     */
+    public static File getCoverFile(Context context, String name) {
+        return new File(new File(context.getFilesDir(), COVER_DIR), name);
+    }
+    
+    /**
+     * Decode the image at the given URI, downscale it and store it as a new cover.
+     * Must not be called on the main thread.
+     *
+     * @return the file name to store in {@link BookContract.BookEntry#COLUMN_BOOK_COVER}
+     */
+    public static String importCover(Context context, Uri uri) throws IOException {
+        // Read the size of the image without decoding it
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        decodeStream(context, uri, options);
+        if (options.outWidth <= 0 || options.outHeight <= 0) {
+            throw new IOException("Cannot decode " + uri);
+        }
+        
+        options.inJustDecodeBounds = false;
+        options.inSampleSize = calculateInSampleSize(options.outWidth, options.outHeight,
+                MAX_COVER_SIZE, MAX_COVER_SIZE);
+        Bitmap bitmap = decodeStream(context, uri, options);
+        if (bitmap == null) {
+            throw new IOException("Cannot decode " + uri);
+        }
+        bitmap = scaleToFit(bitmap, MAX_COVER_SIZE, MAX_COVER_SIZE);
+        
+        String name = UUID.randomUUID().toString() + ".jpg";
+        File file = getCoverFile(context, name);
+        File dir = file.getParentFile();
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Cannot create " + dir);
+        }
+        
+        OutputStream out = new FileOutputStream(file);
+        try {
+            bitmap.compress(Bitmap.CompressFormat.JPEG, COVER_QUALITY, out);
+        } finally {
+            out.close();
+            bitmap.recycle();
+        }
+        
+        return name;
+    }
+    
+    /**
+     * Delete the cover with the given name, if any.
+     */
+    public static void deleteCover(Context context, String name) {
+        if (name == null) {
+            return;
+        }
+        
+        File file = getCoverFile(context, name);
+        if (file.exists() && !file.delete()) {
+            Log.w(LOG_TAG, "Cannot delete " + file);
+        }
+    }
+    
+    /**
+     * Return the largest power of two that keeps the decoded image at least as large
+     * as the requested size.
+     */
+    public static int calculateInSampleSize(int width, int height, int reqWidth, int reqHeight) {
+        int inSampleSize = 1;
+        while (width / (inSampleSize * 2) >= reqWidth && height / (inSampleSize * 2) >= reqHeight) {
+            inSampleSize *= 2;
+        }
+        return inSampleSize;
+    }
+    
+    /**
+     * Scale the bitmap down, keeping its aspect ratio, so that it fits into the given size.
+     * The given bitmap is recycled if a scaled copy is returned.
+     */
+    public static Bitmap scaleToFit(Bitmap bitmap, int maxWidth, int maxHeight) {
+        float scale = Math.min((float) maxWidth / bitmap.getWidth(),
+                (float) maxHeight / bitmap.getHeight());
+        if (scale >= 1) {
+            return bitmap;
+        }
+        
+        Bitmap scaled = Bitmap.createScaledBitmap(bitmap, Math.max(1, Math.round(bitmap.getWidth() * scale)),
+                Math.max(1, Math.round(bitmap.getHeight() * scale)), true);
+        if (scaled != bitmap) {
+            bitmap.recycle();
+        }
+        return scaled;
+    }
+    
+    private static Bitmap decodeStream(Context context, Uri uri, BitmapFactory.Options options)
+            throws IOException {
+        InputStream in = context.getContentResolver().openInputStream(uri);
+        if (in == null) {
+            throw new IOException("Cannot open " + uri);
+        }
+        
+        try {
+            return BitmapFactory.decodeStream(in, null, options);
+        } finally {
+            in.close();
+        }
+    }
+}
@@ -0,0 +1,153 @@
+package ru.kazakova_net.bookstore.data;
+
+import android.app.Notification;
+import android.app.NotificationChannel;
+import android.app.NotificationManager;
+import android.app.PendingIntent;
+import android.app.Service;
+import android.content.Context;
+import android.content.Intent;
+import android.content.SharedPreferences;
+import android.os.Build;
+import android.os.IBinder;
+import android.util.Log;
+
+import androidx.core.app.NotificationCompat;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.security.SecureRandom;
+import java.util.Locale;
+
+import ru.kazakova_net.bookstore.BookShelfActivity;
+import ru.kazakova_net.bookstore.R;
+import ru.kazakova_net.bookstore.inventory.InventoryHttpHandler;
+import ru.kazakova_net.bookstore.inventory.InventoryHttpServer;
+
+/**
+ * Serves the inventory over HTTP to point-of-sale clients on the local network while started.
+ * <p>
+ * The service runs in the foreground with an ongoing notification, so the system does not
+ * stop it once the app leaves the screen. The notification shows the pairing key that the
+ * clients send with every request, see {@link InventoryHttpHandler}.
+ */
+public class InventoryHttpService extends Service {
+    
+    public static final String LOG_TAG = InventoryHttpService.class.getSimpleName();
+    
+    public static final int PORT = 8080;
+    
+    private static final int WORKER_THREADS = 4;
+    
+    private static final String CHANNEL_ID = "lan_api";
+    private static final int NOTIFICATION_ID = 1;
+    
+    private static final String PREFS_NAME = "lan_api";
+    private static final String KEY_PAIRING_KEY = "pairing_key";
+    
+    /**
+     * Random bytes of a new pairing key
+     */
+    private static final int PAIRING_KEY_BYTES = 8;
+    
+    private static volatile boolean sRunning;
+    
+    private InventoryHttpServer mServer;
+    
+    /**
+     * @return true while the server is accepting connections
+     */
+    public static boolean isRunning() {
+        return sRunning;
+    }
+    
+    /**
+     * Returns the key that the clients of this device send with every request, generating it
+     * on first use.
+     */
+    public static synchronized String getPairingKey(Context context) {
+        SharedPreferences preferences =
+                context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+        String pairingKey = preferences.getString(KEY_PAIRING_KEY, null);
+        
+        if (pairingKey == null) {
+            byte[] bytes = new byte[PAIRING_KEY_BYTES];
+            new SecureRandom().nextBytes(bytes);
+            StringBuilder builder = new StringBuilder();
+            for (byte b : bytes) {
+                builder.append(String.format(Locale.US, "%02x", b));
+            }
+            pairingKey = builder.toString();
+            preferences.edit().putString(KEY_PAIRING_KEY, pairingKey).apply();
+        }
+        
+        return pairingKey;
+    }
+    
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        
+        // Started with startForegroundService, so it must be in the foreground even if the
+        // port turns out to be taken
+        String pairingKey = getPairingKey(this);
+        startForeground(NOTIFICATION_ID, buildNotification(pairingKey));
+        
+        try {
+            mServer = new InventoryHttpServer(new InetSocketAddress(PORT),
+                    new InventoryHttpHandler(new ProviderInventoryApi(getContentResolver()),
+                            pairingKey),
+                    WORKER_THREADS);
+            mServer.start();
+            sRunning = true;
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "Cannot listen on port " + PORT, e);
+            mServer = null;
+            stopSelf();
+        }
+    }
+    
+    @Override
+    public int onStartCommand(Intent intent, int flags, int startId) {
+        return START_STICKY;
+    }
+    
+    @Override
+    public void onDestroy() {
+        sRunning = false;
+        if (mServer != null) {
+            try {
+                mServer.close();
+            } catch (IOException e) {
+                Log.w(LOG_TAG, "Failed to close the server", e);
+            }
+        }
+        super.onDestroy();
+    }
+    
+    @Override
+    public IBinder onBind(Intent intent) {
+        return null;
+    }
+    
+    /**
+     * Ongoing notification with the port and the pairing key, which opens the bookshelf.
+     */
+    private Notification buildNotification(String pairingKey) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+            NotificationChannel channel = new NotificationChannel(CHANNEL_ID,
+                    getString(R.string.lan_api_channel_name), NotificationManager.IMPORTANCE_LOW);
+            getSystemService(NotificationManager.class).createNotificationChannel(channel);
+        }
+        
+        PendingIntent contentIntent = PendingIntent.getActivity(this, 0,
+                new Intent(this, BookShelfActivity.class), 0);
+        return new NotificationCompat.Builder(this, CHANNEL_ID)
+                .setSmallIcon(R.drawable.ic_cart)
+                .setContentTitle(getString(R.string.lan_api_notification_title, PORT))
+                .setContentText(getString(R.string.lan_api_notification_text, pairingKey))
+                .setContentIntent(contentIntent)
+                .setOngoing(true)
+                .build();
+    }
+}
@@ -0,0 +1,97 @@
+package ru.kazakova_net.bookstore.data;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Positive-negative counter used to keep the quantity of a single book consistent
+ * across devices that change it independently.
+ * <p>
+ * Every device only ever grows its own pair of counts. Two replicas are merged by taking
+ * the maximum of each count per device, which makes merging commutative, associative
+ * and idempotent: replicas that have seen the same updates always have the same value.
+ */
+public class PnCounter {
+    
+    /**
+     * Total added per device
+     */
+    private final Map<String, Long> mIncrements = new HashMap<>();
+    
+    /**
+     * Total removed per device
+     */
+    private final Map<String, Long> mDecrements = new HashMap<>();
+    
+    /**
+     * Cached value of the counter, kept in sync by every mutation
+     */
+    private long mValue;
+    
+    /**
+     * Applies a local change made on the given device.
+     *
+     * @param deviceId device that made the change
+     * @param delta    positive when books were added, negative when they were removed
+     */
+    public void add(String deviceId, long delta) {
+        if (delta > 0) {
+            mIncrements.put(deviceId, getIncrements(deviceId) + delta);
+        } else if (delta < 0) {
+            mDecrements.put(deviceId, getDecrements(deviceId) - delta);
+        }
+        mValue += delta;
+    }
+    
+    /**
+     * Merges the state of the given device, as received from another replica.
+     */
+    public void merge(String deviceId, long increments, long decrements) {
+        long currentIncrements = getIncrements(deviceId);
+        if (increments > currentIncrements) {
+            mIncrements.put(deviceId, increments);
+            mValue += increments - currentIncrements;
+        }
+        
+        long currentDecrements = getDecrements(deviceId);
+        if (decrements > currentDecrements) {
+            mDecrements.put(deviceId, decrements);
+            mValue -= decrements - currentDecrements;
+        }
+    }
+    
+    /**
+     * Merges the whole state of another replica into this one.
+     */
+    public void merge(PnCounter other) {
+        for (String deviceId : other.devices()) {
+            merge(deviceId, other.getIncrements(deviceId), other.getDecrements(deviceId));
+        }
+    }
+    
+    /**
+     * @return current value of the counter
+     */
+    public long value() {
+        return mValue;
+    }
+    
+    public long getIncrements(String deviceId) {
+        Long increments = mIncrements.get(deviceId);
+        return increments == null ? 0 : increments;
+    }
+    
+    public long getDecrements(String deviceId) {
+        Long decrements = mDecrements.get(deviceId);
+        return decrements == null ? 0 : decrements;
+    }
+    
+    /**
+     * @return identifiers of all devices that have changed the counter
+     */
+    public Iterable<String> devices() {
+        Map<String, Long> all = new HashMap<>(mIncrements);
+        all.putAll(mDecrements);
+        return all.keySet();
+    }
+}
@@ -0,0 +1,181 @@
+package ru.kazakova_net.bookstore.data;
+
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
+import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.content.OperationApplicationException;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.RemoteException;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import ru.kazakova_net.bookstore.inventory.InventoryApi;
+
+import static ru.kazakova_net.bookstore.data.BookContract.BookEntry;
+import static ru.kazakova_net.bookstore.data.BookContract.BookFilter;
+import static ru.kazakova_net.bookstore.data.BookContract.CONTENT_AUTHORITY;
+
+/**
+ * Serves the HTTP API from {@link BookStoreProvider}. Books are passed with the column names
+ * of {@link BookEntry} as field names; list filters use the parameters of {@link BookFilter}.
+ */
+public class ProviderInventoryApi implements InventoryApi {
+    
+    private static final String[] PROJECTION = {
+            BookEntry._ID,
+            BookEntry.COLUMN_BOOK_TITLE,
+            BookEntry.COLUMN_BOOK_ISBN,
+            BookEntry.COLUMN_BOOK_PRICE,
+            BookEntry.COLUMN_BOOK_QUANTITY,
+            BookEntry.COLUMN_BOOK_SUPPLIER_NAME,
+            BookEntry.COLUMN_BOOK_SUPPLIER_PHONE,
+            BookEntry.COLUMN_BOOK_VERSION};
+    
+    /**
+     * Fields a client may set when importing books
+     */
+    private static final Set<String> IMPORTED_COLUMNS = new HashSet<>(Arrays.asList(
+            BookEntry.COLUMN_BOOK_TITLE,
+            BookEntry.COLUMN_BOOK_ISBN,
+            BookEntry.COLUMN_BOOK_PRICE,
+            BookEntry.COLUMN_BOOK_QUANTITY,
+            BookEntry.COLUMN_BOOK_SUPPLIER_NAME,
+            BookEntry.COLUMN_BOOK_SUPPLIER_PHONE));
+    
+    private final ContentResolver mContentResolver;
+    
+    public ProviderInventoryApi(ContentResolver contentResolver) {
+        mContentResolver = contentResolver;
+    }
+    
+    @Override
+    public Map<String, Object> getBook(long id) {
+        Cursor cursor = mContentResolver.query(ContentUris.withAppendedId(BookEntry.CONTENT_URI, id),
+                PROJECTION, null, null, null);
+        if (cursor == null) {
+            return null;
+        }
+        
+        try {
+            return cursor.moveToFirst() ? readBook(cursor) : null;
+        } finally {
+            cursor.close();
+        }
+    }
+    
+    @Override
+    public void listBooks(Map<String, String> filter, BookSink sink) throws IOException {
+        Uri.Builder builder = BookEntry.CONTENT_URI.buildUpon();
+        for (Map.Entry<String, String> parameter : filter.entrySet()) {
+            builder.appendQueryParameter(parameter.getKey(), parameter.getValue());
+        }
+        
+        // Keep only the parameters of the filter, in their usual form
+        Uri uri = BookFilter.fromUri(builder.build()).buildUri();
+        query(uri, null, null, sink);
+    }
+    
+    @Override
+    public void searchBooks(String query, BookSink sink) throws IOException {
+        String pattern = "%" + query.replace("\\", "\\\\").replace("%", "\\%").replace("_", "\\_") + "%";
+        String isbn = BookEntry.normalizeIsbn(query);
+        query(BookEntry.CONTENT_URI,
+                BookEntry.COLUMN_BOOK_TITLE + " LIKE ? ESCAPE '\\' OR " + BookEntry.COLUMN_BOOK_ISBN + "=?",
+                new String[]{pattern, isbn == null ? "" : isbn}, sink);
+    }
+    
+    private void query(Uri uri, String selection, String[] selectionArgs, BookSink sink)
+            throws IOException {
+        Cursor cursor = mContentResolver.query(uri, PROJECTION, selection, selectionArgs,
+                BookEntry._ID);
+        if (cursor == null) {
+            return;
+        }
+        
+        try {
+            while (cursor.moveToNext()) {
+                sink.onBook(readBook(cursor));
+            }
+        } finally {
+            cursor.close();
+        }
+    }
+    
+    private static Map<String, Object> readBook(Cursor cursor) {
+        Map<String, Object> book = new LinkedHashMap<>();
+        for (int i = 0; i < PROJECTION.length; i++) {
+            switch (cursor.getType(i)) {
+                case Cursor.FIELD_TYPE_INTEGER:
+                    book.put(PROJECTION[i], cursor.getLong(i));
+                    break;
+                case Cursor.FIELD_TYPE_NULL:
+                    book.put(PROJECTION[i], null);
+                    break;
+                default:
+                    book.put(PROJECTION[i], cursor.getString(i));
+            }
+        }
+        return book;
+    }
+    
+    @Override
+    public boolean sell(long id, int count) {
+        ContentValues values = new ContentValues();
+        values.put(BookEntry.QUANTITY_DELTA, -count);
+        return mContentResolver.update(BookEntry.buildQuantityUri(id), values, null, null) != 0;
+    }
+    
+    @Override
+    public long[] importBooks(List<Map<String, Object>> books) {
+        ArrayList<ContentProviderOperation> operations = new ArrayList<>(books.size());
+        for (Map<String, Object> book : books) {
+            ContentValues values = new ContentValues();
+            for (Map.Entry<String, Object> field : book.entrySet()) {
+                if (!IMPORTED_COLUMNS.contains(field.getKey())) {
+                    throw new IllegalArgumentException("Unknown field " + field.getKey());
+                }
+                
+                Object value = field.getValue();
+                if (value == null) {
+                    values.putNull(field.getKey());
+                } else if (value instanceof Long) {
+                    values.put(field.getKey(), (Long) value);
+                } else if (value instanceof String) {
+                    values.put(field.getKey(), (String) value);
+                } else {
+                    throw new IllegalArgumentException("Bad value of " + field.getKey());
+                }
+            }
+            operations.add(ContentProviderOperation.newInsert(BookEntry.CONTENT_URI)
+                    .withValues(values)
+                    .build());
+        }
+        
+        // The provider applies the batch in one transaction
+        ContentProviderResult[] results;
+        try {
+            results = mContentResolver.applyBatch(CONTENT_AUTHORITY, operations);
+        } catch (RemoteException | OperationApplicationException e) {
+            throw new IllegalArgumentException("Import failed: " + e.getMessage(), e);
+        }
+        
+        long[] ids = new long[results.length];
+        for (int i = 0; i < results.length; i++) {
+            if (results[i].uri == null) {
+                throw new IllegalArgumentException("Book " + i + " was not inserted");
+            }
+            ids[i] = ContentUris.parseId(results[i].uri);
+        }
+        return ids;
+    }
+}
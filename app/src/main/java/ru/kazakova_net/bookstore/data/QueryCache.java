@@ -0,0 +1,303 @@
+package ru.kazakova_net.bookstore.data;
+
+import android.database.AbstractCursor;
+import android.database.Cursor;
+import android.net.Uri;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Results of recent queries of {@link BookStoreProvider}, kept in memory while the database
+ * is not written.
+ * <p>
+ * Every write increases the generation of the cache. A result is stored with the generation
+ * read before its query started and is only served while the generation is unchanged, so a
+ * query that raced with a write is never cached as current. The cache holds at most
+ * {@link #MAX_ENTRIES} results and {@link #MAX_CELLS} values; larger results are not cached.
+ */
+class QueryCache {
+    
+    /**
+     * Number of results kept, least recently used first out
+     */
+    private static final int MAX_ENTRIES = 16;
+    
+    /**
+     * Number of values (rows times columns) kept over all results
+     */
+    private static final int MAX_CELLS = 64 * 1024;
+    
+    private final LinkedHashMap<String, Entry> mEntries = new LinkedHashMap<>(MAX_ENTRIES, 0.75f, true);
+    private long mGeneration;
+    private int mCells;
+    
+    private long mHits;
+    private long mMisses;
+    private long mEvictions;
+    
+    /**
+     * Returns the key of a query. Only the same query has the same key: the selection, its
+     * arguments and the sort order are taken exactly as given, since whitespace inside a
+     * quoted literal or an argument changes the result.
+     */
+    static String key(Uri uri, String[] projection, String selection, String[] selectionArgs,
+                      String sortOrder) {
+        StringBuilder key = new StringBuilder();
+        appendPart(key, uri.toString());
+        appendParts(key, projection);
+        appendPart(key, selection);
+        appendParts(key, selectionArgs);
+        appendPart(key, sortOrder);
+        return key.toString();
+    }
+    
+    /**
+     * Append a part of a key with its length first, so that no separator in the part can
+     * make two queries share a key.
+     */
+    private static void appendPart(StringBuilder key, String part) {
+        if (part == null) {
+            key.append('-');
+        } else {
+            key.append(part.length()).append(':').append(part);
+        }
+    }
+    
+    private static void appendParts(StringBuilder key, String[] parts) {
+        if (parts == null) {
+            key.append('-');
+            return;
+        }
+        
+        key.append(parts.length).append('[');
+        for (String part : parts) {
+            appendPart(key, part);
+        }
+    }
+    
+    /**
+     * Returns the current generation, to be passed to {@link #put(String, long, Cursor)}.
+     */
+    synchronized long getGeneration() {
+        return mGeneration;
+    }
+    
+    /**
+     * Drop all results. Called after every committed write.
+     */
+    synchronized void invalidate() {
+        mGeneration++;
+        mEntries.clear();
+        mCells = 0;
+    }
+    
+    /**
+     * Returns a new cursor over the cached result of the query, or null if there is none.
+     */
+    synchronized Cursor get(String key) {
+        Entry entry = mEntries.get(key);
+        if (entry == null || entry.mGeneration != mGeneration) {
+            mMisses++;
+            return null;
+        }
+        
+        mHits++;
+        return new SnapshotCursor(entry);
+    }
+    
+    /**
+     * Read the result of a query into the cache.
+     *
+     * @param generation generation read before the query was started
+     * @return a cursor to return instead of the given one, which may have been closed
+     */
+    Cursor put(String key, long generation, Cursor cursor) {
+        int cells = cursor.getCount() * cursor.getColumnCount();
+        if (cells > MAX_CELLS) {
+            return cursor;
+        }
+        
+        Entry entry;
+        try {
+            entry = new Entry(generation, cursor);
+        } finally {
+            cursor.close();
+        }
+        
+        synchronized (this) {
+            if (generation == mGeneration) {
+                Entry previous = mEntries.put(key, entry);
+                if (previous != null) {
+                    mCells -= previous.cells();
+                }
+                mCells += entry.cells();
+                trim();
+            }
+        }
+        
+        return new SnapshotCursor(entry);
+    }
+    
+    private void trim() {
+        Iterator<Map.Entry<String, Entry>> iterator = mEntries.entrySet().iterator();
+        while (iterator.hasNext() && (mEntries.size() > MAX_ENTRIES || mCells > MAX_CELLS)) {
+            mCells -= iterator.next().getValue().cells();
+            iterator.remove();
+            mEvictions++;
+        }
+    }
+    
+    synchronized long getHitCount() {
+        return mHits;
+    }
+    
+    synchronized long getMissCount() {
+        return mMisses;
+    }
+    
+    synchronized long getEvictionCount() {
+        return mEvictions;
+    }
+    
+    synchronized int size() {
+        return mEntries.size();
+    }
+    
+    /**
+     * Materialized result of a query. Never modified once read.
+     */
+    private static class Entry {
+        
+        private final long mGeneration;
+        private final String[] mColumnNames;
+        private final Object[][] mRows;
+        
+        Entry(long generation, Cursor cursor) {
+            mGeneration = generation;
+            mColumnNames = cursor.getColumnNames();
+            mRows = new Object[cursor.getCount()][];
+            
+            int columns = mColumnNames.length;
+            cursor.moveToPosition(-1);
+            for (int row = 0; cursor.moveToNext(); row++) {
+                Object[] values = new Object[columns];
+                for (int column = 0; column < columns; column++) {
+                    switch (cursor.getType(column)) {
+                        case Cursor.FIELD_TYPE_INTEGER:
+                            values[column] = cursor.getLong(column);
+                            break;
+                        case Cursor.FIELD_TYPE_FLOAT:
+                            values[column] = cursor.getDouble(column);
+                            break;
+                        case Cursor.FIELD_TYPE_STRING:
+                            values[column] = cursor.getString(column);
+                            break;
+                        case Cursor.FIELD_TYPE_BLOB:
+                            values[column] = cursor.getBlob(column);
+                            break;
+                        default:
+                            values[column] = null;
+                    }
+                }
+                mRows[row] = values;
+            }
+        }
+        
+        int cells() {
+            return mRows.length * mColumnNames.length;
+        }
+    }
+    
+    /**
+     * Read-only cursor over a cached result. Any number of them may share one entry.
+     */
+    private static class SnapshotCursor extends AbstractCursor {
+        
+        private final Entry mEntry;
+        
+        SnapshotCursor(Entry entry) {
+            mEntry = entry;
+        }
+        
+        private Object get(int column) {
+            return mEntry.mRows[getPosition()][column];
+        }
+        
+        @Override
+        public int getCount() {
+            return mEntry.mRows.length;
+        }
+        
+        @Override
+        public String[] getColumnNames() {
+            return mEntry.mColumnNames;
+        }
+        
+        @Override
+        public int getType(int column) {
+            Object value = get(column);
+            if (value == null) {
+                return FIELD_TYPE_NULL;
+            } else if (value instanceof Long) {
+                return FIELD_TYPE_INTEGER;
+            } else if (value instanceof Double) {
+                return FIELD_TYPE_FLOAT;
+            } else if (value instanceof byte[]) {
+                return FIELD_TYPE_BLOB;
+            }
+            return FIELD_TYPE_STRING;
+        }
+        
+        @Override
+        public String getString(int column) {
+            Object value = get(column);
+            return value == null ? null : String.valueOf(value);
+        }
+        
+        @Override
+        public short getShort(int column) {
+            return (short) getLong(column);
+        }
+        
+        @Override
+        public int getInt(int column) {
+            return (int) getLong(column);
+        }
+        
+        @Override
+        public long getLong(int column) {
+            Object value = get(column);
+            if (value instanceof Number) {
+                return ((Number) value).longValue();
+            }
+            return value == null ? 0 : Long.parseLong((String) value);
+        }
+        
+        @Override
+        public float getFloat(int column) {
+            return (float) getDouble(column);
+        }
+        
+        @Override
+        public double getDouble(int column) {
+            Object value = get(column);
+            if (value instanceof Number) {
+                return ((Number) value).doubleValue();
+            }
+            return value == null ? 0 : Double.parseDouble((String) value);
+        }
+        
+        @Override
+        public byte[] getBlob(int column) {
+            Object value = get(column);
+            return value instanceof byte[] ? (byte[]) value : null;
+        }
+        
+        @Override
+        public boolean isNull(int column) {
+            return get(column) == null;
+        }
+    }
+}
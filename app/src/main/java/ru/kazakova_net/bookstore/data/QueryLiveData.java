@@ -0,0 +1,178 @@
+package ru.kazakova_net.bookstore.data;
+
+import android.database.Cursor;
+import android.net.Uri;
+
+import androidx.annotation.NonNull;
+import androidx.lifecycle.LiveData;
+import androidx.lifecycle.Observer;
+
+import java.util.Arrays;
+
+/**
+ * {@link LiveData} holding the result of one provider query, kept up to date by
+ * {@link BookRepository}.
+ * <p>
+ * The query runs on the repository's pool. While it runs, further invalidations only mark
+ * the result as stale, and the query is run once more after it finishes. A new cursor
+ * whose content is equal to the current one is closed instead of being delivered.
+ * The current cursor is closed when it is replaced or when the last observer is removed.
+ */
+class QueryLiveData extends LiveData<Cursor> {
+    
+    private final BookRepository mRepository;
+    private final String mTable;
+    private final Uri mUri;
+    private final String[] mProjection;
+    private final String mSelection;
+    private final String[] mSelectionArgs;
+    private final String mSortOrder;
+    
+    /**
+     * Whether the current value no longer matches the database. Main thread only.
+     */
+    private boolean mStale = true;
+    
+    /**
+     * Whether a query is running. Main thread only.
+     */
+    private boolean mLoading;
+    
+    /**
+     * Fingerprint of the content of the current value
+     */
+    private long mFingerprint;
+    
+    private final Runnable mLoadRunnable = new Runnable() {
+        @Override
+        public void run() {
+            final Cursor cursor = mRepository.getContentResolver().query(mUri, mProjection,
+                    mSelection, mSelectionArgs, mSortOrder);
+            final long fingerprint = fingerprint(cursor);
+            
+            mRepository.getMainHandler().post(new Runnable() {
+                @Override
+                public void run() {
+                    onLoaded(cursor, fingerprint);
+                }
+            });
+        }
+    };
+    
+    QueryLiveData(BookRepository repository, String table, Uri uri, String[] projection,
+                  String selection, String[] selectionArgs, String sortOrder) {
+        mRepository = repository;
+        mTable = table;
+        mUri = uri;
+        mProjection = projection;
+        mSelection = selection;
+        mSelectionArgs = selectionArgs;
+        mSortOrder = sortOrder;
+    }
+    
+    String getTable() {
+        return mTable;
+    }
+    
+    @Override
+    protected void onActive() {
+        mRepository.addQuery(this);
+        
+        // Changes made while nobody was observing are picked up now
+        if (mStale) {
+            load();
+        }
+    }
+    
+    @Override
+    protected void onInactive() {
+        mRepository.removeQuery(this);
+        
+        // Nothing tells us about changes until the next activation
+        mStale = true;
+    }
+    
+    @Override
+    public void removeObserver(@NonNull Observer<? super Cursor> observer) {
+        super.removeObserver(observer);
+        
+        // Nobody will read the cursor anymore
+        if (!hasObservers()) {
+            Cursor cursor = getValue();
+            setValue(null);
+            if (cursor != null) {
+                cursor.close();
+            }
+            mFingerprint = 0;
+        }
+    }
+    
+    /**
+     * Called by the repository when the table has changed.
+     */
+    void invalidate() {
+        mStale = true;
+        load();
+    }
+    
+    private void load() {
+        if (mLoading) {
+            // The running query may have missed the change, run it again afterwards
+            return;
+        }
+        
+        mLoading = true;
+        mStale = false;
+        mRepository.getQueryExecutor().execute(mLoadRunnable);
+    }
+    
+    private void onLoaded(Cursor cursor, long fingerprint) {
+        mLoading = false;
+        
+        Cursor current = getValue();
+        if (!hasObservers() || (current != null && cursor != null && fingerprint == mFingerprint
+                && cursor.getCount() == current.getCount())) {
+            // Same rows as already delivered
+            if (cursor != null) {
+                cursor.close();
+            }
+        } else {
+            mFingerprint = fingerprint;
+            setValue(cursor);
+            if (current != null) {
+                current.close();
+            }
+        }
+        
+        if (mStale && hasActiveObservers()) {
+            load();
+        }
+    }
+    
+    /**
+     * Hash of all values of the cursor. Iterating it also fills the cursor window
+     * off the main thread.
+     */
+    private static long fingerprint(Cursor cursor) {
+        if (cursor == null) {
+            return 0;
+        }
+        
+        long hash = 1;
+        int columns = cursor.getColumnCount();
+        while (cursor.moveToNext()) {
+            for (int i = 0; i < columns; i++) {
+                String value = cursor.getString(i);
+                hash = 31 * hash + (value == null ? 0 : value.hashCode());
+            }
+        }
+        cursor.moveToPosition(-1);
+        
+        return hash;
+    }
+    
+    @Override
+    public String toString() {
+        return "QueryLiveData{" + mUri + ", " + Arrays.toString(mProjection) + "}";
+    }
+}
@@ -0,0 +1,170 @@
+package ru.kazakova_net.bookstore.data;
+
+import android.content.ContentResolver;
+import android.os.Bundle;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.UUID;
+
+import static ru.kazakova_net.bookstore.data.BookContract.BookEntry;
+import static ru.kazakova_net.bookstore.data.BookContract.EXTRA_ISBNS;
+import static ru.kazakova_net.bookstore.data.BookContract.EXTRA_PRICES;
+import static ru.kazakova_net.bookstore.data.BookContract.EXTRA_QUANTITIES;
+import static ru.kazakova_net.bookstore.data.BookContract.EXTRA_SUPPLIER;
+import static ru.kazakova_net.bookstore.data.BookContract.EXTRA_SUPPLIER_PHONE;
+import static ru.kazakova_net.bookstore.data.BookContract.EXTRA_TITLES;
+import static ru.kazakova_net.bookstore.data.BookContract.EXTRA_UNKNOWN_ISBNS;
+import static ru.kazakova_net.bookstore.data.BookContract.METHOD_RECEIVE_SHIPMENT;
+
+/**
+ * Collects the lines of a delivery as they are scanned or typed in, and receives them all
+ * at once with {@link BookContract#METHOD_RECEIVE_SHIPMENT}.
+ * <p>
+ * Lines of the same ISBN are added up. The shipment ID is fixed when the session starts, so
+ * a commit that is retried after an error cannot receive the delivery twice. A session
+ * receives one delivery only.
+ */
+public class ReceivingSession {
+    
+    /**
+     * Copies of one ISBN, and the title and price if the book is new to the store
+     */
+    private static class Line {
+        int quantity;
+        String title;
+        int price;
+    }
+    
+    private final ContentResolver mContentResolver;
+    private final String mShipmentId;
+    private final String mSupplier;
+    private final String mSupplierPhone;
+    
+    /**
+     * Lines per normalized ISBN, in entry order
+     */
+    private final Map<String, Line> mLines = new LinkedHashMap<>();
+    private int mCopies;
+    
+    /**
+     * Start receiving a delivery with a new shipment ID.
+     */
+    public ReceivingSession(ContentResolver contentResolver, String supplier, String supplierPhone) {
+        this(contentResolver, UUID.randomUUID().toString(), supplier, supplierPhone);
+    }
+    
+    /**
+     * Start receiving a delivery with the given shipment ID, such as the number of its
+     * delivery note.
+     */
+    public ReceivingSession(ContentResolver contentResolver, String shipmentId, String supplier,
+                            String supplierPhone) {
+        mContentResolver = contentResolver;
+        mShipmentId = shipmentId;
+        mSupplier = supplier;
+        mSupplierPhone = supplierPhone;
+    }
+    
+    public String getShipmentId() {
+        return mShipmentId;
+    }
+    
+    public int getLineCount() {
+        return mLines.size();
+    }
+    
+    public int getCopyCount() {
+        return mCopies;
+    }
+    
+    /**
+     * Add copies of a book the store already has.
+     *
+     * @return false if the barcode does not contain an ISBN
+     */
+    public boolean add(String barcode, int quantity) {
+        return addLine(barcode, quantity) != null;
+    }
+    
+    /**
+     * Add copies of a book that may be new to the store. The title and price are used if no
+     * book has the ISBN yet.
+     *
+     * @return false if the barcode does not contain an ISBN
+     */
+    public boolean addNew(String barcode, String title, int price, int quantity) {
+        if (title == null) {
+            throw new IllegalArgumentException("New book requires a title");
+        }
+        Line line = addLine(barcode, quantity);
+        if (line == null) {
+            return false;
+        }
+        line.title = title;
+        line.price = price;
+        return true;
+    }
+    
+    private Line addLine(String barcode, int quantity) {
+        if (quantity <= 0) {
+            throw new IllegalArgumentException("Line requires a positive quantity");
+        }
+        String isbn = BookEntry.normalizeIsbn(barcode);
+        if (isbn == null) {
+            return null;
+        }
+        
+        Line line = mLines.get(isbn);
+        if (line == null) {
+            line = new Line();
+            mLines.put(isbn, line);
+        }
+        line.quantity += quantity;
+        mCopies += quantity;
+        return line;
+    }
+    
+    /**
+     * Receive all lines in one transaction. If some books do not exist and have no title,
+     * nothing is received and their ISBNs are in {@link BookContract#EXTRA_UNKNOWN_ISBNS};
+     * the lines are kept, so they can be completed with {@link #addNew} and committed again.
+     *
+     * @return the result of {@link BookContract#METHOD_RECEIVE_SHIPMENT}
+     */
+    public Bundle commit() {
+        if (mLines.isEmpty()) {
+            throw new IllegalStateException("Shipment has no lines to receive");
+        }
+        
+        String[] isbns = new String[mLines.size()];
+        int[] quantities = new int[isbns.length];
+        String[] titles = new String[isbns.length];
+        int[] prices = new int[isbns.length];
+        int i = 0;
+        for (Map.Entry<String, Line> entry : mLines.entrySet()) {
+            Line line = entry.getValue();
+            isbns[i] = entry.getKey();
+            quantities[i] = line.quantity;
+            titles[i] = line.title;
+            prices[i] = line.price;
+            i++;
+        }
+        
+        Bundle extras = new Bundle();
+        extras.putStringArray(EXTRA_ISBNS, isbns);
+        extras.putIntArray(EXTRA_QUANTITIES, quantities);
+        extras.putStringArray(EXTRA_TITLES, titles);
+        extras.putIntArray(EXTRA_PRICES, prices);
+        extras.putString(EXTRA_SUPPLIER, mSupplier);
+        extras.putString(EXTRA_SUPPLIER_PHONE, mSupplierPhone);
+        Bundle result = mContentResolver.call(BookEntry.CONTENT_URI, METHOD_RECEIVE_SHIPMENT,
+                mShipmentId, extras);
+        
+        if (result != null && result.getStringArray(EXTRA_UNKNOWN_ISBNS) == null) {
+            mLines.clear();
+            mCopies = 0;
+        }
+        return result;
+    }
+}
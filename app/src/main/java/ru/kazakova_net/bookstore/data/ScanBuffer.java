@@ -0,0 +1,143 @@
+package ru.kazakova_net.bookstore.data;
+
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
+import android.content.ContentResolver;
+import android.content.OperationApplicationException;
+import android.os.Handler;
+import android.os.RemoteException;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static ru.kazakova_net.bookstore.data.BookContract.BookEntry;
+import static ru.kazakova_net.bookstore.data.BookContract.CONTENT_AUTHORITY;
+
+/**
+ * Collects barcodes scanned at the till and sells them in batches.
+ * <p>
+ * Scans of the same ISBN are added up, and the buffer is committed in a single
+ * transaction either when {@link #BATCH_SIZE} scans are pending or when the scanner
+ * has been idle for {@link #FLUSH_DELAY_MILLIS}. The batches are committed off the main
+ * thread by {@link BookRepository#run}, in the order they were scanned.
+ */
+public class ScanBuffer {
+    
+    public static final String LOG_TAG = ScanBuffer.class.getSimpleName();
+    
+    /**
+     * Number of pending scans that triggers a commit
+     */
+    private static final int BATCH_SIZE = 20;
+    
+    /**
+     * Idle time after the last scan that triggers a commit
+     */
+    private static final long FLUSH_DELAY_MILLIS = 2000;
+    
+    /**
+     * Receives on the main thread the ISBNs that were not sold because they did not match any
+     * book or the book had fewer copies than were scanned.
+     */
+    public interface OnUnsoldIsbnListener {
+        void onUnsoldIsbn(List<String> isbns);
+    }
+    
+    private final BookRepository mRepository;
+    private final OnUnsoldIsbnListener mListener;
+    private final Handler mHandler = new Handler();
+    
+    /**
+     * Number of copies sold per normalized ISBN, in scan order
+     */
+    private final Map<String, Integer> mPending = new LinkedHashMap<>();
+    private int mPendingScans;
+    
+    private final Runnable mFlushRunnable = new Runnable() {
+        @Override
+        public void run() {
+            flush();
+        }
+    };
+    
+    public ScanBuffer(BookRepository repository, OnUnsoldIsbnListener listener) {
+        mRepository = repository;
+        mListener = listener;
+    }
+    
+    /**
+     * Add one sold copy of the book with the given barcode.
+     *
+     * @return false if the barcode does not contain an ISBN
+     */
+    public boolean scan(String barcode) {
+        String isbn = BookEntry.normalizeIsbn(barcode);
+        if (isbn == null) {
+            return false;
+        }
+        
+        Integer count = mPending.get(isbn);
+        mPending.put(isbn, count == null ? 1 : count + 1);
+        mPendingScans++;
+        
+        mHandler.removeCallbacks(mFlushRunnable);
+        if (mPendingScans >= BATCH_SIZE) {
+            flush();
+        } else {
+            mHandler.postDelayed(mFlushRunnable, FLUSH_DELAY_MILLIS);
+        }
+        
+        return true;
+    }
+    
+    /**
+     * Commit all pending scans in one transaction, in the background.
+     */
+    public void flush() {
+        mHandler.removeCallbacks(mFlushRunnable);
+        if (mPending.isEmpty()) {
+            return;
+        }
+        
+        final ArrayList<ContentProviderOperation> operations = new ArrayList<>(mPending.size());
+        final List<String> isbns = new ArrayList<>(mPending.keySet());
+        for (Map.Entry<String, Integer> entry : mPending.entrySet()) {
+            operations.add(ContentProviderOperation.newUpdate(BookEntry.buildIsbnUri(entry.getKey()))
+                    .withValue(BookEntry.QUANTITY_DELTA, -entry.getValue())
+                    .build());
+        }
+        mPending.clear();
+        mPendingScans = 0;
+        
+        mRepository.run(new BookRepository.Task<List<String>>() {
+            @Override
+            public List<String> run(ContentResolver contentResolver) {
+                List<String> unsold = new ArrayList<>();
+                try {
+                    ContentProviderResult[] results = contentResolver.applyBatch(CONTENT_AUTHORITY,
+                            operations);
+                    
+                    // Books that were not found or not in stock are reported back to the cashier
+                    for (int i = 0; i < results.length; i++) {
+                        if (results[i].count == null || results[i].count == 0) {
+                            unsold.add(isbns.get(i));
+                        }
+                    }
+                } catch (RemoteException | OperationApplicationException e) {
+                    Log.e(LOG_TAG, "Failed to commit scanned sales", e);
+                }
+                return unsold;
+            }
+        }, new BookRepository.Callback<List<String>>() {
+            @Override
+            public void onResult(List<String> unsold) {
+                if (!unsold.isEmpty() && mListener != null) {
+                    mListener.onUnsoldIsbn(unsold);
+                }
+            }
+        });
+    }
+}
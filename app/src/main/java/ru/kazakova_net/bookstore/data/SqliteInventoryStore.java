@@ -0,0 +1,68 @@
+package ru.kazakova_net.bookstore.data;
+
+import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.content.ContentValues;
+
+import ru.kazakova_net.bookstore.inventory.InventoryStore;
+
+import static ru.kazakova_net.bookstore.data.BookContract.BookEntry;
+
+/**
+ * Persists the {@link ru.kazakova_net.bookstore.inventory.InventoryEngine} in the books
+ * database. Changes go through {@link BookStoreProvider}, so quantities are kept as
+ * per-device counters and observers of the books are notified.
+ */
+public class SqliteInventoryStore implements InventoryStore {
+    
+    private final ContentResolver mContentResolver;
+    
+    public SqliteInventoryStore(ContentResolver contentResolver) {
+        mContentResolver = contentResolver;
+    }
+    
+    /**
+     * Read the whole catalog as columns, see {@link BookColumns}.
+     */
+    @Override
+    public void load(BookSink sink) {
+        String[] columns = {
+                BookEntry.COLUMN_BOOK_PRICE,
+                BookEntry.COLUMN_BOOK_QUANTITY,
+                BookEntry.COLUMN_BOOK_SUPPLIER_NAME};
+        
+        long afterId = 0;
+        BookColumns chunk;
+        do {
+            chunk = BookColumns.read(mContentResolver, columns, afterId);
+            long[] ids = chunk.getIds();
+            int[] prices = chunk.getInts(BookEntry.COLUMN_BOOK_PRICE);
+            int[] quantities = chunk.getInts(BookEntry.COLUMN_BOOK_QUANTITY);
+            int[] suppliers = chunk.getCodes(BookEntry.COLUMN_BOOK_SUPPLIER_NAME);
+            String[] supplierNames = chunk.getDictionary(BookEntry.COLUMN_BOOK_SUPPLIER_NAME);
+            for (int i = 0; i < chunk.size(); i++) {
+                sink.onBook(ids[i], prices[i], quantities[i],
+                        suppliers[i] < 0 ? null : supplierNames[suppliers[i]]);
+            }
+            
+            if (chunk.size() != 0) {
+                afterId = chunk.getLastId();
+            }
+        } while (!chunk.isLast());
+    }
+    
+    @Override
+    public void saveQuantityChange(long id, int delta) {
+        ContentValues values = new ContentValues();
+        values.put(BookEntry.QUANTITY_DELTA, delta);
+        mContentResolver.update(BookEntry.buildQuantityUri(id), values, null, null);
+    }
+    
+    @Override
+    public void savePrice(long id, int price) {
+        ContentValues values = new ContentValues();
+        values.put(BookEntry.COLUMN_BOOK_PRICE, price);
+        mContentResolver.update(ContentUris.withAppendedId(BookEntry.CONTENT_URI, id),
+                values, null, null);
+    }
+}
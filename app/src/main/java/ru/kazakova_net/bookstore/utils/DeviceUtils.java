@@ -0,0 +1,36 @@
+package ru.kazakova_net.bookstore.utils;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+import java.util.UUID;
+
+public class DeviceUtils {
+    
+    private static final String PREFS_NAME = "device";
+    private static final String KEY_DEVICE_ID = "device_id";
+    
+    private static String sDeviceId;
+    
+    /**
+     * Returns the identifier of this installation, generating it on first use.
+     * It is used to tell apart quantity changes made on different devices.
+     *
+     * @param context app context
+     * @return stable random identifier of the device
+     */
+    public static synchronized String getDeviceId(Context context) {
+        if (sDeviceId == null) {
+            SharedPreferences preferences =
+                    context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+            sDeviceId = preferences.getString(KEY_DEVICE_ID, null);
+            
+            if (sDeviceId == null) {
+                sDeviceId = UUID.randomUUID().toString();
+                preferences.edit().putString(KEY_DEVICE_ID, sDeviceId).apply();
+            }
+        }
+        
+        return sDeviceId;
+    }
+}
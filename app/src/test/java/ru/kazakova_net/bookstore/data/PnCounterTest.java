@@ -0,0 +1,103 @@
+package ru.kazakova_net.bookstore.data;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Checks that {@link PnCounter} replicas converge whatever the order of merges.
+ */
+public class PnCounterTest {
+    
+    private static final int DEVICES = 12;
+    private static final int ROUNDS = 200;
+    
+    @Test
+    public void localChanges_areCounted() {
+        PnCounter counter = new PnCounter();
+        counter.add("a", 5);
+        counter.add("a", -2);
+        counter.add("b", -1);
+        
+        assertEquals(2, counter.value());
+        assertEquals(5, counter.getIncrements("a"));
+        assertEquals(2, counter.getDecrements("a"));
+    }
+    
+    @Test
+    public void merge_isIdempotent() {
+        PnCounter local = new PnCounter();
+        local.add("a", 3);
+        PnCounter remote = new PnCounter();
+        remote.add("b", -1);
+        
+        local.merge(remote);
+        local.merge(remote);
+        
+        assertEquals(2, local.value());
+    }
+    
+    @Test
+    public void concurrentSales_areNotLost() {
+        PnCounter first = new PnCounter();
+        first.add("warehouse", 10);
+        PnCounter second = new PnCounter();
+        second.merge(first);
+        
+        // Both devices sell one copy while offline
+        first.add("first", -1);
+        second.add("second", -1);
+        
+        first.merge(second);
+        second.merge(first);
+        
+        assertEquals(8, first.value());
+        assertEquals(8, second.value());
+    }
+    
+    @Test
+    public void randomInterleavings_converge() {
+        Random random = new Random(42);
+        
+        for (int run = 0; run < 50; run++) {
+            List<PnCounter> replicas = new ArrayList<>();
+            for (int i = 0; i < DEVICES; i++) {
+                replicas.add(new PnCounter());
+            }
+            
+            long expected = 0;
+            for (int round = 0; round < ROUNDS; round++) {
+                int device = random.nextInt(DEVICES);
+                if (random.nextInt(3) == 0) {
+                    // Gossip the state of one replica to another one
+                    replicas.get(random.nextInt(DEVICES)).merge(replicas.get(device));
+                } else {
+                    long delta = random.nextInt(11) - 5;
+                    replicas.get(device).add("device" + device, delta);
+                    expected += delta;
+                }
+            }
+            
+            // Deliver every state to every replica in a random order
+            List<Integer> order = new ArrayList<>();
+            for (int i = 0; i < DEVICES; i++) {
+                order.add(i);
+            }
+            for (PnCounter replica : replicas) {
+                Collections.shuffle(order, random);
+                for (int i : order) {
+                    replica.merge(replicas.get(i));
+                }
+            }
+            
+            for (PnCounter replica : replicas) {
+                assertEquals(expected, replica.value());
+            }
+        }
+    }
+}
@@ -0,0 +1,98 @@
+package ru.kazakova_net.bookstore.benchmark;
+
+import android.os.ParcelFileDescriptor;
+import android.os.SystemClock;
+
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Runs shell commands as the shell user and reads the timings the system reports for the
+ * app under test.
+ */
+final class DeviceShell {
+    
+    static final String PACKAGE = "ru.kazakova_net.bookstore";
+    
+    private static final Pattern TOTAL_TIME = Pattern.compile("TotalTime: (\\d+)");
+    
+    private static final long FULLY_DRAWN_TIMEOUT_MILLIS = 5000;
+    
+    private DeviceShell() {
+    }
+    
+    /**
+     * Run a command and return its output once it exits.
+     */
+    static String run(String command) throws IOException {
+        ParcelFileDescriptor output = InstrumentationRegistry.getInstrumentation().getUiAutomation()
+                .executeShellCommand(command);
+        InputStream in = new ParcelFileDescriptor.AutoCloseInputStream(output);
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                bytes.write(buffer, 0, read);
+            }
+            return bytes.toString("UTF-8");
+        } finally {
+            in.close();
+        }
+    }
+    
+    /**
+     * Start an activity of the app and wait until its first frame is drawn.
+     *
+     * @return the time from the launch to the first frame, as measured by the system
+     */
+    static long startActivity(String activity) throws IOException {
+        String output = run("am start -W -n " + PACKAGE + "/." + activity);
+        Matcher matcher = TOTAL_TIME.matcher(output);
+        if (!matcher.find()) {
+            throw new IOException("Cannot start " + activity + ": " + output);
+        }
+        return Long.parseLong(matcher.group(1));
+    }
+    
+    /**
+     * Start an activity of the app, or bring it to the front, without waiting.
+     */
+    static void launch(String activity) throws IOException {
+        run("am start -n " + PACKAGE + "/." + activity);
+    }
+    
+    static void forceStop() throws IOException {
+        run("am force-stop " + PACKAGE);
+    }
+    
+    static void clearLog() throws IOException {
+        run("logcat -c");
+    }
+    
+    /**
+     * Wait for the system to log the fully drawn time of an activity launched after the log
+     * was last cleared, see {@link android.app.Activity#reportFullyDrawn()}.
+     *
+     * @return the time from the launch until the activity reported it was fully drawn
+     */
+    static long awaitFullyDrawn(String activity) throws IOException {
+        Pattern fullyDrawn = Pattern.compile("Fully drawn " + Pattern.quote(PACKAGE + "/." + activity)
+                + ": \\+(?:(\\d+)s)?(\\d+)ms");
+        long deadline = SystemClock.uptimeMillis() + FULLY_DRAWN_TIMEOUT_MILLIS;
+        do {
+            Matcher matcher = fullyDrawn.matcher(run("logcat -d -s ActivityManager:I ActivityTaskManager:I"));
+            if (matcher.find()) {
+                long seconds = matcher.group(1) == null ? 0 : Long.parseLong(matcher.group(1));
+                return seconds * 1000 + Long.parseLong(matcher.group(2));
+            }
+            SystemClock.sleep(100);
+        } while (SystemClock.uptimeMillis() < deadline);
+        throw new IOException(activity + " did not report that it was fully drawn");
+    }
+}
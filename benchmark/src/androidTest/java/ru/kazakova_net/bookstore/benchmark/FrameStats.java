@@ -0,0 +1,69 @@
+package ru.kazakova_net.bookstore.benchmark;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Frame timing of the app since the last reset, read from {@code dumpsys gfxinfo}.
+ */
+final class FrameStats {
+    
+    private static final Pattern TOTAL_FRAMES = Pattern.compile("Total frames rendered: (\\d+)");
+    private static final Pattern JANKY_FRAMES = Pattern.compile("Janky frames: (\\d+) \\(([\\d.]+)%\\)");
+    
+    final int totalFrames;
+    final int jankyFrames;
+    final double jankPercent;
+    final int p50Millis;
+    final int p90Millis;
+    final int p95Millis;
+    final int p99Millis;
+    
+    private FrameStats(String gfxinfo) throws IOException {
+        Matcher total = find(TOTAL_FRAMES, gfxinfo);
+        Matcher janky = find(JANKY_FRAMES, gfxinfo);
+        totalFrames = Integer.parseInt(total.group(1));
+        jankyFrames = Integer.parseInt(janky.group(1));
+        jankPercent = Double.parseDouble(janky.group(2));
+        p50Millis = percentile(gfxinfo, 50);
+        p90Millis = percentile(gfxinfo, 90);
+        p95Millis = percentile(gfxinfo, 95);
+        p99Millis = percentile(gfxinfo, 99);
+    }
+    
+    static void reset() throws IOException {
+        DeviceShell.run("dumpsys gfxinfo " + DeviceShell.PACKAGE + " reset");
+    }
+    
+    static FrameStats read() throws IOException {
+        return new FrameStats(DeviceShell.run("dumpsys gfxinfo " + DeviceShell.PACKAGE));
+    }
+    
+    JSONObject toJson() throws JSONException {
+        return new JSONObject()
+                .put("frames", totalFrames)
+                .put("jankyFrames", jankyFrames)
+                .put("jankPercent", jankPercent)
+                .put("p50FrameMs", p50Millis)
+                .put("p90FrameMs", p90Millis)
+                .put("p95FrameMs", p95Millis)
+                .put("p99FrameMs", p99Millis);
+    }
+    
+    private static int percentile(String gfxinfo, int percentile) throws IOException {
+        Matcher matcher = find(Pattern.compile(percentile + "th percentile: (\\d+)ms"), gfxinfo);
+        return Integer.parseInt(matcher.group(1));
+    }
+    
+    private static Matcher find(Pattern pattern, String gfxinfo) throws IOException {
+        Matcher matcher = pattern.matcher(gfxinfo);
+        if (!matcher.find()) {
+            throw new IOException("No " + pattern + " in gfxinfo");
+        }
+        return matcher;
+    }
+}
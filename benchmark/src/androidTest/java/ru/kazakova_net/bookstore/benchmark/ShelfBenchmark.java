@@ -0,0 +1,173 @@
+package ru.kazakova_net.bookstore.benchmark;
+
+import android.os.Build;
+import android.util.Log;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.platform.app.InstrumentationRegistry;
+import androidx.test.uiautomator.By;
+import androidx.test.uiautomator.Direction;
+import androidx.test.uiautomator.UiDevice;
+import androidx.test.uiautomator.UiObject2;
+import androidx.test.uiautomator.Until;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Measures what the user feels on a large catalog: cold start to the shelf, frame timing while
+ * scrolling the shelf, and opening a book in the editor. The results of all tests are written
+ * as one JSON object for trend tracking.
+ * <p>
+ * The books of the installed app are replaced with a generated catalog first.
+ */
+@RunWith(AndroidJUnit4.class)
+public class ShelfBenchmark {
+    
+    private static final String LOG_TAG = ShelfBenchmark.class.getSimpleName();
+    
+    private static final String SHELF_ACTIVITY = "BookShelfActivity";
+    private static final String EDITOR_ACTIVITY = "EditorActivity";
+    
+    private static final int CATALOG_SIZE = 5000;
+    private static final int COLD_STARTS = 5;
+    private static final int FLINGS = 10;
+    private static final int EDITOR_OPENS = 10;
+    
+    private static final long UI_TIMEOUT_MILLIS = 5000;
+    
+    private static final String RESULTS_FILE = "bookstore-benchmark.json";
+    
+    private static final JSONObject sResults = new JSONObject();
+    
+    private UiDevice mDevice;
+    
+    @BeforeClass
+    public static void seedCatalog() throws IOException {
+        DeviceShell.forceStop();
+        String output = DeviceShell.run("am broadcast -n " + DeviceShell.PACKAGE
+                + "/.data.CatalogSeedReceiver --ei count " + CATALOG_SIZE);
+        assertTrue(output, output.contains("result=" + CATALOG_SIZE));
+    }
+    
+    @AfterClass
+    public static void writeResults() throws IOException, JSONException {
+        JSONObject report = new JSONObject()
+                .put("device", Build.MANUFACTURER + " " + Build.MODEL)
+                .put("sdk", Build.VERSION.SDK_INT)
+                .put("timestamp", System.currentTimeMillis())
+                .put("catalogSize", CATALOG_SIZE)
+                .put("benchmarks", sResults);
+        
+        File file = new File(InstrumentationRegistry.getInstrumentation().getTargetContext()
+                .getExternalFilesDir(null), RESULTS_FILE);
+        OutputStream out = new FileOutputStream(file);
+        try {
+            out.write(report.toString(2).getBytes("UTF-8"));
+        } finally {
+            out.close();
+        }
+        Log.i(LOG_TAG, "Results written to " + file + ": " + report);
+    }
+    
+    @Before
+    public void setUp() {
+        mDevice = UiDevice.getInstance(InstrumentationRegistry.getInstrumentation());
+    }
+    
+    @Test
+    public void coldStart() throws IOException, JSONException {
+        long[] firstFrame = new long[COLD_STARTS];
+        long[] fullyDrawn = new long[COLD_STARTS];
+        for (int i = 0; i < COLD_STARTS; i++) {
+            DeviceShell.forceStop();
+            DeviceShell.clearLog();
+            firstFrame[i] = DeviceShell.startActivity(SHELF_ACTIVITY);
+            fullyDrawn[i] = DeviceShell.awaitFullyDrawn(SHELF_ACTIVITY);
+        }
+        
+        sResults.put("coldStart", new JSONObject()
+                .put("firstFrameMs", summary(firstFrame))
+                .put("fullyDrawnMs", summary(fullyDrawn)));
+    }
+    
+    @Test
+    public void shelfScroll() throws IOException, JSONException {
+        UiObject2 list = openShelf();
+        list.setGestureMargin(mDevice.getDisplayWidth() / 10);
+        
+        FrameStats.reset();
+        for (int i = 0; i < FLINGS; i++) {
+            list.fling(Direction.DOWN);
+        }
+        for (int i = 0; i < FLINGS; i++) {
+            list.fling(Direction.UP);
+        }
+        mDevice.waitForIdle();
+        
+        FrameStats stats = FrameStats.read();
+        assertTrue(stats.totalFrames > 0);
+        sResults.put("shelfScroll", stats.toJson());
+    }
+    
+    @Test
+    public void editorOpen() throws IOException, JSONException {
+        long[] clickToLoaded = new long[EDITOR_OPENS];
+        for (int i = 0; i < EDITOR_OPENS; i++) {
+            List<UiObject2> titles = openShelf().findObjects(By.res(DeviceShell.PACKAGE, "book_title"));
+            assertTrue(titles.size() > 0);
+            
+            DeviceShell.clearLog();
+            titles.get(i % titles.size()).click();
+            assertNotNull(mDevice.wait(Until.findObject(By.res(DeviceShell.PACKAGE, "edit_book_title")),
+                    UI_TIMEOUT_MILLIS));
+            clickToLoaded[i] = DeviceShell.awaitFullyDrawn(EDITOR_ACTIVITY);
+            
+            mDevice.pressBack();
+        }
+        
+        sResults.put("editorOpen", new JSONObject()
+                .put("clickToLoadedMs", summary(clickToLoaded)));
+    }
+    
+    /**
+     * Bring the shelf to the front with the books bound and return its list.
+     */
+    private UiObject2 openShelf() throws IOException {
+        DeviceShell.launch(SHELF_ACTIVITY);
+        UiObject2 list = mDevice.wait(Until.findObject(By.res(DeviceShell.PACKAGE, "list")
+                .hasDescendant(By.res(DeviceShell.PACKAGE, "book_title"))), UI_TIMEOUT_MILLIS);
+        assertNotNull(list);
+        return list;
+    }
+    
+    private static JSONObject summary(long[] runs) throws JSONException {
+        long[] sorted = runs.clone();
+        Arrays.sort(sorted);
+        JSONArray values = new JSONArray();
+        for (long run : runs) {
+            values.put(run);
+        }
+        return new JSONObject()
+                .put("min", sorted[0])
+                .put("median", sorted[sorted.length / 2])
+                .put("max", sorted[sorted.length - 1])
+                .put("runs", values);
+    }
+}
@@ -0,0 +1,101 @@
+package ru.kazakova_net.bookstore.inventory;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Sales, lookups and valuation over a catalog of a million books.
+ * <p>
+ * Run with {@code ./gradlew :inventory:jmh}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class InventoryBenchmark {
+    
+    private static final int SUPPLIERS = 200;
+    
+    /**
+     * Number of IDs picked per benchmark invocation batch, a power of two
+     */
+    private static final int ID_SAMPLE = 1 << 16;
+    
+    @Param({"1000000"})
+    public int mBooks;
+    
+    private InventoryEngine mEngine;
+    private long[] mIds;
+    private int mNext;
+    
+    @Setup
+    public void setUp() {
+        mEngine = new InventoryEngine(new NoOpStore(), mBooks);
+        Random random = new Random(1);
+        
+        // SQLite ids are sequential with gaps left by deleted books
+        long id = 0;
+        for (int i = 0; i < mBooks; i++) {
+            id += 1 + random.nextInt(3);
+            mEngine.addBook(id, 1 + random.nextInt(5000), Integer.MAX_VALUE / 2,
+                    "Supplier " + random.nextInt(SUPPLIERS));
+        }
+        
+        mIds = new long[ID_SAMPLE];
+        for (int i = 0; i < ID_SAMPLE; i++) {
+            mIds[i] = mEngine.getIndex().getId(random.nextInt(mBooks));
+        }
+    }
+    
+    private long nextId() {
+        return mIds[mNext++ & (ID_SAMPLE - 1)];
+    }
+    
+    @Benchmark
+    public boolean sell() {
+        return mEngine.sell(nextId(), 1);
+    }
+    
+    @Benchmark
+    public int getQuantity() {
+        return mEngine.getQuantity(nextId());
+    }
+    
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public long valuation() {
+        return mEngine.valuation();
+    }
+    
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public long valuationBySupplier() {
+        return mEngine.valuation("Supplier 7");
+    }
+    
+    /**
+     * Measures the engine alone, without persistence.
+     */
+    private static class NoOpStore implements InventoryStore {
+        
+        @Override
+        public void load(BookSink sink) {
+        }
+        
+        @Override
+        public void saveQuantityChange(long id, int delta) {
+        }
+        
+        @Override
+        public void savePrice(long id, int price) {
+        }
+    }
+}
@@ -0,0 +1,179 @@
+package ru.kazakova_net.bookstore.inventory;
+
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * Generates a synthetic catalog that looks like the stock of a Russian bookshop, to fill the
+ * database for benchmarks and soak tests.
+ * <p>
+ * Every book is derived from the seed and its number alone, so a catalog is the same whatever
+ * chunks it is generated in, and books numbered past the catalog make new, distinct books.
+ * Titles are made of Russian words, mostly two to four of them; suppliers follow a Zipf
+ * distribution, so a few publishers supply most books; prices are log-normal around 450
+ * roubles; about one book in eight is out of stock and the others have a long tail of copies.
+ * ISBNs are valid ISBN-13 numbers, unique per book number below 10^8.
+ */
+public final class CatalogGenerator {
+    
+    /**
+     * Receives the generated books.
+     */
+    public interface BookSink {
+        void onBook(String title, String isbn, int price, int quantity, String supplier,
+                    String supplierPhone);
+    }
+    
+    private static final String[] WORDS = {
+            "война", "мир", "время", "жизнь", "дом", "город", "море", "ночь", "день", "сад",
+            "дорога", "сердце", "память", "тень", "свет", "зима", "весна", "лето", "осень",
+            "история", "тайна", "книга", "письма", "остров", "река", "лес", "небо", "звезда",
+            "путь", "судьба", "любовь", "дети", "отцы", "брат", "сестра", "капитан", "доктор",
+            "мастер", "учитель", "земля", "огонь", "ветер", "снег", "дождь", "камень", "золото",
+            "серебро", "стекло", "зеркало", "окно", "дверь", "ключ", "часы", "поезд", "корабль",
+            "последний", "первый", "белый", "чёрный", "красный", "синий", "тихий", "долгий",
+            "старый", "новый", "большой", "маленький", "далёкий", "забытый", "потерянный",
+            "русский", "северный", "южный", "вечный", "золотой", "горький", "сладкий", "живой",
+            "и", "и", "в", "в", "на", "о", "под", "над", "без", "для", "из", "за", "после",
+            "программирование", "алгоритмы", "основы", "руководство", "практика", "введение",
+            "математика", "физика", "химия", "биология", "экономика", "философия", "психология",
+            "кулинария", "путешествие", "приключения", "воспоминания", "рассказы", "стихи",
+            "сказки", "легенды", "повесть", "роман", "дневник", "хроники", "энциклопедия"};
+    
+    /**
+     * Distribution of the number of words of a title, in percent for 1 to 9 words
+     */
+    private static final int[] TITLE_WORDS_PERCENT = {12, 24, 24, 16, 10, 6, 4, 2, 2};
+    
+    private static final String[] SUPPLIER_PREFIXES = {"Издательство", "Книжный дом",
+            "Дом книги", "Типография", "Книготорг"};
+    
+    private static final double SUPPLIER_SKEW = 1.1;
+    private static final double MEDIAN_PRICE = 450;
+    private static final double PRICE_SIGMA = 0.6;
+    private static final int MIN_PRICE = 50;
+    private static final int MAX_PRICE = 20000;
+    private static final double OUT_OF_STOCK_SHARE = 0.12;
+    private static final double MEAN_COPIES = 6;
+    private static final int MAX_COPIES = 500;
+    
+    private final long mSeed;
+    private final String[] mSuppliers;
+    private final String[] mSupplierPhones;
+    
+    /**
+     * Cumulative Zipf weights of the suppliers
+     */
+    private final double[] mSupplierWeights;
+    
+    /**
+     * @param suppliers number of distinct suppliers
+     */
+    public CatalogGenerator(long seed, int suppliers) {
+        if (suppliers <= 0) {
+            throw new IllegalArgumentException("At least one supplier is required");
+        }
+        mSeed = seed;
+        mSuppliers = new String[suppliers];
+        mSupplierPhones = new String[suppliers];
+        mSupplierWeights = new double[suppliers];
+        
+        Random random = new Random(seed);
+        double total = 0;
+        for (int i = 0; i < suppliers; i++) {
+            mSuppliers[i] = SUPPLIER_PREFIXES[i % SUPPLIER_PREFIXES.length] + " «"
+                    + capitalize(WORDS[random.nextInt(WORDS.length)]) + "» " + (i + 1);
+            mSupplierPhones[i] = String.format(Locale.US, "+7 495 %03d-%02d-%02d",
+                    random.nextInt(1000), random.nextInt(100), random.nextInt(100));
+            total += 1 / Math.pow(i + 1, SUPPLIER_SKEW);
+            mSupplierWeights[i] = total;
+        }
+    }
+    
+    /**
+     * Pass the books with the given numbers to the sink, in order.
+     */
+    public void generate(int first, int count, BookSink sink) {
+        for (int number = first; number < first + count; number++) {
+            Random random = new Random(mSeed * 0x9E3779B97F4A7C15L + number);
+            int supplier = pickSupplier(random);
+            sink.onBook(title(random), isbn(number), price(random), quantity(random),
+                    mSuppliers[supplier], mSupplierPhones[supplier]);
+        }
+    }
+    
+    /**
+     * A word that may occur in titles, to search for.
+     */
+    public static String randomWord(Random random) {
+        return WORDS[random.nextInt(WORDS.length)];
+    }
+    
+    /**
+     * ISBN-13 in the Russian group 978-5 made of the book number and its check digit.
+     */
+    static String isbn(int number) {
+        String digits = String.format(Locale.US, "9785%08d", number % 100000000);
+        int sum = 0;
+        for (int i = 0; i < digits.length(); i++) {
+            sum += (digits.charAt(i) - '0') * (i % 2 == 0 ? 1 : 3);
+        }
+        return digits + (10 - sum % 10) % 10;
+    }
+    
+    private static String title(Random random) {
+        int words = 1;
+        for (int roll = random.nextInt(100); roll >= TITLE_WORDS_PERCENT[words - 1]; words++) {
+            roll -= TITLE_WORDS_PERCENT[words - 1];
+        }
+        
+        StringBuilder title = new StringBuilder();
+        for (int w = 0; w < words; w++) {
+            String word = WORDS[random.nextInt(WORDS.length)];
+            title.append(w == 0 ? capitalize(word) : " " + word);
+        }
+        
+        // Some books belong to a series
+        if (random.nextInt(10) == 0) {
+            title.append(". Том ").append(1 + random.nextInt(5));
+        }
+        return title.toString();
+    }
+    
+    private int pickSupplier(Random random) {
+        double target = random.nextDouble() * mSupplierWeights[mSupplierWeights.length - 1];
+        int low = 0;
+        int high = mSupplierWeights.length - 1;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (mSupplierWeights[middle] < target) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+    
+    private static int price(Random random) {
+        double price = MEDIAN_PRICE * Math.exp(PRICE_SIGMA * random.nextGaussian());
+        
+        // Shops price in tens of roubles
+        return (int) Math.max(MIN_PRICE, Math.min(MAX_PRICE, Math.round(price / 10) * 10));
+    }
+    
+    private static int quantity(Random random) {
+        if (random.nextDouble() < OUT_OF_STOCK_SHARE) {
+            return 0;
+        }
+        
+        // Geometric, so most books have a few copies and bestsellers have many
+        double p = 1 / MEAN_COPIES;
+        int copies = 1 + (int) (Math.log(1 - random.nextDouble()) / Math.log(1 - p));
+        return Math.min(copies, MAX_COPIES);
+    }
+    
+    private static String capitalize(String word) {
+        return Character.toUpperCase(word.charAt(0)) + word.substring(1);
+    }
+}
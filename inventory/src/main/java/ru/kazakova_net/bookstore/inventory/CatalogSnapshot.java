@@ -0,0 +1,310 @@
+package ru.kazakova_net.bookstore.inventory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.zip.CRC32;
+
+/**
+ * Read-only catalog of the books in a memory-mapped file written by
+ * {@link CatalogSnapshotWriter}, for devices that only look books up.
+ * <p>
+ * The file starts with a header of {@link #HEADER_SIZE} bytes, little-endian:
+ * <pre>
+ * magic, version, books, books with an ISBN, CRC32 of the rest of the file,
+ * offsets of the ids, records, ISBN index, title index and string pool, pool size, 0
+ * </pre>
+ * The ids are sorted longs. A record of {@link #RECORD_SIZE} bytes per id holds the price,
+ * the quantity and the pool offsets of the title, ISBN and supplier, -1 for null. The ISBN
+ * index lists the records in ISBN order and the title index in the order of the titles
+ * folded to lower case. A string in the pool is its length in chars followed by the chars,
+ * padded to 4 bytes, so that lookups compare it in place.
+ * <p>
+ * Lookups read the mapped file with absolute gets and allocate nothing, so one snapshot
+ * serves any number of threads. Only the getters of strings allocate.
+ */
+public final class CatalogSnapshot {
+    
+    static final int MAGIC = 0x50534B42;
+    static final int VERSION = 1;
+    
+    static final int HEADER_SIZE = 48;
+    static final int RECORD_SIZE = 20;
+    
+    /**
+     * Offsets of the fields of the header
+     */
+    static final int HEADER_BOOKS = 8;
+    static final int HEADER_ISBNS = 12;
+    static final int HEADER_CRC = 16;
+    static final int HEADER_IDS = 20;
+    static final int HEADER_RECORDS = 24;
+    static final int HEADER_ISBN_INDEX = 28;
+    static final int HEADER_TITLE_INDEX = 32;
+    static final int HEADER_POOL = 36;
+    static final int HEADER_POOL_SIZE = 40;
+    
+    /**
+     * Offsets of the fields of a record
+     */
+    static final int RECORD_PRICE = 0;
+    static final int RECORD_QUANTITY = 4;
+    static final int RECORD_TITLE = 8;
+    static final int RECORD_ISBN = 12;
+    static final int RECORD_SUPPLIER = 16;
+    
+    private final ByteBuffer mBuffer;
+    private final int mSize;
+    private final int mIsbnCount;
+    private final int mIds;
+    private final int mRecords;
+    private final int mIsbnIndex;
+    private final int mTitleIndex;
+    private final int mPool;
+    
+    private CatalogSnapshot(ByteBuffer buffer) throws IOException {
+        mBuffer = buffer;
+        if (buffer.capacity() < HEADER_SIZE || buffer.getInt(0) != MAGIC) {
+            throw new IOException("Not a catalog snapshot");
+        }
+        if (buffer.getInt(4) != VERSION) {
+            throw new IOException("Unsupported snapshot version " + buffer.getInt(4));
+        }
+        mSize = buffer.getInt(HEADER_BOOKS);
+        mIsbnCount = buffer.getInt(HEADER_ISBNS);
+        mIds = buffer.getInt(HEADER_IDS);
+        mRecords = buffer.getInt(HEADER_RECORDS);
+        mIsbnIndex = buffer.getInt(HEADER_ISBN_INDEX);
+        mTitleIndex = buffer.getInt(HEADER_TITLE_INDEX);
+        mPool = buffer.getInt(HEADER_POOL);
+        if ((long) mPool + buffer.getInt(HEADER_POOL_SIZE) != buffer.capacity()
+                || mIds != HEADER_SIZE
+                || mRecords != mIds + 8L * mSize
+                || mIsbnIndex != mRecords + (long) RECORD_SIZE * mSize
+                || mTitleIndex != mIsbnIndex + 4L * mIsbnCount
+                || mPool != mTitleIndex + 4L * mSize) {
+            throw new IOException("Snapshot is truncated or malformed");
+        }
+        if (buffer.getInt(HEADER_CRC) != checksum(buffer)) {
+            throw new IOException("Snapshot checksum does not match");
+        }
+    }
+    
+    /**
+     * Map the snapshot in the given file and verify its checksum. The mapping stays valid
+     * when the file is replaced or deleted.
+     */
+    public static CatalogSnapshot open(File file) throws IOException {
+        RandomAccessFile input = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = input.getChannel();
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new IOException("Snapshot is too large");
+            }
+            ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            return new CatalogSnapshot(buffer.order(ByteOrder.LITTLE_ENDIAN));
+        } finally {
+            input.close();
+        }
+    }
+    
+    /**
+     * Read a snapshot that is already in memory, such as one being received.
+     */
+    public static CatalogSnapshot wrap(ByteBuffer buffer) throws IOException {
+        return new CatalogSnapshot(buffer.duplicate().order(ByteOrder.LITTLE_ENDIAN));
+    }
+    
+    /**
+     * CRC32 of everything after the header.
+     */
+    static int checksum(ByteBuffer buffer) {
+        CRC32 crc = new CRC32();
+        byte[] chunk = new byte[64 * 1024];
+        ByteBuffer rest = buffer.duplicate();
+        rest.position(HEADER_SIZE);
+        while (rest.hasRemaining()) {
+            int length = Math.min(chunk.length, rest.remaining());
+            rest.get(chunk, 0, length);
+            crc.update(chunk, 0, length);
+        }
+        return (int) crc.getValue();
+    }
+    
+    /**
+     * @return the number of books
+     */
+    public int size() {
+        return mSize;
+    }
+    
+    /**
+     * @return the record of the book with the given id, or -1 if there is none
+     */
+    public int findById(long id) {
+        int low = 0;
+        int high = mSize - 1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            long value = getId(middle);
+            if (value < id) {
+                low = middle + 1;
+            } else if (value > id) {
+                high = middle - 1;
+            } else {
+                return middle;
+            }
+        }
+        return -1;
+    }
+    
+    /**
+     * @param isbn normalized ISBN, digits and X only
+     * @return the record of the book with the ISBN, or -1 if there is none
+     */
+    public int findByIsbn(CharSequence isbn) {
+        int low = 0;
+        int high = mIsbnCount - 1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            int record = mBuffer.getInt(mIsbnIndex + 4 * middle);
+            int comparison = compare(stringAt(record, RECORD_ISBN), isbn, false, false);
+            if (comparison < 0) {
+                low = middle + 1;
+            } else if (comparison > 0) {
+                high = middle - 1;
+            } else {
+                return record;
+            }
+        }
+        return -1;
+    }
+    
+    /**
+     * Find the books whose title starts with the prefix, ignoring case, in title order.
+     *
+     * @param skip    number of matching books to skip, for paging
+     * @param records receives the records of the books
+     * @return the number of records written, less than the length of the array at the end
+     */
+    public int searchTitles(CharSequence prefix, int skip, int[] records) {
+        // First title that is not below the prefix
+        int low = 0;
+        int high = mSize;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (compareTitle(middle, prefix) < 0) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        
+        int found = 0;
+        for (int position = low + skip; position < mSize && found < records.length; position++) {
+            if (compareTitle(position, prefix) != 0) {
+                break;
+            }
+            records[found++] = mBuffer.getInt(mTitleIndex + 4 * position);
+        }
+        return found;
+    }
+    
+    private int compareTitle(int position, CharSequence prefix) {
+        int record = mBuffer.getInt(mTitleIndex + 4 * position);
+        return compare(stringAt(record, RECORD_TITLE), prefix, true, true);
+    }
+    
+    /**
+     * Compare the string at a pool offset with the given one, char by char.
+     *
+     * @param fold   whether to compare the chars in lower case
+     * @param prefix whether a string that starts with the other one is equal to it
+     */
+    private int compare(int offset, CharSequence other, boolean fold, boolean prefix) {
+        if (offset < 0) {
+            return -1;
+        }
+        int length = mBuffer.getInt(offset);
+        int otherLength = other.length();
+        int common = Math.min(length, otherLength);
+        for (int i = 0; i < common; i++) {
+            char c = mBuffer.getChar(offset + 4 + 2 * i);
+            char o = other.charAt(i);
+            if (fold) {
+                c = Character.toLowerCase(c);
+                o = Character.toLowerCase(o);
+            }
+            if (c != o) {
+                return c < o ? -1 : 1;
+            }
+        }
+        if (prefix && length >= otherLength) {
+            return 0;
+        }
+        return length - otherLength;
+    }
+    
+    /**
+     * @return the pool offset of a string field of a record, -1 for null
+     */
+    private int stringAt(int record, int field) {
+        int reference = mBuffer.getInt(mRecords + RECORD_SIZE * record + field);
+        return reference < 0 ? -1 : mPool + reference;
+    }
+    
+    private String readString(int record, int field) {
+        int offset = stringAt(record, field);
+        if (offset < 0) {
+            return null;
+        }
+        char[] chars = new char[mBuffer.getInt(offset)];
+        copyChars(offset, chars);
+        return new String(chars);
+    }
+    
+    private int copyChars(int offset, char[] chars) {
+        int length = Math.min(mBuffer.getInt(offset), chars.length);
+        for (int i = 0; i < length; i++) {
+            chars[i] = mBuffer.getChar(offset + 4 + 2 * i);
+        }
+        return length;
+    }
+    
+    public long getId(int record) {
+        return mBuffer.getLong(mIds + 8 * record);
+    }
+    
+    public int getPrice(int record) {
+        return mBuffer.getInt(mRecords + RECORD_SIZE * record + RECORD_PRICE);
+    }
+    
+    public int getQuantity(int record) {
+        return mBuffer.getInt(mRecords + RECORD_SIZE * record + RECORD_QUANTITY);
+    }
+    
+    public String getTitle(int record) {
+        return readString(record, RECORD_TITLE);
+    }
+    
+    /**
+     * Copy the title of a book into a reused buffer, up to its length.
+     *
+     * @return the number of chars copied, -1 if the book has no title
+     */
+    public int copyTitle(int record, char[] chars) {
+        int offset = stringAt(record, RECORD_TITLE);
+        return offset < 0 ? -1 : copyChars(offset, chars);
+    }
+    
+    public String getIsbn(int record) {
+        return readString(record, RECORD_ISBN);
+    }
+    
+    public String getSupplier(int record) {
+        return readString(record, RECORD_SUPPLIER);
+    }
+}
@@ -0,0 +1,55 @@
+package ru.kazakova_net.bookstore.inventory;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * The current {@link CatalogSnapshot} of a device, kept in one file.
+ * <p>
+ * A new snapshot is verified before it replaces the file, then swapped in with one
+ * reference write. Lookups already running finish on the snapshot they started with, whose
+ * mapping outlives the file it was read from.
+ */
+public class CatalogSnapshotHolder {
+    
+    private final File mFile;
+    private final AtomicReference<CatalogSnapshot> mCurrent = new AtomicReference<>();
+    
+    /**
+     * Serve the snapshot in the given file, if there is a valid one.
+     */
+    public CatalogSnapshotHolder(File file) {
+        mFile = file;
+        if (file.exists()) {
+            try {
+                mCurrent.set(CatalogSnapshot.open(file));
+            } catch (IOException e) {
+                // A damaged file is served as no catalog until a new snapshot arrives
+                mCurrent.set(null);
+            }
+        }
+    }
+    
+    /**
+     * @return the current snapshot, or null if none arrived yet
+     */
+    public CatalogSnapshot get() {
+        return mCurrent.get();
+    }
+    
+    /**
+     * Replace the current snapshot with the one in the given file, which is moved into
+     * place. A snapshot that fails to open is left where it is and changes nothing.
+     *
+     * @param arrived file in the same directory as the current one
+     */
+    public CatalogSnapshot install(File arrived) throws IOException {
+        CatalogSnapshot snapshot = CatalogSnapshot.open(arrived);
+        if (!arrived.renameTo(mFile)) {
+            throw new IOException("Cannot replace " + mFile);
+        }
+        mCurrent.set(snapshot);
+        return snapshot;
+    }
+}
@@ -0,0 +1,203 @@
+package ru.kazakova_net.bookstore.inventory;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Collects the books of a catalog and writes them as a {@link CatalogSnapshot}.
+ * <p>
+ * Repeated strings, such as the suppliers, are stored once. The file is written next to its
+ * target and renamed over it, so a reader never sees a partly written snapshot.
+ */
+public class CatalogSnapshotWriter {
+    
+    private static class Book {
+        long id;
+        String title;
+        String isbn;
+        String supplier;
+        int price;
+        int quantity;
+    }
+    
+    private final List<Book> mBooks = new ArrayList<>();
+    
+    public void add(long id, String title, String isbn, int price, int quantity, String supplier) {
+        Book book = new Book();
+        book.id = id;
+        book.title = title;
+        book.isbn = isbn;
+        book.price = price;
+        book.quantity = quantity;
+        book.supplier = supplier;
+        mBooks.add(book);
+    }
+    
+    public int size() {
+        return mBooks.size();
+    }
+    
+    /**
+     * Lay the snapshot out in memory.
+     */
+    public ByteBuffer toBuffer() {
+        final Book[] books = mBooks.toArray(new Book[0]);
+        Arrays.sort(books, new Comparator<Book>() {
+            @Override
+            public int compare(Book first, Book second) {
+                return Long.compare(first.id, second.id);
+            }
+        });
+        int size = books.length;
+        for (int i = 1; i < size; i++) {
+            if (books[i].id == books[i - 1].id) {
+                throw new IllegalArgumentException("Book " + books[i].id + " was added twice");
+            }
+        }
+        
+        Map<String, Integer> pool = new HashMap<>();
+        List<String> strings = new ArrayList<>();
+        long poolSize = 0;
+        int[][] references = new int[size][3];
+        int isbns = 0;
+        for (int i = 0; i < size; i++) {
+            String[] fields = {books[i].title, books[i].isbn, books[i].supplier};
+            for (int field = 0; field < fields.length; field++) {
+                String value = fields[field];
+                if (value == null) {
+                    references[i][field] = -1;
+                    continue;
+                }
+                Integer reference = pool.get(value);
+                if (reference == null) {
+                    reference = (int) poolSize;
+                    pool.put(value, reference);
+                    strings.add(value);
+                    poolSize += (4 + 2L * value.length() + 3) & ~3;
+                }
+                references[i][field] = reference;
+            }
+            if (books[i].isbn != null) {
+                isbns++;
+            }
+        }
+        
+        // ISBNs are unique in the catalog, so the index finds one book per ISBN
+        Integer[] byIsbn = new Integer[isbns];
+        Integer[] byTitle = new Integer[size];
+        for (int i = 0, j = 0; i < size; i++) {
+            byTitle[i] = i;
+            if (books[i].isbn != null) {
+                byIsbn[j++] = i;
+            }
+        }
+        Arrays.sort(byIsbn, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer first, Integer second) {
+                return books[first].isbn.compareTo(books[second].isbn);
+            }
+        });
+        Arrays.sort(byTitle, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer first, Integer second) {
+                int comparison = compareFolded(books[first].title, books[second].title);
+                return comparison != 0 ? comparison : Integer.compare(first, second);
+            }
+        });
+        
+        int ids = CatalogSnapshot.HEADER_SIZE;
+        int records = ids + 8 * size;
+        int isbnIndex = records + CatalogSnapshot.RECORD_SIZE * size;
+        int titleIndex = isbnIndex + 4 * isbns;
+        int poolOffset = titleIndex + 4 * size;
+        if (poolOffset + poolSize > Integer.MAX_VALUE) {
+            throw new IllegalStateException("Catalog is too large for a snapshot");
+        }
+        
+        ByteBuffer buffer = ByteBuffer.allocate((int) (poolOffset + poolSize))
+                .order(ByteOrder.LITTLE_ENDIAN);
+        buffer.putInt(0, CatalogSnapshot.MAGIC);
+        buffer.putInt(4, CatalogSnapshot.VERSION);
+        buffer.putInt(CatalogSnapshot.HEADER_BOOKS, size);
+        buffer.putInt(CatalogSnapshot.HEADER_ISBNS, isbns);
+        buffer.putInt(CatalogSnapshot.HEADER_IDS, ids);
+        buffer.putInt(CatalogSnapshot.HEADER_RECORDS, records);
+        buffer.putInt(CatalogSnapshot.HEADER_ISBN_INDEX, isbnIndex);
+        buffer.putInt(CatalogSnapshot.HEADER_TITLE_INDEX, titleIndex);
+        buffer.putInt(CatalogSnapshot.HEADER_POOL, poolOffset);
+        buffer.putInt(CatalogSnapshot.HEADER_POOL_SIZE, (int) poolSize);
+        
+        for (int i = 0; i < size; i++) {
+            buffer.putLong(ids + 8 * i, books[i].id);
+            int record = records + CatalogSnapshot.RECORD_SIZE * i;
+            buffer.putInt(record + CatalogSnapshot.RECORD_PRICE, books[i].price);
+            buffer.putInt(record + CatalogSnapshot.RECORD_QUANTITY, books[i].quantity);
+            buffer.putInt(record + CatalogSnapshot.RECORD_TITLE, references[i][0]);
+            buffer.putInt(record + CatalogSnapshot.RECORD_ISBN, references[i][1]);
+            buffer.putInt(record + CatalogSnapshot.RECORD_SUPPLIER, references[i][2]);
+        }
+        for (int i = 0; i < isbns; i++) {
+            buffer.putInt(isbnIndex + 4 * i, byIsbn[i]);
+        }
+        for (int i = 0; i < size; i++) {
+            buffer.putInt(titleIndex + 4 * i, byTitle[i]);
+        }
+        for (String value : strings) {
+            int offset = poolOffset + pool.get(value);
+            buffer.putInt(offset, value.length());
+            for (int i = 0; i < value.length(); i++) {
+                buffer.putChar(offset + 4 + 2 * i, value.charAt(i));
+            }
+        }
+        
+        buffer.putInt(CatalogSnapshot.HEADER_CRC, CatalogSnapshot.checksum(buffer));
+        return buffer;
+    }
+    
+    /**
+     * Write the snapshot to a temporary file, sync it and rename it over the given file.
+     */
+    public void writeTo(File file) throws IOException {
+        ByteBuffer buffer = toBuffer();
+        File temporary = new File(file.getPath() + ".tmp");
+        FileOutputStream output = new FileOutputStream(temporary);
+        try {
+            output.getChannel().write(buffer);
+            output.getFD().sync();
+        } finally {
+            output.close();
+        }
+        if (!temporary.renameTo(file)) {
+            temporary.delete();
+            throw new IOException("Cannot replace " + file);
+        }
+    }
+    
+    /**
+     * Compare two titles char by char in lower case, like {@link CatalogSnapshot} does.
+     * Null sorts first.
+     */
+    static int compareFolded(String first, String second) {
+        if (first == null || second == null) {
+            return first == null ? (second == null ? 0 : -1) : 1;
+        }
+        int common = Math.min(first.length(), second.length());
+        for (int i = 0; i < common; i++) {
+            char c = Character.toLowerCase(first.charAt(i));
+            char o = Character.toLowerCase(second.charAt(i));
+            if (c != o) {
+                return c < o ? -1 : 1;
+            }
+        }
+        return first.length() - second.length();
+    }
+}
@@ -0,0 +1,192 @@
+package ru.kazakova_net.bookstore.inventory;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Finds every pair of titles whose {@link TitleTrigrams#similarity(String[], String[])} reaches
+ * a threshold, without comparing every pair.
+ * <p>
+ * Candidates are blocked by prefix filtering: the trigrams of every title are ordered from the
+ * rarest to the most common, and two titles can only be similar enough if they share one of
+ * the first {@code n - minShared(n) + 1} trigrams. Only the titles that share such a trigram
+ * are compared, so common trigrams, which would pair almost everything, are rarely looked at.
+ * Titles are visited from the shortest, and a title too short to reach the threshold against
+ * the current one is dropped from the posting lists for good.
+ */
+public final class DuplicateTitleFinder {
+    
+    /**
+     * Receives the pairs of similar titles.
+     */
+    public interface Listener {
+        /**
+         * @param id      the smaller ID of the pair
+         * @param otherId the larger ID of the pair
+         */
+        void onDuplicate(long id, long otherId, double similarity);
+    }
+    
+    private final double mThreshold;
+    
+    /**
+     * Dense number of every trigram seen, and the number of titles containing it
+     */
+    private final Map<String, Integer> mTrigramNumbers = new HashMap<>();
+    private int[] mFrequencies = new int[1024];
+    
+    /**
+     * IDs of the titles, and their trigram numbers in ascending order
+     */
+    private final List<Long> mIds = new ArrayList<>();
+    private final List<int[]> mTrigrams = new ArrayList<>();
+    
+    public DuplicateTitleFinder(double threshold) {
+        if (threshold <= 0 || threshold > 1) {
+            throw new IllegalArgumentException("Threshold must be in (0, 1]");
+        }
+        mThreshold = threshold;
+    }
+    
+    /**
+     * Add a title. Titles without letters or digits are ignored.
+     */
+    public void add(long id, String title) {
+        String[] trigrams = TitleTrigrams.trigrams(title);
+        if (trigrams.length == 0) {
+            return;
+        }
+        
+        int[] numbers = new int[trigrams.length];
+        for (int i = 0; i < trigrams.length; i++) {
+            Integer number = mTrigramNumbers.get(trigrams[i]);
+            if (number == null) {
+                number = mTrigramNumbers.size();
+                mTrigramNumbers.put(trigrams[i], number);
+                if (number == mFrequencies.length) {
+                    mFrequencies = Arrays.copyOf(mFrequencies, number * 2);
+                }
+            }
+            numbers[i] = number;
+            mFrequencies[number]++;
+        }
+        Arrays.sort(numbers);
+        
+        mIds.add(id);
+        mTrigrams.add(numbers);
+    }
+    
+    /**
+     * Pass every pair of similar titles to the listener.
+     *
+     * @return the number of pairs that were compared
+     */
+    public long find(Listener listener) {
+        int count = mIds.size();
+        final int[][] titles = mTrigrams.toArray(new int[0][]);
+        Integer[] order = new Integer[count];
+        for (int i = 0; i < count; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                return Integer.compare(titles[a].length, titles[b].length);
+            }
+        });
+        
+        int trigramCount = mTrigramNumbers.size();
+        int[][] postings = new int[trigramCount][];
+        int[] postingStarts = new int[trigramCount];
+        int[] postingEnds = new int[trigramCount];
+        
+        // Title last compared with each title, plus one, so that a pair is compared once
+        int[] comparedWith = new int[count];
+        long compared = 0;
+        
+        for (int x : order) {
+            int[] trigrams = titles[x];
+            int[] prefix = rarestFirst(trigrams);
+            int prefixLength = trigrams.length - TitleTrigrams.minShared(trigrams.length, mThreshold) + 1;
+            int minLength = TitleTrigrams.minShared(trigrams.length, mThreshold);
+            
+            for (int p = 0; p < prefixLength; p++) {
+                int trigram = prefix[p];
+                int[] posting = postings[trigram];
+                if (posting == null) {
+                    continue;
+                }
+                
+                // Titles are visited by length, so a title too short now stays too short
+                while (postingStarts[trigram] < postingEnds[trigram]
+                        && titles[posting[postingStarts[trigram]]].length < minLength) {
+                    postingStarts[trigram]++;
+                }
+                
+                for (int i = postingStarts[trigram]; i < postingEnds[trigram]; i++) {
+                    int y = posting[i];
+                    if (comparedWith[y] == x + 1) {
+                        continue;
+                    }
+                    comparedWith[y] = x + 1;
+                    compared++;
+                    
+                    double similarity = similarity(trigrams, titles[y]);
+                    if (similarity >= mThreshold) {
+                        long id = mIds.get(x);
+                        long otherId = mIds.get(y);
+                        listener.onDuplicate(Math.min(id, otherId), Math.max(id, otherId), similarity);
+                    }
+                }
+            }
+            
+            for (int p = 0; p < prefixLength; p++) {
+                int trigram = prefix[p];
+                if (postings[trigram] == null) {
+                    postings[trigram] = new int[4];
+                } else if (postingEnds[trigram] == postings[trigram].length) {
+                    postings[trigram] = Arrays.copyOf(postings[trigram], postingEnds[trigram] * 2);
+                }
+                postings[trigram][postingEnds[trigram]++] = x;
+            }
+        }
+        return compared;
+    }
+    
+    /**
+     * The trigrams ordered from the one in the fewest titles, ties by number.
+     */
+    private int[] rarestFirst(int[] trigrams) {
+        long[] keyed = new long[trigrams.length];
+        for (int i = 0; i < trigrams.length; i++) {
+            keyed[i] = (long) mFrequencies[trigrams[i]] << 32 | trigrams[i];
+        }
+        Arrays.sort(keyed);
+        
+        int[] ordered = new int[trigrams.length];
+        for (int i = 0; i < keyed.length; i++) {
+            ordered[i] = (int) keyed[i];
+        }
+        return ordered;
+    }
+    
+    private static double similarity(int[] a, int[] b) {
+        int shared = 0;
+        for (int i = 0, j = 0; i < a.length && j < b.length; ) {
+            if (a[i] == b[j]) {
+                shared++;
+                i++;
+                j++;
+            } else if (a[i] < b[j]) {
+                i++;
+            } else {
+                j++;
+            }
+        }
+        return (double) shared / (a.length + b.length - shared);
+    }
+}
@@ -0,0 +1,49 @@
+package ru.kazakova_net.bookstore.inventory;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Operations on the inventory served by {@link InventoryHttpHandler}. Books are passed as maps
+ * from field names to strings, numbers or null.
+ */
+public interface InventoryApi {
+    
+    /**
+     * Receives the books of a list one at a time, so that they can be streamed.
+     */
+    interface BookSink {
+        void onBook(Map<String, Object> book) throws IOException;
+    }
+    
+    /**
+     * @return the book, or null if there is no such book
+     */
+    Map<String, Object> getBook(long id);
+    
+    /**
+     * Pass the books matching the filter parameters to the sink.
+     */
+    void listBooks(Map<String, String> filter, BookSink sink) throws IOException;
+    
+    /**
+     * Pass the books whose title or ISBN matches the query to the sink.
+     */
+    void searchBooks(String query, BookSink sink) throws IOException;
+    
+    /**
+     * Sell copies of a book.
+     *
+     * @return false if there is no such book or not enough copies
+     */
+    boolean sell(long id, int count);
+    
+    /**
+     * Insert the books in a single transaction.
+     *
+     * @return the ids of the new books
+     * @throws IllegalArgumentException if any book is invalid; then none is inserted
+     */
+    long[] importBooks(List<Map<String, Object>> books);
+}
@@ -0,0 +1,144 @@
+package ru.kazakova_net.bookstore.inventory;
+
+/**
+ * Sales, receipts and valuation of the stock.
+ * <p>
+ * Every operation is checked and applied against the {@link InventoryIndex} first, and only
+ * accepted changes are written to the {@link InventoryStore}. The engine is not thread-safe;
+ * callers serialize access to it.
+ */
+public class InventoryEngine {
+    
+    private final InventoryStore mStore;
+    private final InventoryIndex mIndex;
+    
+    public InventoryEngine(InventoryStore store, int expectedSize) {
+        mStore = store;
+        mIndex = new InventoryIndex(expectedSize);
+    }
+    
+    /**
+     * Replace the index with the books of the store.
+     */
+    public void load() {
+        mIndex.clear();
+        mStore.load(new InventoryStore.BookSink() {
+            @Override
+            public void onBook(long id, int price, int quantity, String supplier) {
+                mIndex.put(id, price, quantity, supplier);
+            }
+        });
+    }
+    
+    public InventoryIndex getIndex() {
+        return mIndex;
+    }
+    
+    /**
+     * Track a book that was added to the store.
+     *
+     * @throws IllegalArgumentException if the price or quantity is invalid
+     */
+    public void addBook(long id, int price, int quantity, String supplier) {
+        if (!InventoryRules.isValidPrice(price)) {
+            throw new IllegalArgumentException("Book requires valid price");
+        }
+        if (!InventoryRules.isValidQuantity(quantity)) {
+            throw new IllegalArgumentException("Book requires valid quantity");
+        }
+        mIndex.put(id, price, quantity, supplier);
+    }
+    
+    /**
+     * Stop tracking a book that was removed from the store.
+     */
+    public void removeBook(long id) {
+        mIndex.remove(id);
+    }
+    
+    /**
+     * Sell copies of a book.
+     *
+     * @return false if the book is unknown or there are not enough copies
+     */
+    public boolean sell(long id, int count) {
+        int slot = mIndex.slotOf(id);
+        if (slot < 0 || !InventoryRules.canSell(mIndex.getQuantity(slot), count)) {
+            return false;
+        }
+        
+        mIndex.setQuantity(slot, mIndex.getQuantity(slot) - count);
+        mStore.saveQuantityChange(id, -count);
+        return true;
+    }
+    
+    /**
+     * Add received copies of a book.
+     *
+     * @return false if the book is unknown
+     */
+    public boolean receive(long id, int count) {
+        if (count <= 0) {
+            throw new IllegalArgumentException("Receipt requires a positive count");
+        }
+        
+        int slot = mIndex.slotOf(id);
+        if (slot < 0) {
+            return false;
+        }
+        
+        mIndex.setQuantity(slot, mIndex.getQuantity(slot) + count);
+        mStore.saveQuantityChange(id, count);
+        return true;
+    }
+    
+    /**
+     * Change the price of a book.
+     *
+     * @return false if the book is unknown
+     */
+    public boolean setPrice(long id, int price) {
+        if (!InventoryRules.isValidPrice(price)) {
+            throw new IllegalArgumentException("Book requires valid price");
+        }
+        
+        int slot = mIndex.slotOf(id);
+        if (slot < 0) {
+            return false;
+        }
+        
+        mIndex.setPrice(slot, price);
+        mStore.savePrice(id, price);
+        return true;
+    }
+    
+    /**
+     * @return the number of copies in stock, or -1 if the book is unknown
+     */
+    public int getQuantity(long id) {
+        int slot = mIndex.slotOf(id);
+        return slot < 0 ? -1 : mIndex.getQuantity(slot);
+    }
+    
+    /**
+     * @return the price of the book, or -1 if the book is unknown
+     */
+    public int getPrice(long id) {
+        int slot = mIndex.slotOf(id);
+        return slot < 0 ? -1 : mIndex.getPrice(slot);
+    }
+    
+    /**
+     * Returns the total price of all copies in stock.
+     */
+    public long valuation() {
+        return mIndex.valuation();
+    }
+    
+    /**
+     * Returns the total price of all copies in stock from the given supplier.
+     */
+    public long valuation(String supplier) {
+        return mIndex.valuation(supplier);
+    }
+}
@@ -0,0 +1,261 @@
+package ru.kazakova_net.bookstore.inventory;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * JSON API over an {@link InventoryApi}:
+ * <ul>
+ * <li>{@code GET /books?<filter>} streams the matching books as an array</li>
+ * <li>{@code GET /books/search?q=<text>} streams the books whose title or ISBN matches</li>
+ * <li>{@code GET /books/<id>} returns one book</li>
+ * <li>{@code POST /books/<id>/sell?count=<n>} sells copies of one book</li>
+ * <li>{@code POST /sales} with {@code [{"id":1,"count":2},...]} sells several books and
+ * returns whether each sale succeeded</li>
+ * <li>{@code POST /books} with an array of books inserts them in one transaction and returns
+ * their ids</li>
+ * </ul>
+ * Sales of all clients are checked and committed together by the {@link StockLedger} behind
+ * the API, so pipelined and batched sales cost one transaction per group commit.
+ * <p>
+ * Every request must carry the pairing key of the shop in an
+ * {@code Authorization: Bearer <key>} header; any other request gets a 401 response.
+ */
+public class InventoryHttpHandler implements InventoryHttpServer.Handler {
+    
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    
+    private static final String JSON = "application/json; charset=utf-8";
+    
+    private static final String PATH_BOOKS = "books";
+    private static final String PATH_SEARCH = "search";
+    private static final String PATH_SELL = "sell";
+    private static final String PATH_SALES = "sales";
+    
+    private static final String HEADER_AUTHORIZATION = "authorization";
+    private static final String BEARER = "Bearer ";
+    
+    private final InventoryApi mApi;
+    private final byte[] mPairingKey;
+    
+    /**
+     * @param pairingKey key the clients send with every request
+     */
+    public InventoryHttpHandler(InventoryApi api, String pairingKey) {
+        if (pairingKey == null || pairingKey.isEmpty()) {
+            throw new IllegalArgumentException("Pairing key is required");
+        }
+        
+        mApi = api;
+        mPairingKey = pairingKey.getBytes(UTF_8);
+    }
+    
+    @Override
+    public void handle(InventoryHttpServer.Request request, InventoryHttpServer.Response response)
+            throws IOException {
+        if (!isPaired(request)) {
+            sendError(response, 401, "Missing or wrong pairing key");
+            return;
+        }
+        
+        List<String> segments = new ArrayList<>();
+        for (String segment : request.getPath().split("/")) {
+            if (!segment.isEmpty()) {
+                segments.add(segment);
+            }
+        }
+        
+        boolean get = "GET".equals(request.getMethod());
+        boolean post = "POST".equals(request.getMethod());
+        try {
+            if (segments.size() == 1 && PATH_SALES.equals(segments.get(0))) {
+                if (!post) {
+                    sendError(response, 405, "Use POST");
+                    return;
+                }
+                sellAll(request, response);
+                return;
+            }
+            
+            if (segments.isEmpty() || !PATH_BOOKS.equals(segments.get(0))) {
+                sendError(response, 404, "Unknown path");
+                return;
+            }
+            
+            if (segments.size() == 1) {
+                if (get) {
+                    listBooks(request, response);
+                } else if (post) {
+                    importBooks(request, response);
+                } else {
+                    sendError(response, 405, "Use GET or POST");
+                }
+            } else if (segments.size() == 2 && PATH_SEARCH.equals(segments.get(1))) {
+                if (!get) {
+                    sendError(response, 405, "Use GET");
+                    return;
+                }
+                searchBooks(request, response);
+            } else if (segments.size() == 2) {
+                if (!get) {
+                    sendError(response, 405, "Use GET");
+                    return;
+                }
+                getBook(Long.parseLong(segments.get(1)), response);
+            } else if (segments.size() == 3 && PATH_SELL.equals(segments.get(2))) {
+                if (!post) {
+                    sendError(response, 405, "Use POST");
+                    return;
+                }
+                String count = request.getParameter("count");
+                sell(Long.parseLong(segments.get(1)), count == null ? 1 : Integer.parseInt(count),
+                        response);
+            } else {
+                sendError(response, 404, "Unknown path");
+            }
+        } catch (IllegalArgumentException e) {
+            // Also covers malformed numbers and JSON
+            sendError(response, 400, e.getMessage());
+        }
+    }
+    
+    /**
+     * Compares the key in constant time, so its prefix cannot be guessed from response times.
+     */
+    private boolean isPaired(InventoryHttpServer.Request request) {
+        String authorization = request.getHeader(HEADER_AUTHORIZATION);
+        if (authorization == null || !authorization.startsWith(BEARER)) {
+            return false;
+        }
+        byte[] key = authorization.substring(BEARER.length()).trim().getBytes(UTF_8);
+        return MessageDigest.isEqual(key, mPairingKey);
+    }
+    
+    private void getBook(long id, InventoryHttpServer.Response response) {
+        Map<String, Object> book = mApi.getBook(id);
+        if (book == null) {
+            sendError(response, 404, "No book " + id);
+            return;
+        }
+        send(response, 200, book);
+    }
+    
+    private void listBooks(InventoryHttpServer.Request request, InventoryHttpServer.Response response)
+            throws IOException {
+        OutputStream out = response.stream(200, JSON);
+        out.write('[');
+        mApi.listBooks(request.getParameters(), new ArraySink(out));
+        out.write(']');
+    }
+    
+    private void searchBooks(InventoryHttpServer.Request request, InventoryHttpServer.Response response)
+            throws IOException {
+        String query = request.getParameter("q");
+        if (query == null || query.isEmpty()) {
+            throw new IllegalArgumentException("Search requires a query");
+        }
+        
+        OutputStream out = response.stream(200, JSON);
+        out.write('[');
+        mApi.searchBooks(query, new ArraySink(out));
+        out.write(']');
+    }
+    
+    private void sell(long id, int count, InventoryHttpServer.Response response) {
+        if (count <= 0) {
+            throw new IllegalArgumentException("Sale requires a positive count");
+        }
+        
+        boolean sold = mApi.sell(id, count);
+        send(response, sold ? 200 : 409, Collections.singletonMap("sold", sold));
+    }
+    
+    private void sellAll(InventoryHttpServer.Request request, InventoryHttpServer.Response response) {
+        List<Map<String, Object>> sales = parseObjects(request.getBodyText());
+        
+        // Check all sales before making any of them
+        long[] ids = new long[sales.size()];
+        int[] counts = new int[sales.size()];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = asLong(sales.get(i).get("id"), "id");
+            Object count = sales.get(i).get("count");
+            counts[i] = count == null ? 1 : (int) asLong(count, "count");
+            if (counts[i] <= 0) {
+                throw new IllegalArgumentException("Sale requires a positive count");
+            }
+        }
+        
+        boolean[] sold = new boolean[ids.length];
+        for (int i = 0; i < ids.length; i++) {
+            sold[i] = mApi.sell(ids[i], counts[i]);
+        }
+        send(response, 200, Collections.singletonMap("sold", sold));
+    }
+    
+    private void importBooks(InventoryHttpServer.Request request, InventoryHttpServer.Response response) {
+        long[] ids = mApi.importBooks(parseObjects(request.getBodyText()));
+        send(response, 201, Collections.singletonMap("ids", ids));
+    }
+    
+    @SuppressWarnings("unchecked")
+    private static List<Map<String, Object>> parseObjects(String text) {
+        Object value = Json.parse(text);
+        if (!(value instanceof List)) {
+            throw new IllegalArgumentException("Expected an array");
+        }
+        for (Object item : (List<?>) value) {
+            if (!(item instanceof Map)) {
+                throw new IllegalArgumentException("Expected an array of objects");
+            }
+        }
+        return (List<Map<String, Object>>) value;
+    }
+    
+    private static long asLong(Object value, String name) {
+        if (!(value instanceof Long)) {
+            throw new IllegalArgumentException("Expected an integer " + name);
+        }
+        return (Long) value;
+    }
+    
+    private static void send(InventoryHttpServer.Response response, int status, Object value) {
+        response.send(status, JSON, Json.write(new StringBuilder(), value).toString().getBytes(UTF_8));
+    }
+    
+    private static void sendError(InventoryHttpServer.Response response, int status, String message) {
+        Map<String, Object> error = new LinkedHashMap<>();
+        error.put("error", message);
+        send(response, status, error);
+    }
+    
+    /**
+     * Writes the books as the elements of a JSON array.
+     */
+    private static class ArraySink implements InventoryApi.BookSink {
+        
+        private final OutputStream mOut;
+        private final StringBuilder mBuilder = new StringBuilder();
+        private boolean mFirst = true;
+        
+        ArraySink(OutputStream out) {
+            mOut = out;
+        }
+        
+        @Override
+        public void onBook(Map<String, Object> book) throws IOException {
+            mBuilder.setLength(0);
+            if (!mFirst) {
+                mBuilder.append(',');
+            }
+            mFirst = false;
+            mOut.write(Json.write(mBuilder, book).toString().getBytes(UTF_8));
+        }
+    }
+}
@@ -0,0 +1,819 @@
+package ru.kazakova_net.bookstore.inventory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Small HTTP/1.1 server for the point-of-sale clients on the shop network.
+ * <p>
+ * A single selector thread accepts connections, reads and parses requests and writes the
+ * responses; handlers run on a pool of worker threads, so a slow database call does not stall
+ * other connections. Connections are kept alive and requests may be pipelined: the responses
+ * of a connection are written in request order, each as soon as the ones before it are done.
+ * A handler may stream a response of unknown length, which is sent chunked; the worker waits
+ * while more than {@link #MAX_BUFFERED_BYTES} of it are not written yet.
+ */
+public class InventoryHttpServer implements Closeable {
+    
+    /**
+     * Serves requests on a worker thread.
+     */
+    public interface Handler {
+        void handle(Request request, Response response) throws IOException;
+    }
+    
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    
+    private static final int MAX_HEAD_BYTES = 16 * 1024;
+    private static final int MAX_BODY_BYTES = 16 * 1024 * 1024;
+    
+    /**
+     * Unwritten response bytes after which a streaming handler waits
+     */
+    private static final int MAX_BUFFERED_BYTES = 256 * 1024;
+    
+    /**
+     * Pipelined requests of one connection after which it is not read until responses are sent
+     */
+    private static final int MAX_PIPELINED_REQUESTS = 64;
+    
+    private static final int READ_BUFFER_BYTES = 8 * 1024;
+    private static final int CHUNK_BYTES = 8 * 1024;
+    
+    private static final byte[] HEAD_END = {'\r', '\n', '\r', '\n'};
+    
+    private final Handler mHandler;
+    private final Selector mSelector;
+    private final ServerSocketChannel mServerChannel;
+    private final ExecutorService mWorkers;
+    
+    /**
+     * Connections with new response data, handed from the workers to the selector thread
+     */
+    private final ConcurrentLinkedQueue<Connection> mReady = new ConcurrentLinkedQueue<>();
+    
+    private Thread mSelectorThread;
+    private volatile boolean mRunning;
+    
+    /**
+     * Bind the server to the address. Port 0 picks a free port, see {@link #getPort()}.
+     */
+    public InventoryHttpServer(InetSocketAddress address, Handler handler, int workerThreads)
+            throws IOException {
+        mHandler = handler;
+        mSelector = Selector.open();
+        try {
+            mServerChannel = ServerSocketChannel.open();
+            mServerChannel.configureBlocking(false);
+            mServerChannel.socket().setReuseAddress(true);
+            mServerChannel.socket().bind(address);
+            mServerChannel.register(mSelector, SelectionKey.OP_ACCEPT);
+        } catch (IOException e) {
+            mSelector.close();
+            throw e;
+        }
+        mWorkers = Executors.newFixedThreadPool(workerThreads);
+    }
+    
+    public int getPort() {
+        return mServerChannel.socket().getLocalPort();
+    }
+    
+    /**
+     * Start the selector thread.
+     */
+    public synchronized void start() {
+        if (mRunning) {
+            return;
+        }
+        
+        mRunning = true;
+        mSelectorThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                runSelector();
+            }
+        }, "InventoryHttpServer");
+        mSelectorThread.start();
+    }
+    
+    /**
+     * Stop accepting requests and close all connections.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        mRunning = false;
+        mSelector.wakeup();
+        if (mSelectorThread != null) {
+            try {
+                mSelectorThread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            mSelectorThread = null;
+        }
+        
+        for (SelectionKey key : mSelector.keys()) {
+            if (key.attachment() instanceof Connection) {
+                ((Connection) key.attachment()).close();
+            }
+        }
+        mWorkers.shutdownNow();
+        try {
+            mWorkers.awaitTermination(1, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        mServerChannel.close();
+        mSelector.close();
+    }
+    
+    private void runSelector() {
+        while (mRunning) {
+            try {
+                mSelector.select();
+            } catch (IOException e) {
+                return;
+            }
+            
+            // Write what the workers produced since the last round
+            Connection ready;
+            while ((ready = mReady.poll()) != null) {
+                ready.mSignalled = false;
+                ready.write();
+            }
+            
+            Iterator<SelectionKey> keys = mSelector.selectedKeys().iterator();
+            while (keys.hasNext()) {
+                SelectionKey key = keys.next();
+                keys.remove();
+                if (!key.isValid()) {
+                    continue;
+                }
+                
+                if (key.isAcceptable()) {
+                    accept();
+                    continue;
+                }
+                
+                Connection connection = (Connection) key.attachment();
+                if (key.isReadable()) {
+                    connection.read();
+                }
+                if (key.isValid() && key.isWritable()) {
+                    connection.write();
+                }
+            }
+        }
+    }
+    
+    private void accept() {
+        try {
+            SocketChannel channel;
+            while ((channel = mServerChannel.accept()) != null) {
+                channel.configureBlocking(false);
+                channel.socket().setTcpNoDelay(true);
+                Connection connection = new Connection(channel);
+                connection.mKey = channel.register(mSelector, SelectionKey.OP_READ, connection);
+            }
+        } catch (IOException e) {
+            // The client went away before the connection was set up
+        }
+    }
+    
+    /**
+     * State of one client connection. Only used on the selector thread, except for the
+     * exchanges, which the workers fill.
+     */
+    private class Connection {
+        
+        private final SocketChannel mChannel;
+        private SelectionKey mKey;
+        
+        private byte[] mInput = new byte[READ_BUFFER_BYTES];
+        private int mInputLength;
+        
+        /**
+         * Requests in arrival order, whose responses are written in the same order
+         */
+        private final ArrayDeque<Exchange> mExchanges = new ArrayDeque<>();
+        
+        /**
+         * Whether no more requests are read, because the client asked to close or sent garbage
+         */
+        private boolean mInputClosed;
+        private volatile boolean mClosed;
+        private volatile boolean mSignalled;
+        
+        Connection(SocketChannel channel) {
+            mChannel = channel;
+        }
+        
+        void read() {
+            if (mInputLength == mInput.length) {
+                mInput = Arrays.copyOf(mInput, mInput.length * 2);
+            }
+            
+            int read;
+            try {
+                read = mChannel.read(ByteBuffer.wrap(mInput, mInputLength, mInput.length - mInputLength));
+            } catch (IOException e) {
+                close();
+                return;
+            }
+            
+            if (read == -1) {
+                mInputClosed = true;
+                if (mExchanges.isEmpty()) {
+                    close();
+                } else {
+                    updateInterest();
+                }
+                return;
+            }
+            
+            mInputLength += read;
+            parseRequests();
+            updateInterest();
+        }
+        
+        /**
+         * Start an exchange for every complete request in the input.
+         */
+        private void parseRequests() {
+            while (!mInputClosed && mExchanges.size() < MAX_PIPELINED_REQUESTS) {
+                int headEnd = indexOf(mInput, mInputLength, HEAD_END);
+                if (headEnd == -1) {
+                    if (mInputLength > MAX_HEAD_BYTES) {
+                        reject(431, "Request header too large");
+                    }
+                    return;
+                }
+                
+                Request request;
+                try {
+                    request = Request.parseHead(new String(mInput, 0, headEnd, ASCII));
+                } catch (IllegalArgumentException e) {
+                    reject(400, e.getMessage());
+                    return;
+                }
+                
+                if (request.getHeader("transfer-encoding") != null) {
+                    reject(501, "Chunked requests are not supported");
+                    return;
+                }
+                
+                int bodyLength;
+                try {
+                    String contentLength = request.getHeader("content-length");
+                    bodyLength = contentLength == null ? 0 : Integer.parseInt(contentLength.trim());
+                } catch (NumberFormatException e) {
+                    reject(400, "Bad Content-Length");
+                    return;
+                }
+                if (bodyLength < 0 || bodyLength > MAX_BODY_BYTES) {
+                    reject(413, "Request body too large");
+                    return;
+                }
+                
+                int requestLength = headEnd + HEAD_END.length + bodyLength;
+                if (mInputLength < requestLength) {
+                    if (mInput.length < requestLength) {
+                        mInput = Arrays.copyOf(mInput, requestLength);
+                    }
+                    return;
+                }
+                
+                request.mBody = Arrays.copyOfRange(mInput, headEnd + HEAD_END.length, requestLength);
+                System.arraycopy(mInput, requestLength, mInput, 0, mInputLength - requestLength);
+                mInputLength -= requestLength;
+                
+                Exchange exchange = new Exchange(this, request);
+                if (!request.isKeepAlive()) {
+                    mInputClosed = true;
+                }
+                mExchanges.add(exchange);
+                try {
+                    mWorkers.execute(exchange);
+                } catch (RuntimeException e) {
+                    // The server is shutting down
+                    close();
+                    return;
+                }
+            }
+        }
+        
+        /**
+         * Answer a request that cannot be parsed and close the connection after the response.
+         */
+        private void reject(int status, String message) {
+            mInputClosed = true;
+            Exchange exchange = new Exchange(this, null);
+            exchange.mCloseAfter = true;
+            exchange.enqueueHead(status, "text/plain; charset=utf-8", message.getBytes(UTF_8));
+            exchange.mComplete = true;
+            mExchanges.add(exchange);
+        }
+        
+        /**
+         * Write the responses in order, as far as the socket takes them.
+         */
+        void write() {
+            if (mClosed) {
+                return;
+            }
+            
+            try {
+                while (!mExchanges.isEmpty()) {
+                    Exchange exchange = mExchanges.peek();
+                    boolean drained;
+                    boolean complete;
+                    synchronized (exchange) {
+                        while (!exchange.mOutput.isEmpty()) {
+                            ByteBuffer buffer = exchange.mOutput.peek();
+                            int written = mChannel.write(buffer);
+                            exchange.mBuffered -= written;
+                            if (buffer.hasRemaining()) {
+                                break;
+                            }
+                            exchange.mOutput.poll();
+                        }
+                        exchange.notifyAll();
+                        drained = exchange.mOutput.isEmpty();
+                        complete = exchange.mComplete;
+                    }
+                    
+                    if (!drained || !complete) {
+                        break;
+                    }
+                    mExchanges.poll();
+                    if (exchange.mCloseAfter) {
+                        close();
+                        return;
+                    }
+                }
+            } catch (IOException e) {
+                close();
+                return;
+            }
+            
+            if (mExchanges.isEmpty() && mInputClosed) {
+                close();
+                return;
+            }
+            
+            // Pipelined requests that did not fit before may be waiting in the input
+            if (!mInputClosed && mExchanges.size() < MAX_PIPELINED_REQUESTS && mInputLength > 0) {
+                parseRequests();
+            }
+            updateInterest();
+        }
+        
+        private void updateInterest() {
+            if (mClosed || !mKey.isValid()) {
+                return;
+            }
+            
+            int ops = 0;
+            if (!mInputClosed && mExchanges.size() < MAX_PIPELINED_REQUESTS) {
+                ops |= SelectionKey.OP_READ;
+            }
+            Exchange head = mExchanges.peek();
+            if (head != null) {
+                synchronized (head) {
+                    if (!head.mOutput.isEmpty()) {
+                        ops |= SelectionKey.OP_WRITE;
+                    }
+                }
+            }
+            mKey.interestOps(ops);
+        }
+        
+        /**
+         * Called by workers when an exchange has new output.
+         */
+        void signal() {
+            if (!mSignalled) {
+                mSignalled = true;
+                mReady.add(this);
+                mSelector.wakeup();
+            }
+        }
+        
+        void close() {
+            if (mClosed) {
+                return;
+            }
+            
+            mClosed = true;
+            if (mKey != null) {
+                mKey.cancel();
+            }
+            try {
+                mChannel.close();
+            } catch (IOException e) {
+                // Nothing left to do with it
+            }
+            
+            // Release workers waiting to buffer more of a response
+            for (Exchange exchange : mExchanges) {
+                synchronized (exchange) {
+                    exchange.mOutput.clear();
+                    exchange.notifyAll();
+                }
+            }
+        }
+    }
+    
+    /**
+     * One request and its response. The worker adds output buffers, the selector thread
+     * writes and removes them; both under the lock of the exchange.
+     */
+    private class Exchange implements Runnable {
+        
+        private final Connection mConnection;
+        private final Request mRequest;
+        private final ArrayDeque<ByteBuffer> mOutput = new ArrayDeque<>();
+        private int mBuffered;
+        private boolean mHeadSent;
+        private boolean mComplete;
+        private boolean mCloseAfter;
+        
+        Exchange(Connection connection, Request request) {
+            mConnection = connection;
+            mRequest = request;
+        }
+        
+        @Override
+        public void run() {
+            Response response = new Response(this);
+            try {
+                mHandler.handle(mRequest, response);
+                response.finish();
+            } catch (Exception e) {
+                response.fail(e);
+            }
+        }
+        
+        /**
+         * Add a response head, followed by the given body if any.
+         */
+        synchronized void enqueueHead(int status, String contentType, byte[] body) {
+            boolean keepAlive = !mCloseAfter && mRequest != null && mRequest.isKeepAlive();
+            boolean chunked = body == null && mRequest != null && mRequest.isHttp11();
+            if (!keepAlive || (body == null && !chunked)) {
+                mCloseAfter = true;
+            }
+            
+            StringBuilder head = new StringBuilder()
+                    .append("HTTP/1.1 ").append(status).append(' ').append(reasonPhrase(status))
+                    .append("\r\nContent-Type: ").append(contentType);
+            if (body != null) {
+                head.append("\r\nContent-Length: ").append(body.length);
+            } else if (chunked) {
+                head.append("\r\nTransfer-Encoding: chunked");
+            }
+            head.append("\r\nConnection: ").append(mCloseAfter ? "close" : "keep-alive")
+                    .append("\r\n\r\n");
+            
+            byte[] headBytes = head.toString().getBytes(ASCII);
+            if (body == null) {
+                mOutput.add(ByteBuffer.wrap(headBytes));
+                mBuffered += headBytes.length;
+            } else {
+                ByteBuffer buffer = ByteBuffer.allocate(headBytes.length + body.length);
+                buffer.put(headBytes).put(body).flip();
+                mOutput.add(buffer);
+                mBuffered += buffer.remaining();
+            }
+            mHeadSent = true;
+        }
+        
+        /**
+         * Add part of a streamed body, waiting while too much is not written yet.
+         */
+        void enqueue(ByteBuffer buffer) throws IOException {
+            synchronized (this) {
+                while (mBuffered > MAX_BUFFERED_BYTES && !mConnection.mClosed) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new IOException("Interrupted while streaming");
+                    }
+                }
+                if (mConnection.mClosed) {
+                    throw new IOException("Connection closed");
+                }
+                mOutput.add(buffer);
+                mBuffered += buffer.remaining();
+            }
+            mConnection.signal();
+        }
+        
+        void complete() {
+            synchronized (this) {
+                mComplete = true;
+            }
+            mConnection.signal();
+        }
+    }
+    
+    /**
+     * Parsed request. The parameters are decoded from the query string.
+     */
+    public static final class Request {
+        
+        private final String mMethod;
+        private final String mPath;
+        private final String mVersion;
+        private final Map<String, String> mParameters;
+        private final Map<String, String> mHeaders;
+        private byte[] mBody;
+        
+        private Request(String method, String path, String version, Map<String, String> parameters,
+                        Map<String, String> headers) {
+            mMethod = method;
+            mPath = path;
+            mVersion = version;
+            mParameters = parameters;
+            mHeaders = headers;
+        }
+        
+        static Request parseHead(String head) {
+            String[] lines = head.split("\r\n");
+            String[] requestLine = lines[0].split(" ");
+            if (requestLine.length != 3 || !requestLine[2].startsWith("HTTP/1.")) {
+                throw new IllegalArgumentException("Bad request line");
+            }
+            
+            Map<String, String> headers = new HashMap<>();
+            for (int i = 1; i < lines.length; i++) {
+                int colon = lines[i].indexOf(':');
+                if (colon <= 0) {
+                    throw new IllegalArgumentException("Bad header");
+                }
+                headers.put(lines[i].substring(0, colon).trim().toLowerCase(Locale.US),
+                        lines[i].substring(colon + 1).trim());
+            }
+            
+            String target = requestLine[1];
+            int query = target.indexOf('?');
+            Map<String, String> parameters = new LinkedHashMap<>();
+            if (query != -1) {
+                for (String pair : target.substring(query + 1).split("&")) {
+                    if (pair.isEmpty()) {
+                        continue;
+                    }
+                    int equals = pair.indexOf('=');
+                    parameters.put(decode(equals == -1 ? pair : pair.substring(0, equals)),
+                            equals == -1 ? "" : decode(pair.substring(equals + 1)));
+                }
+                target = target.substring(0, query);
+            }
+            
+            return new Request(requestLine[0], decode(target), requestLine[2],
+                    Collections.unmodifiableMap(parameters), headers);
+        }
+        
+        private static String decode(String value) {
+            try {
+                return URLDecoder.decode(value, "UTF-8");
+            } catch (UnsupportedEncodingException e) {
+                throw new AssertionError(e);
+            }
+        }
+        
+        public String getMethod() {
+            return mMethod;
+        }
+        
+        public String getPath() {
+            return mPath;
+        }
+        
+        public String getParameter(String name) {
+            return mParameters.get(name);
+        }
+        
+        public Map<String, String> getParameters() {
+            return mParameters;
+        }
+        
+        /**
+         * @param name header name in lower case
+         */
+        public String getHeader(String name) {
+            return mHeaders.get(name);
+        }
+        
+        public String getBodyText() {
+            return new String(mBody, UTF_8);
+        }
+        
+        boolean isHttp11() {
+            return "HTTP/1.1".equals(mVersion);
+        }
+        
+        boolean isKeepAlive() {
+            String connection = mHeaders.get("connection");
+            if (isHttp11()) {
+                return connection == null || !connection.equalsIgnoreCase("close");
+            }
+            return connection != null && connection.equalsIgnoreCase("keep-alive");
+        }
+    }
+    
+    /**
+     * Response of one exchange: either sent at once or streamed. A handler that returns
+     * without responding gets a 500 response.
+     */
+    public final class Response {
+        
+        private final Exchange mExchange;
+        private ChunkedStream mStream;
+        
+        private Response(Exchange exchange) {
+            mExchange = exchange;
+        }
+        
+        /**
+         * Send the whole response.
+         */
+        public void send(int status, String contentType, byte[] body) {
+            if (mExchange.mHeadSent) {
+                throw new IllegalStateException("Response already sent");
+            }
+            mExchange.enqueueHead(status, contentType, body);
+            mExchange.complete();
+        }
+        
+        /**
+         * Start a response of unknown length. The stream is closed when the handler returns.
+         */
+        public OutputStream stream(int status, String contentType) {
+            if (mExchange.mHeadSent) {
+                throw new IllegalStateException("Response already sent");
+            }
+            mExchange.enqueueHead(status, contentType, null);
+            mExchange.mConnection.signal();
+            mStream = new ChunkedStream(mExchange, mExchange.mRequest.isHttp11());
+            return mStream;
+        }
+        
+        void finish() throws IOException {
+            if (mStream != null) {
+                mStream.close();
+            } else if (!mExchange.mComplete) {
+                send(500, "text/plain; charset=utf-8", "No response".getBytes(UTF_8));
+            }
+        }
+        
+        void fail(Exception e) {
+            if (mExchange.mHeadSent) {
+                // The client sees a truncated response
+                synchronized (mExchange) {
+                    mExchange.mCloseAfter = true;
+                }
+            } else {
+                String message = e.getMessage() == null ? e.toString() : e.getMessage();
+                mExchange.enqueueHead(500, "text/plain; charset=utf-8", message.getBytes(UTF_8));
+            }
+            mExchange.complete();
+        }
+    }
+    
+    /**
+     * Body of a streamed response, written in chunks of {@link #CHUNK_BYTES}.
+     */
+    private static class ChunkedStream extends OutputStream {
+        
+        private final Exchange mExchange;
+        private final boolean mChunked;
+        private final byte[] mBuffer = new byte[CHUNK_BYTES];
+        private int mLength;
+        private boolean mClosed;
+        
+        ChunkedStream(Exchange exchange, boolean chunked) {
+            mExchange = exchange;
+            mChunked = chunked;
+        }
+        
+        @Override
+        public void write(int b) throws IOException {
+            if (mLength == mBuffer.length) {
+                flush();
+            }
+            mBuffer[mLength++] = (byte) b;
+        }
+        
+        @Override
+        public void write(byte[] bytes, int offset, int length) throws IOException {
+            while (length > 0) {
+                if (mLength == mBuffer.length) {
+                    flush();
+                }
+                int count = Math.min(length, mBuffer.length - mLength);
+                System.arraycopy(bytes, offset, mBuffer, mLength, count);
+                mLength += count;
+                offset += count;
+                length -= count;
+            }
+        }
+        
+        @Override
+        public void flush() throws IOException {
+            if (mLength == 0) {
+                return;
+            }
+            
+            ByteBuffer chunk;
+            if (mChunked) {
+                byte[] size = (Integer.toHexString(mLength) + "\r\n").getBytes(ASCII);
+                chunk = ByteBuffer.allocate(size.length + mLength + 2);
+                chunk.put(size).put(mBuffer, 0, mLength).put((byte) '\r').put((byte) '\n');
+            } else {
+                chunk = ByteBuffer.allocate(mLength);
+                chunk.put(mBuffer, 0, mLength);
+            }
+            chunk.flip();
+            mLength = 0;
+            mExchange.enqueue(chunk);
+        }
+        
+        @Override
+        public void close() throws IOException {
+            if (mClosed) {
+                return;
+            }
+            
+            mClosed = true;
+            flush();
+            if (mChunked) {
+                mExchange.enqueue(ByteBuffer.wrap("0\r\n\r\n".getBytes(ASCII)));
+            }
+            mExchange.complete();
+        }
+    }
+    
+    private static int indexOf(byte[] data, int length, byte[] pattern) {
+        outer:
+        for (int i = 0; i <= length - pattern.length; i++) {
+            for (int j = 0; j < pattern.length; j++) {
+                if (data[i + j] != pattern[j]) {
+                    continue outer;
+                }
+            }
+            return i;
+        }
+        return -1;
+    }
+    
+    private static String reasonPhrase(int status) {
+        switch (status) {
+            case 200:
+                return "OK";
+            case 201:
+                return "Created";
+            case 400:
+                return "Bad Request";
+            case 404:
+                return "Not Found";
+            case 405:
+                return "Method Not Allowed";
+            case 409:
+                return "Conflict";
+            case 413:
+                return "Payload Too Large";
+            case 431:
+                return "Request Header Fields Too Large";
+            case 501:
+                return "Not Implemented";
+            default:
+                return status < 500 ? "Error" : "Internal Server Error";
+        }
+    }
+}
@@ -0,0 +1,155 @@
+package ru.kazakova_net.bookstore.inventory;
+
+import java.util.Arrays;
+
+/**
+ * Columnar in-memory index of the stock.
+ * <p>
+ * Every book occupies one slot; its ID, quantity, price and supplier are kept in parallel
+ * primitive arrays and a {@link LongIntMap} maps book IDs to slots. Removing a book moves
+ * the last slot into its place, so the columns stay dense and scans such as the valuation
+ * run over contiguous arrays.
+ */
+public final class InventoryIndex {
+    
+    private static final int NO_SLOT = -1;
+    
+    private final LongIntMap mSlots;
+    private final SupplierIds mSupplierIds = new SupplierIds();
+    
+    private long[] mIds;
+    private int[] mQuantities;
+    private int[] mPrices;
+    private int[] mSuppliers;
+    private int mSize;
+    
+    public InventoryIndex(int expectedSize) {
+        int capacity = Math.max(expectedSize, 16);
+        mSlots = new LongIntMap(capacity, NO_SLOT);
+        mIds = new long[capacity];
+        mQuantities = new int[capacity];
+        mPrices = new int[capacity];
+        mSuppliers = new int[capacity];
+    }
+    
+    public int size() {
+        return mSize;
+    }
+    
+    public boolean contains(long id) {
+        return mSlots.containsKey(id);
+    }
+    
+    /**
+     * Add the book or replace all its values.
+     */
+    public void put(long id, int price, int quantity, String supplier) {
+        int slot = mSlots.get(id);
+        if (slot == NO_SLOT) {
+            if (mSize == mIds.length) {
+                grow();
+            }
+            slot = mSize++;
+            mSlots.put(id, slot);
+            mIds[slot] = id;
+        }
+        
+        mPrices[slot] = price;
+        mQuantities[slot] = quantity;
+        mSuppliers[slot] = mSupplierIds.intern(supplier);
+    }
+    
+    /**
+     * @return false if there is no such book
+     */
+    public boolean remove(long id) {
+        int slot = mSlots.remove(id);
+        if (slot == NO_SLOT) {
+            return false;
+        }
+        
+        // Move the last book into the freed slot
+        int last = --mSize;
+        if (slot != last) {
+            mIds[slot] = mIds[last];
+            mQuantities[slot] = mQuantities[last];
+            mPrices[slot] = mPrices[last];
+            mSuppliers[slot] = mSuppliers[last];
+            mSlots.put(mIds[slot], slot);
+        }
+        return true;
+    }
+    
+    public void clear() {
+        mSlots.clear();
+        mSize = 0;
+    }
+    
+    /**
+     * @return the slot of the book, or -1 if there is no such book
+     */
+    public int slotOf(long id) {
+        return mSlots.get(id);
+    }
+    
+    public long getId(int slot) {
+        return mIds[slot];
+    }
+    
+    public int getQuantity(int slot) {
+        return mQuantities[slot];
+    }
+    
+    public void setQuantity(int slot, int quantity) {
+        mQuantities[slot] = quantity;
+    }
+    
+    public int getPrice(int slot) {
+        return mPrices[slot];
+    }
+    
+    public void setPrice(int slot, int price) {
+        mPrices[slot] = price;
+    }
+    
+    public String getSupplier(int slot) {
+        return mSupplierIds.getName(mSuppliers[slot]);
+    }
+    
+    /**
+     * Returns the total price of all copies in stock.
+     */
+    public long valuation() {
+        long total = 0;
+        for (int slot = 0; slot < mSize; slot++) {
+            total += (long) mPrices[slot] * mQuantities[slot];
+        }
+        return total;
+    }
+    
+    /**
+     * Returns the total price of all copies in stock from the given supplier.
+     */
+    public long valuation(String supplier) {
+        int supplierId = mSupplierIds.find(supplier);
+        if (supplierId == SupplierIds.NONE) {
+            return 0;
+        }
+        
+        long total = 0;
+        for (int slot = 0; slot < mSize; slot++) {
+            if (mSuppliers[slot] == supplierId) {
+                total += (long) mPrices[slot] * mQuantities[slot];
+            }
+        }
+        return total;
+    }
+    
+    private void grow() {
+        int capacity = mIds.length * 2;
+        mIds = Arrays.copyOf(mIds, capacity);
+        mQuantities = Arrays.copyOf(mQuantities, capacity);
+        mPrices = Arrays.copyOf(mPrices, capacity);
+        mSuppliers = Arrays.copyOf(mSuppliers, capacity);
+    }
+}
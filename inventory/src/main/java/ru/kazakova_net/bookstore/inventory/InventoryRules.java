@@ -0,0 +1,25 @@
+package ru.kazakova_net.bookstore.inventory;
+
+/**
+ * Validation of the stock values, shared by the engine and the Android provider.
+ */
+public final class InventoryRules {
+    
+    private InventoryRules() {
+    }
+    
+    public static boolean isValidPrice(Integer price) {
+        return price != null && price >= 0;
+    }
+    
+    public static boolean isValidQuantity(Integer quantity) {
+        return quantity != null && quantity >= 0;
+    }
+    
+    /**
+     * Whether the given number of copies can be sold from the given stock.
+     */
+    public static boolean canSell(int quantity, int count) {
+        return count > 0 && count <= quantity;
+    }
+}
@@ -0,0 +1,30 @@
+package ru.kazakova_net.bookstore.inventory;
+
+/**
+ * Persistence backend of the {@link InventoryEngine}. On the device this is the books
+ * database; tests and benchmarks use an in-memory store.
+ */
+public interface InventoryStore {
+    
+    /**
+     * Receives the books read by {@link #load(BookSink)}.
+     */
+    interface BookSink {
+        void onBook(long id, int price, int quantity, String supplier);
+    }
+    
+    /**
+     * Pass every stored book to the sink.
+     */
+    void load(BookSink sink);
+    
+    /**
+     * Persist a relative change of the quantity of a book.
+     */
+    void saveQuantityChange(long id, int delta);
+    
+    /**
+     * Persist a new price of a book.
+     */
+    void savePrice(long id, int price);
+}
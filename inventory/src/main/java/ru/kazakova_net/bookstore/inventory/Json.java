@@ -0,0 +1,289 @@
+package ru.kazakova_net.bookstore.inventory;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Minimal JSON reader and writer for the HTTP API.
+ * <p>
+ * Objects are read as {@link Map}s, arrays as {@link List}s, integral numbers as {@link Long}
+ * and other numbers as {@link Double}.
+ */
+final class Json {
+    
+    private final String mText;
+    private int mPosition;
+    
+    private Json(String text) {
+        mText = text;
+    }
+    
+    /**
+     * Parse a JSON document.
+     *
+     * @throws IllegalArgumentException if the text is not valid JSON
+     */
+    static Object parse(String text) {
+        Json json = new Json(text);
+        Object value = json.readValue();
+        json.skipWhitespace();
+        if (json.mPosition != text.length()) {
+            throw json.error("Unexpected trailing characters");
+        }
+        return value;
+    }
+    
+    /**
+     * Append the value as JSON. Supports maps, lists, strings, numbers, booleans, null and
+     * arrays of booleans and longs.
+     */
+    static StringBuilder write(StringBuilder out, Object value) {
+        if (value == null) {
+            out.append("null");
+        } else if (value instanceof String) {
+            writeString(out, (String) value);
+        } else if (value instanceof Number || value instanceof Boolean) {
+            out.append(value);
+        } else if (value instanceof Map) {
+            out.append('{');
+            boolean first = true;
+            for (Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+                if (!first) {
+                    out.append(',');
+                }
+                first = false;
+                writeString(out, String.valueOf(entry.getKey()));
+                out.append(':');
+                write(out, entry.getValue());
+            }
+            out.append('}');
+        } else if (value instanceof List) {
+            out.append('[');
+            List<?> list = (List<?>) value;
+            for (int i = 0; i < list.size(); i++) {
+                write(i == 0 ? out : out.append(','), list.get(i));
+            }
+            out.append(']');
+        } else if (value instanceof boolean[]) {
+            boolean[] array = (boolean[]) value;
+            out.append('[');
+            for (int i = 0; i < array.length; i++) {
+                out.append(i == 0 ? "" : ",").append(array[i]);
+            }
+            out.append(']');
+        } else if (value instanceof long[]) {
+            long[] array = (long[]) value;
+            out.append('[');
+            for (int i = 0; i < array.length; i++) {
+                out.append(i == 0 ? "" : ",").append(array[i]);
+            }
+            out.append(']');
+        } else {
+            throw new IllegalArgumentException("Cannot write " + value.getClass());
+        }
+        return out;
+    }
+    
+    private static void writeString(StringBuilder out, String value) {
+        out.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '"':
+                    out.append("\\\"");
+                    break;
+                case '\\':
+                    out.append("\\\\");
+                    break;
+                case '\n':
+                    out.append("\\n");
+                    break;
+                case '\r':
+                    out.append("\\r");
+                    break;
+                case '\t':
+                    out.append("\\t");
+                    break;
+                default:
+                    if (c < 0x20) {
+                        out.append(String.format("\\u%04x", (int) c));
+                    } else {
+                        out.append(c);
+                    }
+            }
+        }
+        out.append('"');
+    }
+    
+    private Object readValue() {
+        skipWhitespace();
+        if (mPosition == mText.length()) {
+            throw error("Unexpected end");
+        }
+        
+        char c = mText.charAt(mPosition);
+        switch (c) {
+            case '{':
+                return readObject();
+            case '[':
+                return readArray();
+            case '"':
+                return readString();
+            case 't':
+                return readLiteral("true", Boolean.TRUE);
+            case 'f':
+                return readLiteral("false", Boolean.FALSE);
+            case 'n':
+                return readLiteral("null", null);
+            default:
+                return readNumber();
+        }
+    }
+    
+    private Map<String, Object> readObject() {
+        Map<String, Object> object = new LinkedHashMap<>();
+        mPosition++;
+        skipWhitespace();
+        if (consume('}')) {
+            return object;
+        }
+        
+        do {
+            skipWhitespace();
+            if (mPosition == mText.length() || mText.charAt(mPosition) != '"') {
+                throw error("Expected a name");
+            }
+            String name = readString();
+            skipWhitespace();
+            if (!consume(':')) {
+                throw error("Expected ':'");
+            }
+            object.put(name, readValue());
+            skipWhitespace();
+        } while (consume(','));
+        
+        if (!consume('}')) {
+            throw error("Expected '}'");
+        }
+        return object;
+    }
+    
+    private List<Object> readArray() {
+        List<Object> array = new ArrayList<>();
+        mPosition++;
+        skipWhitespace();
+        if (consume(']')) {
+            return array;
+        }
+        
+        do {
+            array.add(readValue());
+            skipWhitespace();
+        } while (consume(','));
+        
+        if (!consume(']')) {
+            throw error("Expected ']'");
+        }
+        return array;
+    }
+    
+    private String readString() {
+        StringBuilder value = new StringBuilder();
+        mPosition++;
+        while (mPosition < mText.length()) {
+            char c = mText.charAt(mPosition++);
+            if (c == '"') {
+                return value.toString();
+            }
+            if (c != '\\') {
+                value.append(c);
+                continue;
+            }
+            
+            if (mPosition == mText.length()) {
+                break;
+            }
+            char escaped = mText.charAt(mPosition++);
+            switch (escaped) {
+                case 'b':
+                    value.append('\b');
+                    break;
+                case 'f':
+                    value.append('\f');
+                    break;
+                case 'n':
+                    value.append('\n');
+                    break;
+                case 'r':
+                    value.append('\r');
+                    break;
+                case 't':
+                    value.append('\t');
+                    break;
+                case 'u':
+                    if (mPosition + 4 > mText.length()) {
+                        throw error("Bad escape");
+                    }
+                    try {
+                        value.append((char) Integer.parseInt(mText.substring(mPosition, mPosition + 4), 16));
+                    } catch (NumberFormatException e) {
+                        throw error("Bad escape");
+                    }
+                    mPosition += 4;
+                    break;
+                default:
+                    value.append(escaped);
+            }
+        }
+        throw error("Unterminated string");
+    }
+    
+    private Object readLiteral(String literal, Object value) {
+        if (!mText.startsWith(literal, mPosition)) {
+            throw error("Unexpected value");
+        }
+        mPosition += literal.length();
+        return value;
+    }
+    
+    private Number readNumber() {
+        int start = mPosition;
+        boolean integral = true;
+        while (mPosition < mText.length()) {
+            char c = mText.charAt(mPosition);
+            if (c == '.' || c == 'e' || c == 'E') {
+                integral = false;
+            } else if (!(c == '-' || c == '+' || (c >= '0' && c <= '9'))) {
+                break;
+            }
+            mPosition++;
+        }
+        
+        String number = mText.substring(start, mPosition);
+        try {
+            return integral ? (Number) Long.parseLong(number) : (Number) Double.parseDouble(number);
+        } catch (NumberFormatException e) {
+            throw error("Bad number");
+        }
+    }
+    
+    private boolean consume(char c) {
+        if (mPosition < mText.length() && mText.charAt(mPosition) == c) {
+            mPosition++;
+            return true;
+        }
+        return false;
+    }
+    
+    private void skipWhitespace() {
+        while (mPosition < mText.length() && Character.isWhitespace(mText.charAt(mPosition))) {
+            mPosition++;
+        }
+    }
+    
+    private IllegalArgumentException error(String message) {
+        return new IllegalArgumentException(message + " at " + mPosition);
+    }
+}
@@ -0,0 +1,198 @@
+package ru.kazakova_net.bookstore.inventory;
+
+import java.util.Arrays;
+
+/**
+ * Map from {@code long} keys to {@code int} values without boxing.
+ * <p>
+ * Keys are kept in a single open-addressing table with linear probing, so a lookup touches
+ * one or two adjacent cache lines. Removal shifts the following entries back instead of
+ * leaving tombstones, so the table never degrades after many removals.
+ */
+public final class LongIntMap {
+    
+    /**
+     * Marks a free slot. The key 0 itself is stored outside of the table.
+     */
+    private static final long FREE_KEY = 0;
+    
+    private static final float LOAD_FACTOR = 0.5f;
+    
+    private final int mMissingValue;
+    
+    private long[] mKeys;
+    private int[] mValues;
+    private int mMask;
+    private int mResizeAt;
+    private int mSize;
+    
+    private boolean mHasZeroKey;
+    private int mZeroValue;
+    
+    /**
+     * @param expectedSize number of keys the map holds without growing
+     * @param missingValue value returned for keys that are not in the map
+     */
+    public LongIntMap(int expectedSize, int missingValue) {
+        mMissingValue = missingValue;
+        allocate(tableSize(expectedSize));
+    }
+    
+    public int size() {
+        return mSize + (mHasZeroKey ? 1 : 0);
+    }
+    
+    public boolean containsKey(long key) {
+        if (key == FREE_KEY) {
+            return mHasZeroKey;
+        }
+        return mKeys[find(key)] == key;
+    }
+    
+    /**
+     * @return the value of the key, or the missing value
+     */
+    public int get(long key) {
+        if (key == FREE_KEY) {
+            return mHasZeroKey ? mZeroValue : mMissingValue;
+        }
+        
+        int slot = find(key);
+        return mKeys[slot] == key ? mValues[slot] : mMissingValue;
+    }
+    
+    /**
+     * @return the previous value of the key, or the missing value
+     */
+    public int put(long key, int value) {
+        if (key == FREE_KEY) {
+            int previous = mHasZeroKey ? mZeroValue : mMissingValue;
+            mHasZeroKey = true;
+            mZeroValue = value;
+            return previous;
+        }
+        
+        int slot = find(key);
+        if (mKeys[slot] == key) {
+            int previous = mValues[slot];
+            mValues[slot] = value;
+            return previous;
+        }
+        
+        mKeys[slot] = key;
+        mValues[slot] = value;
+        if (++mSize >= mResizeAt) {
+            rehash(mKeys.length * 2);
+        }
+        return mMissingValue;
+    }
+    
+    /**
+     * @return the removed value, or the missing value
+     */
+    public int remove(long key) {
+        if (key == FREE_KEY) {
+            int previous = mHasZeroKey ? mZeroValue : mMissingValue;
+            mHasZeroKey = false;
+            return previous;
+        }
+        
+        int slot = find(key);
+        if (mKeys[slot] != key) {
+            return mMissingValue;
+        }
+        
+        int previous = mValues[slot];
+        mSize--;
+        
+        // Move back every following entry of the probe run that may no longer be reachable
+        int free = slot;
+        int next = (slot + 1) & mMask;
+        while (mKeys[next] != FREE_KEY) {
+            int home = hash(mKeys[next]);
+            if (((next - home) & mMask) >= ((next - free) & mMask)) {
+                mKeys[free] = mKeys[next];
+                mValues[free] = mValues[next];
+                free = next;
+            }
+            next = (next + 1) & mMask;
+        }
+        mKeys[free] = FREE_KEY;
+        
+        return previous;
+    }
+    
+    /**
+     * Receives the entries of the map.
+     */
+    public interface Visitor {
+        void visit(long key, int value);
+    }
+    
+    /**
+     * Pass every entry to the visitor, in no particular order. The map must not be
+     * modified meanwhile.
+     */
+    public void forEach(Visitor visitor) {
+        if (mHasZeroKey) {
+            visitor.visit(FREE_KEY, mZeroValue);
+        }
+        for (int i = 0; i < mKeys.length; i++) {
+            if (mKeys[i] != FREE_KEY) {
+                visitor.visit(mKeys[i], mValues[i]);
+            }
+        }
+    }
+    
+    public void clear() {
+        Arrays.fill(mKeys, FREE_KEY);
+        mSize = 0;
+        mHasZeroKey = false;
+    }
+    
+    /**
+     * Returns the slot that holds the key, or the free slot where it would be inserted.
+     */
+    private int find(long key) {
+        int slot = hash(key);
+        while (mKeys[slot] != key && mKeys[slot] != FREE_KEY) {
+            slot = (slot + 1) & mMask;
+        }
+        return slot;
+    }
+    
+    private int hash(long key) {
+        // Spread sequential ids over the table
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32)) & mMask;
+    }
+    
+    private void rehash(int capacity) {
+        long[] keys = mKeys;
+        int[] values = mValues;
+        allocate(capacity);
+        
+        for (int i = 0; i < keys.length; i++) {
+            if (keys[i] != FREE_KEY) {
+                int slot = find(keys[i]);
+                mKeys[slot] = keys[i];
+                mValues[slot] = values[i];
+            }
+        }
+    }
+    
+    private void allocate(int capacity) {
+        mKeys = new long[capacity];
+        mValues = new int[capacity];
+        mMask = capacity - 1;
+        mResizeAt = (int) (capacity * LOAD_FACTOR);
+    }
+    
+    private static int tableSize(int expectedSize) {
+        int capacity = 8;
+        while (capacity * LOAD_FACTOR <= expectedSize) {
+            capacity *= 2;
+        }
+        return capacity;
+    }
+}
@@ -0,0 +1,236 @@
+package ru.kazakova_net.bookstore.inventory;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only journal of the sales accepted by {@link StockLedger} and not yet applied to
+ * the database.
+ * <p>
+ * Every sale is one checksummed record with an increasing sequence number, written into one
+ * of two memory-mapped segment files. A record is in the page cache as soon as it is
+ * written, so it survives the process being killed without a system call per sale. The
+ * database stores the sequence of the last record it applied in the same transaction as the
+ * sales, so on startup exactly the records after it are replayed.
+ * <p>
+ * Records fill one segment and then the other. A segment is reused once all of its records
+ * are applied; the stale records behind the new ones have lower sequences and end the scan.
+ */
+public class SaleJournal implements Closeable {
+    
+    /**
+     * Receives the records that are not applied yet.
+     */
+    public interface Visitor {
+        void visit(long sequence, long id, int delta);
+    }
+    
+    /**
+     * Marks the start of a record
+     */
+    private static final int MAGIC = 0x53414C45;
+    
+    /**
+     * Magic and checksum, then sequence, book id, delta and padding
+     */
+    private static final int RECORD_SIZE = 32;
+    private static final int PAYLOAD_OFFSET = 8;
+    private static final int PAYLOAD_SIZE = 20;
+    
+    private static final int SEGMENT_COUNT = 2;
+    
+    private final RandomAccessFile[] mFiles = new RandomAccessFile[SEGMENT_COUNT];
+    private final MappedByteBuffer[] mSegments = new MappedByteBuffer[SEGMENT_COUNT];
+    private final long[] mSegmentLastSequence = new long[SEGMENT_COUNT];
+    private final int mRecordsPerSegment;
+    private final CRC32 mCrc = new CRC32();
+    private final byte[] mPayload = new byte[PAYLOAD_SIZE];
+    
+    private boolean mRecovered;
+    private int mActive;
+    private int mPosition;
+    private long mLastSequence;
+    private long mAppliedSequence;
+    
+    /**
+     * Open the journal in the given directory, creating its segments if needed.
+     *
+     * @param segmentBytes size of each of the two segment files
+     */
+    public SaleJournal(File dir, int segmentBytes) throws IOException {
+        mRecordsPerSegment = segmentBytes / RECORD_SIZE;
+        if (mRecordsPerSegment < 1) {
+            throw new IllegalArgumentException("Segment cannot hold a record");
+        }
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Cannot create " + dir);
+        }
+        
+        try {
+            for (int i = 0; i < SEGMENT_COUNT; i++) {
+                mFiles[i] = new RandomAccessFile(new File(dir, "sales-" + i + ".journal"), "rw");
+                mSegments[i] = mFiles[i].getChannel().map(FileChannel.MapMode.READ_WRITE, 0,
+                        (long) mRecordsPerSegment * RECORD_SIZE);
+            }
+        } catch (IOException e) {
+            close();
+            throw e;
+        }
+    }
+    
+    /**
+     * Scan both segments and pass the records after the given sequence to the visitor in
+     * order. Must be called once before the first {@link #append(long, int)}.
+     *
+     * @param appliedSequence sequence of the last record applied to the database
+     */
+    public synchronized void recover(long appliedSequence, Visitor visitor) {
+        int[] counts = new int[SEGMENT_COUNT];
+        for (int i = 0; i < SEGMENT_COUNT; i++) {
+            counts[i] = scan(i);
+        }
+        
+        // The older segment is replayed first
+        int first = mSegmentLastSequence[0] <= mSegmentLastSequence[1] ? 0 : 1;
+        for (int i = first; i < first + SEGMENT_COUNT; i++) {
+            int segment = i % SEGMENT_COUNT;
+            for (int record = 0; record < counts[segment]; record++) {
+                int offset = record * RECORD_SIZE;
+                long sequence = mSegments[segment].getLong(offset + PAYLOAD_OFFSET);
+                if (sequence > appliedSequence) {
+                    visitor.visit(sequence, mSegments[segment].getLong(offset + PAYLOAD_OFFSET + 8),
+                            mSegments[segment].getInt(offset + PAYLOAD_OFFSET + 16));
+                }
+            }
+        }
+        
+        // Continue after the newest record
+        mActive = 1 - first;
+        mPosition = counts[mActive];
+        mLastSequence = Math.max(appliedSequence, mSegmentLastSequence[mActive]);
+        mAppliedSequence = appliedSequence;
+        mRecovered = true;
+    }
+    
+    /**
+     * Returns the number of valid records at the start of the segment and remembers the
+     * sequence of the last one.
+     */
+    private int scan(int segment) {
+        MappedByteBuffer buffer = mSegments[segment];
+        long previous = 0;
+        int count = 0;
+        while (count < mRecordsPerSegment) {
+            int offset = count * RECORD_SIZE;
+            if (buffer.getInt(offset) != MAGIC || buffer.getInt(offset + 4) != checksum(buffer, offset)) {
+                break;
+            }
+            long sequence = buffer.getLong(offset + PAYLOAD_OFFSET);
+            if (sequence <= previous) {
+                break;
+            }
+            previous = sequence;
+            count++;
+        }
+        mSegmentLastSequence[segment] = previous;
+        return count;
+    }
+    
+    private int checksum(MappedByteBuffer buffer, int offset) {
+        for (int i = 0; i < PAYLOAD_SIZE; i++) {
+            mPayload[i] = buffer.get(offset + PAYLOAD_OFFSET + i);
+        }
+        mCrc.reset();
+        mCrc.update(mPayload, 0, PAYLOAD_SIZE);
+        return (int) mCrc.getValue();
+    }
+    
+    /**
+     * Append a record of a quantity change.
+     *
+     * @return the sequence of the record, or -1 if the journal is full until more records
+     * are applied
+     */
+    public synchronized long append(long id, int delta) {
+        if (!mRecovered) {
+            throw new IllegalStateException("Journal is not recovered");
+        }
+        
+        if (mPosition == mRecordsPerSegment) {
+            int next = 1 - mActive;
+            if (mSegmentLastSequence[next] > mAppliedSequence) {
+                return -1;
+            }
+            mActive = next;
+            mPosition = 0;
+        }
+        
+        long sequence = mLastSequence + 1;
+        MappedByteBuffer buffer = mSegments[mActive];
+        int offset = mPosition * RECORD_SIZE;
+        
+        // The magic is written last, so a record cut short is never valid
+        buffer.putInt(offset, 0);
+        buffer.putLong(offset + PAYLOAD_OFFSET, sequence);
+        buffer.putLong(offset + PAYLOAD_OFFSET + 8, id);
+        buffer.putInt(offset + PAYLOAD_OFFSET + 16, delta);
+        buffer.putInt(offset + PAYLOAD_OFFSET + 20, 0);
+        buffer.putInt(offset + 4, checksum(buffer, offset));
+        buffer.putInt(offset, MAGIC);
+        
+        mPosition++;
+        mLastSequence = sequence;
+        mSegmentLastSequence[mActive] = sequence;
+        return sequence;
+    }
+    
+    /**
+     * @return the sequence of the last record appended
+     */
+    public synchronized long getLastSequence() {
+        return mLastSequence;
+    }
+    
+    /**
+     * Note that the records up to the given sequence are applied to the database, so their
+     * segment may be reused.
+     */
+    public synchronized void markApplied(long sequence) {
+        mAppliedSequence = Math.max(mAppliedSequence, sequence);
+    }
+    
+    /**
+     * Write the segments to the storage device, so that the records also survive a power loss.
+     */
+    public synchronized void force() {
+        for (MappedByteBuffer segment : mSegments) {
+            if (segment != null) {
+                segment.force();
+            }
+        }
+    }
+    
+    @Override
+    public synchronized void close() throws IOException {
+        IOException failure = null;
+        for (int i = 0; i < SEGMENT_COUNT; i++) {
+            mSegments[i] = null;
+            if (mFiles[i] != null) {
+                try {
+                    mFiles[i].close();
+                } catch (IOException e) {
+                    failure = e;
+                }
+                mFiles[i] = null;
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+}
@@ -0,0 +1,334 @@
+package ru.kazakova_net.bookstore.inventory;
+
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Replays a weighted mix of point-of-sale operations against a store from concurrent workers
+ * for a fixed time, and reports the throughput, the latency percentiles of every operation
+ * and how much the storage grew.
+ * <p>
+ * Latencies are counted in log-linear buckets, 16 per power of two of nanoseconds, so a run
+ * of any length takes constant memory and percentiles are exact to about 6%.
+ */
+public final class SoakHarness {
+    
+    /**
+     * Operations of the mix.
+     */
+    public enum Operation {
+        SELL, EDIT, INSERT, SEARCH, LIST
+    }
+    
+    /**
+     * Store under test. Called from all workers at once.
+     */
+    public interface Target {
+        /**
+         * Run one operation to completion. An exception counts as an error of the operation.
+         *
+         * @param worker number of the calling worker, from 0
+         */
+        void run(Operation operation, int worker, Random random) throws Exception;
+        
+        /**
+         * Bytes the store takes on disk.
+         */
+        long storageBytes();
+    }
+    
+    private static final int SUB_BUCKET_BITS = 4;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int BUCKETS = (64 - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+    private static final double[] PERCENTILES = {0.50, 0.90, 0.99};
+    
+    private final Target mTarget;
+    private final int mWorkers;
+    private final long mSeed;
+    private final Map<Operation, Integer> mWeights = new EnumMap<>(Operation.class);
+    
+    /**
+     * Workers run with random generators derived from the seed, so a mix replays the same
+     * operations given the same timing.
+     */
+    public SoakHarness(Target target, int workers, long seed) {
+        if (workers <= 0) {
+            throw new IllegalArgumentException("At least one worker is required");
+        }
+        mTarget = target;
+        mWorkers = workers;
+        mSeed = seed;
+    }
+    
+    /**
+     * Set the relative share of an operation in the mix. Operations without weight are not run.
+     */
+    public SoakHarness setWeight(Operation operation, int weight) {
+        if (weight < 0) {
+            throw new IllegalArgumentException("Weight must not be negative");
+        }
+        mWeights.put(operation, weight);
+        return this;
+    }
+    
+    /**
+     * Run the mix for the given time and wait for the workers to finish their last operation.
+     */
+    public Report run(long durationMillis) throws InterruptedException {
+        final Operation[] operations = Operation.values();
+        final int[] cumulative = new int[operations.length];
+        int total = 0;
+        for (int i = 0; i < operations.length; i++) {
+            Integer weight = mWeights.get(operations[i]);
+            total += weight == null ? 0 : weight;
+            cumulative[i] = total;
+        }
+        if (total == 0) {
+            throw new IllegalArgumentException("No operation has a weight");
+        }
+        final int totalWeight = total;
+        
+        final long[][][] histograms = new long[mWorkers][operations.length][BUCKETS];
+        final long[][] errors = new long[mWorkers][operations.length];
+        final Throwable[] firstErrors = new Throwable[mWorkers];
+        long storageBefore = mTarget.storageBytes();
+        
+        Thread[] threads = new Thread[mWorkers];
+        final long started = System.nanoTime();
+        final long deadline = started + durationMillis * 1000000;
+        for (int w = 0; w < mWorkers; w++) {
+            final int worker = w;
+            threads[w] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    Random random = new Random(mSeed * 31 + worker);
+                    while (System.nanoTime() < deadline) {
+                        int roll = random.nextInt(totalWeight);
+                        int op = 0;
+                        while (cumulative[op] <= roll) {
+                            op++;
+                        }
+                        
+                        long begin = System.nanoTime();
+                        try {
+                            mTarget.run(operations[op], worker, random);
+                        } catch (Exception e) {
+                            errors[worker][op]++;
+                            if (firstErrors[worker] == null) {
+                                firstErrors[worker] = e;
+                            }
+                        }
+                        histograms[worker][op][bucket(System.nanoTime() - begin)]++;
+                    }
+                }
+            }, "soak-" + w);
+            threads[w].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        
+        Report report = new Report();
+        report.mSeconds = (System.nanoTime() - started) / 1e9;
+        report.mWorkers = mWorkers;
+        report.mStorageBefore = storageBefore;
+        report.mStorageAfter = mTarget.storageBytes();
+        for (Throwable error : firstErrors) {
+            if (error != null && report.mFirstError == null) {
+                report.mFirstError = error;
+            }
+        }
+        
+        for (int op = 0; op < operations.length; op++) {
+            long[] merged = new long[BUCKETS];
+            OperationStats stats = new OperationStats();
+            for (int w = 0; w < mWorkers; w++) {
+                for (int b = 0; b < BUCKETS; b++) {
+                    merged[b] += histograms[w][op][b];
+                }
+                stats.mErrors += errors[w][op];
+            }
+            for (long count : merged) {
+                stats.mCount += count;
+            }
+            if (stats.mCount == 0) {
+                continue;
+            }
+            
+            stats.mPercentileMicros = new long[PERCENTILES.length];
+            for (int p = 0; p < PERCENTILES.length; p++) {
+                stats.mPercentileMicros[p] = percentile(merged, stats.mCount, PERCENTILES[p]) / 1000;
+            }
+            stats.mMaxMicros = percentile(merged, stats.mCount, 1) / 1000;
+            report.mOperations.put(operations[op], stats);
+            report.mCount += stats.mCount;
+            report.mErrors += stats.mErrors;
+        }
+        return report;
+    }
+    
+    /**
+     * Bucket of a latency: the exact value below 16 ns, then 16 buckets per power of two.
+     */
+    static int bucket(long nanos) {
+        if (nanos < SUB_BUCKETS) {
+            return (int) Math.max(nanos, 0);
+        }
+        int magnitude = 63 - Long.numberOfLeadingZeros(nanos) - SUB_BUCKET_BITS + 1;
+        int sub = (int) (nanos >>> (magnitude - 1)) & (SUB_BUCKETS - 1);
+        return magnitude * SUB_BUCKETS + sub;
+    }
+    
+    /**
+     * Largest latency that falls into the bucket.
+     */
+    static long bucketLimit(int bucket) {
+        int magnitude = bucket / SUB_BUCKETS;
+        long sub = bucket % SUB_BUCKETS;
+        if (magnitude == 0) {
+            return sub;
+        }
+        return ((SUB_BUCKETS + sub + 1) << (magnitude - 1)) - 1;
+    }
+    
+    private static long percentile(long[] histogram, long count, double percentile) {
+        long rank = Math.max(1, (long) Math.ceil(count * percentile));
+        long seen = 0;
+        for (int b = 0; b < histogram.length; b++) {
+            seen += histogram[b];
+            if (seen >= rank) {
+                return bucketLimit(b);
+            }
+        }
+        return bucketLimit(histogram.length - 1);
+    }
+    
+    /**
+     * Latencies and errors of one operation.
+     */
+    public static final class OperationStats {
+        
+        long mCount;
+        long mErrors;
+        long[] mPercentileMicros;
+        long mMaxMicros;
+        
+        public long getCount() {
+            return mCount;
+        }
+        
+        public long getErrors() {
+            return mErrors;
+        }
+        
+        public long getP50Micros() {
+            return mPercentileMicros[0];
+        }
+        
+        public long getP90Micros() {
+            return mPercentileMicros[1];
+        }
+        
+        public long getP99Micros() {
+            return mPercentileMicros[2];
+        }
+        
+        public long getMaxMicros() {
+            return mMaxMicros;
+        }
+    }
+    
+    /**
+     * Outcome of a run.
+     */
+    public static final class Report {
+        
+        double mSeconds;
+        int mWorkers;
+        long mCount;
+        long mErrors;
+        long mStorageBefore;
+        long mStorageAfter;
+        Throwable mFirstError;
+        final Map<Operation, OperationStats> mOperations = new EnumMap<>(Operation.class);
+        
+        public long getCount() {
+            return mCount;
+        }
+        
+        public long getErrors() {
+            return mErrors;
+        }
+        
+        /**
+         * One of the errors, to tell what went wrong, or null
+         */
+        public Throwable getFirstError() {
+            return mFirstError;
+        }
+        
+        public double getThroughput() {
+            return mCount / mSeconds;
+        }
+        
+        public long getStorageGrowth() {
+            return mStorageAfter - mStorageBefore;
+        }
+        
+        /**
+         * @return null if the operation did not run
+         */
+        public OperationStats getStats(Operation operation) {
+            return mOperations.get(operation);
+        }
+        
+        public String toJson() {
+            Map<String, Object> json = new LinkedHashMap<>();
+            json.put("seconds", mSeconds);
+            json.put("workers", mWorkers);
+            json.put("operations", mCount);
+            json.put("errors", mErrors);
+            json.put("throughput", getThroughput());
+            json.put("storageBefore", mStorageBefore);
+            json.put("storageAfter", mStorageAfter);
+            
+            Map<String, Object> operations = new LinkedHashMap<>();
+            for (Map.Entry<Operation, OperationStats> entry : mOperations.entrySet()) {
+                OperationStats stats = entry.getValue();
+                Map<String, Object> operation = new LinkedHashMap<>();
+                operation.put("count", stats.mCount);
+                operation.put("errors", stats.mErrors);
+                operation.put("p50Micros", stats.getP50Micros());
+                operation.put("p90Micros", stats.getP90Micros());
+                operation.put("p99Micros", stats.getP99Micros());
+                operation.put("maxMicros", stats.mMaxMicros);
+                operations.put(entry.getKey().name().toLowerCase(Locale.US), operation);
+            }
+            json.put("mix", operations);
+            
+            StringBuilder out = new StringBuilder();
+            Json.write(out, json);
+            return out.toString();
+        }
+        
+        @Override
+        public String toString() {
+            StringBuilder out = new StringBuilder(String.format(Locale.US,
+                    "%d operations in %.1f s from %d workers (%.0f/s), %d errors, "
+                            + "storage %d -> %d bytes (%+d)",
+                    mCount, mSeconds, mWorkers, getThroughput(), mErrors,
+                    mStorageBefore, mStorageAfter, getStorageGrowth()));
+            for (Map.Entry<Operation, OperationStats> entry : mOperations.entrySet()) {
+                OperationStats stats = entry.getValue();
+                out.append(String.format(Locale.US, "%n  %-6s %8d ops, %d errors, latency "
+                                + "p50 %d us, p90 %d us, p99 %d us, max %d us",
+                        entry.getKey(), stats.mCount, stats.mErrors, stats.getP50Micros(),
+                        stats.getP90Micros(), stats.getP99Micros(), stats.mMaxMicros));
+            }
+            return out.toString();
+        }
+    }
+}
@@ -0,0 +1,505 @@
+package ru.kazakova_net.bookstore.inventory;
+
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * In-memory stock of the books being sold, shared by many terminals.
+ * <p>
+ * Books are spread over {@link #mStripes} stripes, each guarded by its own lock, so
+ * terminals selling different books rarely wait for each other. A sale checks and reserves
+ * the stock under the lock of its stripe and returns at once; accepted sales are added up
+ * per book and handed to the {@link Backend} by a single committer thread, in one batch
+ * every {@code maxDelayMillis} or as soon as {@code batchSize} sales are pending.
+ * <p>
+ * The stock of a book is read from the backend on its first sale, plus the sales that are
+ * not committed yet, so it never counts a copy that was already sold. The read is made
+ * without the lock of the stripe, so the other books of the stripe keep selling meanwhile.
+ * <p>
+ * A sale that the caller writes to the backend itself, in a transaction of its own, takes its
+ * copies with {@link #reserve(long, int)} and gives the reservation back with
+ * {@link #release(long, int)} once the transaction has ended.
+ * <p>
+ * With a {@link SaleJournal} every accepted sale is journaled before it is acknowledged, and
+ * each batch is committed together with the sequence of the last journaled sale it holds.
+ * {@link #start()} replays the journal after that sequence first, so a sale is applied exactly
+ * once even if the process is killed at any point.
+ */
+public class StockLedger {
+    
+    /**
+     * Storage of the stock.
+     */
+    public interface Backend {
+        
+        /**
+         * @return the committed quantity of the book, or -1 if there is no such book
+         */
+        int loadQuantity(long id);
+        
+        /**
+         * @return the sequence stored by the last commit, or 0 if there was none
+         */
+        long loadAppliedSequence();
+        
+        /**
+         * Apply the quantity changes of the first {@code count} books and store the journal
+         * sequence they are applied up to, atomically.
+         */
+        void commit(long[] ids, int[] deltas, int count, long sequence);
+    }
+    
+    /**
+     * Marks a book whose stock has not been loaded
+     */
+    private static final int UNKNOWN = Integer.MIN_VALUE;
+    
+    private static final Logger LOG = Logger.getLogger(StockLedger.class.getName());
+    
+    private final Backend mBackend;
+    private final SaleJournal mJournal;
+    private final Stripe[] mStripes;
+    private final int mBatchSize;
+    private final long mMaxDelayMillis;
+    
+    /**
+     * Number of sold copies waiting for the committer
+     */
+    private final AtomicInteger mPendingSales = new AtomicInteger();
+    
+    /**
+     * Released once the journal is replayed; sales wait for it
+     */
+    private final CountDownLatch mRecovered = new CountDownLatch(1);
+    
+    private final Object mSignal = new Object();
+    private final Object mCommitLock = new Object();
+    private volatile boolean mRunning;
+    private Thread mCommitter;
+    
+    public StockLedger(Backend backend, int stripes, int batchSize, long maxDelayMillis) {
+        this(backend, null, stripes, batchSize, maxDelayMillis);
+    }
+    
+    /**
+     * @param journal        journal of the sales, or null to keep them in memory only
+     * @param stripes        number of lock stripes, a power of two
+     * @param batchSize      number of pending copies that triggers a commit
+     * @param maxDelayMillis longest time a sale waits for its commit
+     */
+    public StockLedger(Backend backend, SaleJournal journal, int stripes, int batchSize,
+                       long maxDelayMillis) {
+        if (Integer.bitCount(stripes) != 1) {
+            throw new IllegalArgumentException("Stripes must be a power of two");
+        }
+        
+        mBackend = backend;
+        mJournal = journal;
+        mStripes = new Stripe[stripes];
+        for (int i = 0; i < stripes; i++) {
+            mStripes[i] = new Stripe();
+        }
+        mBatchSize = batchSize;
+        mMaxDelayMillis = maxDelayMillis;
+        
+        if (journal == null) {
+            mRecovered.countDown();
+        }
+    }
+    
+    /**
+     * Start the committer thread, which replays the journal before the first sale. A ledger
+     * that was stopped can be started again; the journal is replayed only once.
+     */
+    public synchronized void start() {
+        if (mRunning) {
+            return;
+        }
+        
+        mRunning = true;
+        mCommitter = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                runCommitter();
+            }
+        }, "StockLedgerCommitter");
+        mCommitter.start();
+    }
+    
+    /**
+     * Commit the pending sales and stop the committer thread.
+     */
+    public synchronized void stop() throws InterruptedException {
+        if (!mRunning) {
+            return;
+        }
+        
+        mRunning = false;
+        synchronized (mSignal) {
+            mSignal.notifyAll();
+        }
+        mCommitter.join();
+        mCommitter = null;
+    }
+    
+    /**
+     * Sell copies of a book if there are enough of them. The sale is committed later.
+     *
+     * @return false if the book is unknown or there are not enough copies
+     */
+    public boolean sell(long id, int count) {
+        if (count <= 0) {
+            throw new IllegalArgumentException("Sale requires a positive count");
+        }
+        
+        awaitRecovery();
+        
+        Stripe stripe = stripeOf(id);
+        while (true) {
+            if (load(stripe, id) == UNKNOWN) {
+                return false;
+            }
+            
+            synchronized (stripe) {
+                int stock = stripe.mStock.get(id);
+                if (stock == UNKNOWN) {
+                    // Forgotten since it was loaded
+                    continue;
+                }
+                if (!InventoryRules.canSell(stock, count)) {
+                    return false;
+                }
+                
+                if (mJournal == null || mJournal.append(id, -count) != -1) {
+                    stripe.mStock.put(id, stock - count);
+                    stripe.mPending.put(id, stripe.mPending.get(id) - count);
+                    break;
+                }
+            }
+            
+            // The journal is full of sales that are not committed yet
+            flush();
+        }
+        
+        if (mPendingSales.addAndGet(count) >= mBatchSize) {
+            synchronized (mSignal) {
+                mSignal.notifyAll();
+            }
+        }
+        return true;
+    }
+    
+    /**
+     * Take copies of a book for a sale that the caller writes to the backend itself. Other
+     * sales no longer count them until {@link #release(long, int)} is called, which must
+     * follow once the write is committed or rolled back.
+     *
+     * @return false if the book is unknown or there are not enough copies
+     */
+    public boolean reserve(long id, int count) {
+        if (count <= 0) {
+            throw new IllegalArgumentException("Reservation requires a positive count");
+        }
+        
+        awaitRecovery();
+        
+        Stripe stripe = stripeOf(id);
+        while (true) {
+            if (load(stripe, id) == UNKNOWN) {
+                return false;
+            }
+            
+            synchronized (stripe) {
+                int stock = stripe.mStock.get(id);
+                if (stock == UNKNOWN) {
+                    continue;
+                }
+                if (!InventoryRules.canSell(stock, count)) {
+                    return false;
+                }
+                
+                stripe.mStock.put(id, stock - count);
+                stripe.mReserved.put(id, stripe.mReserved.get(id) + count);
+                return true;
+            }
+        }
+    }
+    
+    /**
+     * Give back a reservation once the write it was taken for has ended. The stock of the
+     * book is read again, so that it holds the sale only if the write was committed.
+     */
+    public void release(long id, int count) {
+        Stripe stripe = stripeOf(id);
+        synchronized (stripe) {
+            stripe.mReserved.put(id, stripe.mReserved.get(id) - count);
+            stripe.mStock.remove(id);
+            stripe.mEpoch++;
+        }
+    }
+    
+    /**
+     * @return the stock of the book including uncommitted sales, or -1 if there is no such book
+     */
+    public int getStock(long id) {
+        awaitRecovery();
+        
+        int stock = load(stripeOf(id), id);
+        return stock == UNKNOWN ? -1 : stock;
+    }
+    
+    /**
+     * Forget the stock of all books, so that it is read again from the backend. Called after
+     * the stock was changed in the backend by anything but this ledger.
+     */
+    public void invalidate() {
+        for (Stripe stripe : mStripes) {
+            synchronized (stripe) {
+                stripe.mStock.clear();
+                stripe.mEpoch++;
+            }
+        }
+    }
+    
+    /**
+     * Commit all pending sales now.
+     */
+    public void flush() {
+        synchronized (mCommitLock) {
+            commitPending();
+        }
+    }
+    
+    private void awaitRecovery() {
+        boolean interrupted = false;
+        while (true) {
+            try {
+                mRecovered.await();
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+    
+    /**
+     * Make the sales of the journal that the backend has not applied pending again.
+     */
+    private void recover() {
+        try {
+            mJournal.recover(mBackend.loadAppliedSequence(), new SaleJournal.Visitor() {
+                @Override
+                public void visit(long sequence, long id, int delta) {
+                    Stripe stripe = stripeOf(id);
+                    synchronized (stripe) {
+                        stripe.mPending.put(id, stripe.mPending.get(id) + delta);
+                        stripe.mStock.remove(id);
+                        stripe.mEpoch++;
+                    }
+                    mPendingSales.addAndGet(-delta);
+                }
+            });
+        } finally {
+            mRecovered.countDown();
+        }
+    }
+    
+    private void runCommitter() {
+        if (mJournal != null && mRecovered.getCount() != 0) {
+            recover();
+        }
+        
+        int failures = 0;
+        while (mRunning) {
+            synchronized (mSignal) {
+                if (mRunning && mPendingSales.get() < mBatchSize) {
+                    try {
+                        mSignal.wait(mMaxDelayMillis);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        return;
+                    }
+                }
+            }
+            try {
+                flush();
+                if (failures > 0) {
+                    LOG.info("Committed the sales after " + failures + " failed attempts");
+                    failures = 0;
+                }
+            } catch (RuntimeException e) {
+                // The sales are pending again and retried with the next batch; only the first
+                // failure in a row is logged with its cause
+                if (failures++ == 0) {
+                    LOG.log(Level.WARNING, "Failed to commit the sales, retrying", e);
+                }
+            }
+        }
+        flush();
+    }
+    
+    /**
+     * Move the pending sales of every stripe in flight, commit them as one batch and drop
+     * them once committed. If the commit fails they are pending again. Either way the stock of
+     * the books in flight is read again, since a load during the commit may have counted their
+     * sales twice.
+     */
+    private void commitPending() {
+        Batch batch = new Batch();
+        long sequence = drain(batch, 0);
+        if (batch.mCount == 0) {
+            return;
+        }
+        
+        mPendingSales.addAndGet(-batch.mSales);
+        
+        boolean committed = false;
+        try {
+            mBackend.commit(batch.mIds, batch.mDeltas, batch.mCount, sequence);
+            if (mJournal != null) {
+                mJournal.markApplied(sequence);
+            }
+            committed = true;
+        } finally {
+            for (final Stripe stripe : mStripes) {
+                synchronized (stripe) {
+                    final boolean failed = !committed;
+                    stripe.mInFlight.forEach(new LongIntMap.Visitor() {
+                        @Override
+                        public void visit(long id, int delta) {
+                            if (failed) {
+                                stripe.mPending.put(id, stripe.mPending.get(id) + delta);
+                            }
+                            stripe.mStock.remove(id);
+                        }
+                    });
+                    stripe.mInFlight.clear();
+                    stripe.mEpoch++;
+                }
+            }
+            if (!committed) {
+                mPendingSales.addAndGet(batch.mSales);
+            }
+        }
+    }
+    
+    /**
+     * Move the pending sales of the stripes from the given one on into the batch. All stripes
+     * are locked while the journal sequence is read, so the batch holds exactly the sales
+     * journaled up to it.
+     *
+     * @return the sequence of the last journaled sale in the batch
+     */
+    private long drain(final Batch batch, int index) {
+        if (index == mStripes.length) {
+            return mJournal == null ? 0 : mJournal.getLastSequence();
+        }
+        
+        final Stripe stripe = mStripes[index];
+        synchronized (stripe) {
+            long sequence = drain(batch, index + 1);
+            stripe.mPending.forEach(new LongIntMap.Visitor() {
+                @Override
+                public void visit(long id, int delta) {
+                    batch.add(id, delta);
+                    stripe.mInFlight.put(id, delta);
+                }
+            });
+            stripe.mPending.clear();
+            return sequence;
+        }
+    }
+    
+    private Stripe stripeOf(long id) {
+        long h = id * 0x9E3779B97F4A7C15L;
+        return mStripes[(int) (h >>> 32) & (mStripes.length - 1)];
+    }
+    
+    /**
+     * Returns the stock of the book, loading it from the backend if needed. The backend is
+     * read without the lock of the stripe; a load that raced with a commit, an invalidation or
+     * a release is made again, and one that another thread made first is kept.
+     *
+     * @return the stock, or {@link #UNKNOWN} if there is no such book
+     */
+    private int load(Stripe stripe, long id) {
+        while (true) {
+            long epoch;
+            synchronized (stripe) {
+                int stock = stripe.mStock.get(id);
+                if (stock != UNKNOWN) {
+                    return stock;
+                }
+                epoch = stripe.mEpoch;
+            }
+            
+            int committed = mBackend.loadQuantity(id);
+            
+            synchronized (stripe) {
+                int stock = stripe.mStock.get(id);
+                if (stock != UNKNOWN) {
+                    return stock;
+                }
+                if (stripe.mEpoch != epoch) {
+                    continue;
+                }
+                if (committed < 0) {
+                    return UNKNOWN;
+                }
+                
+                // A sale that is in flight may or may not be in the committed quantity yet;
+                // counting it twice hides its copies only until the commit ends, which drops
+                // the stock of the books in flight
+                stock = committed + stripe.mPending.get(id) + stripe.mInFlight.get(id)
+                        - stripe.mReserved.get(id);
+                stripe.mStock.put(id, stock);
+                return stock;
+            }
+        }
+    }
+    
+    /**
+     * Stock, pending, in-flight and reserved sales of the books of one stripe.
+     */
+    private static class Stripe {
+        
+        private final LongIntMap mStock = new LongIntMap(64, UNKNOWN);
+        private final LongIntMap mPending = new LongIntMap(16, 0);
+        private final LongIntMap mInFlight = new LongIntMap(16, 0);
+        private final LongIntMap mReserved = new LongIntMap(16, 0);
+        
+        /**
+         * Increased whenever a loaded stock may have become wrong: after a commit, an
+         * invalidation and a release
+         */
+        private long mEpoch;
+    }
+    
+    /**
+     * Sales of one commit, added up per book.
+     */
+    private static class Batch {
+        
+        private long[] mIds = new long[16];
+        private int[] mDeltas = new int[16];
+        private int mCount;
+        private int mSales;
+        
+        void add(long id, int delta) {
+            if (mCount == mIds.length) {
+                mIds = Arrays.copyOf(mIds, mCount * 2);
+                mDeltas = Arrays.copyOf(mDeltas, mCount * 2);
+            }
+            mIds[mCount] = id;
+            mDeltas[mCount] = delta;
+            mCount++;
+            mSales -= delta;
+        }
+    }
+}
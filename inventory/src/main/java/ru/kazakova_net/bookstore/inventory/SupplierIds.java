@@ -0,0 +1,54 @@
+package ru.kazakova_net.bookstore.inventory;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Interns supplier names to small integer IDs, so that the index stores an {@code int}
+ * per book instead of a string and filters by supplier with an integer comparison.
+ */
+public final class SupplierIds {
+    
+    /**
+     * ID of books without supplier
+     */
+    public static final int NONE = -1;
+    
+    private final Map<String, Integer> mIds = new HashMap<>();
+    private final List<String> mNames = new ArrayList<>();
+    
+    /**
+     * Returns the ID of the supplier, assigning a new one to an unknown name.
+     */
+    public int intern(String name) {
+        if (name == null) {
+            return NONE;
+        }
+        
+        Integer id = mIds.get(name);
+        if (id == null) {
+            id = mNames.size();
+            mIds.put(name, id);
+            mNames.add(name);
+        }
+        return id;
+    }
+    
+    /**
+     * Returns the ID of the supplier, or {@link #NONE} if the name was never interned.
+     */
+    public int find(String name) {
+        Integer id = name == null ? null : mIds.get(name);
+        return id == null ? NONE : id;
+    }
+    
+    public String getName(int id) {
+        return id == NONE ? null : mNames.get(id);
+    }
+    
+    public int size() {
+        return mNames.size();
+    }
+}
@@ -0,0 +1,97 @@
+package ru.kazakova_net.bookstore.inventory;
+
+import java.util.TreeSet;
+
+/**
+ * Trigram similarity of book titles, used to find near-duplicate books.
+ * <p>
+ * Titles are compared after {@link #normalize(String)}, so case, punctuation and spacing do not
+ * matter. The similarity of two titles is the Jaccard index of their sets of trigrams.
+ */
+public final class TitleTrigrams {
+    
+    /**
+     * Lowest similarity at which two titles are reported as possible duplicates
+     */
+    public static final double DUPLICATE_THRESHOLD = 0.7;
+    
+    private TitleTrigrams() {
+    }
+    
+    /**
+     * Lower-case the letters and digits of the title and replace every run of other
+     * characters with a single space. 'ё' is written as 'е', as it usually is in Russian.
+     */
+    public static String normalize(String title) {
+        StringBuilder builder = new StringBuilder(title.length());
+        boolean separated = false;
+        for (int i = 0; i < title.length(); i++) {
+            char c = title.charAt(i);
+            if (!Character.isLetterOrDigit(c)) {
+                separated = builder.length() != 0;
+                continue;
+            }
+            
+            if (separated) {
+                builder.append(' ');
+                separated = false;
+            }
+            c = Character.toLowerCase(c);
+            builder.append(c == 'ё' ? 'е' : c);
+        }
+        return builder.toString();
+    }
+    
+    /**
+     * Distinct trigrams of the normalized title, sorted. The title is padded with two spaces in
+     * front and one behind, so that its beginning weighs more than its middle.
+     *
+     * @return no trigrams if the title has no letters or digits
+     */
+    public static String[] trigrams(String title) {
+        String normalized = normalize(title);
+        if (normalized.isEmpty()) {
+            return new String[0];
+        }
+        
+        String padded = "  " + normalized + " ";
+        TreeSet<String> trigrams = new TreeSet<>();
+        for (int i = 0; i + 3 <= padded.length(); i++) {
+            trigrams.add(padded.substring(i, i + 3));
+        }
+        return trigrams.toArray(new String[0]);
+    }
+    
+    /**
+     * Jaccard index of two sorted sets of trigrams.
+     */
+    public static double similarity(String[] a, String[] b) {
+        if (a.length == 0 || b.length == 0) {
+            return 0;
+        }
+        
+        int shared = 0;
+        for (int i = 0, j = 0; i < a.length && j < b.length; ) {
+            int order = a[i].compareTo(b[j]);
+            if (order == 0) {
+                shared++;
+                i++;
+                j++;
+            } else if (order < 0) {
+                i++;
+            } else {
+                j++;
+            }
+        }
+        return (double) shared / (a.length + b.length - shared);
+    }
+    
+    /**
+     * Fewest trigrams a title with the given number of trigrams must share with another title
+     * to be at least as similar as the threshold.
+     */
+    public static int minShared(int trigrams, double threshold) {
+        // The union is at least as large as either set
+        return (int) Math.ceil(threshold * trigrams - 1e-9);
+    }
+}
@@ -0,0 +1,116 @@
+package ru.kazakova_net.bookstore.inventory;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that {@link CatalogGenerator} is deterministic and produces plausible books.
+ */
+public class CatalogGeneratorTest {
+    
+    private static final int BOOKS = 100000;
+    
+    @Test
+    public void sameSeed_sameCatalog_whateverTheChunks() {
+        final List<String> whole = new ArrayList<>();
+        final List<String> chunked = new ArrayList<>();
+        new CatalogGenerator(7, 20).generate(0, 1000, collect(whole));
+        CatalogGenerator generator = new CatalogGenerator(7, 20);
+        generator.generate(0, 300, collect(chunked));
+        generator.generate(300, 700, collect(chunked));
+        assertEquals(whole, chunked);
+        
+        final List<String> other = new ArrayList<>();
+        new CatalogGenerator(8, 20).generate(0, 1000, collect(other));
+        assertFalse(whole.equals(other));
+    }
+    
+    @Test
+    public void isbn_isValidIsbn13() {
+        assertEquals("9785000000007", CatalogGenerator.isbn(0));
+        assertEquals("9785170900008", CatalogGenerator.isbn(17090000));
+        
+        for (int number : new int[]{0, 1, 42, 999999, 12345678}) {
+            String isbn = CatalogGenerator.isbn(number);
+            assertEquals(13, isbn.length());
+            int sum = 0;
+            for (int i = 0; i < 13; i++) {
+                sum += (isbn.charAt(i) - '0') * (i % 2 == 0 ? 1 : 3);
+            }
+            assertEquals(0, sum % 10);
+        }
+    }
+    
+    @Test
+    public void catalog_looksLikeABookshop() {
+        final Set<String> isbns = new HashSet<>();
+        final Map<String, Integer> suppliers = new HashMap<>();
+        final int[] outOfStock = new int[1];
+        final int[] cyrillic = new int[1];
+        final long[] titleLength = new long[1];
+        final List<Integer> prices = new ArrayList<>();
+        
+        new CatalogGenerator(1, 50).generate(0, BOOKS, new CatalogGenerator.BookSink() {
+            @Override
+            public void onBook(String title, String isbn, int price, int quantity, String supplier,
+                               String supplierPhone) {
+                assertTrue(isbns.add(isbn));
+                Integer count = suppliers.get(supplier);
+                suppliers.put(supplier, count == null ? 1 : count + 1);
+                if (quantity == 0) {
+                    outOfStock[0]++;
+                }
+                if (Character.UnicodeBlock.of(title.charAt(0)) == Character.UnicodeBlock.CYRILLIC) {
+                    cyrillic[0]++;
+                }
+                titleLength[0] += title.length();
+                assertTrue(price >= 50 && price <= 20000 && price % 10 == 0);
+                assertTrue(quantity >= 0 && quantity <= 500);
+                assertTrue(supplierPhone.startsWith("+7 "));
+                prices.add(price);
+            }
+        });
+        
+        assertEquals(BOOKS, isbns.size());
+        assertEquals(BOOKS, cyrillic[0]);
+        assertTrue(suppliers.size() <= 50);
+        
+        // The largest supplier has far more books than an average one
+        int largest = 0;
+        for (int count : suppliers.values()) {
+            largest = Math.max(largest, count);
+        }
+        assertTrue(largest > 5 * BOOKS / 50);
+        
+        double outOfStockShare = (double) outOfStock[0] / BOOKS;
+        assertTrue(outOfStockShare > 0.10 && outOfStockShare < 0.14);
+        
+        double averageTitle = (double) titleLength[0] / BOOKS;
+        assertTrue(averageTitle > 15 && averageTitle < 40);
+        
+        Collections.sort(prices);
+        int median = prices.get(BOOKS / 2);
+        assertTrue(median >= 400 && median <= 500);
+    }
+    
+    private static CatalogGenerator.BookSink collect(final List<String> books) {
+        return new CatalogGenerator.BookSink() {
+            @Override
+            public void onBook(String title, String isbn, int price, int quantity, String supplier,
+                               String supplierPhone) {
+                books.add(title + "|" + isbn + "|" + price + "|" + quantity + "|" + supplier);
+            }
+        };
+    }
+}
@@ -0,0 +1,168 @@
+package ru.kazakova_net.bookstore.inventory;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Writes generated catalogs as snapshots and looks the books up in the mapped files.
+ */
+public class CatalogSnapshotTest {
+    
+    private static final int BOOKS = 5000;
+    
+    private File mDir;
+    private final List<String> mTitles = new ArrayList<>();
+    private final List<String> mIsbns = new ArrayList<>();
+    
+    @Before
+    public void setUp() throws IOException {
+        mDir = Files.createTempDirectory("snapshot").toFile();
+    }
+    
+    @After
+    public void tearDown() {
+        File[] files = mDir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        mDir.delete();
+    }
+    
+    @Test
+    public void lookups_matchTheCatalog() throws IOException {
+        File file = new File(mDir, "catalog.snapshot");
+        generate(7).writeTo(file);
+        CatalogSnapshot snapshot = CatalogSnapshot.open(file);
+        assertEquals(BOOKS, snapshot.size());
+        
+        // Ids are every third number, so the ones between are missing
+        for (int i = 0; i < BOOKS; i++) {
+            int record = snapshot.findById(3 * i + 1);
+            assertEquals(i, record);
+            assertEquals(mTitles.get(i), snapshot.getTitle(record));
+            assertEquals(mIsbns.get(i), snapshot.getIsbn(record));
+            assertEquals(record, snapshot.findByIsbn(mIsbns.get(i)));
+            assertEquals(-1, snapshot.findById(3 * i + 2));
+        }
+        assertEquals(-1, snapshot.findByIsbn("9780000000000"));
+        
+        char[] buffer = new char[4];
+        assertEquals(Math.min(4, mTitles.get(3).length()), snapshot.copyTitle(3, buffer));
+        assertEquals(mTitles.get(3).substring(0, 4), new String(buffer));
+    }
+    
+    @Test
+    public void prefixSearch_findsEveryTitleWithThePrefix() throws IOException {
+        CatalogSnapshot snapshot = CatalogSnapshot.wrap(generate(11).toBuffer());
+        int[] records = new int[BOOKS];
+        for (String title : mTitles.subList(0, 50)) {
+            for (int length = 1; length <= Math.min(6, title.length()); length++) {
+                // Typed in upper case, matched in any case
+                String prefix = title.substring(0, length).toUpperCase(Locale.ROOT);
+                int expected = 0;
+                for (String other : mTitles) {
+                    if (other.toLowerCase(Locale.ROOT).startsWith(prefix.toLowerCase(Locale.ROOT))) {
+                        expected++;
+                    }
+                }
+                
+                int found = snapshot.searchTitles(prefix, 0, records);
+                assertEquals(prefix, expected, found);
+                for (int i = 0; i < found; i++) {
+                    assertTrue(snapshot.getTitle(records[i]).toLowerCase(Locale.ROOT)
+                            .startsWith(prefix.toLowerCase(Locale.ROOT)));
+                }
+                
+                // Pages continue where the previous one ended
+                int[] page = new int[1];
+                if (found > 1) {
+                    assertEquals(1, snapshot.searchTitles(prefix, 1, page));
+                    assertEquals(records[1], page[0]);
+                }
+                assertEquals(0, snapshot.searchTitles(prefix, found, page));
+            }
+        }
+        assertEquals(0, snapshot.searchTitles("zzz", 0, records));
+    }
+    
+    @Test
+    public void damagedSnapshot_isNotInstalled() throws IOException {
+        File current = new File(mDir, "catalog.snapshot");
+        generate(1).writeTo(current);
+        CatalogSnapshotHolder holder = new CatalogSnapshotHolder(current);
+        CatalogSnapshot first = holder.get();
+        assertEquals(BOOKS, first.size());
+        
+        File arrived = new File(mDir, "arrived.snapshot");
+        generate(2).writeTo(arrived);
+        RandomAccessFile damaged = new RandomAccessFile(arrived, "rw");
+        try {
+            damaged.seek(damaged.length() - 1);
+            damaged.write(damaged.read() ^ 1);
+        } finally {
+            damaged.close();
+        }
+        try {
+            holder.install(arrived);
+            fail("A damaged snapshot was installed");
+        } catch (IOException expected) {
+            assertSame(first, holder.get());
+        }
+        
+        // A good one replaces the file, while the first one stays readable
+        generate(2).writeTo(arrived);
+        CatalogSnapshot second = holder.install(arrived);
+        assertSame(second, holder.get());
+        assertEquals(mTitles.get(0), second.getTitle(0));
+        assertTrue(first.getTitle(0) != null);
+        assertEquals(second.getTitle(0), CatalogSnapshot.open(current).getTitle(0));
+    }
+    
+    @Test
+    public void missingFile_servesNothing() {
+        assertNull(new CatalogSnapshotHolder(new File(mDir, "none.snapshot")).get());
+    }
+    
+    /**
+     * Collect a generated catalog, added in reverse id order.
+     */
+    private CatalogSnapshotWriter generate(long seed) {
+        mTitles.clear();
+        mIsbns.clear();
+        final List<Object[]> books = new ArrayList<>();
+        new CatalogGenerator(seed, 20).generate(0, BOOKS, new CatalogGenerator.BookSink() {
+            @Override
+            public void onBook(String title, String isbn, int price, int quantity,
+                               String supplier, String supplierPhone) {
+                mTitles.add(title);
+                mIsbns.add(isbn);
+                books.add(new Object[]{title, isbn, price, quantity, supplier});
+            }
+        });
+        
+        CatalogSnapshotWriter writer = new CatalogSnapshotWriter();
+        for (int i = BOOKS - 1; i >= 0; i--) {
+            Object[] book = books.get(i);
+            writer.add(3 * i + 1, (String) book[0], (String) book[1], (Integer) book[2],
+                    (Integer) book[3], (String) book[4]);
+        }
+        return writer;
+    }
+}
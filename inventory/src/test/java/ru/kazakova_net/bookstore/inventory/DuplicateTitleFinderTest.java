@@ -0,0 +1,144 @@
+package ru.kazakova_net.bookstore.inventory;
+
+import org.junit.Test;
+
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks {@link DuplicateTitleFinder} against comparing every pair, and that it compares
+ * far fewer pairs on a large catalog.
+ */
+public class DuplicateTitleFinderTest {
+    
+    private static final String CONSONANTS = "бвгдзклмнпрстфхцчшbdgklmnprstv";
+    private static final String VOWELS = "аеиоуыяaeiou";
+    
+    @Test
+    public void punctuationAndCase_doNotMatter() {
+        String[] a = TitleTrigrams.trigrams("Война и мир");
+        String[] b = TitleTrigrams.trigrams("ВОЙНА И МИР.");
+        String[] c = TitleTrigrams.trigrams("  Война, и  мир ");
+        
+        assertEquals(1.0, TitleTrigrams.similarity(a, b), 0);
+        assertEquals(1.0, TitleTrigrams.similarity(a, c), 0);
+        assertEquals("война и мир", TitleTrigrams.normalize("Война и мир."));
+        assertEquals("елка", TitleTrigrams.normalize("Ёлка!"));
+        assertEquals(0, TitleTrigrams.trigrams("...").length);
+    }
+    
+    @Test
+    public void typo_isSimilar() {
+        String[] a = TitleTrigrams.trigrams("Преступление и наказание");
+        String[] b = TitleTrigrams.trigrams("Преступленье и наказание");
+        String[] c = TitleTrigrams.trigrams("Идиот");
+        
+        assertTrue(TitleTrigrams.similarity(a, b) >= TitleTrigrams.DUPLICATE_THRESHOLD);
+        assertTrue(TitleTrigrams.similarity(a, c) < 0.1);
+    }
+    
+    @Test
+    public void pairs_matchAllPairsComparison() {
+        Random random = new Random(7);
+        String[] titles = new String[1500];
+        for (int i = 0; i < titles.length; i++) {
+            titles[i] = i > 0 && random.nextInt(4) == 0
+                    ? mutate(titles[random.nextInt(i)], random)
+                    : randomTitle(random);
+        }
+        
+        DuplicateTitleFinder finder = new DuplicateTitleFinder(TitleTrigrams.DUPLICATE_THRESHOLD);
+        for (int i = 0; i < titles.length; i++) {
+            finder.add(i, titles[i]);
+        }
+        final Set<String> found = new HashSet<>();
+        finder.find(new DuplicateTitleFinder.Listener() {
+            @Override
+            public void onDuplicate(long id, long otherId, double similarity) {
+                assertTrue(id < otherId);
+                assertTrue(found.add(id + "-" + otherId));
+            }
+        });
+        
+        Set<String> expected = new HashSet<>();
+        for (int i = 0; i < titles.length; i++) {
+            String[] a = TitleTrigrams.trigrams(titles[i]);
+            for (int j = i + 1; j < titles.length; j++) {
+                if (TitleTrigrams.similarity(a, TitleTrigrams.trigrams(titles[j]))
+                        >= TitleTrigrams.DUPLICATE_THRESHOLD) {
+                    expected.add(i + "-" + j);
+                }
+            }
+        }
+        
+        assertTrue(expected.size() > 100);
+        assertEquals(expected, found);
+    }
+    
+    @Test
+    public void largeCatalog_comparesFewPairs() {
+        Random random = new Random(11);
+        int count = 50000;
+        DuplicateTitleFinder finder = new DuplicateTitleFinder(TitleTrigrams.DUPLICATE_THRESHOLD);
+        String previous = null;
+        for (int i = 0; i < count; i++) {
+            // Every tenth title is a copy of the previous one with a trailing dot
+            String title = i % 10 == 9 ? previous + "." : randomTitle(random);
+            finder.add(i, title);
+            previous = title;
+        }
+        
+        final int[] pairs = new int[1];
+        long started = System.nanoTime();
+        long compared = finder.find(new DuplicateTitleFinder.Listener() {
+            @Override
+            public void onDuplicate(long id, long otherId, double similarity) {
+                pairs[0]++;
+            }
+        });
+        long elapsed = System.nanoTime() - started;
+        
+        System.out.println(String.format(Locale.US, "%d titles: %d pairs found, %d compared "
+                        + "of %d, in %d ms", count, pairs[0], compared,
+                (long) count * (count - 1) / 2, elapsed / 1000000));
+        assertTrue(pairs[0] >= count / 10);
+        assertTrue(compared < (long) count * 100);
+    }
+    
+    private static String randomTitle(Random random) {
+        StringBuilder title = new StringBuilder();
+        int words = 1 + random.nextInt(4);
+        for (int w = 0; w < words; w++) {
+            if (w > 0) {
+                title.append(' ');
+            }
+            int syllables = 1 + random.nextInt(4);
+            for (int s = 0; s < syllables; s++) {
+                title.append(syllable(random));
+            }
+        }
+        return title.toString();
+    }
+    
+    private static String syllable(Random random) {
+        return "" + CONSONANTS.charAt(random.nextInt(CONSONANTS.length()))
+                + VOWELS.charAt(random.nextInt(VOWELS.length()));
+    }
+    
+    private static String mutate(String title, Random random) {
+        switch (random.nextInt(3)) {
+            case 0:
+                return title.toUpperCase(Locale.ROOT) + "!";
+            case 1:
+                int at = random.nextInt(title.length());
+                return title.substring(0, at) + "о" + title.substring(Math.min(title.length(), at + 1));
+            default:
+                return title + " " + syllable(random);
+        }
+    }
+}
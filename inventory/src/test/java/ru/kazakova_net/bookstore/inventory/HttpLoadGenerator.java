@@ -0,0 +1,227 @@
+package ru.kazakova_net.bookstore.inventory;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Drives the HTTP API with pipelined requests over keep-alive connections and reports the
+ * latency percentiles. Half of the requests read a book, the other half sell one copy.
+ * <p>
+ * Also runs against a device, after {@code adb forward tcp:8080 tcp:8080}, with the pairing
+ * key shown in the notification of the LAN API:
+ * {@code HttpLoadGenerator localhost 8080 <connections> <depth> <requests> <books> <key>}
+ */
+public class HttpLoadGenerator {
+    
+    /**
+     * Outcome of a run.
+     */
+    public static class Result {
+        
+        long mRequests;
+        long mErrors;
+        long mP50Micros;
+        long mP99Micros;
+        long mMaxMicros;
+        double mSeconds;
+        
+        @Override
+        public String toString() {
+            return String.format(Locale.US, "%d requests in %.2f s (%.0f/s), %d errors, "
+                            + "latency p50 %d us, p99 %d us, max %d us",
+                    mRequests, mSeconds, mRequests / mSeconds, mErrors,
+                    mP50Micros, mP99Micros, mMaxMicros);
+        }
+    }
+    
+    public static void main(String[] args) throws Exception {
+        System.out.println(run(args[0], Integer.parseInt(args[1]), Integer.parseInt(args[2]),
+                Integer.parseInt(args[3]), Integer.parseInt(args[4]), Integer.parseInt(args[5]),
+                args[6]));
+    }
+    
+    /**
+     * @param depth    requests each connection sends ahead of the responses
+     * @param requests requests per connection
+     * @param books    ids from 1 to this are requested
+     * @param key      pairing key of the server
+     */
+    public static Result run(final String host, final int port, int connections, final int depth,
+                             final int requests, final int books, final String key)
+            throws Exception {
+        final long[][] latencies = new long[connections][];
+        final long[] errors = new long[connections];
+        final Exception[] failures = new Exception[connections];
+        Thread[] threads = new Thread[connections];
+        for (int c = 0; c < connections; c++) {
+            final int connection = c;
+            threads[c] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        latencies[connection] = runConnection(host, port, depth, requests, books,
+                                key, new Random(connection), errors, connection);
+                    } catch (Exception e) {
+                        failures[connection] = e;
+                    }
+                }
+            });
+        }
+        
+        long started = System.nanoTime();
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        long elapsed = System.nanoTime() - started;
+        
+        for (Exception failure : failures) {
+            if (failure != null) {
+                throw failure;
+            }
+        }
+        
+        long[] all = new long[connections * requests];
+        Result result = new Result();
+        for (int c = 0; c < connections; c++) {
+            System.arraycopy(latencies[c], 0, all, c * requests, requests);
+            result.mErrors += errors[c];
+        }
+        Arrays.sort(all);
+        result.mRequests = all.length;
+        result.mSeconds = elapsed / 1e9;
+        result.mP50Micros = all[(int) (all.length * 0.50)] / 1000;
+        result.mP99Micros = all[(int) (all.length * 0.99)] / 1000;
+        result.mMaxMicros = all[all.length - 1] / 1000;
+        return result;
+    }
+    
+    private static long[] runConnection(String host, int port, int depth, int requests, int books,
+                                        String key, Random random, long[] errors, int index)
+            throws IOException {
+        long[] latencies = new long[requests];
+        ArrayDeque<Long> sent = new ArrayDeque<>();
+        Socket socket = new Socket(host, port);
+        try {
+            socket.setTcpNoDelay(true);
+            OutputStream out = socket.getOutputStream();
+            InputStream in = new BufferedInputStream(socket.getInputStream());
+            
+            int sentCount = 0;
+            for (int received = 0; received < requests; received++) {
+                // Keep the pipeline full
+                while (sentCount < requests && sent.size() < depth) {
+                    long id = 1 + random.nextInt(books);
+                    String head = "\r\nHost: " + host + "\r\nAuthorization: Bearer " + key;
+                    String request = random.nextBoolean()
+                            ? "GET /books/" + id + " HTTP/1.1" + head + "\r\n\r\n"
+                            : "POST /books/" + id + "/sell HTTP/1.1" + head
+                            + "\r\nContent-Length: 0\r\n\r\n";
+                    sent.add(System.nanoTime());
+                    out.write(request.getBytes(StandardCharsets.US_ASCII));
+                    sentCount++;
+                }
+                out.flush();
+                
+                Response response = Response.read(in);
+                latencies[received] = System.nanoTime() - sent.poll();
+                if (response.mStatus != 200 && response.mStatus != 409) {
+                    errors[index]++;
+                }
+            }
+        } finally {
+            socket.close();
+        }
+        return latencies;
+    }
+    
+    /**
+     * Response read from a socket, with a body of known length or chunked.
+     */
+    static class Response {
+        
+        int mStatus;
+        final Map<String, String> mHeaders = new HashMap<>();
+        byte[] mBody;
+        
+        String getBodyText() {
+            return new String(mBody, StandardCharsets.UTF_8);
+        }
+        
+        static Response read(InputStream in) throws IOException {
+            Response response = new Response();
+            String statusLine = readLine(in);
+            if (statusLine == null) {
+                throw new IOException("Connection closed");
+            }
+            response.mStatus = Integer.parseInt(statusLine.split(" ")[1]);
+            
+            String line;
+            while ((line = readLine(in)) != null && !line.isEmpty()) {
+                int colon = line.indexOf(':');
+                response.mHeaders.put(line.substring(0, colon).trim().toLowerCase(Locale.US),
+                        line.substring(colon + 1).trim());
+            }
+            
+            ByteArrayOutputStream body = new ByteArrayOutputStream();
+            String length = response.mHeaders.get("content-length");
+            if (length != null) {
+                copy(in, body, Integer.parseInt(length));
+            } else if ("chunked".equals(response.mHeaders.get("transfer-encoding"))) {
+                int size;
+                while ((size = Integer.parseInt(readLine(in).trim(), 16)) > 0) {
+                    copy(in, body, size);
+                    readLine(in);
+                }
+                readLine(in);
+            } else {
+                byte[] buffer = new byte[8192];
+                int read;
+                while ((read = in.read(buffer)) != -1) {
+                    body.write(buffer, 0, read);
+                }
+            }
+            response.mBody = body.toByteArray();
+            return response;
+        }
+        
+        private static void copy(InputStream in, ByteArrayOutputStream out, int length)
+                throws IOException {
+            byte[] buffer = new byte[Math.min(length, 8192)];
+            while (length > 0) {
+                int read = in.read(buffer, 0, Math.min(length, buffer.length));
+                if (read == -1) {
+                    throw new IOException("Truncated body");
+                }
+                out.write(buffer, 0, read);
+                length -= read;
+            }
+        }
+        
+        private static String readLine(InputStream in) throws IOException {
+            StringBuilder line = new StringBuilder();
+            int c;
+            while ((c = in.read()) != -1) {
+                if (c == '\n') {
+                    int end = line.length();
+                    return end > 0 && line.charAt(end - 1) == '\r' ? line.substring(0, end - 1) : line.toString();
+                }
+                line.append((char) c);
+            }
+            return line.length() == 0 ? null : line.toString();
+        }
+    }
+}
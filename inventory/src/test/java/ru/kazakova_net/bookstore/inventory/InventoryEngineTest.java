@@ -0,0 +1,98 @@
+package ru.kazakova_net.bookstore.inventory;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Runs sales, receipts and valuation against an in-memory store.
+ */
+public class InventoryEngineTest {
+    
+    private MemoryStore mStore;
+    private InventoryEngine mEngine;
+    
+    @Before
+    public void setUp() {
+        mStore = new MemoryStore();
+        mStore.mQuantities.put(1L, 5);
+        mStore.mPrices.put(1L, 100);
+        mStore.mSuppliers.put(1L, "North");
+        mStore.mQuantities.put(2L, 2);
+        mStore.mPrices.put(2L, 30);
+        mStore.mSuppliers.put(2L, "South");
+        
+        mEngine = new InventoryEngine(mStore, 2);
+        mEngine.load();
+    }
+    
+    @Test
+    public void sale_isPersistedAsDelta() {
+        assertTrue(mEngine.sell(1, 2));
+        
+        assertEquals(3, mEngine.getQuantity(1));
+        assertEquals(3, (int) mStore.mQuantities.get(1L));
+    }
+    
+    @Test
+    public void saleBeyondStock_isRejected() {
+        assertFalse(mEngine.sell(2, 3));
+        assertFalse(mEngine.sell(3, 1));
+        
+        assertEquals(2, mEngine.getQuantity(2));
+        assertEquals(2, (int) mStore.mQuantities.get(2L));
+    }
+    
+    @Test
+    public void valuation_followsChanges() {
+        assertEquals(5 * 100 + 2 * 30, mEngine.valuation());
+        
+        mEngine.receive(2, 8);
+        mEngine.setPrice(1, 90);
+        
+        assertEquals(5 * 90 + 10 * 30, mEngine.valuation());
+        assertEquals(10 * 30, mEngine.valuation("South"));
+        assertEquals(0, mEngine.valuation("West"));
+    }
+    
+    @Test
+    public void removal_keepsOtherBooks() {
+        mEngine.addBook(3, 10, 1, "North");
+        mEngine.removeBook(1);
+        
+        assertEquals(-1, mEngine.getQuantity(1));
+        assertEquals(2, mEngine.getQuantity(2));
+        assertEquals(1, mEngine.getQuantity(3));
+        assertEquals(10, mEngine.valuation("North"));
+    }
+    
+    private static class MemoryStore implements InventoryStore {
+        
+        final Map<Long, Integer> mQuantities = new HashMap<>();
+        final Map<Long, Integer> mPrices = new HashMap<>();
+        final Map<Long, String> mSuppliers = new HashMap<>();
+        
+        @Override
+        public void load(BookSink sink) {
+            for (long id : mQuantities.keySet()) {
+                sink.onBook(id, mPrices.get(id), mQuantities.get(id), mSuppliers.get(id));
+            }
+        }
+        
+        @Override
+        public void saveQuantityChange(long id, int delta) {
+            mQuantities.put(id, mQuantities.get(id) + delta);
+        }
+        
+        @Override
+        public void savePrice(long id, int price) {
+            mPrices.put(id, price);
+        }
+    }
+}
@@ -0,0 +1,252 @@
+package ru.kazakova_net.bookstore.inventory;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Talks to the HTTP API over localhost, backed by an in-memory inventory.
+ */
+public class InventoryHttpServerTest {
+    
+    private static final int BOOKS = 100;
+    
+    private static final String KEY = "pairing-key";
+    private static final String AUTH = "Authorization: Bearer " + KEY + "\r\n";
+    
+    private MemoryApi mApi;
+    private InventoryHttpServer mServer;
+    private Socket mSocket;
+    
+    @Before
+    public void setUp() throws IOException {
+        mApi = new MemoryApi();
+        for (int i = 1; i <= BOOKS; i++) {
+            Map<String, Object> book = new LinkedHashMap<>();
+            book.put("title", "Book " + i);
+            book.put("quantity", 1000L);
+            book.put("supplier", i % 2 == 0 ? "North" : "South");
+            mApi.add(book);
+        }
+        
+        mServer = new InventoryHttpServer(new InetSocketAddress("127.0.0.1", 0),
+                new InventoryHttpHandler(mApi, KEY), 4);
+        mServer.start();
+        mSocket = new Socket("127.0.0.1", mServer.getPort());
+    }
+    
+    @After
+    public void tearDown() throws IOException {
+        mSocket.close();
+        mServer.close();
+    }
+    
+    @Test
+    public void book_isReturnedAsJson() throws IOException {
+        HttpLoadGenerator.Response response = request("GET /books/7 HTTP/1.1\r\n" + AUTH + "\r\n");
+        
+        assertEquals(200, response.mStatus);
+        Map<?, ?> book = (Map<?, ?>) Json.parse(response.getBodyText());
+        assertEquals("Book 7", book.get("title"));
+        assertEquals(7L, book.get("id"));
+    }
+    
+    @Test
+    public void unknownBook_isNotFound() throws IOException {
+        assertEquals(404, request("GET /books/1000 HTTP/1.1\r\n" + AUTH + "\r\n").mStatus);
+        assertEquals(404, request("GET /shelves HTTP/1.1\r\n" + AUTH + "\r\n").mStatus);
+        assertEquals(400, request("GET /books/seven HTTP/1.1\r\n" + AUTH + "\r\n").mStatus);
+    }
+    
+    @Test
+    public void list_isStreamedInChunks() throws IOException {
+        HttpLoadGenerator.Response response = request("GET /books?supplier=North HTTP/1.1\r\n"
+                + AUTH + "\r\n");
+        
+        assertEquals(200, response.mStatus);
+        assertEquals("chunked", response.mHeaders.get("transfer-encoding"));
+        List<?> books = (List<?>) Json.parse(response.getBodyText());
+        assertEquals(BOOKS / 2, books.size());
+    }
+    
+    @Test
+    public void pipelinedRequests_areAnsweredInOrder() throws IOException {
+        OutputStream out = mSocket.getOutputStream();
+        out.write(("POST /books/3/sell?count=4 HTTP/1.1\r\n" + AUTH + "Content-Length: 0\r\n\r\n"
+                + "GET /books/3 HTTP/1.1\r\n" + AUTH + "\r\n"
+                + "GET /books/search?q=Book%2099 HTTP/1.1\r\n" + AUTH + "\r\n"
+                + "POST /books/3/sell?count=5000 HTTP/1.1\r\n" + AUTH + "Content-Length: 0\r\n\r\n")
+                .getBytes(StandardCharsets.US_ASCII));
+        out.flush();
+        
+        InputStream in = new BufferedInputStream(mSocket.getInputStream());
+        assertEquals(200, HttpLoadGenerator.Response.read(in).mStatus);
+        Map<?, ?> book = (Map<?, ?>) Json.parse(HttpLoadGenerator.Response.read(in).getBodyText());
+        assertEquals(996L, book.get("quantity"));
+        List<?> found = (List<?>) Json.parse(HttpLoadGenerator.Response.read(in).getBodyText());
+        assertEquals(1, found.size());
+        assertEquals(409, HttpLoadGenerator.Response.read(in).mStatus);
+    }
+    
+    @Test
+    public void sales_areSoldInOneRequest() throws IOException {
+        String body = "[{\"id\":1,\"count\":2},{\"id\":2,\"count\":2000},{\"id\":1000}]";
+        HttpLoadGenerator.Response response = request("POST /sales HTTP/1.1\r\n" + AUTH
+                + "Content-Length: " + body.length() + "\r\n\r\n" + body);
+        
+        assertEquals(200, response.mStatus);
+        assertEquals("{\"sold\":[true,false,false]}", response.getBodyText());
+        assertEquals(998L, mApi.getBook(1).get("quantity"));
+    }
+    
+    @Test
+    public void books_areImported() throws IOException {
+        String body = "[{\"title\":\"New \\\"one\\\"\",\"quantity\":3},{\"title\":\"Другая\"}]";
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        HttpLoadGenerator.Response response = request("POST /books HTTP/1.1\r\n" + AUTH
+                + "Content-Length: " + bytes.length + "\r\n\r\n" + body);
+        
+        assertEquals(201, response.mStatus);
+        assertEquals("{\"ids\":[101,102]}", response.getBodyText());
+        assertEquals("Другая", mApi.getBook(102).get("title"));
+        
+        String invalid = "[{\"quantity\":3}]";
+        assertEquals(400, request("POST /books HTTP/1.1\r\n" + AUTH + "Content-Length: "
+                + invalid.length() + "\r\n\r\n" + invalid).mStatus);
+        assertEquals(400, request("POST /books HTTP/1.1\r\n" + AUTH
+                + "Content-Length: 3\r\n\r\n[{]").mStatus);
+    }
+    
+    @Test
+    public void request_withoutPairingKey_isRejected() throws IOException {
+        assertEquals(401, request("POST /books/3/sell HTTP/1.1\r\nContent-Length: 0\r\n\r\n")
+                .mStatus);
+        assertEquals(401, request("POST /books/3/sell HTTP/1.1\r\nAuthorization: Bearer other\r\n"
+                + "Content-Length: 0\r\n\r\n").mStatus);
+        
+        HttpLoadGenerator.Response response = request("GET /books/3 HTTP/1.1\r\n" + AUTH + "\r\n");
+        assertEquals(200, response.mStatus);
+        assertTrue(response.getBodyText().contains("\"quantity\":1000"));
+    }
+    
+    @Test
+    public void connectionClose_isHonoured() throws IOException {
+        HttpLoadGenerator.Response response = request("GET /books/1 HTTP/1.1\r\n" + AUTH
+                + "Connection: close\r\n\r\n");
+        
+        assertEquals("close", response.mHeaders.get("connection"));
+        assertEquals(-1, mSocket.getInputStream().read());
+    }
+    
+    @Test
+    public void load_reportsLatencyPercentiles() throws Exception {
+        HttpLoadGenerator.Result result = HttpLoadGenerator.run("127.0.0.1", mServer.getPort(),
+                8, 4, 2000, BOOKS, KEY);
+        
+        System.out.println(result);
+        assertEquals(0, result.mErrors);
+        assertTrue(result.mP50Micros <= result.mP99Micros);
+    }
+    
+    private HttpLoadGenerator.Response request(String request) throws IOException {
+        OutputStream out = mSocket.getOutputStream();
+        out.write(request.getBytes(StandardCharsets.UTF_8));
+        out.flush();
+        return HttpLoadGenerator.Response.read(mSocket.getInputStream());
+    }
+    
+    /**
+     * Books in a map, sold under one lock.
+     */
+    private static class MemoryApi implements InventoryApi {
+        
+        private final TreeMap<Long, Map<String, Object>> mBooks = new TreeMap<>();
+        
+        synchronized long add(Map<String, Object> book) {
+            long id = mBooks.isEmpty() ? 1 : mBooks.lastKey() + 1;
+            Map<String, Object> copy = new LinkedHashMap<>();
+            copy.put("id", id);
+            copy.putAll(book);
+            if (!copy.containsKey("quantity")) {
+                copy.put("quantity", 0L);
+            }
+            mBooks.put(id, copy);
+            return id;
+        }
+        
+        @Override
+        public synchronized Map<String, Object> getBook(long id) {
+            Map<String, Object> book = mBooks.get(id);
+            return book == null ? null : new LinkedHashMap<>(book);
+        }
+        
+        @Override
+        public void listBooks(Map<String, String> filter, BookSink sink) throws IOException {
+            String supplier = filter.get("supplier");
+            for (Map<String, Object> book : snapshot()) {
+                if (supplier == null || supplier.equals(book.get("supplier"))) {
+                    sink.onBook(book);
+                }
+            }
+        }
+        
+        @Override
+        public void searchBooks(String query, BookSink sink) throws IOException {
+            for (Map<String, Object> book : snapshot()) {
+                if (((String) book.get("title")).contains(query)) {
+                    sink.onBook(book);
+                }
+            }
+        }
+        
+        private synchronized List<Map<String, Object>> snapshot() {
+            return new ArrayList<>(mBooks.values());
+        }
+        
+        @Override
+        public synchronized boolean sell(long id, int count) {
+            Map<String, Object> book = mBooks.get(id);
+            if (book == null) {
+                return false;
+            }
+            
+            long quantity = (Long) book.get("quantity");
+            if (!InventoryRules.canSell((int) quantity, count)) {
+                return false;
+            }
+            book.put("quantity", quantity - count);
+            return true;
+        }
+        
+        @Override
+        public synchronized long[] importBooks(List<Map<String, Object>> books) {
+            for (Map<String, Object> book : books) {
+                if (!(book.get("title") instanceof String)) {
+                    throw new IllegalArgumentException("Book requires a title");
+                }
+            }
+            
+            long[] ids = new long[books.size()];
+            for (int i = 0; i < ids.length; i++) {
+                ids[i] = add(books.get(i));
+            }
+            return ids;
+        }
+    }
+}
@@ -0,0 +1,61 @@
+package ru.kazakova_net.bookstore.inventory;
+
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks {@link LongIntMap} against {@link HashMap} under random puts and removals.
+ */
+public class LongIntMapTest {
+    
+    private static final int MISSING = -1;
+    private static final int OPERATIONS = 200000;
+    
+    @Test
+    public void randomOperations_matchHashMap() {
+        LongIntMap map = new LongIntMap(4, MISSING);
+        Map<Long, Integer> expected = new HashMap<>();
+        Random random = new Random(42);
+        
+        for (int i = 0; i < OPERATIONS; i++) {
+            // A small key range makes collisions and removals of present keys frequent
+            long key = random.nextInt(5000) - 10;
+            if (random.nextInt(3) == 0) {
+                Integer previous = expected.remove(key);
+                assertEquals(previous == null ? MISSING : previous, map.remove(key));
+            } else {
+                int value = random.nextInt(1000);
+                Integer previous = expected.put(key, value);
+                assertEquals(previous == null ? MISSING : previous, map.put(key, value));
+            }
+        }
+        
+        assertEquals(expected.size(), map.size());
+        for (long key = -10; key < 5000; key++) {
+            Integer value = expected.get(key);
+            assertEquals(value == null ? MISSING : value, map.get(key));
+            assertEquals(value != null, map.containsKey(key));
+        }
+    }
+    
+    @Test
+    public void zeroKey_isStored() {
+        LongIntMap map = new LongIntMap(4, MISSING);
+        assertFalse(map.containsKey(0));
+        
+        map.put(0, 7);
+        assertTrue(map.containsKey(0));
+        assertEquals(7, map.get(0));
+        assertEquals(1, map.size());
+        
+        assertEquals(7, map.remove(0));
+        assertEquals(MISSING, map.get(0));
+    }
+}
@@ -0,0 +1,302 @@
+package ru.kazakova_net.bookstore.inventory;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.TreeMap;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Replays the journal after clean closes, torn records and a seller process killed at
+ * random points.
+ */
+public class SaleJournalTest {
+    
+    private static final int BOOKS = 10;
+    private static final int STOCK = 1000000;
+    private static final int KILLS = 5;
+    
+    private File mDir;
+    
+    @Before
+    public void setUp() throws IOException {
+        mDir = Files.createTempDirectory("journal").toFile();
+    }
+    
+    @After
+    public void tearDown() {
+        File[] files = mDir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        mDir.delete();
+    }
+    
+    @Test
+    public void records_areReplayedAfterAppliedSequence() throws IOException {
+        SaleJournal journal = new SaleJournal(mDir, 1024);
+        journal.recover(0, new Recorder());
+        journal.append(7, -1);
+        journal.append(8, -2);
+        journal.append(7, -3);
+        journal.close();
+        
+        Recorder recorder = new Recorder();
+        journal = new SaleJournal(mDir, 1024);
+        journal.recover(1, recorder);
+        
+        assertEquals("[2:8:-2, 3:7:-3]", recorder.mRecords.toString());
+        assertEquals(4, journal.append(9, -1));
+        journal.close();
+    }
+    
+    @Test
+    public void tornRecord_endsReplay() throws IOException {
+        SaleJournal journal = new SaleJournal(mDir, 1024);
+        journal.recover(0, new Recorder());
+        journal.append(7, -1);
+        journal.append(8, -2);
+        journal.append(9, -3);
+        journal.close();
+        
+        // Damage the book id of the second record
+        RandomAccessFile file = new RandomAccessFile(new File(mDir, "sales-1.journal"), "rw");
+        file.seek(32 + 16);
+        file.writeLong(1234);
+        file.close();
+        
+        Recorder recorder = new Recorder();
+        journal = new SaleJournal(mDir, 1024);
+        journal.recover(0, recorder);
+        
+        assertEquals("[1:7:-1]", recorder.mRecords.toString());
+        journal.close();
+    }
+    
+    @Test
+    public void fullSegment_isReusedOnceApplied() throws IOException {
+        SaleJournal journal = new SaleJournal(mDir, 4 * 32);
+        journal.recover(0, new Recorder());
+        for (int i = 1; i <= 8; i++) {
+            assertEquals(i, journal.append(i, -1));
+        }
+        assertEquals(-1, journal.append(9, -1));
+        
+        journal.markApplied(4);
+        assertEquals(9, journal.append(9, -1));
+        assertEquals(10, journal.append(10, -1));
+        journal.close();
+        
+        Recorder recorder = new Recorder();
+        journal = new SaleJournal(mDir, 4 * 32);
+        journal.recover(4, recorder);
+        
+        assertEquals("[5:5:-1, 6:6:-1, 7:7:-1, 8:8:-1, 9:9:-1, 10:10:-1]",
+                recorder.mRecords.toString());
+        journal.close();
+    }
+    
+    @Test
+    public void killedSeller_neitherLosesNorRepeatsSales() throws Exception {
+        FileBackend.create(mDir);
+        
+        Random random = new Random(42);
+        int acknowledged = 0;
+        for (int i = 0; i < KILLS; i++) {
+            acknowledged += runSellerUntilKilled(random.nextInt(200));
+        }
+        
+        // Replay what the last seller left behind
+        FileBackend backend = new FileBackend(mDir);
+        SaleJournal journal = new SaleJournal(mDir, 64 * 1024);
+        StockLedger ledger = new StockLedger(backend, journal, 4, 32, 5);
+        ledger.start();
+        ledger.stop();
+        journal.close();
+        
+        int sold = 0;
+        for (long id = 1; id <= BOOKS; id++) {
+            sold += STOCK - backend.loadQuantity(id);
+        }
+        
+        // A sale journaled but not yet reported when the seller was killed may be applied too
+        System.out.println(String.format("%d sales acknowledged, %d applied over %d kills",
+                acknowledged, sold, KILLS));
+        assertTrue(acknowledged > 0);
+        assertTrue(sold >= acknowledged);
+        assertTrue(sold <= acknowledged + KILLS);
+    }
+    
+    @Test
+    public void restartedLedger_keepsSelling() throws IOException, InterruptedException {
+        FileBackend.create(mDir);
+        FileBackend backend = new FileBackend(mDir);
+        SaleJournal journal = new SaleJournal(mDir, 64 * 1024);
+        StockLedger ledger = new StockLedger(backend, journal, 4, 32, 5);
+        
+        ledger.start();
+        assertTrue(ledger.sell(1, 3));
+        ledger.stop();
+        assertEquals(STOCK - 3, backend.loadQuantity(1));
+        
+        // A sale made while the committer is stopped waits for the next commit
+        assertTrue(ledger.sell(1, 2));
+        ledger.start();
+        assertTrue(ledger.sell(1, 1));
+        ledger.stop();
+        journal.close();
+        
+        assertEquals(STOCK - 6, backend.loadQuantity(1));
+        assertEquals(3, backend.loadAppliedSequence());
+    }
+    
+    /**
+     * Start a seller process and kill it the given time after its first sale.
+     *
+     * @return the number of sales it acknowledged
+     */
+    private int runSellerUntilKilled(int delayMillis) throws Exception {
+        String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+        File output = new File(mDir, "seller.out");
+        Process process = new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"),
+                Seller.class.getName(), mDir.getPath())
+                .redirectOutput(output)
+                .redirectError(ProcessBuilder.Redirect.INHERIT)
+                .start();
+        
+        while (output.length() == 0 && process.isAlive()) {
+            Thread.sleep(1);
+        }
+        Thread.sleep(delayMillis);
+        process.destroyForcibly().waitFor();
+        
+        // The last line may have been cut short by the kill
+        String printed = new String(Files.readAllBytes(output.toPath()), StandardCharsets.UTF_8);
+        int end = printed.lastIndexOf('\n');
+        if (end == -1) {
+            return 0;
+        }
+        int start = printed.lastIndexOf('\n', end - 1) + 1;
+        return Integer.parseInt(printed.substring(start, end));
+    }
+    
+    /**
+     * Sells one copy after another and prints the number of acknowledged sales.
+     */
+    public static class Seller {
+        
+        public static void main(String[] args) throws IOException {
+            File dir = new File(args[0]);
+            StockLedger ledger = new StockLedger(new FileBackend(dir),
+                    new SaleJournal(dir, 64 * 1024), 4, 32, 5);
+            ledger.start();
+            
+            for (int sales = 1; ; sales++) {
+                if (!ledger.sell(1 + sales % BOOKS, 1)) {
+                    throw new IllegalStateException("Out of stock");
+                }
+                System.out.println(sales);
+                System.out.flush();
+            }
+        }
+    }
+    
+    /**
+     * Keeps the quantities and the applied sequence in one file that is replaced atomically,
+     * like a database transaction.
+     */
+    private static class FileBackend implements StockLedger.Backend {
+        
+        private final File mFile;
+        private final TreeMap<Long, Integer> mQuantities = new TreeMap<>();
+        private long mAppliedSequence;
+        
+        static void create(File dir) throws IOException {
+            FileBackend backend = new FileBackend(new File(dir, "stock"), false);
+            for (long id = 1; id <= BOOKS; id++) {
+                backend.mQuantities.put(id, STOCK);
+            }
+            backend.write();
+        }
+        
+        FileBackend(File dir) throws IOException {
+            this(new File(dir, "stock"), true);
+        }
+        
+        private FileBackend(File file, boolean read) throws IOException {
+            mFile = file;
+            if (read) {
+                List<String> lines = Files.readAllLines(file.toPath(), StandardCharsets.UTF_8);
+                mAppliedSequence = Long.parseLong(lines.get(0));
+                for (String line : lines.subList(1, lines.size())) {
+                    String[] fields = line.split(" ");
+                    mQuantities.put(Long.parseLong(fields[0]), Integer.parseInt(fields[1]));
+                }
+            }
+        }
+        
+        private void write() throws IOException {
+            List<String> lines = new ArrayList<>();
+            lines.add(String.valueOf(mAppliedSequence));
+            for (Long id : mQuantities.keySet()) {
+                lines.add(id + " " + mQuantities.get(id));
+            }
+            
+            File partial = new File(mFile.getPath() + ".tmp");
+            Files.write(partial.toPath(), lines, StandardCharsets.UTF_8);
+            Files.move(partial.toPath(), mFile.toPath(), StandardCopyOption.ATOMIC_MOVE,
+                    StandardCopyOption.REPLACE_EXISTING);
+        }
+        
+        @Override
+        public synchronized int loadQuantity(long id) {
+            Integer quantity = mQuantities.get(id);
+            return quantity == null ? -1 : quantity;
+        }
+        
+        @Override
+        public synchronized long loadAppliedSequence() {
+            return mAppliedSequence;
+        }
+        
+        @Override
+        public synchronized void commit(long[] ids, int[] deltas, int count, long sequence) {
+            for (int i = 0; i < count; i++) {
+                mQuantities.put(ids[i], mQuantities.get(ids[i]) + deltas[i]);
+            }
+            mAppliedSequence = sequence;
+            try {
+                write();
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+    }
+    
+    /**
+     * Collects replayed records as sequence:id:delta.
+     */
+    private static class Recorder implements SaleJournal.Visitor {
+        
+        private final List<String> mRecords = new ArrayList<>();
+        
+        @Override
+        public void visit(long sequence, long id, int delta) {
+            mRecords.add(sequence + ":" + id + ":" + delta);
+        }
+    }
+}
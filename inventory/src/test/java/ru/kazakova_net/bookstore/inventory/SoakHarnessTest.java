@@ -0,0 +1,86 @@
+package ru.kazakova_net.bookstore.inventory;
+
+import org.junit.Test;
+
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Runs {@link SoakHarness} against an in-memory target.
+ */
+public class SoakHarnessTest {
+    
+    @Test
+    public void buckets_boundTheLatency() {
+        Random random = new Random(3);
+        for (int i = 0; i < 100000; i++) {
+            long nanos = random.nextInt(4) == 0
+                    ? random.nextInt(100)
+                    : random.nextLong() >>> (1 + random.nextInt(60));
+            int bucket = SoakHarness.bucket(nanos);
+            assertTrue(nanos <= SoakHarness.bucketLimit(bucket));
+            assertTrue(bucket == 0 || nanos > SoakHarness.bucketLimit(bucket - 1));
+            
+            // Within about 6% of the value
+            assertTrue(SoakHarness.bucketLimit(bucket) - nanos <= nanos / 16 + 1);
+        }
+    }
+    
+    @Test
+    public void mix_followsTheWeights() throws InterruptedException {
+        final AtomicLong storage = new AtomicLong(1000);
+        final AtomicLong sold = new AtomicLong();
+        SoakHarness.Target target = new SoakHarness.Target() {
+            @Override
+            public void run(SoakHarness.Operation operation, int worker, Random random) {
+                switch (operation) {
+                    case SELL:
+                        sold.incrementAndGet();
+                        break;
+                    case INSERT:
+                        storage.addAndGet(100);
+                        break;
+                    case SEARCH:
+                        throw new IllegalStateException("Search is broken");
+                    default:
+                        break;
+                }
+            }
+            
+            @Override
+            public long storageBytes() {
+                return storage.get();
+            }
+        };
+        
+        SoakHarness.Report report = new SoakHarness(target, 4, 1)
+                .setWeight(SoakHarness.Operation.SELL, 6)
+                .setWeight(SoakHarness.Operation.INSERT, 3)
+                .setWeight(SoakHarness.Operation.SEARCH, 1)
+                .run(300);
+        System.out.println(report);
+        
+        assertNull(report.getStats(SoakHarness.Operation.LIST));
+        long sells = report.getStats(SoakHarness.Operation.SELL).getCount();
+        long inserts = report.getStats(SoakHarness.Operation.INSERT).getCount();
+        long searches = report.getStats(SoakHarness.Operation.SEARCH).getCount();
+        assertEquals(report.getCount(), sells + inserts + searches);
+        assertEquals(sold.get(), sells);
+        assertTrue(report.getCount() > 1000);
+        assertEquals(0.6, (double) sells / report.getCount(), 0.05);
+        assertEquals(0.1, (double) searches / report.getCount(), 0.05);
+        
+        assertEquals(searches, report.getErrors());
+        assertTrue(report.getFirstError() instanceof IllegalStateException);
+        assertEquals(inserts * 100, report.getStorageGrowth());
+        
+        SoakHarness.OperationStats stats = report.getStats(SoakHarness.Operation.SELL);
+        assertTrue(stats.getP50Micros() <= stats.getP99Micros());
+        assertTrue(stats.getP99Micros() <= stats.getMaxMicros());
+        assertTrue(report.toJson().contains("\"sell\":{\"count\":" + sells + ","));
+    }
+}
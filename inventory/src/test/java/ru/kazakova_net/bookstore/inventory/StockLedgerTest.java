@@ -0,0 +1,244 @@
+package ru.kazakova_net.bookstore.inventory;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Sells through the ledger from many threads against a slow in-memory backend.
+ */
+public class StockLedgerTest {
+    
+    private static final int BOOKS = 50;
+    private static final int STOCK = 200;
+    private static final int THREADS = 32;
+    private static final int SALES_PER_THREAD = 2000;
+    
+    private MemoryBackend mBackend;
+    private StockLedger mLedger;
+    
+    @Before
+    public void setUp() {
+        mBackend = new MemoryBackend();
+        for (long id = 1; id <= BOOKS; id++) {
+            mBackend.mQuantities.put(id, STOCK);
+        }
+        
+        mLedger = new StockLedger(mBackend, 16, 256, 5);
+        mLedger.start();
+    }
+    
+    @After
+    public void tearDown() throws InterruptedException {
+        mLedger.stop();
+    }
+    
+    @Test
+    public void sale_isCommittedInBatch() {
+        assertTrue(mLedger.sell(1, 3));
+        assertTrue(mLedger.sell(1, 2));
+        assertEquals(STOCK - 5, mLedger.getStock(1));
+        
+        mLedger.flush();
+        
+        assertEquals(STOCK - 5, (int) mBackend.mQuantities.get(1L));
+        assertEquals(STOCK - 5, mLedger.getStock(1));
+    }
+    
+    @Test
+    public void sale_isRefusedBeyondStock() {
+        assertFalse(mLedger.sell(1, STOCK + 1));
+        assertTrue(mLedger.sell(1, STOCK));
+        assertFalse(mLedger.sell(1, 1));
+        assertEquals(0, mLedger.getStock(1));
+    }
+    
+    @Test
+    public void sale_ofUnknownBookIsRefused() {
+        assertFalse(mLedger.sell(BOOKS + 1, 1));
+        assertEquals(-1, mLedger.getStock(BOOKS + 1));
+    }
+    
+    @Test
+    public void invalidate_keepsPendingSales() {
+        assertTrue(mLedger.sell(1, 4));
+        mBackend.mQuantities.put(1L, STOCK + 10);
+        
+        mLedger.invalidate();
+        
+        // A receipt of ten copies was written behind the ledger
+        assertEquals(STOCK + 6, mLedger.getStock(1));
+        mLedger.flush();
+        assertEquals(STOCK + 6, (int) mBackend.mQuantities.get(1L));
+    }
+    
+    @Test
+    public void reservation_holdsCopiesUntilReleased() {
+        assertTrue(mLedger.reserve(1, STOCK - 1));
+        assertFalse(mLedger.sell(1, 2));
+        assertTrue(mLedger.sell(1, 1));
+        
+        // The reserved copies were written behind the ledger, then released
+        mBackend.mQuantities.put(1L, 1);
+        mLedger.release(1, STOCK - 1);
+        assertEquals(0, mLedger.getStock(1));
+        mLedger.flush();
+        assertEquals(0, (int) mBackend.mQuantities.get(1L));
+    }
+    
+    @Test
+    public void rolledBackReservation_givesTheCopiesBack() {
+        assertTrue(mLedger.reserve(1, 5));
+        assertEquals(STOCK - 5, mLedger.getStock(1));
+        
+        // Invalidated while the write is open, the reservation still counts
+        mLedger.invalidate();
+        assertEquals(STOCK - 5, mLedger.getStock(1));
+        
+        mLedger.release(1, 5);
+        assertEquals(STOCK, mLedger.getStock(1));
+    }
+    
+    @Test
+    public void failedCommit_isRetried() {
+        mBackend.mFailures = 1;
+        assertTrue(mLedger.sell(1, 2));
+        
+        try {
+            mLedger.flush();
+        } catch (IllegalStateException expected) {
+            // The sale is pending again
+        }
+        mLedger.flush();
+        
+        assertEquals(STOCK - 2, (int) mBackend.mQuantities.get(1L));
+    }
+    
+    @Test
+    public void loadDuringCommit_doesNotHideTheSale() {
+        assertTrue(mLedger.sell(1, 2));
+        
+        // Read the stock again once the sale is applied, but before the commit has ended
+        mBackend.mAfterCommit = new Runnable() {
+            @Override
+            public void run() {
+                mLedger.invalidate();
+                mLedger.getStock(1);
+            }
+        };
+        mLedger.flush();
+        
+        assertEquals(STOCK - 2, mLedger.getStock(1));
+    }
+    
+    @Test
+    public void concurrentSales_neverOversell() throws InterruptedException {
+        final AtomicInteger sold = new AtomicInteger();
+        final CountDownLatch start = new CountDownLatch(1);
+        Thread[] threads = new Thread[THREADS];
+        for (int t = 0; t < THREADS; t++) {
+            final long seed = t;
+            threads[t] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    long state = seed * 31 + 7;
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    for (int i = 0; i < SALES_PER_THREAD; i++) {
+                        state = state * 6364136223846793005L + 1442695040888963407L;
+                        long id = 1 + (state >>> 33) % BOOKS;
+                        int count = 1 + (int) ((state >>> 20) & 1);
+                        if (mLedger.sell(id, count)) {
+                            sold.addAndGet(count);
+                        }
+                    }
+                }
+            });
+            threads[t].start();
+        }
+        
+        long started = System.nanoTime();
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        mLedger.flush();
+        long elapsed = System.nanoTime() - started;
+        
+        int remaining = 0;
+        for (long id = 1; id <= BOOKS; id++) {
+            int quantity = mBackend.mQuantities.get(id);
+            assertTrue(quantity >= 0);
+            assertEquals(quantity, mLedger.getStock(id));
+            remaining += quantity;
+        }
+        assertEquals(BOOKS * STOCK - remaining, sold.get());
+        
+        int attempts = THREADS * SALES_PER_THREAD;
+        System.out.println(String.format("%d sales attempted, %d copies sold in %.1f ms "
+                        + "(%.0f sales/s), %d commits",
+                attempts, sold.get(), elapsed / 1e6, attempts / (elapsed / 1e9),
+                mBackend.mCommits));
+    }
+    
+    /**
+     * Backend that takes a while per commit, like a database transaction.
+     */
+    private static class MemoryBackend implements StockLedger.Backend {
+        
+        private final Map<Long, Integer> mQuantities = new HashMap<>();
+        private int mCommits;
+        private int mFailures;
+        private Runnable mAfterCommit;
+        
+        @Override
+        public synchronized int loadQuantity(long id) {
+            Integer quantity = mQuantities.get(id);
+            return quantity == null ? -1 : quantity;
+        }
+        
+        @Override
+        public long loadAppliedSequence() {
+            return 0;
+        }
+        
+        @Override
+        public synchronized void commit(long[] ids, int[] deltas, int count, long sequence) {
+            if (mFailures > 0) {
+                mFailures--;
+                throw new IllegalStateException("Disk full");
+            }
+            
+            for (int i = 0; i < count; i++) {
+                int quantity = mQuantities.get(ids[i]) + deltas[i];
+                if (quantity < 0) {
+                    throw new IllegalStateException("Oversold book " + ids[i]);
+                }
+                mQuantities.put(ids[i], quantity);
+            }
+            mCommits++;
+            if (mAfterCommit != null) {
+                Runnable afterCommit = mAfterCommit;
+                mAfterCommit = null;
+                afterCommit.run();
+            }
+            try {
+                Thread.sleep(1);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}